@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks of this module with the GC profiler and writes the results in JSON format.
+ * The usual JMH command line options can be passed to override the defaults, e.g.
+ * <code>java -jar target/benchmarks.jar WireResolution -p providerCount=1000</code>.
+ */
+public final class BenchmarkRunner {
+
+  /**
+   * The file that the results are written to if no <code>-rff</code> option is passed.
+   */
+  public static final String DEFAULT_RESULT_FILE = "target/jmh-result.json";
+
+  /**
+   * Runs the benchmarks.
+   *
+   * @param args
+   *          JMH command line options.
+   * @throws CommandLineOptionException
+   *           if the command line options are not valid.
+   * @throws RunnerException
+   *           if running a benchmark failed.
+   */
+  public static void main(final String[] args)
+      throws CommandLineOptionException, RunnerException {
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    OptionsBuilder optionsBuilder = new OptionsBuilder();
+    if (commandLineOptions.getIncludes().isEmpty()) {
+      optionsBuilder.include(BenchmarkRunner.class.getPackage().getName() + ".*Benchmark");
+    }
+    Options options = optionsBuilder
+        .parent(commandLineOptions)
+        .addProfiler(GCProfiler.class)
+        .resultFormat(ResultFormatType.JSON)
+        .result(commandLineOptions.getResult().orElse(DEFAULT_RESULT_FILE))
+        .build();
+    new Runner(options).run();
+  }
+
+  private BenchmarkRunner() {
+  }
+}
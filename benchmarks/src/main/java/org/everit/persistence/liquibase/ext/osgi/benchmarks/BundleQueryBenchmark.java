@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.everit.persistence.liquibase.ext.osgi.util.LiquibaseCapabilityRegistry;
+import org.everit.persistence.liquibase.ext.osgi.util.LiquibaseOSGiUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Measures the lookup of the bundles that provide a schema by scanning every bundle of the
+ * container and by querying a {@link LiquibaseCapabilityRegistry}.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BundleQueryBenchmark {
+
+  @Param({ "10", "100", "1000" })
+  public int bundleCount;
+
+  private BundleContext bundleContext;
+
+  @Param({ "1", "4" })
+  public int capabilitiesPerBundle;
+
+  private LiquibaseCapabilityRegistry registry;
+
+  private String schemaExpression;
+
+  /**
+   * Queries the opened registry.
+   */
+  @Benchmark
+  public List<BundleResource> registry() {
+    return registry.findBundlesBySchemaExpression(schemaExpression, Bundle.ACTIVE);
+  }
+
+  /**
+   * Scans the capabilities of every bundle of the container.
+   */
+  @Benchmark
+  public List<BundleResource> scan() {
+    return LiquibaseOSGiUtil.findBundlesBySchemaExpression(schemaExpression, bundleContext,
+        Bundle.ACTIVE);
+  }
+
+  @Setup
+  public void setUp() {
+    SyntheticContainer container =
+        SyntheticScenarios.flatContainer(bundleCount, capabilitiesPerBundle);
+    bundleContext = container.getBundleContext();
+    registry = new LiquibaseCapabilityRegistry(bundleContext);
+    registry.open();
+    schemaExpression = SyntheticScenarios.schemaName(bundleCount / 2, 0) + ";filter:=("
+        + SyntheticScenarios.ATTR_LEVEL + "=0)";
+  }
+
+  @TearDown
+  public void tearDown() {
+    registry.close();
+  }
+}
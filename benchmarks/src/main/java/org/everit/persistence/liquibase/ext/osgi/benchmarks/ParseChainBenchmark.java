@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiParserContext;
+import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
+import org.everit.persistence.liquibase.ext.osgi.benchmarks.SyntheticContainer.SyntheticBundle;
+import org.everit.persistence.liquibase.ext.osgi.parser.EOSGiChangelogParser;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePlan;
+import org.everit.persistence.liquibase.ext.osgi.util.LiquibaseOSGiUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.exception.LiquibaseException;
+import liquibase.parser.ChangeLogParserFactory;
+
+/**
+ * Measures parsing a whole changelog tree where the changelogs of the bundles include each
+ * other via ".osgi" includes. The tree has <code>fanOut^level</code> bundles on every level up
+ * to the given depth.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseChainBenchmark {
+
+  @Param({ "1", "10" })
+  public int changeSetsPerChangeLog;
+
+  @Param({ "1", "2", "3" })
+  public int depth;
+
+  @Param({ "2", "4" })
+  public int fanOut;
+
+  private EOSGiParserContext planParserContext;
+
+  private Bundle rootBundle;
+
+  private String rootResourceName;
+
+  /**
+   * Parses the tree by resolving every ".osgi" include via the wires of the including bundle.
+   */
+  @Benchmark
+  public DatabaseChangeLog parse() throws LiquibaseException {
+    return parse(new EOSGiResourceAccessor(rootBundle));
+  }
+
+  private DatabaseChangeLog parse(final EOSGiResourceAccessor resourceAccessor)
+      throws LiquibaseException {
+    return ChangeLogParserFactory.getInstance().getParser(rootResourceName, resourceAccessor)
+        .parse(rootResourceName, new ChangeLogParameters(), resourceAccessor);
+  }
+
+  /**
+   * Parses the tree by resolving every ".osgi" include via an include plan that is created
+   * before the measurement.
+   */
+  @Benchmark
+  public DatabaseChangeLog parseWithIncludePlan() throws LiquibaseException {
+    return parse(new EOSGiResourceAccessor(rootBundle, null, planParserContext));
+  }
+
+  @Setup
+  public void setUp() {
+    ChangeLogParserFactory.getInstance().register(new EOSGiChangelogParser());
+    LiquibaseOSGiUtil.getBundleWiringIndex().clear();
+
+    SyntheticContainer container = new SyntheticContainer();
+    SyntheticBundle root =
+        SyntheticScenarios.includeTree(container, depth, fanOut, changeSetsPerChangeLog);
+    rootBundle = root.getBundle();
+    rootResourceName = SyntheticScenarios.resourceName("schema_0");
+
+    planParserContext = new EOSGiParserContext();
+    planParserContext.setIncludePlan(IncludePlan.create(Collections.singleton(rootBundle)));
+  }
+}
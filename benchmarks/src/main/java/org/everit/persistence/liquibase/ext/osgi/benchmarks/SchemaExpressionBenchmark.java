@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.everit.persistence.liquibase.ext.osgi.util.LiquibaseOSGiUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Filter;
+
+/**
+ * Measures the conversion of schema expressions to OSGi filters with and without the schema
+ * expression cache.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SchemaExpressionBenchmark {
+
+  @Param({ "schema_0_0", "schema_0_0;filter:=(level=0)",
+      "schema_0_0;filter:=(&(level>=0)(|(a=b)(c=d))(!(e=f)))" })
+  public String schemaExpression;
+
+  /**
+   * Compiles the schema expression from scratch on every call.
+   */
+  @Benchmark
+  public Filter compile() {
+    LiquibaseOSGiUtil.getSchemaExpressionCache().clear();
+    return LiquibaseOSGiUtil.createFilterForLiquibaseCapabilityAttributes(schemaExpression);
+  }
+
+  /**
+   * Takes the compiled schema expression from the cache.
+   */
+  @Benchmark
+  public Filter lookup() {
+    return LiquibaseOSGiUtil.createFilterForLiquibaseCapabilityAttributes(schemaExpression);
+  }
+
+  @Setup
+  public void setUp() {
+    LiquibaseOSGiUtil.getSchemaExpressionCache().clear();
+  }
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * In-memory stand-in of an OSGi container. Bundles, revisions, wirings, capabilities and wires
+ * are dynamic proxies that answer only the methods that the extension calls, the entries of the
+ * bundles are served from byte arrays via a custom {@link URLStreamHandler}.
+ */
+final class SyntheticContainer {
+
+  /**
+   * A synthetic bundle together with its revision and wiring.
+   */
+  static final class SyntheticBundle {
+
+    private final Bundle bundle;
+
+    private final List<BundleCapability> capabilities = new ArrayList<BundleCapability>();
+
+    private final Map<String, byte[]> entries = new HashMap<String, byte[]>();
+
+    private final long id;
+
+    private final List<BundleWire> requiredWires = new ArrayList<BundleWire>();
+
+    private final BundleRevision revision;
+
+    private final String symbolicName;
+
+    private final BundleWiring wiring;
+
+    SyntheticBundle(final long id, final String symbolicName) {
+      this.id = id;
+      this.symbolicName = symbolicName;
+      this.bundle = proxy(Bundle.class, new BundleHandler(this));
+      this.revision = proxy(BundleRevision.class, new RevisionHandler(this));
+      this.wiring = proxy(BundleWiring.class, new WiringHandler(this));
+    }
+
+    /**
+     * Adds a liquibase.changelog capability to the bundle.
+     */
+    BundleCapability addCapability(final Map<String, Object> attributes) {
+      BundleCapability capability = proxy(BundleCapability.class,
+          new CapabilityHandler(revision, Collections.unmodifiableMap(attributes)));
+      capabilities.add(capability);
+      return capability;
+    }
+
+    void addEntry(final String path, final String content) {
+      entries.put(normalizePath(path), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Wires a capability of the provider bundle to this bundle.
+     */
+    void addWire(final SyntheticBundle provider, final BundleCapability capability) {
+      requiredWires.add(proxy(BundleWire.class, new WireHandler(provider, this, capability)));
+    }
+
+    Bundle getBundle() {
+      return bundle;
+    }
+
+    BundleCapability getCapability(final int index) {
+      return capabilities.get(index);
+    }
+
+    private URL getEntryURL(final String path) {
+      final byte[] content = entries.get(normalizePath(path));
+      if (content == null) {
+        return null;
+      }
+      try {
+        return new URL("synthetic", String.valueOf(id), -1, "/" + normalizePath(path),
+            new URLStreamHandler() {
+              @Override
+              protected URLConnection openConnection(final URL u) {
+                return new URLConnection(u) {
+                  @Override
+                  public void connect() {
+                    connected = true;
+                  }
+
+                  @Override
+                  public InputStream getInputStream() {
+                    return new ByteArrayInputStream(content);
+                  }
+                };
+              }
+            });
+      } catch (MalformedURLException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /**
+   * Base of the invocation handlers that answers the {@link Object} methods based on identity.
+   */
+  private abstract static class AbstractHandler implements InvocationHandler {
+
+    protected abstract Object answer(String methodName, Object[] args);
+
+    protected abstract String describe();
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args)
+        throws Throwable {
+      String methodName = method.getName();
+      if ("equals".equals(methodName) && (args != null) && (args.length == 1)) {
+        return proxy == args[0];
+      }
+      if ("hashCode".equals(methodName) && (args == null)) {
+        return System.identityHashCode(proxy);
+      }
+      if ("toString".equals(methodName) && (args == null)) {
+        return describe();
+      }
+      Object result = answer(methodName, args);
+      if ((result == null) && method.getReturnType().isPrimitive()) {
+        return defaultValue(method.getReturnType());
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Answers the methods of {@link Bundle}.
+   */
+  private static final class BundleHandler extends AbstractHandler {
+
+    private final SyntheticBundle owner;
+
+    BundleHandler(final SyntheticBundle owner) {
+      this.owner = owner;
+    }
+
+    @Override
+    protected Object answer(final String methodName, final Object[] args) {
+      switch (methodName) {
+        case "adapt":
+          if (BundleWiring.class.equals(args[0])) {
+            return owner.wiring;
+          }
+          if (BundleRevision.class.equals(args[0])) {
+            return owner.revision;
+          }
+          return null;
+        case "getBundleId":
+          return owner.id;
+        case "getEntry":
+        case "getResource":
+          return owner.getEntryURL((String) args[0]);
+        case "getLastModified":
+          return 1L;
+        case "getLocation":
+          return "synthetic:" + owner.symbolicName;
+        case "getResources":
+          URL url = owner.getEntryURL((String) args[0]);
+          if (url == null) {
+            return Collections.enumeration(Collections.<URL> emptyList());
+          }
+          return Collections.enumeration(Collections.singletonList(url));
+        case "getState":
+          return Bundle.ACTIVE;
+        case "getSymbolicName":
+          return owner.symbolicName;
+        case "getVersion":
+          return VERSION;
+        default:
+          return null;
+      }
+    }
+
+    @Override
+    protected String describe() {
+      return owner.symbolicName + " [" + owner.id + "]";
+    }
+  }
+
+  /**
+   * Answers the methods of {@link BundleCapability}.
+   */
+  private static final class CapabilityHandler extends AbstractHandler {
+
+    private final Map<String, Object> attributes;
+
+    private final BundleRevision revision;
+
+    CapabilityHandler(final BundleRevision revision, final Map<String, Object> attributes) {
+      this.revision = revision;
+      this.attributes = attributes;
+    }
+
+    @Override
+    protected Object answer(final String methodName, final Object[] args) {
+      switch (methodName) {
+        case "getAttributes":
+          return attributes;
+        case "getDirectives":
+          return Collections.emptyMap();
+        case "getNamespace":
+          return NAMESPACE;
+        case "getRevision":
+        case "getResource":
+          return revision;
+        default:
+          return null;
+      }
+    }
+
+    @Override
+    protected String describe() {
+      return NAMESPACE + attributes;
+    }
+  }
+
+  /**
+   * Answers the methods of {@link BundleContext}.
+   */
+  private static final class ContextHandler extends AbstractHandler {
+
+    private final SyntheticContainer container;
+
+    ContextHandler(final SyntheticContainer container) {
+      this.container = container;
+    }
+
+    @Override
+    protected Object answer(final String methodName, final Object[] args) {
+      switch (methodName) {
+        case "getBundle":
+          if (args == null) {
+            return container.bundles.get(0).bundle;
+          }
+          if (args[0] instanceof Long) {
+            long bundleId = (Long) args[0];
+            return (bundleId < container.bundles.size())
+                ? container.bundles.get((int) bundleId).bundle : null;
+          }
+          return null;
+        case "getBundles":
+          Bundle[] result = new Bundle[container.bundles.size()];
+          for (int i = 0; i < result.length; i++) {
+            result[i] = container.bundles.get(i).bundle;
+          }
+          return result;
+        default:
+          return null;
+      }
+    }
+
+    @Override
+    protected String describe() {
+      return "SyntheticBundleContext";
+    }
+  }
+
+  /**
+   * Answers the methods of {@link BundleRevision}.
+   */
+  private static final class RevisionHandler extends AbstractHandler {
+
+    private final SyntheticBundle owner;
+
+    RevisionHandler(final SyntheticBundle owner) {
+      this.owner = owner;
+    }
+
+    @Override
+    protected Object answer(final String methodName, final Object[] args) {
+      switch (methodName) {
+        case "getBundle":
+          return owner.bundle;
+        case "getDeclaredCapabilities":
+          return capabilitiesOf(owner, (String) args[0]);
+        case "getSymbolicName":
+          return owner.symbolicName;
+        case "getVersion":
+          return VERSION;
+        case "getWiring":
+          return owner.wiring;
+        default:
+          return null;
+      }
+    }
+
+    @Override
+    protected String describe() {
+      return "revision of " + owner.symbolicName;
+    }
+  }
+
+  /**
+   * Answers the methods of {@link BundleWire}.
+   */
+  private static final class WireHandler extends AbstractHandler {
+
+    private final BundleCapability capability;
+
+    private final SyntheticBundle provider;
+
+    private final SyntheticBundle requirer;
+
+    WireHandler(final SyntheticBundle provider, final SyntheticBundle requirer,
+        final BundleCapability capability) {
+      this.provider = provider;
+      this.requirer = requirer;
+      this.capability = capability;
+    }
+
+    @Override
+    protected Object answer(final String methodName, final Object[] args) {
+      switch (methodName) {
+        case "getCapability":
+          return capability;
+        case "getProvider":
+          return provider.revision;
+        case "getProviderWiring":
+          return provider.wiring;
+        case "getRequirer":
+          return requirer.revision;
+        case "getRequirerWiring":
+          return requirer.wiring;
+        default:
+          return null;
+      }
+    }
+
+    @Override
+    protected String describe() {
+      return requirer.symbolicName + " -> " + capability;
+    }
+  }
+
+  /**
+   * Answers the methods of {@link BundleWiring}.
+   */
+  private static final class WiringHandler extends AbstractHandler {
+
+    private final SyntheticBundle owner;
+
+    WiringHandler(final SyntheticBundle owner) {
+      this.owner = owner;
+    }
+
+    @Override
+    protected Object answer(final String methodName, final Object[] args) {
+      switch (methodName) {
+        case "getBundle":
+          return owner.bundle;
+        case "getCapabilities":
+          return capabilitiesOf(owner, (String) args[0]);
+        case "getRequiredWires":
+          if ((args[0] == null) || NAMESPACE.equals(args[0])) {
+            return Collections.unmodifiableList(owner.requiredWires);
+          }
+          return Collections.emptyList();
+        case "getRevision":
+          return owner.revision;
+        case "isCurrent":
+        case "isInUse":
+          return true;
+        default:
+          return null;
+      }
+    }
+
+    @Override
+    protected String describe() {
+      return "wiring of " + owner.symbolicName;
+    }
+  }
+
+  private static final String NAMESPACE =
+      LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG;
+
+  private static final Version VERSION = new Version(1, 0, 0);
+
+  private static List<BundleCapability> capabilitiesOf(final SyntheticBundle owner,
+      final String namespace) {
+    if ((namespace == null) || NAMESPACE.equals(namespace)) {
+      return Collections.unmodifiableList(owner.capabilities);
+    }
+    return Collections.emptyList();
+  }
+
+  private static Object defaultValue(final Class<?> type) {
+    if (type == boolean.class) {
+      return Boolean.FALSE;
+    }
+    if (type == long.class) {
+      return 0L;
+    }
+    if (type == int.class) {
+      return 0;
+    }
+    return null;
+  }
+
+  private static String normalizePath(final String path) {
+    String result = path;
+    while (result.startsWith("/")) {
+      result = result.substring(1);
+    }
+    return result;
+  }
+
+  private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(SyntheticContainer.class.getClassLoader(),
+        new Class<?>[] { type }, handler));
+  }
+
+  private final BundleContext bundleContext;
+
+  private final List<SyntheticBundle> bundles = new ArrayList<SyntheticBundle>();
+
+  SyntheticContainer() {
+    this.bundleContext = proxy(BundleContext.class, new ContextHandler(this));
+  }
+
+  SyntheticBundle createBundle(final String symbolicName) {
+    SyntheticBundle syntheticBundle = new SyntheticBundle(bundles.size(), symbolicName);
+    bundles.add(syntheticBundle);
+    return syntheticBundle;
+  }
+
+  BundleContext getBundleContext() {
+    return bundleContext;
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.liquibase.ext.osgi.benchmarks.SyntheticContainer.SyntheticBundle;
+import org.osgi.framework.wiring.BundleCapability;
+
+/**
+ * Builds the synthetic containers that the benchmarks run on.
+ */
+final class SyntheticScenarios {
+
+  /**
+   * The attribute that every synthetic capability has and that the filters of the benchmarks
+   * refer to.
+   */
+  static final String ATTR_LEVEL = "level";
+
+  /**
+   * The attribute that holds the index of the provider bundle of the capabilities that are wired
+   * to the consumer of {@link #wiredConsumer(SyntheticContainer, int, int, boolean)}.
+   */
+  static final String ATTR_PROVIDER = "provider";
+
+  /**
+   * The schema name of all wired capabilities if the consumer is created with shared schema
+   * names.
+   */
+  static final String SHARED_SCHEMA_NAME = "schema_shared";
+
+  private static final String CHANGELOG_FOOTER = "</databaseChangeLog>\n";
+
+  private static final String CHANGELOG_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<databaseChangeLog xmlns=\"http://www.liquibase.org/xml/ns/dbchangelog\"\n"
+      + "  xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n"
+      + "  xsi:schemaLocation=\"http://www.liquibase.org/xml/ns/dbchangelog"
+      + " http://www.liquibase.org/xml/ns/dbchangelog/dbchangelog-3.5.xsd\">\n";
+
+  private static BundleCapability addChangeLogCapability(final SyntheticBundle syntheticBundle,
+      final String schemaName, final int level) {
+    return syntheticBundle.addCapability(createAttributes(schemaName, level));
+  }
+
+  private static Map<String, Object> createAttributes(final String schemaName, final int level) {
+    Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG, schemaName);
+    attributes.put(LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE, resourceName(schemaName));
+    attributes.put(ATTR_LEVEL, String.valueOf(level));
+    return attributes;
+  }
+
+  private static String createChangeLog(final String schemaName,
+      final List<String> includedSchemaNames, final int changeSetCount) {
+    StringBuilder sb = new StringBuilder(CHANGELOG_HEADER);
+    for (String includedSchemaName : includedSchemaNames) {
+      sb.append("  <include file=\"").append(includedSchemaName)
+          .append(LiquibaseEOSGiConstants.INCLUDE_OSGI_EXTENSION).append("\" />\n");
+    }
+    for (int i = 0; i < changeSetCount; i++) {
+      sb.append("  <changeSet id=\"").append(schemaName).append('_').append(i)
+          .append("\" author=\"benchmark\">\n").append("    <createTable tableName=\"")
+          .append(schemaName).append('_').append(i).append("\">\n")
+          .append("      <column name=\"id\" type=\"bigint\" />\n")
+          .append("    </createTable>\n").append("  </changeSet>\n");
+    }
+    sb.append(CHANGELOG_FOOTER);
+    return sb.toString();
+  }
+
+  /**
+   * Creates a container with bundles that provide a number of changelog capabilities each. The
+   * schema names are <code>schema_&lt;bundleIndex&gt;_&lt;capabilityIndex&gt;</code>.
+   */
+  static SyntheticContainer flatContainer(final int bundleCount,
+      final int capabilitiesPerBundle) {
+    SyntheticContainer container = new SyntheticContainer();
+    for (int i = 0; i < bundleCount; i++) {
+      SyntheticBundle provider = container.createBundle("benchmark.provider." + i);
+      for (int j = 0; j < capabilitiesPerBundle; j++) {
+        addChangeLogCapability(provider, schemaName(i, j), j);
+      }
+    }
+    return container;
+  }
+
+  /**
+   * Creates a tree of bundles where every bundle below the given depth includes the changelogs
+   * of its child bundles via ".osgi" includes. The root of the tree is returned, its changelog
+   * is {@link #resourceName(String)} of <code>schema_0</code>.
+   */
+  static SyntheticBundle includeTree(final SyntheticContainer container, final int depth,
+      final int fanOut, final int changeSetsPerChangeLog) {
+    return includeTreeNode(container, new int[] { 0 }, 0, depth, fanOut,
+        changeSetsPerChangeLog);
+  }
+
+  private static SyntheticBundle includeTreeNode(final SyntheticContainer container,
+      final int[] counter, final int level, final int depth, final int fanOut,
+      final int changeSetsPerChangeLog) {
+
+    String schemaName = "schema_" + counter[0]++;
+    SyntheticBundle node = container.createBundle("benchmark." + schemaName);
+    addChangeLogCapability(node, schemaName, level);
+
+    List<String> includedSchemaNames = new ArrayList<String>();
+    if (level < depth) {
+      for (int i = 0; i < fanOut; i++) {
+        SyntheticBundle child = includeTreeNode(container, counter, level + 1, depth, fanOut,
+            changeSetsPerChangeLog);
+        BundleCapability childCapability = child.getCapability(0);
+        node.addWire(child, childCapability);
+        includedSchemaNames.add(String.valueOf(childCapability.getAttributes()
+            .get(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG)));
+      }
+    }
+    node.addEntry(resourceName(schemaName),
+        createChangeLog(schemaName, includedSchemaNames, changeSetsPerChangeLog));
+    return node;
+  }
+
+  static String resourceName(final String schemaName) {
+    return "/META-INF/liquibase/" + schemaName + ".xml";
+  }
+
+  static String schemaName(final int bundleIndex, final int capabilityIndex) {
+    return "schema_" + bundleIndex + "_" + capabilityIndex;
+  }
+
+  /**
+   * Creates a consumer bundle that is wired to a number of provider bundles. Every provider has
+   * the given number of capabilities and all of them are wired to the consumer. The capabilities
+   * have the {@link #ATTR_PROVIDER} attribute. If the schema names are shared, all capabilities
+   * have the {@link #SHARED_SCHEMA_NAME}, so they can only be told apart by their filters.
+   */
+  static SyntheticBundle wiredConsumer(final SyntheticContainer container,
+      final int providerCount, final int capabilitiesPerProvider,
+      final boolean sharedSchemaName) {
+    SyntheticBundle consumer = container.createBundle("benchmark.consumer");
+    for (int i = 0; i < providerCount; i++) {
+      SyntheticBundle provider = container.createBundle("benchmark.provider." + i);
+      for (int j = 0; j < capabilitiesPerProvider; j++) {
+        String schemaName = sharedSchemaName ? SHARED_SCHEMA_NAME : schemaName(i, j);
+        Map<String, Object> attributes = createAttributes(schemaName, j);
+        attributes.put(ATTR_PROVIDER, String.valueOf(i));
+        consumer.addWire(provider, provider.addCapability(attributes));
+      }
+    }
+    return consumer;
+  }
+
+  private SyntheticScenarios() {
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.everit.persistence.liquibase.ext.osgi.util.LiquibaseOSGiUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+
+/**
+ * Measures {@link LiquibaseOSGiUtil#findMatchingWireBySchemaExpression(Bundle, String)} on a
+ * consumer bundle that has a growing number of liquibase.changelog wires. The wires either have
+ * distinct schema names or all of them share the same schema name, and the schema expressions
+ * either have a literal schema name or a wildcard one.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WireResolutionBenchmark {
+
+  @Param({ "1", "4" })
+  public int capabilitiesPerProvider;
+
+  private Bundle consumer;
+
+  private String hitExpression;
+
+  private String missExpression;
+
+  @Param({ "1", "10", "100", "1000" })
+  public int providerCount;
+
+  @Param({ "false", "true" })
+  public boolean sharedSchemaName;
+
+  private String wildcardHitExpression;
+
+  private String wildcardMissExpression;
+
+  /**
+   * Resolves the schema expression that matches the last wire of the consumer.
+   */
+  @Benchmark
+  public BundleResource hit() {
+    return LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(consumer, hitExpression);
+  }
+
+  /**
+   * Resolves a schema expression that has a wire with the same schema name but does not match
+   * its filter.
+   */
+  @Benchmark
+  public BundleResource miss() {
+    return LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(consumer, missExpression);
+  }
+
+  @Setup
+  public void setUp() {
+    LiquibaseOSGiUtil.getBundleWiringIndex().clear();
+    SyntheticContainer container = new SyntheticContainer();
+    consumer = SyntheticScenarios.wiredConsumer(container, providerCount,
+        capabilitiesPerProvider, sharedSchemaName).getBundle();
+    int lastProvider = providerCount - 1;
+    int lastCapability = capabilitiesPerProvider - 1;
+    String lastSchemaName = sharedSchemaName ? SyntheticScenarios.SHARED_SCHEMA_NAME
+        : SyntheticScenarios.schemaName(lastProvider, lastCapability);
+    String hitFilter = ";filter:=(&(" + SyntheticScenarios.ATTR_PROVIDER + "=" + lastProvider
+        + ")(" + SyntheticScenarios.ATTR_LEVEL + "=" + lastCapability + "))";
+    String missFilter = ";filter:=(&(" + SyntheticScenarios.ATTR_PROVIDER + "=" + lastProvider
+        + ")(" + SyntheticScenarios.ATTR_LEVEL + "=" + capabilitiesPerProvider + "))";
+    hitExpression = lastSchemaName + hitFilter;
+    missExpression = lastSchemaName + missFilter;
+    wildcardHitExpression = "schema_*" + hitFilter;
+    wildcardMissExpression = "schema_*" + missFilter;
+  }
+
+  /**
+   * Resolves a schema expression with a wildcard schema name that matches the last wire of the
+   * consumer.
+   */
+  @Benchmark
+  public BundleResource wildcardHit() {
+    return LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(consumer, wildcardHitExpression);
+  }
+
+  /**
+   * Resolves a schema expression with a wildcard schema name that matches the schema name of
+   * every wire but does not match any of their filters.
+   */
+  @Benchmark
+  public BundleResource wildcardMiss() {
+    return LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(consumer,
+        wildcardMissExpression);
+  }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.bnd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import aQute.bnd.header.Attrs;
+import aQute.bnd.header.Parameters;
+import aQute.bnd.osgi.Analyzer;
+import aQute.bnd.osgi.Constants;
+import aQute.bnd.osgi.EmbeddedResource;
+import aQute.bnd.osgi.Jar;
+import aQute.bnd.osgi.Processor;
+import aQute.bnd.osgi.Resource;
+import aQute.bnd.service.AnalyzerPlugin;
+
+/**
+ * bnd plugin that writes the index of the <code>liquibase.changelog</code> capabilities of the
+ * bundle into the <code>META-INF/liquibase-osgi.index</code> entry. The index holds the content
+ * digest and the ".osgi" include expressions of every changelog that is listed in the
+ * <code>Provide-Capability</code> header, so the Liquibase OSGi extension does not have to walk
+ * and parse the changelogs at runtime to plan the includes. The format of the index is described
+ * at <code>org.everit.persistence.liquibase.ext.osgi.util.ChangeLogIndex</code>.
+ *
+ * <p>
+ * The digest covers the entries under the directory of the changelog except the manifest, the
+ * signature files and the classes, so rebuilding a bundle without changing its changelogs keeps
+ * the digest. The include expressions are collected from the changelog and the changelogs that
+ * it includes from the same bundle via <code>include</code> and <code>includeAll</code>.
+ *
+ * <p>
+ * With the maven-bundle-plugin, the plugin is activated by adding the name of this class to the
+ * <code>_plugin</code> instruction and this artifact to the dependencies of the
+ * maven-bundle-plugin.
+ */
+public class ChangeLogIndexPlugin implements AnalyzerPlugin {
+
+  private static final String ATTR_FILE = "file";
+
+  private static final String ATTR_PATH = "path";
+
+  private static final String ATTR_RELATIVE_TO_CHANGELOG_FILE = "relativeToChangelogFile";
+
+  private static final String ATTR_RESOURCE = "resource";
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final String CAPABILITY_NS_LIQUIBASE_CHANGELOG = "liquibase.changelog";
+
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+
+  private static final String CLASS_EXTENSION = ".class";
+
+  private static final String ELEMENT_INCLUDE = "include";
+
+  private static final String ELEMENT_INCLUDE_ALL = "includeAll";
+
+  private static final String FORMAT_VERSION = "1";
+
+  private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+  private static final String INCLUDE_OSGI_EXTENSION = ".osgi";
+
+  private static final String INDEX_PATH = "META-INF/liquibase-osgi.index";
+
+  private static final String MANIFEST_PATH = "META-INF/MANIFEST.MF";
+
+  private static final String META_INF_DIRECTORY = "META-INF/";
+
+  private static final String[] SIGNATURE_EXTENSIONS = { ".SF", ".RSA", ".DSA", ".EC" };
+
+  private static final String SIGNATURE_PREFIX = "META-INF/SIG-";
+
+  private static final String XML_EXTENSION = ".xml";
+
+  /**
+   * Checks whether an entry is digested. The manifest, the signature files and the classes are
+   * left out as they change with every build without changing the changelogs. The same rule is
+   * applied by <code>ChangeLogFastPath</code> if a bundle does not have an index.
+   */
+  static boolean isDigested(final String entryPath) {
+    if (entryPath.endsWith("/") || INDEX_PATH.equals(entryPath)
+        || MANIFEST_PATH.equals(entryPath) || entryPath.endsWith(CLASS_EXTENSION)) {
+      return false;
+    }
+    if (entryPath.startsWith(META_INF_DIRECTORY)
+        && (entryPath.indexOf('/', META_INF_DIRECTORY.length()) < 0)) {
+      if (entryPath.startsWith(SIGNATURE_PREFIX)) {
+        return false;
+      }
+      for (String signatureExtension : SIGNATURE_EXTENSIONS) {
+        if (entryPath.endsWith(signatureExtension)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Resolves the path of a local include to a jar entry path.
+   *
+   * @return The path without a leading slash or <code>null</code> if the path cannot be resolved
+   *         at build time.
+   */
+  private static String resolveLocalPath(final String changeLogPath, final String path,
+      final boolean relativeToChangeLogFile) {
+    if (path.contains("${") || path.endsWith(INCLUDE_OSGI_EXTENSION)) {
+      return null;
+    }
+    String resolvedPath = path.replace('\\', '/');
+    if (relativeToChangeLogFile) {
+      int lastSlashIndex = changeLogPath.lastIndexOf('/');
+      resolvedPath = changeLogPath.substring(0, lastSlashIndex + 1) + resolvedPath;
+    }
+    LinkedList<String> segments = new LinkedList<String>();
+    for (String segment : resolvedPath.split("/")) {
+      if ("..".equals(segment)) {
+        if (segments.isEmpty()) {
+          return null;
+        }
+        segments.removeLast();
+      } else if (!segment.isEmpty() && !".".equals(segment)) {
+        segments.add(segment);
+      }
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String segment : segments) {
+      if (sb.length() > 0) {
+        sb.append('/');
+      }
+      sb.append(segment);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Collects the ".osgi" include expressions of a changelog and the paths of the changelogs that
+   * it includes from the same bundle.
+   */
+  private static void scanIncludes(final Jar jar, final String changeLogPath,
+      final Set<String> includeExpressions, final List<String> localIncludePaths)
+      throws Exception {
+    XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    try (InputStream inputStream = jar.getResource(changeLogPath).openInputStream()) {
+      XMLStreamReader reader = inputFactory.createXMLStreamReader(inputStream);
+      try {
+        while (reader.hasNext()) {
+          if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+            continue;
+          }
+          String elementName = reader.getLocalName();
+          boolean relativeToChangeLogFile = Boolean
+              .parseBoolean(reader.getAttributeValue(null, ATTR_RELATIVE_TO_CHANGELOG_FILE));
+          if (ELEMENT_INCLUDE.equals(elementName)) {
+            String file = reader.getAttributeValue(null, ATTR_FILE);
+            if (file == null) {
+              continue;
+            }
+            if (file.endsWith(INCLUDE_OSGI_EXTENSION)) {
+              includeExpressions
+                  .add(file.substring(0, file.length() - INCLUDE_OSGI_EXTENSION.length()));
+            } else {
+              String includePath =
+                  resolveLocalPath(changeLogPath, file, relativeToChangeLogFile);
+              if (includePath != null) {
+                localIncludePaths.add(includePath);
+              }
+            }
+          } else if (ELEMENT_INCLUDE_ALL.equals(elementName)) {
+            String path = reader.getAttributeValue(null, ATTR_PATH);
+            String includeAllPath = (path != null)
+                ? resolveLocalPath(changeLogPath, path, relativeToChangeLogFile) : null;
+            if (includeAllPath != null) {
+              String directory = includeAllPath.isEmpty() ? "" : includeAllPath + '/';
+              for (String entryPath : jar.getResources().keySet()) {
+                if (entryPath.startsWith(directory) && entryPath.endsWith(XML_EXTENSION)) {
+                  localIncludePaths.add(entryPath);
+                }
+              }
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  private static byte[] store(final Properties index) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    index.store(out, null);
+
+    // Drop the timestamp comment to keep the build reproducible
+    String content = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    StringBuilder sb = new StringBuilder(content.length());
+    for (String line : content.split("\r?\n")) {
+      if (!line.startsWith("#")) {
+        sb.append(line).append('\n');
+      }
+    }
+    return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static String toHex(final byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX_CHARS[(bytes[i] >> 4) & 0xF];
+      chars[(i * 2) + 1] = HEX_CHARS[bytes[i] & 0xF];
+    }
+    return new String(chars);
+  }
+
+  @Override
+  public boolean analyzeJar(final Analyzer analyzer) throws Exception {
+    String provideCapability = analyzer.getProperty(Constants.PROVIDE_CAPABILITY);
+    if (provideCapability == null) {
+      return false;
+    }
+
+    Set<String> resourceNames = new LinkedHashSet<String>();
+    Parameters capabilities = analyzer.parseHeader(provideCapability);
+    for (Map.Entry<String, Attrs> capability : capabilities.entrySet()) {
+      if (CAPABILITY_NS_LIQUIBASE_CHANGELOG
+          .equals(Processor.removeDuplicateMarker(capability.getKey()))) {
+        String resourceName = capability.getValue().get(ATTR_RESOURCE);
+        if (resourceName != null) {
+          resourceNames.add(resourceName);
+        }
+      }
+    }
+    if (resourceNames.isEmpty()) {
+      return false;
+    }
+
+    Jar jar = analyzer.getJar();
+    Properties index = new Properties();
+    index.setProperty("version", FORMAT_VERSION);
+    int changeLogCount = 0;
+    for (String resourceName : resourceNames) {
+      String path = resourceName.startsWith("/") ? resourceName.substring(1) : resourceName;
+      if (jar.getResource(path) == null) {
+        analyzer.warning("Changelog of %s capability is not in the bundle: %s",
+            CAPABILITY_NS_LIQUIBASE_CHANGELOG, resourceName);
+        continue;
+      }
+
+      String prefix = "changelog." + changeLogCount + '.';
+      index.setProperty(prefix + "resource", resourceName);
+      indexDirectory(analyzer, jar, path, index, prefix);
+      changeLogCount++;
+    }
+    index.setProperty("changelog.count", String.valueOf(changeLogCount));
+
+    jar.putResource(INDEX_PATH, new EmbeddedResource(store(index), jar.lastModified()));
+    return false;
+  }
+
+  private void collectIncludeExpressions(final Analyzer analyzer, final Jar jar,
+      final String path, final Set<String> includeExpressions) {
+
+    Set<String> visitedPaths = new LinkedHashSet<String>();
+    LinkedList<String> queue = new LinkedList<String>();
+    queue.add(path);
+    while (!queue.isEmpty()) {
+      String changeLogPath = queue.removeFirst();
+      if (!visitedPaths.add(changeLogPath) || !changeLogPath.endsWith(XML_EXTENSION)
+          || (jar.getResource(changeLogPath) == null)) {
+        continue;
+      }
+      List<String> localIncludePaths = new ArrayList<String>();
+      try {
+        scanIncludes(jar, changeLogPath, includeExpressions, localIncludePaths);
+      } catch (Exception e) {
+        analyzer.warning("Cannot scan the includes of %s: %s", changeLogPath, e.getMessage());
+      }
+      queue.addAll(localIncludePaths);
+    }
+  }
+
+  private void indexDirectory(final Analyzer analyzer, final Jar jar, final String path,
+      final Properties index, final String prefix) throws Exception {
+
+    int lastSlashIndex = path.lastIndexOf('/');
+    String directory = (lastSlashIndex > 0) ? path.substring(0, lastSlashIndex + 1) : "";
+    List<String> entryPaths = new ArrayList<String>();
+    for (String entryPath : jar.getResources().keySet()) {
+      if (entryPath.startsWith(directory) && isDigested(entryPath)) {
+        entryPaths.add(entryPath);
+      }
+    }
+    Collections.sort(entryPaths);
+
+    MessageDigest messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+    byte[] buffer = new byte[BUFFER_SIZE];
+    for (String entryPath : entryPaths) {
+      Resource resource = jar.getResource(entryPath);
+      messageDigest.update(('/' + entryPath).getBytes(StandardCharsets.UTF_8));
+      try (InputStream inputStream = resource.openInputStream()) {
+        int r = inputStream.read(buffer);
+        while (r >= 0) {
+          messageDigest.update(buffer, 0, r);
+          r = inputStream.read(buffer);
+        }
+      }
+    }
+
+    Set<String> includeExpressions = new LinkedHashSet<String>();
+    collectIncludeExpressions(analyzer, jar, path, includeExpressions);
+
+    index.setProperty(prefix + "digest", toHex(messageDigest.digest()));
+    index.setProperty(prefix + "include.count", String.valueOf(includeExpressions.size()));
+    int i = 0;
+    for (String includeExpression : includeExpressions) {
+      index.setProperty(prefix + "include." + i, includeExpression);
+      i++;
+    }
+  }
+}
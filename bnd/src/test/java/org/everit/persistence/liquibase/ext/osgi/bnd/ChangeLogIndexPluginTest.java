@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.bnd;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import aQute.bnd.osgi.Analyzer;
+import aQute.bnd.osgi.Constants;
+import aQute.bnd.osgi.EmbeddedResource;
+import aQute.bnd.osgi.Jar;
+
+/**
+ * Test for the digest scope and the include expressions of {@link ChangeLogIndexPlugin}.
+ */
+public class ChangeLogIndexPluginTest {
+
+  private static final String INDEX_PATH = "META-INF/liquibase-osgi.index";
+
+  private static String changeLog(final String content) {
+    return "<databaseChangeLog xmlns=\"http://www.liquibase.org/xml/ns/dbchangelog\">" + content
+        + "</databaseChangeLog>";
+  }
+
+  private static Properties index(final String... pathsAndContents) throws Exception {
+    Jar jar = new Jar("test");
+    for (int i = 0; i < pathsAndContents.length; i += 2) {
+      jar.putResource(pathsAndContents[i], new EmbeddedResource(
+          pathsAndContents[i + 1].getBytes(StandardCharsets.UTF_8), 0));
+    }
+    try (Analyzer analyzer = new Analyzer()) {
+      analyzer.setJar(jar);
+      analyzer.setProperty(Constants.PROVIDE_CAPABILITY,
+          "liquibase.changelog;liquibase.changelog=x;resource=/x.xml");
+      new ChangeLogIndexPlugin().analyzeJar(analyzer);
+
+      Properties index = new Properties();
+      try (InputStream inputStream = jar.getResource(INDEX_PATH).openInputStream()) {
+        index.load(inputStream);
+      }
+      return index;
+    }
+  }
+
+  private static Set<String> includes(final Properties index) {
+    Set<String> includes = new HashSet<String>();
+    int includeCount = Integer.parseInt(index.getProperty("changelog.0.include.count"));
+    for (int i = 0; i < includeCount; i++) {
+      includes.add(index.getProperty("changelog.0.include." + i));
+    }
+    return includes;
+  }
+
+  @Test
+  public void testBuildArtifactsDoNotChangeTheDigest() throws Exception {
+    String changeLog = changeLog("");
+    String digest = index("x.xml", changeLog, "META-INF/MANIFEST.MF", "Bnd-LastModified: 1\n",
+        "com/example/A.class", "1").getProperty("changelog.0.digest");
+
+    Assert.assertEquals(digest, index("x.xml", changeLog, "META-INF/MANIFEST.MF",
+        "Bnd-LastModified: 2\n", "com/example/A.class", "2", "META-INF/SIGNER.SF", "2")
+            .getProperty("changelog.0.digest"));
+    Assert.assertNotEquals(digest, index("x.xml", changeLog("<property name=\"a\" value=\"b\"/>"),
+        "META-INF/MANIFEST.MF", "Bnd-LastModified: 1\n").getProperty("changelog.0.digest"));
+    Assert.assertNotEquals(digest, index("x.xml", changeLog, "sql/create.sql", "1")
+        .getProperty("changelog.0.digest"));
+  }
+
+  @Test
+  public void testIncludesAreCollectedFromIncludedChangeLogsOnly() throws Exception {
+    Properties index = index(
+        "x.xml", changeLog("<include file=\"a.osgi\"/>"
+            + "<include file=\"sub/y.xml\" relativeToChangelogFile=\"true\"/>"
+            + "<includeAll path=\"all/\"/>"),
+        "sub/y.xml", changeLog("<include file=\"b.osgi\"/><include file=\"../x.xml\""
+            + " relativeToChangelogFile=\"true\"/>"),
+        "all/z.xml", changeLog("<include file=\"c.osgi\"/>"),
+        "unused.xml", changeLog("<include file=\"d.osgi\"/>"));
+
+    Set<String> expected = new HashSet<String>();
+    expected.add("a");
+    expected.add("b");
+    expected.add("c");
+    Assert.assertEquals(expected, includes(index));
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi;
+
+import org.everit.persistence.liquibase.ext.osgi.util.ChangeLogFastPath;
+import org.everit.persistence.liquibase.ext.osgi.util.ChangeLogSnapshotStore;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePlan;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePrefetcher;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePrescanner;
+import org.everit.persistence.liquibase.ext.osgi.util.ParsedChangeLogCache;
+
+/**
+ * Optional settings of the changelog parsing that are passed to the parser of the ".osgi"
+ * includes via {@link EOSGiResourceAccessor}. The context is handed over to every
+ * {@link EOSGiResourceAccessor} that is created when an include points to another bundle, so the
+ * settings are valid for the whole changelog tree.
+ */
+public class EOSGiParserContext {
+
+  private ChangeLogSnapshotStore changeLogSnapshotStore;
+
+  private ChangeLogFastPath fastPath;
+
+  private IncludePlan includePlan;
+
+  private IncludePrefetcher includePrefetcher;
+
+  private IncludePrescanner includePrescanner;
+
+  private ParsedChangeLogCache parsedChangeLogCache;
+
+  private StreamingIncludeHandler streamingIncludeHandler;
+
+  /**
+   * Creates a parser context with default settings.
+   */
+  public EOSGiParserContext() {
+  }
+
+  /**
+   * Creates a parser context with the same settings as the provided one.
+   *
+   * @param parserContext
+   *          The parser context whose settings are copied or <code>null</code>.
+   */
+  public EOSGiParserContext(final EOSGiParserContext parserContext) {
+    if (parserContext != null) {
+      this.changeLogSnapshotStore = parserContext.changeLogSnapshotStore;
+      this.fastPath = parserContext.fastPath;
+      this.includePlan = parserContext.includePlan;
+      this.includePrefetcher = parserContext.includePrefetcher;
+      this.includePrescanner = parserContext.includePrescanner;
+      this.parsedChangeLogCache = parserContext.parsedChangeLogCache;
+      this.streamingIncludeHandler = parserContext.streamingIncludeHandler;
+    }
+  }
+
+  /**
+   * The store of the snapshots of the parsed changelogs. The changelogs that are included via
+   * ".osgi" includes are loaded from their snapshots if the snapshots are still valid.
+   *
+   * @return The snapshot store or <code>null</code> if the included changelogs should always be
+   *         parsed.
+   */
+  public ChangeLogSnapshotStore getChangeLogSnapshotStore() {
+    return changeLogSnapshotStore;
+  }
+
+  /**
+   * The fast path that decides whether an included changelog subtree is unchanged. Unchanged
+   * subtrees are not parsed, an empty changelog is returned instead of them.
+   *
+   * @return The fast path or <code>null</code> if every included changelog should be parsed.
+   */
+  public ChangeLogFastPath getFastPath() {
+    return fastPath;
+  }
+
+  /**
+   * The pre-resolved wires that are used to resolve the ".osgi" includes. The includes of bundles
+   * that are not part of the plan are resolved by analysing the wiring of the bundle.
+   *
+   * @return The include plan or <code>null</code> if the includes should be resolved by analysing
+   *         the wiring of the bundles.
+   */
+  public IncludePlan getIncludePlan() {
+    return includePlan;
+  }
+
+  /**
+   * The prefetcher that reads the changelogs that are wired to a bundle into node trees in the
+   * background while the changelog of the bundle is parsed.
+   *
+   * @return The prefetcher or <code>null</code> if the included changelogs should be parsed when
+   *         the parser reaches them.
+   */
+  public IncludePrefetcher getIncludePrefetcher() {
+    return includePrefetcher;
+  }
+
+  /**
+   * The prescanner that resolves the ".osgi" includes of a changelog in one batch before the
+   * changelog is parsed. It is not used for the bundles that are part of the
+   * {@link #getIncludePlan()}.
+   *
+   * @return The prescanner or <code>null</code> if every include should be resolved on its own.
+   */
+  public IncludePrescanner getIncludePrescanner() {
+    return includePrescanner;
+  }
+
+  /**
+   * The cache of the changelogs that are parsed via ".osgi" includes.
+   *
+   * @return The cache or <code>null</code> if the parsed changelogs should not be cached.
+   */
+  public ParsedChangeLogCache getParsedChangeLogCache() {
+    return parsedChangeLogCache;
+  }
+
+  /**
+   * The handler of the ".osgi" includes that point to streaming changelogs.
+   *
+   * @return The handler or <code>null</code> if streaming changelogs should be parsed as any other
+   *         changelog.
+   * @see LiquibaseEOSGiConstants#CAPABILITY_ATTR_STREAMING
+   */
+  public StreamingIncludeHandler getStreamingIncludeHandler() {
+    return streamingIncludeHandler;
+  }
+
+  public void setChangeLogSnapshotStore(final ChangeLogSnapshotStore changeLogSnapshotStore) {
+    this.changeLogSnapshotStore = changeLogSnapshotStore;
+  }
+
+  public void setFastPath(final ChangeLogFastPath fastPath) {
+    this.fastPath = fastPath;
+  }
+
+  public void setIncludePlan(final IncludePlan includePlan) {
+    this.includePlan = includePlan;
+  }
+
+  public void setIncludePrefetcher(final IncludePrefetcher includePrefetcher) {
+    this.includePrefetcher = includePrefetcher;
+  }
+
+  public void setIncludePrescanner(final IncludePrescanner includePrescanner) {
+    this.includePrescanner = includePrescanner;
+  }
+
+  public void setParsedChangeLogCache(final ParsedChangeLogCache parsedChangeLogCache) {
+    this.parsedChangeLogCache = parsedChangeLogCache;
+  }
+
+  public void setStreamingIncludeHandler(final StreamingIncludeHandler streamingIncludeHandler) {
+    this.streamingIncludeHandler = streamingIncludeHandler;
+  }
+
+}
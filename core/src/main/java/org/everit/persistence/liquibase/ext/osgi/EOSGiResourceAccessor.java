@@ -15,21 +15,96 @@
  */
 package org.everit.persistence.liquibase.ext.osgi;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetricsListener;
+import org.everit.persistence.liquibase.ext.osgi.util.BundleFileStreamProvider;
+import org.everit.persistence.liquibase.ext.osgi.util.CapabilityAttributes;
+import org.everit.persistence.liquibase.ext.osgi.util.LiquibaseOSGiUtil;
+import org.everit.persistence.liquibase.ext.osgi.util.ResourceLookupCache;
 import org.osgi.framework.Bundle;
 
 import liquibase.osgi.OSGiResourceAccessor;
 
 /**
- * The resource accessor that should be used in OSGi environments.
+ * The resource accessor that should be used in OSGi environments. The resources are looked up via
+ * the classloader of the bundle, so the entries of the current bundle revision, its fragments
+ * and its imported packages are found in the same order as they would be by the bundle itself.
+ * The resource lookups and the directory listings are cached per bundle wiring and the cache is
+ * shared by all accessors of the same bundle, see {@link ResourceLookupCache}. Resources that are
+ * found only once are opened via the {@link BundleFileStreamProvider}, so the entries of bundles
+ * that are installed from a local JAR file are read from one open file after they were verified.
  */
 public class EOSGiResourceAccessor extends OSGiResourceAccessor {
 
+  /**
+   * Counts the bytes that are read from a resource and reports them when the stream is closed.
+   */
+  private static final class MeteredInputStream extends FilterInputStream {
+
+    private final Bundle bundle;
+
+    private long bytesRead;
+
+    private boolean closed;
+
+    private final ResolutionMetricsListener metricsListener;
+
+    private final String path;
+
+    MeteredInputStream(final InputStream in, final ResolutionMetricsListener metricsListener,
+        final Bundle bundle, final String path) {
+      super(in);
+      this.metricsListener = metricsListener;
+      this.bundle = bundle;
+      this.path = path;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        if (!closed) {
+          closed = true;
+          metricsListener.resourceRead(bundle, path, bytesRead);
+        }
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if (result >= 0) {
+        bytesRead++;
+      }
+      return result;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      int result = super.read(b, off, len);
+      if (result > 0) {
+        bytesRead += result;
+      }
+      return result;
+    }
+  }
+
   private final Map<String, Object> attributes;
 
+  private final EOSGiParserContext parserContext;
+
   /**
    * Creating a new resource accessor for the specified bundle without any attributes.
    *
@@ -50,9 +125,28 @@ public class EOSGiResourceAccessor extends OSGiResourceAccessor {
    *          See {@link #getAttributes()}.
    */
   public EOSGiResourceAccessor(final Bundle bundle, final Map<String, Object> attributes) {
+    this(bundle, attributes, null);
+  }
+
+  /**
+   * Creating a new {@link EOSGiResourceAccessor} for the specified bundle with the specified
+   * attributes and parser context.
+   *
+   * @param bundle
+   *          The bundle.
+   * @param attributes
+   *          See {@link #getAttributes()}.
+   * @param parserContext
+   *          See {@link #getParserContext()}.
+   */
+  public EOSGiResourceAccessor(final Bundle bundle, final Map<String, Object> attributes,
+      final EOSGiParserContext parserContext) {
     super(bundle);
+    this.parserContext = parserContext;
     if (attributes == null) {
       this.attributes = Collections.emptyMap();
+    } else if (CapabilityAttributes.isSnapshot(attributes)) {
+      this.attributes = attributes;
     } else {
       this.attributes = Collections.unmodifiableMap(new HashMap<String, Object>(attributes));
     }
@@ -67,4 +161,72 @@ public class EOSGiResourceAccessor extends OSGiResourceAccessor {
     return attributes;
   }
 
+  /**
+   * The settings that are used when ".osgi" includes are parsed with this resource accessor.
+   *
+   * @return The parser context or <code>null</code> if the default behavior should be used.
+   */
+  public EOSGiParserContext getParserContext() {
+    return parserContext;
+  }
+
+  @Override
+  public Set<InputStream> getResourcesAsStream(final String path) throws IOException {
+    Set<InputStream> result = openCachedResources(path);
+
+    ResolutionMetricsListener metricsListener = ResolutionMetrics.getListener();
+    if ((metricsListener == null) || (result == null)) {
+      return result;
+    }
+    Set<InputStream> meteredResult = new HashSet<InputStream>(result.size());
+    for (InputStream resultStream : result) {
+      meteredResult.add(new MeteredInputStream(resultStream, metricsListener, getBundle(), path));
+    }
+    return meteredResult;
+  }
+
+  @Override
+  public Set<String> list(final String relativeTo, final String path,
+      final boolean includeFiles, final boolean includeDirectories, final boolean recursive)
+      throws IOException {
+    ResourceLookupCache lookupCache = ResourceLookupCache.of(getBundle());
+    if (lookupCache == null) {
+      return super.list(relativeTo, path, includeFiles, includeDirectories, recursive);
+    }
+    String key = relativeTo + '|' + path + '|' + includeFiles + '|' + includeDirectories + '|'
+        + recursive;
+    return lookupCache.list(key, new ResourceLookupCache.ResourceLister() {
+
+      @Override
+      public Set<String> list() throws IOException {
+        return EOSGiResourceAccessor.super.list(relativeTo, path, includeFiles,
+            includeDirectories, recursive);
+      }
+    });
+  }
+
+  private Set<InputStream> openCachedResources(final String path) throws IOException {
+    ResourceLookupCache lookupCache = ResourceLookupCache.of(getBundle());
+    if (lookupCache == null) {
+      return super.getResourcesAsStream(path);
+    }
+    List<URL> resourceURLs = lookupCache.getResources(path);
+    if (resourceURLs.isEmpty()) {
+      return null;
+    }
+    Set<InputStream> result = new HashSet<InputStream>(resourceURLs.size());
+    if (resourceURLs.size() == 1) {
+      result.add(LiquibaseOSGiUtil.getBundleFileStreamProvider().openStream(getBundle(), path,
+          resourceURLs.get(0)));
+      return result;
+    }
+    // The same file may be visible through several class path entries or fragments
+    Set<String> seenURLs = new HashSet<String>(resourceURLs.size());
+    for (URL resourceURL : resourceURLs) {
+      if (seenURLs.add(resourceURL.toExternalForm())) {
+        result.add(BundleFileStreamProvider.openUncachedStream(resourceURL));
+      }
+    }
+    return result;
+  }
 }
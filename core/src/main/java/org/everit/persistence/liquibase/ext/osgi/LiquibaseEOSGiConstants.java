@@ -25,6 +25,16 @@ public final class LiquibaseEOSGiConstants {
    */
   public static final String CAPABILITY_ATTR_RESOURCE = "resource";
 
+  /**
+   * Capability attribute that marks a changelog to be applied in streaming mode. If its value is
+   * <code>true</code> and the changelog is reached via a ".osgi" include during an update that
+   * supports streaming (see
+   * {@link org.everit.persistence.liquibase.ext.osgi.migration.StreamingChangeLogUpdater}), the
+   * changesets of the changelog are parsed and applied one by one instead of holding all of them
+   * in memory.
+   */
+  public static final String CAPABILITY_ATTR_STREAMING = "streaming";
+
   /**
    * The name of the capability that makes it possible to find liquibase changelogs. When an import
    * is used within a liquibase changelog file with the ".eosgi" extension, liquibase will browse
@@ -33,12 +43,31 @@ public final class LiquibaseEOSGiConstants {
    */
   public static final String CAPABILITY_NS_LIQUIBASE_CHANGELOG = "liquibase.changelog";
 
+  /**
+   * The bundle entry that holds the changelog index that is generated at build time. See
+   * {@link org.everit.persistence.liquibase.ext.osgi.util.ChangeLogIndex}.
+   */
+  public static final String CHANGELOG_INDEX_PATH = "META-INF/liquibase-osgi.index";
+
+  /**
+   * The default maximum number of compiled schema expressions that are cached.
+   */
+  public static final int DEFAULT_SCHEMA_EXPRESSION_CACHE_SIZE = 256;
+
   /**
    * The extension that can be used within changelogs to include changelogs from other bundles via
    * capabilities.
    */
   public static final String INCLUDE_OSGI_EXTENSION = ".osgi";
 
+  /**
+   * System property that defines the maximum number of compiled schema expressions that are cached.
+   * Zero disables the cache. If not specified, {@link #DEFAULT_SCHEMA_EXPRESSION_CACHE_SIZE} is
+   * used.
+   */
+  public static final String SYSPROP_SCHEMA_EXPRESSION_CACHE_SIZE =
+      "org.everit.persistence.liquibase.ext.osgi.schemaExpressionCacheSize";
+
   private LiquibaseEOSGiConstants() {
   }
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+
+/**
+ * Placeholder that stands in a changelog at the position of a ".osgi" include that points to a
+ * changelog with the {@value LiquibaseEOSGiConstants#CAPABILITY_ATTR_STREAMING} capability
+ * attribute. The placeholder is never executed or recorded in the database, the
+ * {@link StreamingIncludeHandler} applies the streaming changelog instead when the update reaches
+ * the placeholder. As the placeholder belongs to the changelog of the include, the context
+ * expression of the include is inherited by it.
+ */
+public class StreamingIncludeChangeSet extends ChangeSet {
+
+  private static final String AUTHOR = "liquibase-osgi";
+
+  private static final AtomicLong ID_COUNTER = new AtomicLong();
+
+  /**
+   * The resource that points to the streaming changelog.
+   */
+  public final BundleResource bundleResource;
+
+  /**
+   * Constructor.
+   *
+   * @param bundleResource
+   *          The resource that points to the streaming changelog.
+   * @param changeLog
+   *          The changelog that is returned in place of the include.
+   */
+  public StreamingIncludeChangeSet(final BundleResource bundleResource,
+      final DatabaseChangeLog changeLog) {
+    super("streaming-include-" + ID_COUNTER.incrementAndGet(), AUTHOR, true, false,
+        bundleResource.resourceName, null, null, changeLog);
+    this.bundleResource = bundleResource;
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi;
+
+import liquibase.database.Database;
+import liquibase.exception.LiquibaseException;
+
+/**
+ * Applies the changelogs with the {@value LiquibaseEOSGiConstants#CAPABILITY_ATTR_STREAMING}
+ * capability attribute that are included via ".osgi" includes. If a handler is available, such
+ * includes are not parsed, a changelog with a {@link StreamingIncludeChangeSet} placeholder is
+ * returned in their place and the handler is called when the update reaches the placeholder.
+ */
+public interface StreamingIncludeHandler {
+
+  /**
+   * Applies the streaming changelog of a placeholder.
+   *
+   * @param changeSet
+   *          The placeholder that stands at the position of the include.
+   * @param database
+   *          The database that the changelog is applied on.
+   * @throws LiquibaseException
+   *           if the changelog could not be applied.
+   */
+  void applyStreamingInclude(StreamingIncludeChangeSet changeSet, Database database)
+      throws LiquibaseException;
+}
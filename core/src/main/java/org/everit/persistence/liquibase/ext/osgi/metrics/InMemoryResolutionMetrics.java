@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.osgi.framework.Bundle;
+
+/**
+ * {@link ResolutionMetricsListener} that aggregates the measurements in memory and exposes them
+ * via JMX. The percentiles of the timers are computed from the last samples of each timer.
+ */
+public class InMemoryResolutionMetrics implements ResolutionMetricsListener,
+    ResolutionMetricsMXBean {
+
+  /**
+   * The default name that the MXBean is registered with.
+   */
+  public static final String DEFAULT_OBJECT_NAME =
+      "org.everit.persistence.liquibase.ext.osgi:type=ResolutionMetrics";
+
+  /**
+   * The number of samples that are kept for every timer by default.
+   */
+  public static final int DEFAULT_RESERVOIR_SIZE = 1024;
+
+  private static void increment(final ConcurrentMap<String, AtomicLong> counters,
+      final String key, final long delta) {
+    AtomicLong counter = counters.get(key);
+    if (counter == null) {
+      AtomicLong newCounter = new AtomicLong();
+      counter = counters.putIfAbsent(key, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    counter.addAndGet(delta);
+  }
+
+  private static Map<String, Long> snapshot(final ConcurrentMap<String, AtomicLong> counters) {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().get());
+    }
+    return result;
+  }
+
+  private final AtomicLong bundleQueryCount = new AtomicLong();
+
+  private final LatencyReservoir bundleQueryTimes;
+
+  private final AtomicLong bytesRead = new AtomicLong();
+
+  private final ConcurrentMap<String, AtomicLong> cacheHitCounts =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  private final ConcurrentMap<String, AtomicLong> cacheMissCounts =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  private final AtomicLong capabilitiesScanned = new AtomicLong();
+
+  private final AtomicLong changeLogParseCount = new AtomicLong();
+
+  private final LatencyReservoir changeLogParseTimes;
+
+  private final AtomicLong filterEvaluations = new AtomicLong();
+
+  private final ConcurrentMap<String, AtomicLong> lookupCountsBySchemaExpression =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  private final ConcurrentMap<String, AtomicLong> parseTimesByResource =
+      new ConcurrentHashMap<String, AtomicLong>();
+
+  private final AtomicLong resourceReadCount = new AtomicLong();
+
+  private final AtomicLong schemaExpressionCompileCount = new AtomicLong();
+
+  private final LatencyReservoir schemaExpressionCompileTimes;
+
+  private final AtomicLong wireLookupCount = new AtomicLong();
+
+  private final AtomicLong wireLookupMissCount = new AtomicLong();
+
+  private final LatencyReservoir wireLookupTimes;
+
+  private final AtomicLong wiresScanned = new AtomicLong();
+
+  /**
+   * Constructor that keeps {@link #DEFAULT_RESERVOIR_SIZE} samples for every timer.
+   */
+  public InMemoryResolutionMetrics() {
+    this(DEFAULT_RESERVOIR_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param reservoirSize
+   *          The number of samples that are kept for every timer to compute the percentiles.
+   */
+  public InMemoryResolutionMetrics(final int reservoirSize) {
+    if (reservoirSize <= 0) {
+      throw new IllegalArgumentException("Reservoir size must be positive: " + reservoirSize);
+    }
+    this.bundleQueryTimes = new LatencyReservoir(reservoirSize);
+    this.changeLogParseTimes = new LatencyReservoir(reservoirSize);
+    this.schemaExpressionCompileTimes = new LatencyReservoir(reservoirSize);
+    this.wireLookupTimes = new LatencyReservoir(reservoirSize);
+  }
+
+  @Override
+  public void bundlesQueried(final String schemaExpression, final int capabilitiesScanned,
+      final int filterEvaluations, final int resultCount, final long durationNanos) {
+    bundleQueryCount.incrementAndGet();
+    this.capabilitiesScanned.addAndGet(capabilitiesScanned);
+    this.filterEvaluations.addAndGet(filterEvaluations);
+    increment(lookupCountsBySchemaExpression, schemaExpression, 1);
+    bundleQueryTimes.update(durationNanos);
+  }
+
+  @Override
+  public void cacheAccessed(final String cacheName, final boolean hit) {
+    increment(hit ? cacheHitCounts : cacheMissCounts, cacheName, 1);
+  }
+
+  @Override
+  public void changeLogParsed(final BundleResource bundleResource, final long durationNanos) {
+    changeLogParseCount.incrementAndGet();
+    changeLogParseTimes.update(durationNanos);
+    increment(parseTimesByResource,
+        bundleResource.bundle.getSymbolicName() + ":" + bundleResource.resourceName,
+        durationNanos);
+  }
+
+  @Override
+  public long getBundleQueryCount() {
+    return bundleQueryCount.get();
+  }
+
+  @Override
+  public Map<String, Long> getBundleQueryTimes() {
+    return bundleQueryTimes.percentiles();
+  }
+
+  @Override
+  public long getBytesRead() {
+    return bytesRead.get();
+  }
+
+  @Override
+  public Map<String, Long> getCacheHitCounts() {
+    return snapshot(cacheHitCounts);
+  }
+
+  @Override
+  public Map<String, Long> getCacheMissCounts() {
+    return snapshot(cacheMissCounts);
+  }
+
+  @Override
+  public long getCapabilitiesScanned() {
+    return capabilitiesScanned.get();
+  }
+
+  @Override
+  public long getChangeLogParseCount() {
+    return changeLogParseCount.get();
+  }
+
+  @Override
+  public Map<String, Long> getChangeLogParseTimes() {
+    return changeLogParseTimes.percentiles();
+  }
+
+  @Override
+  public long getFilterEvaluations() {
+    return filterEvaluations.get();
+  }
+
+  @Override
+  public Map<String, Long> getLookupCountsBySchemaExpression() {
+    return snapshot(lookupCountsBySchemaExpression);
+  }
+
+  /**
+   * The total parse time in nanoseconds of the changelogs by
+   * <code>bundleSymbolicName:resourceName</code>.
+   */
+  @Override
+  public Map<String, Long> getParseTimesByResource() {
+    return snapshot(parseTimesByResource);
+  }
+
+  @Override
+  public long getResourceReadCount() {
+    return resourceReadCount.get();
+  }
+
+  @Override
+  public long getSchemaExpressionCompileCount() {
+    return schemaExpressionCompileCount.get();
+  }
+
+  @Override
+  public Map<String, Long> getSchemaExpressionCompileTimes() {
+    return schemaExpressionCompileTimes.percentiles();
+  }
+
+  @Override
+  public long getWireLookupCount() {
+    return wireLookupCount.get();
+  }
+
+  @Override
+  public long getWireLookupMissCount() {
+    return wireLookupMissCount.get();
+  }
+
+  @Override
+  public Map<String, Long> getWireLookupTimes() {
+    return wireLookupTimes.percentiles();
+  }
+
+  @Override
+  public long getWiresScanned() {
+    return wiresScanned.get();
+  }
+
+  /**
+   * Registers this object as an MXBean with the {@link #DEFAULT_OBJECT_NAME}.
+   *
+   * @param mBeanServer
+   *          The server to register with.
+   * @return The name that the MXBean is registered with.
+   * @throws JMException
+   *           if the registration failed.
+   */
+  public ObjectName registerMBean(final MBeanServer mBeanServer) throws JMException {
+    ObjectName objectName = new ObjectName(DEFAULT_OBJECT_NAME);
+    mBeanServer.registerMBean(this, objectName);
+    return objectName;
+  }
+
+  @Override
+  public void reset() {
+    bundleQueryCount.set(0);
+    bundleQueryTimes.clear();
+    bytesRead.set(0);
+    cacheHitCounts.clear();
+    cacheMissCounts.clear();
+    capabilitiesScanned.set(0);
+    changeLogParseCount.set(0);
+    changeLogParseTimes.clear();
+    filterEvaluations.set(0);
+    lookupCountsBySchemaExpression.clear();
+    parseTimesByResource.clear();
+    resourceReadCount.set(0);
+    schemaExpressionCompileCount.set(0);
+    schemaExpressionCompileTimes.clear();
+    wireLookupCount.set(0);
+    wireLookupMissCount.set(0);
+    wireLookupTimes.clear();
+    wiresScanned.set(0);
+  }
+
+  @Override
+  public void resourceRead(final Bundle bundle, final String path, final long bytes) {
+    resourceReadCount.incrementAndGet();
+    bytesRead.addAndGet(bytes);
+  }
+
+  @Override
+  public void schemaExpressionCompiled(final String schemaExpression,
+      final long durationNanos) {
+    schemaExpressionCompileCount.incrementAndGet();
+    schemaExpressionCompileTimes.update(durationNanos);
+  }
+
+  @Override
+  public void wireResolved(final String schemaExpression, final int wiresScanned,
+      final int filterEvaluations, final boolean found, final long durationNanos) {
+    wireLookupCount.incrementAndGet();
+    if (!found) {
+      wireLookupMissCount.incrementAndGet();
+    }
+    this.wiresScanned.addAndGet(wiresScanned);
+    this.filterEvaluations.addAndGet(filterEvaluations);
+    increment(lookupCountsBySchemaExpression, schemaExpression, 1);
+    wireLookupTimes.update(durationNanos);
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.metrics;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the last samples of a timer in a ring buffer and computes percentiles from them.
+ */
+final class LatencyReservoir {
+
+  private static final double[] PERCENTILES = { 0.5, 0.75, 0.95, 0.99 };
+
+  private static final String[] PERCENTILE_NAMES = { "p50", "p75", "p95", "p99" };
+
+  private long count;
+
+  private int position;
+
+  private final long[] samples;
+
+  private long total;
+
+  LatencyReservoir(final int capacity) {
+    this.samples = new long[capacity];
+  }
+
+  synchronized void clear() {
+    count = 0;
+    position = 0;
+    total = 0;
+  }
+
+  /**
+   * Computes the percentiles of the kept samples together with the count and the total of all
+   * recorded samples.
+   */
+  Map<String, Long> percentiles() {
+    long[] snapshot;
+    long snapshotCount;
+    long snapshotTotal;
+    synchronized (this) {
+      snapshotCount = count;
+      snapshotTotal = total;
+      snapshot = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+    }
+    Arrays.sort(snapshot);
+
+    Map<String, Long> result = new LinkedHashMap<String, Long>();
+    result.put("count", snapshotCount);
+    result.put("total", snapshotTotal);
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      long value = 0;
+      if (snapshot.length > 0) {
+        int index = (int) Math.ceil(PERCENTILES[i] * snapshot.length) - 1;
+        value = snapshot[Math.max(0, index)];
+      }
+      result.put(PERCENTILE_NAMES[i], value);
+    }
+    result.put("max", (snapshot.length > 0) ? snapshot[snapshot.length - 1] : 0L);
+    return result;
+  }
+
+  synchronized void update(final long value) {
+    samples[position] = value;
+    position = (position + 1) % samples.length;
+    count++;
+    total += value;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.metrics;
+
+/**
+ * Holds the {@link ResolutionMetricsListener} that the instrumented code reports to. The
+ * instrumented code reads the listener once and skips all measurements if it is
+ * <code>null</code>, so nothing is allocated and no clock is read when no listener is set.
+ */
+public final class ResolutionMetrics {
+
+  /**
+   * The name of the on-disk snapshots of the parsed changelogs.
+   */
+  public static final String CACHE_CHANGELOG_SNAPSHOT = "changeLogSnapshot";
+
+  /**
+   * The name of the cache of the parsed changelogs.
+   */
+  public static final String CACHE_PARSED_CHANGELOG = "parsedChangeLog";
+
+  /**
+   * The name of the cache of the resource lookups of the bundles.
+   */
+  public static final String CACHE_RESOURCE_LOOKUP = "resourceLookup";
+
+  /**
+   * The name of the cache of the compiled schema expressions.
+   */
+  public static final String CACHE_SCHEMA_EXPRESSION = "schemaExpression";
+
+  private static volatile ResolutionMetricsListener listener;
+
+  /**
+   * The listener that the measurements are reported to.
+   *
+   * @return The listener or <code>null</code> if the measurements should be skipped.
+   */
+  public static ResolutionMetricsListener getListener() {
+    return listener;
+  }
+
+  /**
+   * Sets the listener that the measurements are reported to. Normally it is called by a
+   * {@link ResolutionMetricsTracker}.
+   *
+   * @param listener
+   *          The listener or <code>null</code> to switch off the measurements.
+   */
+  public static void setListener(final ResolutionMetricsListener listener) {
+    ResolutionMetrics.listener = listener;
+  }
+
+  private ResolutionMetrics() {
+  }
+}
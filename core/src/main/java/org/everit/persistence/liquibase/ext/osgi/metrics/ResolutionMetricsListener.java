@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.metrics;
+
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.osgi.framework.Bundle;
+
+/**
+ * Receives the measurements of the changelog resolution. Implementations should be registered as
+ * OSGi services and are picked up by a {@link ResolutionMetricsTracker}.
+ *
+ * <p>
+ * The methods are called on the threads that resolve and parse the changelogs, so implementations
+ * must be thread safe, fast and must not throw exceptions.
+ */
+public interface ResolutionMetricsListener {
+
+  /**
+   * Called after the bundles that provide a schema were looked up.
+   *
+   * @param schemaExpression
+   *          The schema expression of the lookup.
+   * @param capabilitiesScanned
+   *          The number of capabilities that were checked.
+   * @param filterEvaluations
+   *          The number of times the filter of the schema expression was evaluated.
+   * @param resultCount
+   *          The number of found bundle resources.
+   * @param durationNanos
+   *          The duration of the lookup in nanoseconds.
+   */
+  void bundlesQueried(String schemaExpression, int capabilitiesScanned, int filterEvaluations,
+      int resultCount, long durationNanos);
+
+  /**
+   * Called when a cache of the extension was accessed.
+   *
+   * @param cacheName
+   *          The name of the cache, one of the <code>CACHE_*</code> constants of
+   *          {@link ResolutionMetrics}.
+   * @param hit
+   *          Whether the requested value was found in the cache.
+   */
+  void cacheAccessed(String cacheName, boolean hit);
+
+  /**
+   * Called after the changelog of a bundle resource was parsed via a ".osgi" include.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog.
+   * @param durationNanos
+   *          The duration of parsing in nanoseconds, including the nested includes.
+   */
+  void changeLogParsed(BundleResource bundleResource, long durationNanos);
+
+  /**
+   * Called when a stream that was opened by an
+   * {@link org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor} is closed.
+   *
+   * @param bundle
+   *          The bundle of the resource.
+   * @param path
+   *          The path of the resource.
+   * @param bytes
+   *          The number of bytes that were read from the stream.
+   */
+  void resourceRead(Bundle bundle, String path, long bytes);
+
+  /**
+   * Called after a schema expression was compiled to a filter.
+   *
+   * @param schemaExpression
+   *          The schema expression.
+   * @param durationNanos
+   *          The duration of the compilation in nanoseconds.
+   */
+  void schemaExpressionCompiled(String schemaExpression, long durationNanos);
+
+  /**
+   * Called after a schema expression was resolved via the wires of a bundle.
+   *
+   * @param schemaExpression
+   *          The schema expression.
+   * @param wiresScanned
+   *          The number of wires that were checked.
+   * @param filterEvaluations
+   *          The number of times the filter of the schema expression was evaluated.
+   * @param found
+   *          Whether a matching wire was found.
+   * @param durationNanos
+   *          The duration of the lookup in nanoseconds.
+   */
+  void wireResolved(String schemaExpression, int wiresScanned, int filterEvaluations,
+      boolean found, long durationNanos);
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link InMemoryResolutionMetrics}. The timer attributes contain the
+ * <code>count</code>, the <code>total</code>, the <code>p50</code>, <code>p75</code>,
+ * <code>p95</code>, <code>p99</code> percentiles and the <code>max</code> of the last samples in
+ * nanoseconds.
+ */
+public interface ResolutionMetricsMXBean {
+
+  long getBundleQueryCount();
+
+  Map<String, Long> getBundleQueryTimes();
+
+  long getBytesRead();
+
+  Map<String, Long> getCacheHitCounts();
+
+  Map<String, Long> getCacheMissCounts();
+
+  long getCapabilitiesScanned();
+
+  long getChangeLogParseCount();
+
+  Map<String, Long> getChangeLogParseTimes();
+
+  long getFilterEvaluations();
+
+  Map<String, Long> getLookupCountsBySchemaExpression();
+
+  Map<String, Long> getParseTimesByResource();
+
+  long getResourceReadCount();
+
+  long getSchemaExpressionCompileCount();
+
+  Map<String, Long> getSchemaExpressionCompileTimes();
+
+  long getWireLookupCount();
+
+  long getWireLookupMissCount();
+
+  Map<String, Long> getWireLookupTimes();
+
+  long getWiresScanned();
+
+  /**
+   * Resets all counters and timers.
+   */
+  void reset();
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.metrics;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+
+/**
+ * Tracks the {@link ResolutionMetricsListener} OSGi services and sets the one with the highest
+ * ranking as the listener of {@link ResolutionMetrics}. As the extension is a fragment without
+ * an activator, the tracker has to be opened by the bundle that wants to collect the metrics.
+ */
+public class ResolutionMetricsTracker {
+
+  /**
+   * Updates the listener of {@link ResolutionMetrics} whenever the tracked services change.
+   */
+  private final class ListenerTracker
+      extends ServiceTracker<ResolutionMetricsListener, ResolutionMetricsListener> {
+
+    ListenerTracker(final BundleContext bundleContext) {
+      super(bundleContext, ResolutionMetricsListener.class, null);
+    }
+
+    @Override
+    public ResolutionMetricsListener addingService(
+        final ServiceReference<ResolutionMetricsListener> reference) {
+      ResolutionMetricsListener listener = super.addingService(reference);
+      if (listener != null) {
+        updateListener(reference, listener);
+      }
+      return listener;
+    }
+
+    @Override
+    public void modifiedService(final ServiceReference<ResolutionMetricsListener> reference,
+        final ResolutionMetricsListener service) {
+      updateListener(null, null);
+    }
+
+    @Override
+    public void removedService(final ServiceReference<ResolutionMetricsListener> reference,
+        final ResolutionMetricsListener service) {
+      updateListener(null, null);
+      super.removedService(reference, service);
+    }
+  }
+
+  private ResolutionMetricsListener currentListener;
+
+  private final ListenerTracker tracker;
+
+  /**
+   * Constructor.
+   *
+   * @param bundleContext
+   *          The context of the bundle that tracks the listener services.
+   */
+  public ResolutionMetricsTracker(final BundleContext bundleContext) {
+    this.tracker = new ListenerTracker(bundleContext);
+  }
+
+  /**
+   * Stops tracking the listener services and removes the listener from
+   * {@link ResolutionMetrics} if it was set by this tracker.
+   */
+  public void close() {
+    tracker.close();
+    synchronized (this) {
+      if ((currentListener != null) && (ResolutionMetrics.getListener() == currentListener)) {
+        ResolutionMetrics.setListener(null);
+      }
+      currentListener = null;
+    }
+  }
+
+  /**
+   * Starts tracking the listener services.
+   */
+  public void open() {
+    tracker.open();
+  }
+
+  private synchronized void updateListener(
+      final ServiceReference<ResolutionMetricsListener> addedReference,
+      final ResolutionMetricsListener addedListener) {
+
+    ResolutionMetricsListener listener = tracker.getService();
+    if (addedReference != null) {
+      // The added service is not in the tracked services yet
+      ServiceReference<ResolutionMetricsListener> bestReference = tracker.getServiceReference();
+      if ((bestReference == null) || (addedReference.compareTo(bestReference) > 0)) {
+        listener = addedListener;
+      }
+    }
+    if (ResolutionMetrics.getListener() == currentListener) {
+      ResolutionMetrics.setListener(listener);
+    }
+    currentListener = listener;
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+
+/**
+ * {@link SqlWriterFactory} that writes the SQL of every changelog into its own UTF-8 file in a
+ * directory. The name of a file is built from the symbolic name of the bundle and the name of the
+ * changelog resource, e.g. <code>myBundle_META-INF_liquibase_changelog.xml.sql</code>.
+ */
+public class DirectorySqlWriterFactory implements SqlWriterFactory {
+
+  private final File directory;
+
+  /**
+   * Constructor.
+   *
+   * @param directory
+   *          The directory that the files are written to. It is created if it does not exist.
+   */
+  public DirectorySqlWriterFactory(final File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * The file that the SQL of a changelog is written to.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog.
+   * @return The file.
+   */
+  public File getFile(final BundleResource bundleResource) {
+    String resourceName = bundleResource.resourceName;
+    while (resourceName.startsWith("/")) {
+      resourceName = resourceName.substring(1);
+    }
+    String fileName = bundleResource.bundle.getSymbolicName() + '_' + resourceName + ".sql";
+    return new File(directory, fileName.replaceAll("[^A-Za-z0-9._-]", "_"));
+  }
+
+  @Override
+  public Writer openWriter(final BundleResource bundleResource) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+      throw new IOException("Cannot create directory: " + directory);
+    }
+    return new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(getFile(bundleResource)), StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+
+/**
+ * {@link SchemaConnectionFactory} that opens the connections with a JDBC {@link Driver} directly,
+ * so no data source has to be configured, e.g. to generate SQL against a local H2 database in a
+ * CI build. The <code>${schema}</code> placeholder of the URL is replaced with an identifier of
+ * the bundle resource, so every changelog can get its own in-memory database, e.g. with the
+ * <code>jdbc:h2:mem:${schema}</code> URL and the <code>org.h2.Driver</code> driver.
+ */
+public class DriverSchemaConnectionFactory implements SchemaConnectionFactory {
+
+  /**
+   * The placeholder in the URL that is replaced with the identifier of the bundle resource.
+   */
+  public static final String SCHEMA_PLACEHOLDER = "${schema}";
+
+  private final Driver driver;
+
+  private final Properties info;
+
+  private final String url;
+
+  /**
+   * Constructor.
+   *
+   * @param driver
+   *          The JDBC driver.
+   * @param url
+   *          The JDBC URL that may contain the {@value #SCHEMA_PLACEHOLDER} placeholder.
+   * @param info
+   *          The connection properties, e.g. user and password, or <code>null</code>.
+   */
+  public DriverSchemaConnectionFactory(final Driver driver, final String url,
+      final Properties info) {
+    this.driver = driver;
+    this.url = url;
+    this.info = (info != null) ? info : new Properties();
+  }
+
+  @Override
+  public Connection getConnection(final BundleResource bundleResource) throws SQLException {
+    String schemaId = (bundleResource.bundle.getBundleId() + "_" + bundleResource.resourceName)
+        .replaceAll("[^A-Za-z0-9_]", "_");
+    String connectionUrl = url.replace(SCHEMA_PLACEHOLDER, schemaId);
+    Connection connection = driver.connect(connectionUrl, info);
+    if (connection == null) {
+      throw new SQLException("Driver " + driver.getClass().getName() + " does not accept URL: "
+          + connectionUrl);
+    }
+    return connection;
+  }
+}
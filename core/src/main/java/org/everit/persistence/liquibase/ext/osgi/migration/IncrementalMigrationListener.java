@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludeCycleException;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePlan;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+
+import liquibase.logging.LogFactory;
+
+/**
+ * Migrates the registered root changelogs again when a bundle that provides any changelog of
+ * their include tree is updated or refreshed. The bundles that the root changelogs include via
+ * {@value LiquibaseEOSGiConstants#CAPABILITY_NS_LIQUIBASE_CHANGELOG} wires are resolved with an
+ * {@link IncludePlan}, so only the roots that include the changed bundle are migrated again. A
+ * changed bundle is picked up when it is resolved again after the update or refresh, as the new
+ * wires are available only then.
+ *
+ * <p>
+ * The migrations are submitted to a {@link MigrationService}. To apply only the changed subtrees
+ * of an affected root, the service should use a digest store, e.g. via
+ * {@link PooledMigrationService#setDigestStore(
+ * org.everit.persistence.liquibase.ext.osgi.util.ChangeLogDigestStore)}, and the parsed changelog
+ * cache of the parser context, if any, should also be registered as a bundle listener. If a root
+ * changes while it is being migrated, it is migrated once more after the running migration.
+ */
+public class IncrementalMigrationListener implements BundleListener {
+
+  private static Set<Long> resolveIncludedBundleIds(final MigrationRequest request) {
+    Bundle rootBundle = request.bundleResource.bundle;
+    Set<Long> result = new HashSet<Long>();
+    result.add(rootBundle.getBundleId());
+    try {
+      IncludePlan includePlan = IncludePlan.create(Collections.singleton(rootBundle));
+      for (Bundle bundle : includePlan.getBundles()) {
+        result.add(bundle.getBundleId());
+      }
+    } catch (IllegalArgumentException e) {
+      // The root is not resolved, only its own bundle is tracked until it is migrated again
+    } catch (IncludeCycleException e) {
+      LogFactory.getInstance().getLog().warning("Changes of the included bundles of "
+          + request.bundleResource + " are not tracked as the includes form a cycle", e);
+    }
+    return result;
+  }
+
+  private final Set<Long> changedBundleIds = new HashSet<Long>();
+
+  private final Set<MigrationKey> dirtyRootKeys = new HashSet<MigrationKey>();
+
+  private final Map<MigrationKey, Set<Long>> includedBundleIdsByRootKey =
+      new HashMap<MigrationKey, Set<Long>>();
+
+  private final MigrationListener migrationListener;
+
+  private final MigrationService migrationService;
+
+  private final Map<MigrationKey, MigrationRequest> roots =
+      new LinkedHashMap<MigrationKey, MigrationRequest>();
+
+  private final Set<MigrationKey> runningRootKeys = new HashSet<MigrationKey>();
+
+  /**
+   * Constructor.
+   *
+   * @param migrationService
+   *          The service that runs the migrations.
+   * @param migrationListener
+   *          The listener that is notified when a migration finished or <code>null</code>.
+   */
+  public IncrementalMigrationListener(final MigrationService migrationService,
+      final MigrationListener migrationListener) {
+    this.migrationService = migrationService;
+    this.migrationListener = migrationListener;
+  }
+
+  /**
+   * Registers a root changelog and submits its migration.
+   *
+   * @param request
+   *          The migration request of the root changelog. The same request is submitted again
+   *          when a bundle of its include tree changes.
+   * @return The future of the initial migration.
+   */
+  public Future<SchemaUpdateResult> addRoot(final MigrationRequest request) {
+    MigrationKey rootKey = new MigrationKey(request);
+    Set<Long> includedBundleIds = resolveIncludedBundleIds(request);
+    synchronized (roots) {
+      roots.put(rootKey, request);
+      includedBundleIdsByRootKey.put(rootKey, includedBundleIds);
+      runningRootKeys.add(rootKey);
+      dirtyRootKeys.remove(rootKey);
+    }
+    return submit(rootKey, request);
+  }
+
+  @Override
+  public void bundleChanged(final BundleEvent event) {
+    Long bundleId = event.getBundle().getBundleId();
+    switch (event.getType()) {
+      case BundleEvent.UPDATED:
+      case BundleEvent.UNRESOLVED:
+        synchronized (roots) {
+          changedBundleIds.add(bundleId);
+        }
+        break;
+      case BundleEvent.RESOLVED:
+        migrateAffectedRoots(bundleId);
+        break;
+      case BundleEvent.UNINSTALLED:
+        removeRoots(bundleId);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * The root changelogs that include the changelogs of a bundle directly or transitively.
+   *
+   * @param bundle
+   *          The bundle.
+   * @return The requests of the affected roots in the order of their registration.
+   */
+  public List<MigrationRequest> getAffectedRoots(final Bundle bundle) {
+    synchronized (roots) {
+      Set<MigrationKey> rootKeys = getAffectedRootKeys(bundle.getBundleId());
+      List<MigrationRequest> result = new ArrayList<MigrationRequest>(rootKeys.size());
+      for (MigrationKey rootKey : rootKeys) {
+        result.add(roots.get(rootKey));
+      }
+      return result;
+    }
+  }
+
+  private Set<MigrationKey> getAffectedRootKeys(final Long bundleId) {
+    Set<MigrationKey> result = new LinkedHashSet<MigrationKey>();
+    for (MigrationKey rootKey : roots.keySet()) {
+      if (includedBundleIdsByRootKey.get(rootKey).contains(bundleId)) {
+        result.add(rootKey);
+      }
+    }
+    return result;
+  }
+
+  private void migrateAffectedRoots(final Long bundleId) {
+    Map<MigrationKey, MigrationRequest> requestsToSubmit =
+        new LinkedHashMap<MigrationKey, MigrationRequest>();
+    synchronized (roots) {
+      if (!changedBundleIds.remove(bundleId)) {
+        return;
+      }
+      for (MigrationKey rootKey : getAffectedRootKeys(bundleId)) {
+        if (runningRootKeys.contains(rootKey)) {
+          dirtyRootKeys.add(rootKey);
+        } else {
+          runningRootKeys.add(rootKey);
+          requestsToSubmit.put(rootKey, roots.get(rootKey));
+        }
+      }
+    }
+    for (Map.Entry<MigrationKey, MigrationRequest> entry : requestsToSubmit.entrySet()) {
+      submit(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void migrationFinished(final MigrationKey rootKey, final MigrationRequest request,
+      final SchemaUpdateResult result) {
+    Set<Long> includedBundleIds = resolveIncludedBundleIds(request);
+    boolean rerun;
+    synchronized (roots) {
+      if (roots.get(rootKey) != request) {
+        // The root was removed or registered again in the meantime
+        return;
+      }
+      includedBundleIdsByRootKey.put(rootKey, includedBundleIds);
+      rerun = dirtyRootKeys.remove(rootKey);
+      if (!rerun) {
+        runningRootKeys.remove(rootKey);
+      }
+    }
+    if (migrationListener != null) {
+      migrationListener.migrationFinished(request, result);
+    }
+    if (rerun) {
+      submit(rootKey, request);
+    }
+  }
+
+  /**
+   * Unregisters a root changelog on every data source. Its running migrations are not cancelled.
+   *
+   * @param bundleResource
+   *          The resource that points to the root changelog.
+   */
+  public void removeRoot(final BundleResource bundleResource) {
+    synchronized (roots) {
+      Iterator<Map.Entry<MigrationKey, MigrationRequest>> iterator = roots.entrySet().iterator();
+      while (iterator.hasNext()) {
+        BundleResource rootResource = iterator.next().getValue().bundleResource;
+        if ((rootResource.bundle.getBundleId() == bundleResource.bundle.getBundleId())
+            && rootResource.resourceName.equals(bundleResource.resourceName)) {
+          iterator.remove();
+        }
+      }
+      retainRootKeys();
+    }
+  }
+
+  /**
+   * Unregisters a root changelog on one data source. Its running migration is not cancelled.
+   *
+   * @param request
+   *          The migration request that points to the root changelog and the data source.
+   */
+  public void removeRoot(final MigrationRequest request) {
+    MigrationKey rootKey = new MigrationKey(request);
+    synchronized (roots) {
+      roots.remove(rootKey);
+      retainRootKeys();
+    }
+  }
+
+  private void removeRoots(final Long bundleId) {
+    synchronized (roots) {
+      changedBundleIds.remove(bundleId);
+      Iterator<Map.Entry<MigrationKey, MigrationRequest>> iterator = roots.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<MigrationKey, MigrationRequest> root = iterator.next();
+        if (bundleId.equals(root.getValue().bundleResource.bundle.getBundleId())) {
+          iterator.remove();
+        }
+      }
+      retainRootKeys();
+    }
+  }
+
+  private void retainRootKeys() {
+    Set<MigrationKey> rootKeys = roots.keySet();
+    includedBundleIdsByRootKey.keySet().retainAll(rootKeys);
+    runningRootKeys.retainAll(rootKeys);
+    dirtyRootKeys.retainAll(rootKeys);
+  }
+
+  private Future<SchemaUpdateResult> submit(final MigrationKey rootKey,
+      final MigrationRequest request) {
+    try {
+      return migrationService.submit(request, new MigrationListener() {
+
+        @Override
+        public void migrationFinished(final MigrationRequest finishedRequest,
+            final SchemaUpdateResult result) {
+          IncrementalMigrationListener.this.migrationFinished(rootKey, request, result);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      synchronized (roots) {
+        runningRootKeys.remove(rootKey);
+        dirtyRootKeys.remove(rootKey);
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.lockservice.LockServiceFactory;
+
+/**
+ * Counts the workers in the JVM that use the lock and changelog history services of Liquibase.
+ * The factories of Liquibase cache the services per database and they can only be reset all at
+ * once. If a finished worker reset them, the workers that are still running would lose their
+ * services in the middle of an update. So the orchestrators enter the scope when a worker starts
+ * and leave it when the worker finishes, and the services are reset only by the last worker that
+ * leaves.
+ */
+final class LiquibaseServiceScope {
+
+  private static int activeWorkers;
+
+  private static final Object LOCK = new Object();
+
+  /**
+   * Registers a worker that is about to use the Liquibase services.
+   */
+  static void enter() {
+    synchronized (LOCK) {
+      activeWorkers++;
+    }
+  }
+
+  /**
+   * Unregisters a worker and resets the Liquibase services if no other worker is running.
+   */
+  static void leave() {
+    synchronized (LOCK) {
+      activeWorkers--;
+      if (activeWorkers == 0) {
+        LockServiceFactory.getInstance().resetAll();
+        ChangeLogHistoryServiceFactory.getInstance().resetAll();
+      }
+    }
+  }
+
+  private LiquibaseServiceScope() {
+  }
+}
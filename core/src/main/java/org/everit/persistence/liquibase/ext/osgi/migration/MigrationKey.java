@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import javax.sql.DataSource;
+
+/**
+ * Identifies the migration target of a {@link MigrationRequest}: the root changelog and the data
+ * source that it is applied on. The data sources are compared by identity, so the requests of the
+ * same changelog on different data sources do not replace each other.
+ */
+final class MigrationKey {
+
+  private final long bundleId;
+
+  private final DataSource dataSource;
+
+  private final String resourceName;
+
+  MigrationKey(final MigrationRequest request) {
+    this.bundleId = request.bundleResource.bundle.getBundleId();
+    this.resourceName = request.bundleResource.resourceName;
+    this.dataSource = request.dataSource;
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof MigrationKey)) {
+      return false;
+    }
+    MigrationKey other = (MigrationKey) obj;
+    return (bundleId == other.bundleId) && resourceName.equals(other.resourceName)
+        && (dataSource == other.dataSource);
+  }
+
+  @Override
+  public int hashCode() {
+    final int prime = 31;
+    int result = 1;
+    result = (prime * result) + (int) (bundleId ^ (bundleId >>> 32));
+    result = (prime * result) + resourceName.hashCode();
+    result = (prime * result) + System.identityHashCode(dataSource);
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return bundleId + ":" + resourceName + "@" + dataSource;
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+/**
+ * Gets notified when a migration that was submitted to a {@link MigrationService} finishes.
+ */
+public interface MigrationListener {
+
+  /**
+   * Called on the worker thread of the migration when it finished, whether it was successful or
+   * not. The listener should return quickly as the worker thread is shared with other migrations.
+   *
+   * @param request
+   *          The submitted request.
+   * @param result
+   *          The result of the migration.
+   */
+  void migrationFinished(MigrationRequest request, SchemaUpdateResult result);
+}
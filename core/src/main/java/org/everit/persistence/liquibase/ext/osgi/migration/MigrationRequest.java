@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import javax.sql.DataSource;
+
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+
+/**
+ * A request to update the schema of a changelog on a data source via a {@link MigrationService}.
+ */
+public class MigrationRequest {
+
+  /**
+   * The resource that points to the root changelog of the schema.
+   */
+  public final BundleResource bundleResource;
+
+  /**
+   * The Liquibase contexts of the update or <code>null</code>.
+   */
+  public final String contexts;
+
+  /**
+   * The data source that the schema is updated on.
+   */
+  public final DataSource dataSource;
+
+  /**
+   * The name of the data source that is published in the
+   * {@link SchemaReadiness#SERVICE_PROP_SCHEMA_DATA_SOURCE} service property or <code>null</code>.
+   */
+  public final String dataSourceName;
+
+  /**
+   * Constructor.
+   *
+   * @param bundleResource
+   *          The resource that points to the root changelog of the schema.
+   * @param dataSource
+   *          The data source that the schema is updated on.
+   * @param contexts
+   *          The Liquibase contexts of the update or <code>null</code>.
+   */
+  public MigrationRequest(final BundleResource bundleResource, final DataSource dataSource,
+      final String contexts) {
+    this(bundleResource, dataSource, null, contexts);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param bundleResource
+   *          The resource that points to the root changelog of the schema.
+   * @param dataSource
+   *          The data source that the schema is updated on.
+   * @param dataSourceName
+   *          The name of the data source, e.g. the <code>dataSourceName</code> property of its
+   *          OSGi service, or <code>null</code>.
+   * @param contexts
+   *          The Liquibase contexts of the update or <code>null</code>.
+   */
+  public MigrationRequest(final BundleResource bundleResource, final DataSource dataSource,
+      final String dataSourceName, final String contexts) {
+    if (bundleResource == null) {
+      throw new IllegalArgumentException("Bundle resource must not be null");
+    }
+    if (dataSource == null) {
+      throw new IllegalArgumentException("Data source must not be null");
+    }
+    this.bundleResource = bundleResource;
+    this.dataSource = dataSource;
+    this.dataSourceName = dataSourceName;
+    this.contexts = contexts;
+  }
+
+  @Override
+  public String toString() {
+    return "MigrationRequest [bundle=" + bundleResource.bundle + ", resourceName="
+        + bundleResource.resourceName + ", dataSourceName=" + dataSourceName + ", contexts="
+        + contexts + "]";
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.util.concurrent.Future;
+
+/**
+ * OSGi service that runs schema migrations in the background, so the callers, e.g. bundle
+ * activators, do not have to wait for Liquibase. The state of every submitted schema is published
+ * as a {@link SchemaReadiness} service, so the components that need the schema can depend on the
+ * readiness service instead of waiting for the migration.
+ */
+public interface MigrationService {
+
+  /**
+   * Submits a migration. The method returns immediately.
+   *
+   * @param request
+   *          The migration request.
+   * @param listener
+   *          The listener that is notified when the migration finished or <code>null</code>.
+   * @return The future of the result of the migration. The result holds the failure if the
+   *         migration failed, the future itself does not throw an {@link
+   *         java.util.concurrent.ExecutionException} due to a failed migration.
+   * @throws java.util.concurrent.RejectedExecutionException
+   *           if the service does not accept more migrations as it has been shut down.
+   */
+  Future<SchemaUpdateResult> submit(MigrationRequest request, MigrationListener listener);
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiParserContext;
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.everit.persistence.liquibase.ext.osgi.util.ChangeLogDigestStore;
+import org.everit.persistence.liquibase.ext.osgi.util.ChangeLogFastPath;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludeCycleException;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePlan;
+import org.everit.persistence.liquibase.ext.osgi.util.LiquibaseOSGiUtil;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.LiquibaseException;
+
+/**
+ * Runs the Liquibase update of several independent schemas in parallel. The schemas are updated
+ * on the provided {@link Executor}. If the changelog of a schema includes the changelog of another
+ * schema via the {@value LiquibaseEOSGiConstants#CAPABILITY_NS_LIQUIBASE_CHANGELOG} wires of its
+ * bundle, the included schema is updated first. A failing update does not abort the update of the
+ * other schemas, only the update of the schemas that depend on the failed one is skipped. Errors
+ * and updates that are rejected by the executor are reported as the failure of the schema.
+ *
+ * <p>
+ * The changelogs are applied with {@link StreamingChangeLogUpdater}, so changelogs with the
+ * {@value LiquibaseEOSGiConstants#CAPABILITY_ATTR_STREAMING} capability attribute are applied in
+ * streaming mode. The lock and changelog history services of Liquibase are reset when the last
+ * running schema update of the JVM finished, not by the workers themselves.
+ *
+ * <p>
+ * The updates are coordinated with the {@link UpdateCoordinator#getSharedInstance() shared}
+ * {@link UpdateCoordinator} by default. If the changelog of a schema or any changelog that it can
+ * include is updated on the same database by another caller in the JVM, this updater closes its
+ * connection and waits for that update instead of contending for the Liquibase lock. The result
+ * of the other update is reported if it was the same update, otherwise the schema is updated
+ * after it.
+ */
+public class MultiSchemaUpdater {
+
+  /**
+   * The state of one {@link MultiSchemaUpdater#update(List, SchemaConnectionFactory, String)}
+   * call.
+   */
+  private class UpdateRun {
+
+    /**
+     * Updates one schema and stores the result.
+     */
+    private class UpdateTask implements Callable<Integer> {
+
+      private final int index;
+
+      UpdateTask(final int index) {
+        this.index = index;
+      }
+
+      @Override
+      public Integer call() {
+        long startTime = System.nanoTime();
+        LiquibaseServiceScope.enter();
+        try {
+          results[index] = updateSchema(bundleResources.get(index), connectionFactory, contexts);
+        } catch (Throwable e) {
+          // The result of every task must be recorded, otherwise the run would wait forever
+          results[index] = new SchemaUpdateResult(bundleResources.get(index),
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), e);
+        } finally {
+          LiquibaseServiceScope.leave();
+        }
+        return index;
+      }
+    }
+
+    final List<BundleResource> bundleResources;
+
+    final SchemaConnectionFactory connectionFactory;
+
+    final String contexts;
+
+    final SchemaUpdateResult[] results;
+
+    UpdateRun(final List<BundleResource> bundleResources,
+        final SchemaConnectionFactory connectionFactory, final String contexts) {
+      this.bundleResources = bundleResources;
+      this.connectionFactory = connectionFactory;
+      this.contexts = contexts;
+      this.results = new SchemaUpdateResult[bundleResources.size()];
+    }
+
+    private List<List<Integer>> resolveDependents() {
+      int n = bundleResources.size();
+      List<List<Integer>> dependents = new ArrayList<List<Integer>>(n);
+      for (int i = 0; i < n; i++) {
+        dependents.add(new ArrayList<Integer>());
+      }
+      for (int i = 0; i < n; i++) {
+        Bundle bundle = bundleResources.get(i).bundle;
+        Set<Long> providerBundleIds = new HashSet<Long>();
+        collectProviderBundleIds(bundle, providerBundleIds);
+        providerBundleIds.remove(bundle.getBundleId());
+        for (int j = 0; j < n; j++) {
+          if (providerBundleIds.contains(bundleResources.get(j).bundle.getBundleId())) {
+            dependents.get(j).add(i);
+          }
+        }
+      }
+      return dependents;
+    }
+
+    List<SchemaUpdateResult> run() throws InterruptedException, ExecutionException {
+      int n = bundleResources.size();
+      List<List<Integer>> dependents = resolveDependents();
+      int[] remainingDependencies = new int[n];
+      for (List<Integer> dependentList : dependents) {
+        for (Integer dependent : dependentList) {
+          remainingDependencies[dependent]++;
+        }
+      }
+
+      CompletionService<Integer> completionService =
+          new ExecutorCompletionService<Integer>(executor);
+      int inProgress = 0;
+      for (int i = 0; i < n; i++) {
+        if ((remainingDependencies[i] == 0)
+            && submit(completionService, i, dependents, remainingDependencies)) {
+          inProgress++;
+        }
+      }
+
+      while (inProgress > 0) {
+        Future<Integer> future = completionService.take();
+        inProgress--;
+        int index = future.get();
+        if (results[index].isSuccessful()) {
+          for (Integer dependent : dependents.get(index)) {
+            remainingDependencies[dependent]--;
+            if ((remainingDependencies[dependent] == 0)
+                && submit(completionService, dependent, dependents, remainingDependencies)) {
+              inProgress++;
+            }
+          }
+        } else {
+          skipDependents(index, dependents, remainingDependencies);
+        }
+      }
+
+      for (int i = 0; i < n; i++) {
+        if (results[i] == null) {
+          results[i] = new SchemaUpdateResult(bundleResources.get(i), 0,
+              new IllegalStateException("Update skipped due to cyclic dependency between the"
+                  + " changelogs of the bundles"));
+        }
+      }
+      return new ArrayList<SchemaUpdateResult>(Arrays.asList(results));
+    }
+
+    private void skipDependents(final int index, final List<List<Integer>> dependents,
+        final int[] remainingDependencies) {
+      LinkedList<Integer> queue = new LinkedList<Integer>(dependents.get(index));
+      while (!queue.isEmpty()) {
+        int dependent = queue.removeFirst();
+        if (results[dependent] == null) {
+          remainingDependencies[dependent] = -1;
+          results[dependent] = new SchemaUpdateResult(bundleResources.get(dependent), 0,
+              new IllegalStateException("Update skipped as the update of the included schema in '"
+                  + bundleResources.get(index).bundle + "' failed"));
+          queue.addAll(dependents.get(dependent));
+        }
+      }
+    }
+
+    private boolean submit(final CompletionService<Integer> completionService, final int index,
+        final List<List<Integer>> dependents, final int[] remainingDependencies) {
+      try {
+        completionService.submit(new UpdateTask(index));
+        return true;
+      } catch (RejectedExecutionException e) {
+        results[index] = new SchemaUpdateResult(bundleResources.get(index), 0, e);
+        skipDependents(index, dependents, remainingDependencies);
+        return false;
+      }
+    }
+  }
+
+  private static void collectIncludedResources(final IncludePlan includePlan,
+      final Bundle bundle, final Set<Long> visitedBundleIds, final List<BundleResource> result) {
+    if (!visitedBundleIds.add(bundle.getBundleId())) {
+      return;
+    }
+    for (BundleResource wiredResource : includePlan.getWiredResources(bundle)) {
+      result.add(wiredResource);
+      collectIncludedResources(includePlan, wiredResource.bundle, visitedBundleIds, result);
+    }
+  }
+
+  private static void collectProviderBundleIds(final Bundle bundle, final Set<Long> result) {
+    BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
+    if (bundleWiring == null) {
+      return;
+    }
+    List<BundleWire> wires =
+        bundleWiring.getRequiredWires(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG);
+    if (wires == null) {
+      return;
+    }
+    for (BundleWire wire : wires) {
+      Bundle providerBundle = wire.getProviderWiring().getBundle();
+      if (result.add(providerBundle.getBundleId())) {
+        collectProviderBundleIds(providerBundle, result);
+      }
+    }
+  }
+
+  private volatile ChangeLogDigestStore digestStore;
+
+  private final Executor executor;
+
+  private final EOSGiParserContext parserContext;
+
+  private volatile UpdateCoordinator updateCoordinator = UpdateCoordinator.getSharedInstance();
+
+  /**
+   * Constructor.
+   *
+   * @param executor
+   *          The executor that runs the updates of the schemas.
+   * @param parserContext
+   *          The parser context that is used during parsing the changelogs or <code>null</code>.
+   */
+  public MultiSchemaUpdater(final Executor executor, final EOSGiParserContext parserContext) {
+    this.executor = executor;
+    this.parserContext = parserContext;
+  }
+
+  private SchemaUpdateResult applyUpdate(final BundleResource bundleResource,
+      final Connection connection, final String contexts, final IncludePlan resolvedIncludePlan,
+      final long startTime) {
+    Throwable failure = null;
+    boolean skipped = false;
+    try {
+      Database database = DatabaseFactory.getInstance()
+          .findCorrectDatabaseImplementation(new JdbcConnection(connection));
+
+      EOSGiParserContext schemaParserContext = parserContext;
+      ChangeLogFastPath fastPath = null;
+      ChangeLogDigestStore currentDigestStore = digestStore;
+      if (currentDigestStore != null) {
+        IncludePlan includePlan = (resolvedIncludePlan != null) ? resolvedIncludePlan
+            : resolveIncludePlan(bundleResource);
+        fastPath = new ChangeLogFastPath(currentDigestStore, includePlan, database,
+            new Contexts(contexts), new LabelExpression());
+        skipped = fastPath.isUnchanged(bundleResource);
+
+        schemaParserContext = new EOSGiParserContext(parserContext);
+        schemaParserContext.setIncludePlan(includePlan);
+        schemaParserContext.setFastPath(fastPath);
+      }
+
+      if (!skipped) {
+        new StreamingChangeLogUpdater(schemaParserContext).update(bundleResource, database,
+            contexts);
+        if (fastPath != null) {
+          fastPath.recordUpdate(bundleResource, database);
+        }
+      }
+    } catch (LiquibaseException | RuntimeException e) {
+      failure = e;
+    }
+    return new SchemaUpdateResult(bundleResource,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), failure, skipped);
+  }
+
+  private IncludePlan resolveIncludePlan(final BundleResource bundleResource) {
+    IncludePlan includePlan = (parserContext != null) ? parserContext.getIncludePlan() : null;
+    if ((includePlan == null) || !includePlan.contains(bundleResource.bundle)
+        || !includePlan.isCurrent()) {
+      includePlan = IncludePlan.create(Collections.singleton(bundleResource.bundle));
+    }
+    return includePlan;
+  }
+
+  /**
+   * Updates the schemas of the provided bundle resources.
+   *
+   * @param bundleResources
+   *          The resources that point to the changelogs of the schemas.
+   * @param connectionFactory
+   *          The factory that opens the connection of each schema.
+   * @param contexts
+   *          The Liquibase contexts of the update or <code>null</code>.
+   * @return The results of the updates in the same order as the provided bundle resources.
+   */
+  public List<SchemaUpdateResult> update(final List<BundleResource> bundleResources,
+      final SchemaConnectionFactory connectionFactory, final String contexts) {
+    try {
+      return new UpdateRun(bundleResources, connectionFactory, contexts).run();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for schema updates", e);
+    } catch (ExecutionException e) {
+      // UpdateTask does not throw exceptions
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Finds the schemas by a schema expression and updates them on the provided data source.
+   *
+   * @param schemaExpression
+   *          The schema expression.
+   * @param bundleContext
+   *          The context of any active bundle in the OSGi environment to query the list of the
+   *          bundles.
+   * @param necessaryBundleStates
+   *          Only those bundles will be analysed that have the of the necessary bundle states.
+   * @param dataSource
+   *          The data source that all schemas are updated on.
+   * @param contexts
+   *          The Liquibase contexts of the update or <code>null</code>.
+   * @return The results of the updates.
+   * @see LiquibaseOSGiUtil#findBundlesBySchemaExpression(String, BundleContext, int)
+   */
+  public List<SchemaUpdateResult> update(final String schemaExpression,
+      final BundleContext bundleContext, final int necessaryBundleStates,
+      final DataSource dataSource, final String contexts) {
+
+    List<BundleResource> bundleResources = LiquibaseOSGiUtil
+        .findBundlesBySchemaExpression(schemaExpression, bundleContext, necessaryBundleStates);
+
+    return update(bundleResources, new SchemaConnectionFactory() {
+
+      @Override
+      public Connection getConnection(final BundleResource bundleResource) throws SQLException {
+        return dataSource.getConnection();
+      }
+    }, contexts);
+  }
+
+  /**
+   * Sets the store of the changelog digests. If a store is set, the update of a schema is skipped
+   * if its changelogs and its database did not change since the last successful update and the
+   * unchanged included changelog subtrees are not parsed. See {@link ChangeLogFastPath}.
+   *
+   * @param digestStore
+   *          The digest store or <code>null</code> to always update every schema.
+   */
+  public void setDigestStore(final ChangeLogDigestStore digestStore) {
+    this.digestStore = digestStore;
+  }
+
+  /**
+   * Sets the coordinator of the concurrent updates of the same changelog.
+   *
+   * @param updateCoordinator
+   *          The coordinator or <code>null</code> to let the concurrent updates contend for the
+   *          Liquibase lock.
+   */
+  public void setUpdateCoordinator(final UpdateCoordinator updateCoordinator) {
+    this.updateCoordinator = updateCoordinator;
+  }
+
+  private SchemaUpdateResult updateSchema(final BundleResource bundleResource,
+      final SchemaConnectionFactory connectionFactory, final String contexts) {
+    final long startTime = System.nanoTime();
+    UpdateCoordinator currentUpdateCoordinator = updateCoordinator;
+    try {
+      IncludePlan includePlan = null;
+      List<BundleResource> includedResources = new ArrayList<BundleResource>();
+      if (currentUpdateCoordinator != null) {
+        try {
+          includePlan = resolveIncludePlan(bundleResource);
+          // The plan may hold the trees of other schemas, too
+          collectIncludedResources(includePlan, bundleResource.bundle, new HashSet<Long>(),
+              includedResources);
+        } catch (IncludeCycleException e) {
+          // The parser reports the cycle, only the root changelog is coordinated
+          includePlan = null;
+        }
+      }
+
+      while (true) {
+        UpdateCoordinator.Claim claim;
+        try (final Connection connection = connectionFactory.getConnection(bundleResource)) {
+          if (currentUpdateCoordinator == null) {
+            return applyUpdate(bundleResource, connection, contexts, null, startTime);
+          }
+          DatabaseMetaData metaData = connection.getMetaData();
+          String databaseKey = metaData.getURL() + '|' + metaData.getUserName();
+          claim = currentUpdateCoordinator.claim(bundleResource, includedResources, databaseKey,
+              contexts);
+          if (claim.isAcquired()) {
+            SchemaUpdateResult result = null;
+            try {
+              result = applyUpdate(bundleResource, connection, contexts, includePlan, startTime);
+              return result;
+            } finally {
+              claim.release(result);
+            }
+          }
+        }
+        // The connection is closed, so the conflicting update is not blocked by a drained pool
+        SchemaUpdateResult sharedResult = claim.await();
+        if (sharedResult != null) {
+          return sharedResult;
+        }
+      }
+    } catch (SQLException | RuntimeException e) {
+      return new SchemaUpdateResult(bundleResource,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new SchemaUpdateResult(bundleResource,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), e);
+    }
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiParserContext;
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.everit.persistence.liquibase.ext.osgi.util.ChangeLogDigestStore;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+
+import liquibase.logging.LogFactory;
+
+/**
+ * {@link MigrationService} that runs the migrations on a bounded pool of daemon threads. The
+ * migrations are applied with a {@link MultiSchemaUpdater}, so the concurrent migrations of
+ * overlapping changelog trees are coordinated by the shared {@link UpdateCoordinator}. A
+ * {@link SchemaReadiness} service is registered for every submitted changelog and data source with
+ * the {@link SchemaReadiness#STATE_PENDING} state and its properties are modified when the
+ * migration finishes. An exception of a {@link MigrationListener} is logged and it does not
+ * affect the result of the migration.
+ */
+public class PooledMigrationService implements MigrationService {
+
+  /**
+   * The state of the migration of one changelog that is registered as an OSGi service.
+   */
+  private static final class Readiness implements SchemaReadiness {
+
+    final BundleResource bundleResource;
+
+    final String dataSourceName;
+
+    ServiceRegistration<SchemaReadiness> registration;
+
+    volatile SchemaUpdateResult result;
+
+    Readiness(final MigrationRequest request) {
+      this.bundleResource = request.bundleResource;
+      this.dataSourceName = request.dataSourceName;
+    }
+
+    @Override
+    public BundleResource getBundleResource() {
+      return bundleResource;
+    }
+
+    Dictionary<String, Object> getProperties() {
+      Dictionary<String, Object> properties = new Hashtable<String, Object>();
+      Object schemaNames =
+          bundleResource.attributes.get(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG);
+      if (schemaNames instanceof Collection) {
+        Collection<?> schemaNameCollection = (Collection<?>) schemaNames;
+        String[] schemaNameArray = new String[schemaNameCollection.size()];
+        int i = 0;
+        for (Object schemaName : schemaNameCollection) {
+          schemaNameArray[i++] = String.valueOf(schemaName);
+        }
+        properties.put(SERVICE_PROP_SCHEMA, schemaNameArray);
+      } else if (schemaNames != null) {
+        properties.put(SERVICE_PROP_SCHEMA, String.valueOf(schemaNames));
+      }
+      properties.put(SERVICE_PROP_SCHEMA_RESOURCE, bundleResource.resourceName);
+      if (dataSourceName != null) {
+        properties.put(SERVICE_PROP_SCHEMA_DATA_SOURCE, dataSourceName);
+      }
+      properties.put(SERVICE_PROP_SCHEMA_STATE, getState());
+      return properties;
+    }
+
+    @Override
+    public SchemaUpdateResult getResult() {
+      return result;
+    }
+
+    @Override
+    public String getState() {
+      SchemaUpdateResult currentResult = result;
+      if (currentResult == null) {
+        return STATE_PENDING;
+      }
+      return currentResult.isSuccessful() ? STATE_READY : STATE_FAILED;
+    }
+
+    synchronized void register(final BundleContext bundleContext) {
+      registration =
+          bundleContext.registerService(SchemaReadiness.class, this, getProperties());
+    }
+
+    synchronized void unregister() {
+      if (registration == null) {
+        return;
+      }
+      try {
+        registration.unregister();
+      } catch (IllegalStateException e) {
+        // Already unregistered, e.g. the registering bundle stopped
+      }
+      registration = null;
+    }
+
+    synchronized void update(final SchemaUpdateResult updateResult) {
+      result = updateResult;
+      if (registration == null) {
+        return;
+      }
+      try {
+        registration.setProperties(getProperties());
+      } catch (IllegalStateException e) {
+        // Already unregistered, e.g. the registering bundle stopped
+        registration = null;
+      }
+    }
+  }
+
+  /**
+   * Runs the tasks on the calling thread, so the schema update of a migration does not occupy a
+   * second thread of the pool.
+   */
+  private static final Executor CALLER_RUNS_EXECUTOR = new Executor() {
+
+    @Override
+    public void execute(final Runnable command) {
+      command.run();
+    }
+  };
+
+  private final BundleContext bundleContext;
+
+  private final ThreadPoolExecutor executorService;
+
+  private final ConcurrentMap<MigrationKey, Readiness> readinessByKey =
+      new ConcurrentHashMap<MigrationKey, Readiness>();
+
+  private final MultiSchemaUpdater schemaUpdater;
+
+  /**
+   * Constructor.
+   *
+   * @param bundleContext
+   *          The context that the {@link SchemaReadiness} services are registered with or
+   *          <code>null</code> if no readiness services should be registered.
+   * @param poolSize
+   *          The maximum number of migrations that run at the same time. The further migrations
+   *          are queued.
+   * @param parserContext
+   *          The parser context that is used during parsing the changelogs or <code>null</code>.
+   */
+  public PooledMigrationService(final BundleContext bundleContext, final int poolSize,
+      final EOSGiParserContext parserContext) {
+    if (poolSize <= 0) {
+      throw new IllegalArgumentException("Pool size must be positive: " + poolSize);
+    }
+    this.bundleContext = bundleContext;
+    this.schemaUpdater = new MultiSchemaUpdater(CALLER_RUNS_EXECUTOR, parserContext);
+
+    final AtomicInteger threadCounter = new AtomicInteger();
+    this.executorService = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+          @Override
+          public Thread newThread(final Runnable runnable) {
+            Thread thread =
+                new Thread(runnable, "liquibase-migration-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    this.executorService.allowCoreThreadTimeOut(true);
+  }
+
+  private SchemaUpdateResult migrate(final MigrationRequest request) {
+    return schemaUpdater.update(Collections.singletonList(request.bundleResource),
+        new SchemaConnectionFactory() {
+
+          @Override
+          public Connection getConnection(final BundleResource bundleResource)
+              throws SQLException {
+            return request.dataSource.getConnection();
+          }
+        }, request.contexts).get(0);
+  }
+
+  /**
+   * Registers this object as a {@link MigrationService} OSGi service.
+   *
+   * @param registrationContext
+   *          The context of the bundle that registers the service.
+   * @return The registration of the service.
+   */
+  public ServiceRegistration<MigrationService> register(
+      final BundleContext registrationContext) {
+    return registrationContext.registerService(MigrationService.class, this, null);
+  }
+
+  /**
+   * Sets the store of the changelog digests, so the unchanged schemas and changelog subtrees are
+   * skipped. See {@link MultiSchemaUpdater#setDigestStore(ChangeLogDigestStore)}.
+   *
+   * @param digestStore
+   *          The digest store or <code>null</code> to always update every schema.
+   */
+  public void setDigestStore(final ChangeLogDigestStore digestStore) {
+    schemaUpdater.setDigestStore(digestStore);
+  }
+
+  /**
+   * Stops accepting new migrations and unregisters the {@link SchemaReadiness} services. The
+   * migrations that are in progress or queued are still run, but their readiness is not
+   * published anymore.
+   */
+  public void shutdown() {
+    executorService.shutdown();
+    for (Readiness readiness : readinessByKey.values()) {
+      readiness.unregister();
+    }
+    readinessByKey.clear();
+  }
+
+  @Override
+  public Future<SchemaUpdateResult> submit(final MigrationRequest request,
+      final MigrationListener listener) {
+
+    final Readiness readiness = new Readiness(request);
+    MigrationKey migrationKey = new MigrationKey(request);
+    if (bundleContext != null) {
+      readiness.register(bundleContext);
+      Readiness previousReadiness = readinessByKey.put(migrationKey, readiness);
+      if (previousReadiness != null) {
+        previousReadiness.unregister();
+      }
+    }
+
+    FutureTask<SchemaUpdateResult> task =
+        new FutureTask<SchemaUpdateResult>(new Callable<SchemaUpdateResult>() {
+
+          @Override
+          public SchemaUpdateResult call() {
+            SchemaUpdateResult result = migrate(request);
+            readiness.update(result);
+            if (listener != null) {
+              try {
+                listener.migrationFinished(request, result);
+              } catch (RuntimeException e) {
+                // The migration itself is done, its result must not be lost
+                LogFactory.getInstance().getLog()
+                    .severe("Migration listener failed for " + request, e);
+              }
+            }
+            return result;
+          }
+        });
+
+    try {
+      executorService.execute(task);
+    } catch (RejectedExecutionException e) {
+      readinessByKey.remove(migrationKey, readiness);
+      readiness.unregister();
+      throw e;
+    }
+    return task;
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+
+/**
+ * Provides the database connection that a schema should be updated on.
+ */
+public interface SchemaConnectionFactory {
+
+  /**
+   * Opens a new connection for the schema of a bundle resource. The connection is closed by the
+   * caller.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog of the schema.
+   * @return The database connection.
+   * @throws SQLException
+   *           if the connection could not be opened.
+   */
+  Connection getConnection(BundleResource bundleResource) throws SQLException;
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+
+/**
+ * Service that is registered by a {@link MigrationService} for every submitted migration. The
+ * service properties tell the name of the schema, the data source and the state of its migration.
+ * Components can wait for a schema with a service filter, e.g.
+ * <code>(&amp;(liquibase.schema=myapp)(liquibase.schema.state=ready))</code>.
+ */
+public interface SchemaReadiness {
+
+  /**
+   * Service property that holds the name of the schema. It is a String array if the capability
+   * of the changelog has more than one schema name.
+   */
+  String SERVICE_PROP_SCHEMA = "liquibase.schema";
+
+  /**
+   * Service property that holds the {@link MigrationRequest#dataSourceName name of the data
+   * source} that the schema is migrated on. The property is only set if the request has a data
+   * source name.
+   */
+  String SERVICE_PROP_SCHEMA_DATA_SOURCE = "liquibase.schema.datasource";
+
+  /**
+   * Service property that holds the name of the bundle resource of the changelog.
+   */
+  String SERVICE_PROP_SCHEMA_RESOURCE = "liquibase.schema.resource";
+
+  /**
+   * Service property that holds the state of the migration. See {@link #STATE_PENDING},
+   * {@link #STATE_READY} and {@link #STATE_FAILED}.
+   */
+  String SERVICE_PROP_SCHEMA_STATE = "liquibase.schema.state";
+
+  /**
+   * The migration failed.
+   */
+  String STATE_FAILED = "failed";
+
+  /**
+   * The migration is queued or in progress.
+   */
+  String STATE_PENDING = "pending";
+
+  /**
+   * The migration finished successfully.
+   */
+  String STATE_READY = "ready";
+
+  /**
+   * The resource that points to the changelog of the schema.
+   *
+   * @return The bundle resource.
+   */
+  BundleResource getBundleResource();
+
+  /**
+   * The result of the migration.
+   *
+   * @return The result or <code>null</code> if the migration is still pending.
+   */
+  SchemaUpdateResult getResult();
+
+  /**
+   * The state of the migration.
+   *
+   * @return One of {@link #STATE_PENDING}, {@link #STATE_READY} and {@link #STATE_FAILED}.
+   */
+  String getState();
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+
+/**
+ * The outcome of updating the schema of one {@link BundleResource}.
+ */
+public class SchemaUpdateResult {
+
+  public final BundleResource bundleResource;
+
+  /**
+   * The time of the update in milliseconds.
+   */
+  public final long durationMillis;
+
+  /**
+   * The cause of the failure or <code>null</code> if the update was successful.
+   */
+  public final Throwable failure;
+
+  /**
+   * Whether the update was skipped as the changelogs and the database did not change since the
+   * last successful update.
+   */
+  public final boolean skipped;
+
+  /**
+   * Constructor.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog of the schema.
+   * @param durationMillis
+   *          The time of the update in milliseconds.
+   * @param failure
+   *          The cause of the failure or <code>null</code> if the update was successful.
+   */
+  public SchemaUpdateResult(final BundleResource bundleResource, final long durationMillis,
+      final Throwable failure) {
+    this(bundleResource, durationMillis, failure, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog of the schema.
+   * @param durationMillis
+   *          The time of the update in milliseconds.
+   * @param failure
+   *          The cause of the failure or <code>null</code> if the update was successful.
+   * @param skipped
+   *          Whether the update was skipped as nothing changed since the last update.
+   */
+  public SchemaUpdateResult(final BundleResource bundleResource, final long durationMillis,
+      final Throwable failure, final boolean skipped) {
+    this.bundleResource = bundleResource;
+    this.durationMillis = durationMillis;
+    this.failure = failure;
+    this.skipped = skipped;
+  }
+
+  public boolean isSuccessful() {
+    return failure == null;
+  }
+
+  @Override
+  public String toString() {
+    return "SchemaUpdateResult [bundle=" + bundleResource.bundle + ", resourceName="
+        + bundleResource.resourceName + ", durationMillis=" + durationMillis + ", failure="
+        + failure + ", skipped=" + skipped + "]";
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+
+/**
+ * Opens the {@link Writer} that the SQL of a changelog is written to by an
+ * {@link UpdateSqlPipeline}.
+ */
+public interface SqlWriterFactory {
+
+  /**
+   * Opens a new writer for the SQL of a changelog. The writer is closed by the caller.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog.
+   * @return The writer.
+   * @throws IOException
+   *           if the writer could not be opened.
+   */
+  Writer openWriter(BundleResource bundleResource) throws IOException;
+}
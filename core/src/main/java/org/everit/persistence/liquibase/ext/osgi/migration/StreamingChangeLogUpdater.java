@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiParserContext;
+import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.liquibase.ext.osgi.StreamingIncludeChangeSet;
+import org.everit.persistence.liquibase.ext.osgi.StreamingIncludeHandler;
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.everit.persistence.liquibase.ext.osgi.util.CapabilityAttributes;
+import org.everit.persistence.liquibase.ext.osgi.util.ChangeLogNodeParser;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePrefetcher;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePrescanner;
+import org.osgi.framework.Bundle;
+
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.Liquibase;
+import liquibase.RuntimeEnvironment;
+import liquibase.changelog.ChangeLogHistoryService;
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.changelog.ChangeLogIterator;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.filter.ChangeSetFilterResult;
+import liquibase.changelog.filter.ContextChangeSetFilter;
+import liquibase.changelog.filter.DbmsChangeSetFilter;
+import liquibase.changelog.filter.LabelChangeSetFilter;
+import liquibase.changelog.filter.ShouldRunChangeSetFilter;
+import liquibase.changelog.visitor.ChangeSetVisitor;
+import liquibase.changelog.visitor.UpdateVisitor;
+import liquibase.database.Database;
+import liquibase.database.ObjectQuotingStrategy;
+import liquibase.exception.ChangeLogParseException;
+import liquibase.exception.LiquibaseException;
+import liquibase.exception.LockException;
+import liquibase.executor.ExecutorService;
+import liquibase.lockservice.LockService;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.logging.LogFactory;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.parser.core.ParsedNode;
+
+/**
+ * Applies a changelog and the streaming changelogs that are included into it via ".osgi"
+ * includes. The changelogs with the {@value LiquibaseEOSGiConstants#CAPABILITY_ATTR_STREAMING}
+ * capability attribute are read with StAX and every top level element of them is parsed and
+ * applied on its own, so only one changeset is held in memory at a time. The
+ * <code>property</code> and <code>preConditions</code> elements of a streaming changelog are
+ * repeated for every changeset.
+ *
+ * <p>
+ * Streaming changelogs are applied at the position of their include, when the update reaches the
+ * {@link StreamingIncludeChangeSet} placeholder of the include, and only if the context
+ * expression of the include matches. The lock of the changelog table is held during the whole
+ * update, including all chunks of the streaming changelogs. Only XML changelogs can be streamed.
+ *
+ * <p>
+ * The updater releases the lock and the executor of its own database only. The lock and changelog
+ * history services that the factories of Liquibase cache for the database are shared by every
+ * concurrent update of the JVM, so they are reset by {@link MultiSchemaUpdater} when none of its
+ * workers are running anymore.
+ */
+public class StreamingChangeLogUpdater {
+
+  /**
+   * Resource accessor that serves one chunk of a streaming changelog instead of the whole file.
+   */
+  private static final class ChunkResourceAccessor extends EOSGiResourceAccessor {
+
+    private final byte[] chunk;
+
+    private final String chunkPath;
+
+    ChunkResourceAccessor(final Bundle bundle, final Map<String, Object> attributes,
+        final EOSGiParserContext parserContext, final String chunkPath, final byte[] chunk) {
+      super(bundle, attributes, parserContext);
+      this.chunkPath = normalizePath(chunkPath);
+      this.chunk = chunk;
+    }
+
+    @Override
+    public Set<InputStream> getResourcesAsStream(final String path) throws IOException {
+      if (chunkPath.equals(normalizePath(path))) {
+        Set<InputStream> result = new HashSet<InputStream>(1);
+        result.add(new ByteArrayInputStream(chunk));
+        return result;
+      }
+      return super.getResourcesAsStream(path);
+    }
+  }
+
+  private static final String ELEMENT_PRECONDITIONS = "preConditions";
+
+  private static final String ELEMENT_PROPERTY = "property";
+
+  private static final LabelExpression LABELS = new LabelExpression();
+
+  private static String normalizePath(final String path) {
+    String result = path;
+    while (result.startsWith("/")) {
+      result = result.substring(1);
+    }
+    return result;
+  }
+
+  private final EOSGiParserContext parserContext;
+
+  /**
+   * Constructor.
+   *
+   * @param parserContext
+   *          The parser context that is used during parsing the changelogs or <code>null</code>.
+   */
+  public StreamingChangeLogUpdater(final EOSGiParserContext parserContext) {
+    this.parserContext = parserContext;
+  }
+
+  private void applyChunk(final BundleResource bundleResource,
+      final EOSGiParserContext streamingParserContext, final StartElement rootElement,
+      final List<XMLEvent> header, final List<XMLEvent> element, final Database database,
+      final Contexts contexts) throws LiquibaseException {
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+      XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, "UTF-8");
+      writer.add(eventFactory.createStartDocument("UTF-8", "1.0"));
+      writer.add(rootElement);
+      for (XMLEvent event : header) {
+        writer.add(event);
+      }
+      for (XMLEvent event : element) {
+        writer.add(event);
+      }
+      writer.add(eventFactory.createEndElement(rootElement.getName(), null));
+      writer.add(eventFactory.createEndDocument());
+      writer.close();
+    } catch (XMLStreamException e) {
+      throw new ChangeLogParseException(e);
+    }
+
+    ChunkResourceAccessor chunkResourceAccessor = new ChunkResourceAccessor(bundleResource.bundle,
+        bundleResource.attributes, streamingParserContext, bundleResource.resourceName,
+        out.toByteArray());
+    ChangeLogParameters changeLogParameters = new ChangeLogParameters(database);
+    changeLogParameters.setContexts(contexts);
+    changeLogParameters.setLabels(LABELS);
+    DatabaseChangeLog chunkChangeLog = ChangeLogParserFactory.getInstance()
+        .getParser(bundleResource.resourceName, chunkResourceAccessor)
+        .parse(bundleResource.resourceName, changeLogParameters, chunkResourceAccessor);
+    run(chunkChangeLog, database, contexts, streamingParserContext.getStreamingIncludeHandler());
+  }
+
+  private void applyStreaming(final BundleResource bundleResource,
+      final EOSGiParserContext streamingParserContext, final Database database,
+      final Contexts contexts) throws LiquibaseException {
+
+    EOSGiResourceAccessor resourceAccessor = new EOSGiResourceAccessor(bundleResource.bundle,
+        bundleResource.attributes, streamingParserContext);
+    InputStream inputStream = openSingleStream(resourceAccessor, bundleResource.resourceName);
+    try {
+      XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+      inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+      inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+      XMLEventReader reader = inputFactory.createXMLEventReader(inputStream);
+      try {
+        StartElement rootElement = null;
+        List<XMLEvent> header = new ArrayList<XMLEvent>();
+        List<XMLEvent> element = new ArrayList<XMLEvent>();
+        String elementName = null;
+        int depth = 0;
+        while (reader.hasNext()) {
+          XMLEvent event = reader.nextEvent();
+          if (event.isStartElement()) {
+            depth++;
+            if (depth == 1) {
+              rootElement = event.asStartElement();
+              continue;
+            }
+            if (depth == 2) {
+              elementName = event.asStartElement().getName().getLocalPart();
+            }
+          }
+
+          if (depth >= 2) {
+            element.add(event);
+          }
+
+          if (event.isEndElement()) {
+            depth--;
+            if (depth == 1) {
+              if (ELEMENT_PROPERTY.equals(elementName)
+                  || ELEMENT_PRECONDITIONS.equals(elementName)) {
+                header.addAll(element);
+              } else {
+                applyChunk(bundleResource, streamingParserContext, rootElement, header, element,
+                    database, contexts);
+              }
+              element = new ArrayList<XMLEvent>();
+              elementName = null;
+            }
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      throw new ChangeLogParseException(e);
+    } finally {
+      try {
+        inputStream.close();
+      } catch (IOException e) {
+        // Nothing to do, the content has already been read
+      }
+    }
+  }
+
+  private InputStream openSingleStream(final EOSGiResourceAccessor resourceAccessor,
+      final String resourceName) throws ChangeLogParseException {
+    Set<InputStream> inputStreams;
+    try {
+      inputStreams = resourceAccessor.getResourcesAsStream(resourceName);
+    } catch (IOException e) {
+      throw new ChangeLogParseException(e);
+    }
+    if ((inputStreams == null) || inputStreams.isEmpty()) {
+      throw new ChangeLogParseException(resourceName + " does not exist in bundle "
+          + resourceAccessor.getBundle());
+    }
+    if (inputStreams.size() > 1) {
+      for (InputStream inputStream : inputStreams) {
+        try {
+          inputStream.close();
+        } catch (IOException e) {
+          // Nothing to do, the stream is not used
+        }
+      }
+      throw new ChangeLogParseException("Found " + inputStreams.size() + " files that match "
+          + resourceName + " in bundle " + resourceAccessor.getBundle());
+    }
+    return inputStreams.iterator().next();
+  }
+
+  private void run(final DatabaseChangeLog changeLog, final Database database,
+      final Contexts contexts, final StreamingIncludeHandler streamingIncludeHandler)
+      throws LiquibaseException {
+
+    ChangeLogHistoryServiceFactory.getInstance().getChangeLogService(database)
+        .upgradeChecksums(changeLog, contexts, LABELS);
+    changeLog.validate(database, contexts, LABELS);
+
+    final UpdateVisitor updateVisitor = new UpdateVisitor(database, null);
+    ChangeSetVisitor visitor = new ChangeSetVisitor() {
+
+      @Override
+      public Direction getDirection() {
+        return updateVisitor.getDirection();
+      }
+
+      @Override
+      public void visit(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog,
+          final Database targetDatabase, final Set<ChangeSetFilterResult> filterResults)
+          throws LiquibaseException {
+        if (changeSet instanceof StreamingIncludeChangeSet) {
+          streamingIncludeHandler.applyStreamingInclude((StreamingIncludeChangeSet) changeSet,
+              targetDatabase);
+        } else {
+          updateVisitor.visit(changeSet, databaseChangeLog, targetDatabase, filterResults);
+        }
+      }
+    };
+    new ChangeLogIterator(changeLog,
+        new ShouldRunChangeSetFilter(database, changeLog.ignoreClasspathPrefix()),
+        new ContextChangeSetFilter(contexts), new LabelChangeSetFilter(LABELS),
+        new DbmsChangeSetFilter(database))
+            .run(visitor, new RuntimeEnvironment(database, contexts, LABELS));
+  }
+
+  /**
+   * Applies the changelog of a bundle resource and all streaming changelogs that are included
+   * into it. If the bundle resource itself is a streaming changelog, it is applied in streaming
+   * mode.
+   *
+   * @param bundleResource
+   *          The resource that points to the root changelog.
+   * @param database
+   *          The database that the changelogs are applied on.
+   * @param contexts
+   *          The Liquibase contexts of the update or <code>null</code>.
+   * @throws LiquibaseException
+   *           if the update failed.
+   */
+  public void update(final BundleResource bundleResource, final Database database,
+      final String contexts) throws LiquibaseException {
+
+    final Contexts liquibaseContexts = new Contexts(contexts);
+    final Set<String> appliedStreamingResources = new HashSet<String>();
+    final EOSGiParserContext streamingParserContext = new EOSGiParserContext(parserContext);
+    streamingParserContext.setStreamingIncludeHandler(new StreamingIncludeHandler() {
+
+      @Override
+      public void applyStreamingInclude(final StreamingIncludeChangeSet changeSet,
+          final Database targetDatabase) throws LiquibaseException {
+        BundleResource streamingResource = changeSet.bundleResource;
+        if (appliedStreamingResources.add(
+            streamingResource.bundle.getBundleId() + ":" + streamingResource.resourceName)) {
+          applyStreaming(streamingResource, streamingParserContext, targetDatabase,
+              liquibaseContexts);
+        }
+      }
+    });
+
+    IncludePrefetcher includePrefetcher = streamingParserContext.getIncludePrefetcher();
+    LockService lockService = LockServiceFactory.getInstance().getLockService(database);
+    lockService.waitForLock();
+    try {
+      ChangeLogHistoryService changeLogHistoryService =
+          ChangeLogHistoryServiceFactory.getInstance().getChangeLogService(database);
+      changeLogHistoryService.init();
+      changeLogHistoryService.generateDeploymentId();
+
+      if (CapabilityAttributes.isStreaming(bundleResource.attributes)) {
+        applyStreaming(bundleResource, streamingParserContext, database, liquibaseContexts);
+      } else {
+        EOSGiResourceAccessor resourceAccessor = new EOSGiResourceAccessor(bundleResource.bundle,
+            bundleResource.attributes, streamingParserContext);
+        Liquibase liquibase =
+            new Liquibase(bundleResource.resourceName, resourceAccessor, database);
+        ChangeLogParameters changeLogParameters = liquibase.getChangeLogParameters();
+        changeLogParameters.setContexts(liquibaseContexts);
+        changeLogParameters.setLabels(LABELS);
+        if (includePrefetcher != null) {
+          includePrefetcher.prefetchIncludes(bundleResource.bundle, streamingParserContext);
+        }
+        IncludePrescanner includePrescanner = streamingParserContext.getIncludePrescanner();
+        DatabaseChangeLog databaseChangeLog;
+        if ((includePrescanner != null) && ChangeLogNodeParser.supports(bundleResource)) {
+          ParsedNode parsedNode = ChangeLogNodeParser.parseToNode(bundleResource,
+              resourceAccessor);
+          includePrescanner.prescan(bundleResource, parsedNode, changeLogParameters);
+          databaseChangeLog = ChangeLogNodeParser.load(bundleResource, parsedNode,
+              changeLogParameters, resourceAccessor);
+        } else {
+          if (includePrescanner != null) {
+            includePrescanner.prescan(bundleResource, null, changeLogParameters);
+          }
+          databaseChangeLog = liquibase.getDatabaseChangeLog();
+        }
+        run(databaseChangeLog, database, liquibaseContexts,
+            streamingParserContext.getStreamingIncludeHandler());
+      }
+    } finally {
+      database.setObjectQuotingStrategy(ObjectQuotingStrategy.LEGACY);
+      try {
+        lockService.releaseLock();
+      } catch (LockException e) {
+        LogFactory.getInstance().getLog().severe("Could not release lock", e);
+      }
+      // The factories are shared by the other workers, they are reset by the orchestrators
+      ExecutorService.getInstance().clearExecutor(database);
+      if (includePrefetcher != null) {
+        // The node trees that were not taken would be kept until the next update otherwise
+        includePrefetcher.clear();
+      }
+    }
+  }
+}
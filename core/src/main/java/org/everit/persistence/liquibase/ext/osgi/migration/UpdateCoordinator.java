@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+
+/**
+ * Coordinates the concurrent updates of overlapping changelog trees on the same database within
+ * the JVM. An update claims its root changelog and every changelog that the root can include. If
+ * another update of the same database holds any of these changelogs, the caller should release
+ * its database connection and {@link Claim#await() wait} for that update instead of contending
+ * for the DATABASECHANGELOGLOCK table of Liquibase.
+ *
+ * <p>
+ * If the conflicting update is the same update, i.e. it has the same root changelog, database
+ * and Liquibase contexts, its result is shared with the waiting caller. Otherwise the caller
+ * claims its update again after the conflicting update finished. A claim is held until it is
+ * {@link Claim#release(SchemaUpdateResult) released}, so a later request starts a new update.
+ */
+public class UpdateCoordinator {
+
+  /**
+   * The result of {@link UpdateCoordinator#claim(BundleResource, Collection, String, String)}.
+   * Either the caller holds the claim and must release it after the update, or the claim shows
+   * the update that the caller has to wait for.
+   */
+  public static final class Claim {
+
+    private final boolean acquired;
+
+    private final UpdateCoordinator coordinator;
+
+    private final InFlightUpdate inFlightUpdate;
+
+    private final boolean sameUpdate;
+
+    Claim(final UpdateCoordinator coordinator, final InFlightUpdate inFlightUpdate,
+        final boolean acquired, final boolean sameUpdate) {
+      this.coordinator = coordinator;
+      this.inFlightUpdate = inFlightUpdate;
+      this.acquired = acquired;
+      this.sameUpdate = sameUpdate;
+    }
+
+    /**
+     * Waits until the conflicting update finishes. The caller should not hold a database
+     * connection while it waits.
+     *
+     * @return The result of the conflicting update if it was the same update, otherwise
+     *         <code>null</code> and the caller should claim its update again.
+     * @throws InterruptedException
+     *           if the thread was interrupted while it waited.
+     * @throws IllegalStateException
+     *           if the claim is acquired by the caller.
+     */
+    public SchemaUpdateResult await() throws InterruptedException {
+      if (acquired) {
+        throw new IllegalStateException("The claim is held by the caller");
+      }
+      inFlightUpdate.finished.await();
+      return sameUpdate ? inFlightUpdate.result : null;
+    }
+
+    /**
+     * Whether the caller holds the claim and should run the update.
+     *
+     * @return <code>true</code> if the caller holds the claim.
+     */
+    public boolean isAcquired() {
+      return acquired;
+    }
+
+    /**
+     * Releases the claim and shares the result of the update with the callers that wait for the
+     * same update.
+     *
+     * @param result
+     *          The result of the update or <code>null</code> if the update did not finish, so the
+     *          waiting callers should run it themselves.
+     * @throws IllegalStateException
+     *           if the claim is not acquired by the caller.
+     */
+    public void release(final SchemaUpdateResult result) {
+      if (!acquired) {
+        throw new IllegalStateException("The claim is not held by the caller");
+      }
+      coordinator.release(inFlightUpdate, result);
+    }
+  }
+
+  /**
+   * An update that holds a claim.
+   */
+  private static final class InFlightUpdate {
+
+    final CountDownLatch finished = new CountDownLatch(1);
+
+    final String key;
+
+    final List<String> resourceKeys;
+
+    volatile SchemaUpdateResult result;
+
+    InFlightUpdate(final String key, final List<String> resourceKeys) {
+      this.key = key;
+      this.resourceKeys = resourceKeys;
+    }
+  }
+
+  private static final UpdateCoordinator SHARED_INSTANCE = new UpdateCoordinator();
+
+  private static String getResourceKey(final BundleResource bundleResource,
+      final String databaseKey) {
+    return databaseKey + '|' + bundleResource.bundle.getBundleId() + ':'
+        + bundleResource.resourceName;
+  }
+
+  /**
+   * The coordinator that is shared by all {@link MultiSchemaUpdater}s by default.
+   *
+   * @return The shared coordinator.
+   */
+  public static UpdateCoordinator getSharedInstance() {
+    return SHARED_INSTANCE;
+  }
+
+  private final Map<String, InFlightUpdate> inFlightUpdates =
+      new HashMap<String, InFlightUpdate>();
+
+  private final Map<String, InFlightUpdate> inFlightUpdatesByResource =
+      new HashMap<String, InFlightUpdate>();
+
+  /**
+   * Claims the update of a changelog tree on a database. The claim is acquired if no other
+   * update of the same database holds the root changelog or any of the included changelogs.
+   * Claiming does not block.
+   *
+   * @param bundleResource
+   *          The resource that points to the root changelog.
+   * @param includedResources
+   *          The changelogs that the root changelog can include, e.g. the resources of its
+   *          {@link org.everit.persistence.liquibase.ext.osgi.util.IncludePlan}.
+   * @param databaseKey
+   *          The key that identifies the database, e.g. the JDBC URL and the user name.
+   * @param contexts
+   *          The Liquibase contexts of the update or <code>null</code>.
+   * @return The claim that is either acquired or shows the update to wait for.
+   */
+  public Claim claim(final BundleResource bundleResource,
+      final Collection<BundleResource> includedResources, final String databaseKey,
+      final String contexts) {
+
+    String rootResourceKey = getResourceKey(bundleResource, databaseKey);
+    String key = rootResourceKey + '|' + contexts;
+    Set<String> resourceKeys = new LinkedHashSet<String>();
+    resourceKeys.add(rootResourceKey);
+    for (BundleResource includedResource : includedResources) {
+      resourceKeys.add(getResourceKey(includedResource, databaseKey));
+    }
+
+    synchronized (inFlightUpdates) {
+      InFlightUpdate inFlightUpdate = inFlightUpdates.get(key);
+      if (inFlightUpdate != null) {
+        return new Claim(this, inFlightUpdate, false, true);
+      }
+      for (String resourceKey : resourceKeys) {
+        inFlightUpdate = inFlightUpdatesByResource.get(resourceKey);
+        if (inFlightUpdate != null) {
+          return new Claim(this, inFlightUpdate, false, false);
+        }
+      }
+
+      InFlightUpdate newUpdate = new InFlightUpdate(key, new ArrayList<String>(resourceKeys));
+      inFlightUpdates.put(key, newUpdate);
+      for (String resourceKey : resourceKeys) {
+        inFlightUpdatesByResource.put(resourceKey, newUpdate);
+      }
+      return new Claim(this, newUpdate, true, false);
+    }
+  }
+
+  /**
+   * The number of updates that are in progress.
+   *
+   * @return The number of in-flight updates.
+   */
+  public int getInFlightCount() {
+    synchronized (inFlightUpdates) {
+      return inFlightUpdates.size();
+    }
+  }
+
+  private void release(final InFlightUpdate inFlightUpdate, final SchemaUpdateResult result) {
+    synchronized (inFlightUpdates) {
+      if (inFlightUpdates.get(inFlightUpdate.key) != inFlightUpdate) {
+        throw new IllegalStateException("The claim is already released");
+      }
+      inFlightUpdates.remove(inFlightUpdate.key);
+      for (String resourceKey : inFlightUpdate.resourceKeys) {
+        inFlightUpdatesByResource.remove(resourceKey);
+      }
+    }
+    inFlightUpdate.result = result;
+    inFlightUpdate.finished.countDown();
+  }
+}
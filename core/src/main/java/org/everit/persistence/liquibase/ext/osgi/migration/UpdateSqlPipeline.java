@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiParserContext;
+import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePlan;
+import org.everit.persistence.liquibase.ext.osgi.util.LiquibaseOSGiUtil;
+import org.everit.persistence.liquibase.ext.osgi.util.ParsedChangeLogCache;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.Liquibase;
+import liquibase.RuntimeEnvironment;
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.changelog.ChangeLogIterator;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.filter.ContextChangeSetFilter;
+import liquibase.changelog.filter.DbmsChangeSetFilter;
+import liquibase.changelog.filter.LabelChangeSetFilter;
+import liquibase.changelog.filter.ShouldRunChangeSetFilter;
+import liquibase.changelog.visitor.UpdateVisitor;
+import liquibase.database.Database;
+import liquibase.database.DatabaseConnection;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.ObjectQuotingStrategy;
+import liquibase.database.core.MSSQLDatabase;
+import liquibase.database.core.OracleDatabase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.LiquibaseException;
+import liquibase.exception.LockException;
+import liquibase.executor.ExecutorService;
+import liquibase.executor.LoggingExecutor;
+import liquibase.lockservice.LockService;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.logging.LogFactory;
+import liquibase.statement.core.RawSqlStatement;
+import liquibase.structure.core.Catalog;
+import liquibase.util.LiquibaseUtil;
+import liquibase.util.StreamUtil;
+
+/**
+ * Generates the SQL of the Liquibase update of several changelogs in parallel without applying
+ * it, e.g. to verify a release. The include graph of the changelogs is resolved once into an
+ * {@link IncludePlan} and the changelogs that are included by several roots are parsed only once.
+ * The SQL of every changelog is streamed into its own {@link Writer}, so the output is not held in
+ * memory. Only the parsed node trees are shared: every worker loads its own
+ * {@link liquibase.changelog.DatabaseChangeLog} instances from them, so the workers do not share
+ * mutable changelog state. A failing or rejected changelog does not affect the others.
+ *
+ * <p>
+ * The SQL is generated against the database of the {@link SchemaConnectionFactory}. Liquibase
+ * creates its tables in the database, but the changesets are not applied, so an empty in-memory
+ * database, e.g. via {@link DriverSchemaConnectionFactory}, gives the SQL of the whole changelog.
+ * Streaming changelogs are not streamed during SQL generation, they are parsed as a whole.
+ */
+public class UpdateSqlPipeline {
+
+  private static final String HEADER_LINE =
+      "*********************************************************************";
+
+  private final Executor executor;
+
+  private final EOSGiParserContext parserContext;
+
+  /**
+   * Constructor.
+   *
+   * @param executor
+   *          The executor that generates the SQL of the changelogs.
+   * @param parserContext
+   *          The parser context that is used during parsing the changelogs or <code>null</code>.
+   */
+  public UpdateSqlPipeline(final Executor executor, final EOSGiParserContext parserContext) {
+    this.executor = executor;
+    this.parserContext = parserContext;
+  }
+
+  private EOSGiParserContext createPipelineContext(final List<BundleResource> bundleResources) {
+    Set<Bundle> rootBundles = new LinkedHashSet<Bundle>();
+    for (BundleResource bundleResource : bundleResources) {
+      rootBundles.add(bundleResource.bundle);
+    }
+
+    EOSGiParserContext pipelineContext = new EOSGiParserContext(parserContext);
+    IncludePlan includePlan = pipelineContext.getIncludePlan();
+    if ((includePlan == null) || !includePlan.getBundles().containsAll(rootBundles)
+        || !includePlan.isCurrent()) {
+      pipelineContext.setIncludePlan(IncludePlan.create(rootBundles));
+    }
+    if (pipelineContext.getParsedChangeLogCache() == null) {
+      pipelineContext.setParsedChangeLogCache(new ParsedChangeLogCache());
+    }
+    pipelineContext.setFastPath(null);
+    pipelineContext.setStreamingIncludeHandler(null);
+    return pipelineContext;
+  }
+
+  /**
+   * Generates the SQL of the provided changelogs.
+   *
+   * @param bundleResources
+   *          The resources that point to the root changelogs.
+   * @param connectionFactory
+   *          The factory that opens the connection that the SQL of a changelog is generated
+   *          against.
+   * @param writerFactory
+   *          The factory of the writers that the SQL of the changelogs is written to.
+   * @param contexts
+   *          The Liquibase contexts of the update or <code>null</code>.
+   * @return The results of the SQL generation in the same order as the provided bundle resources.
+   * @throws org.everit.persistence.liquibase.ext.osgi.util.IncludeCycleException
+   *           if the wires between the bundles form a cycle.
+   */
+  public List<SchemaUpdateResult> generate(final List<BundleResource> bundleResources,
+      final SchemaConnectionFactory connectionFactory, final SqlWriterFactory writerFactory,
+      final String contexts) {
+
+    final EOSGiParserContext pipelineContext = createPipelineContext(bundleResources);
+
+    List<FutureTask<SchemaUpdateResult>> tasks =
+        new ArrayList<FutureTask<SchemaUpdateResult>>(bundleResources.size());
+    List<SchemaUpdateResult> results = new ArrayList<SchemaUpdateResult>(bundleResources.size());
+    for (final BundleResource bundleResource : bundleResources) {
+      FutureTask<SchemaUpdateResult> task =
+          new FutureTask<SchemaUpdateResult>(new Callable<SchemaUpdateResult>() {
+
+            @Override
+            public SchemaUpdateResult call() {
+              // The services of the databases are dropped only when every worker finished
+              LiquibaseServiceScope.enter();
+              try {
+                return generateSql(bundleResource, pipelineContext, connectionFactory,
+                    writerFactory, contexts);
+              } finally {
+                LiquibaseServiceScope.leave();
+              }
+            }
+          });
+      try {
+        executor.execute(task);
+        tasks.add(task);
+        results.add(null);
+      } catch (RejectedExecutionException e) {
+        // Only the rejected changelog fails, the SQL of the others is still generated
+        tasks.add(null);
+        results.add(new SchemaUpdateResult(bundleResource, 0, e));
+      }
+    }
+
+    try {
+      for (int i = 0, n = tasks.size(); i < n; i++) {
+        FutureTask<SchemaUpdateResult> task = tasks.get(i);
+        if (task != null) {
+          results.set(i, task.get());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for SQL generation", e);
+    } catch (ExecutionException e) {
+      // generateSql does not throw exceptions
+      throw new IllegalStateException(e.getCause());
+    }
+
+    return results;
+  }
+
+  /**
+   * Finds the changelogs by a schema expression and generates their SQL.
+   *
+   * @param schemaExpression
+   *          The schema expression.
+   * @param bundleContext
+   *          The context of any active bundle in the OSGi environment to query the list of the
+   *          bundles.
+   * @param necessaryBundleStates
+   *          Only those bundles will be analysed that have the of the necessary bundle states.
+   * @param connectionFactory
+   *          The factory that opens the connection that the SQL of a changelog is generated
+   *          against.
+   * @param writerFactory
+   *          The factory of the writers that the SQL of the changelogs is written to.
+   * @param contexts
+   *          The Liquibase contexts of the update or <code>null</code>.
+   * @return The results of the SQL generation.
+   * @see LiquibaseOSGiUtil#findBundlesBySchemaExpression(String, BundleContext, int)
+   */
+  public List<SchemaUpdateResult> generate(final String schemaExpression,
+      final BundleContext bundleContext, final int necessaryBundleStates,
+      final SchemaConnectionFactory connectionFactory, final SqlWriterFactory writerFactory,
+      final String contexts) {
+
+    List<BundleResource> bundleResources = LiquibaseOSGiUtil
+        .findBundlesBySchemaExpression(schemaExpression, bundleContext, necessaryBundleStates);
+    return generate(bundleResources, connectionFactory, writerFactory, contexts);
+  }
+
+  private SchemaUpdateResult generateSql(final BundleResource bundleResource,
+      final EOSGiParserContext pipelineContext, final SchemaConnectionFactory connectionFactory,
+      final SqlWriterFactory writerFactory, final String contexts) {
+
+    long startTime = System.nanoTime();
+    Throwable failure = null;
+    try (Connection connection = connectionFactory.getConnection(bundleResource);
+        Writer writer = writerFactory.openWriter(bundleResource)) {
+
+      Database database = DatabaseFactory.getInstance()
+          .findCorrectDatabaseImplementation(new JdbcConnection(connection));
+      EOSGiResourceAccessor resourceAccessor = new EOSGiResourceAccessor(bundleResource.bundle,
+          bundleResource.attributes, pipelineContext);
+      generateSql(new Liquibase(bundleResource.resourceName, resourceAccessor, database),
+          new Contexts(contexts), writer);
+    } catch (SQLException | IOException | LiquibaseException | RuntimeException e) {
+      failure = e;
+    }
+    return new SchemaUpdateResult(bundleResource,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), failure);
+  }
+
+  /**
+   * Does the same as {@link Liquibase#update(Contexts, Writer)}, but it does not reset the
+   * Liquibase services of all databases at the end, as that would drop the
+   * {@link LoggingExecutor} of the other workers and their SQL would be run on the database.
+   */
+  private void generateSql(final Liquibase liquibase, final Contexts liquibaseContexts,
+      final Writer writer) throws IOException, LiquibaseException {
+
+    Database database = liquibase.getDatabase();
+    LabelExpression labels = new LabelExpression();
+    ChangeLogParameters changeLogParameters = liquibase.getChangeLogParameters();
+    changeLogParameters.setContexts(liquibaseContexts);
+    changeLogParameters.setLabels(labels);
+
+    ExecutorService executorService = ExecutorService.getInstance();
+    executorService.setExecutor(database,
+        new LoggingExecutor(executorService.getExecutor(database), writer, database));
+    try {
+      writeHeader(liquibase, database, executorService.getExecutor(database));
+
+      LockService lockService = LockServiceFactory.getInstance().getLockService(database);
+      lockService.waitForLock();
+      try {
+        DatabaseChangeLog changeLog = liquibase.getDatabaseChangeLog();
+        liquibase.checkLiquibaseTables(true, changeLog, liquibaseContexts, labels);
+        ChangeLogHistoryServiceFactory.getInstance().getChangeLogService(database)
+            .generateDeploymentId();
+        changeLog.validate(database, liquibaseContexts, labels);
+        new ChangeLogIterator(changeLog,
+            new ShouldRunChangeSetFilter(database, changeLog.ignoreClasspathPrefix()),
+            new ContextChangeSetFilter(liquibaseContexts), new LabelChangeSetFilter(labels),
+            new DbmsChangeSetFilter(database)).run(new UpdateVisitor(database, null),
+                new RuntimeEnvironment(database, liquibaseContexts, labels));
+      } finally {
+        database.setObjectQuotingStrategy(ObjectQuotingStrategy.LEGACY);
+        try {
+          lockService.releaseLock();
+        } catch (LockException e) {
+          LogFactory.getInstance().getLog().severe("Could not release lock", e);
+        }
+      }
+      writer.flush();
+    } finally {
+      executorService.clearExecutor(database);
+    }
+  }
+
+  private void writeHeader(final Liquibase liquibase, final Database database,
+      final liquibase.executor.Executor databaseExecutor) throws DatabaseException {
+    databaseExecutor.comment(HEADER_LINE);
+    databaseExecutor.comment("Update Database Script");
+    databaseExecutor.comment(HEADER_LINE);
+    databaseExecutor.comment("Change Log: " + liquibase.getChangeLogFile());
+    databaseExecutor.comment("Ran at: "
+        + DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(new Date()));
+    DatabaseConnection connection = database.getConnection();
+    if (connection != null) {
+      databaseExecutor.comment("Against: " + connection.getConnectionUserName() + "@"
+          + connection.getURL());
+    }
+    databaseExecutor.comment("Liquibase version: " + LiquibaseUtil.getBuildVersion());
+    databaseExecutor.comment(HEADER_LINE + StreamUtil.getLineSeparator());
+
+    if (database instanceof OracleDatabase) {
+      databaseExecutor.execute(new RawSqlStatement("SET DEFINE OFF;"));
+    }
+    if (database instanceof MSSQLDatabase) {
+      databaseExecutor.execute(new RawSqlStatement("USE "
+          + database.escapeObjectName(database.getDefaultCatalogName(), Catalog.class) + ";"));
+    }
+  }
+}
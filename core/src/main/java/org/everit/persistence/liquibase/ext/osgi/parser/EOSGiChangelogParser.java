@@ -15,9 +15,23 @@
  */
 package org.everit.persistence.liquibase.ext.osgi.parser;
 
+import java.util.LinkedList;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiParserContext;
 import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
 import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.liquibase.ext.osgi.StreamingIncludeChangeSet;
+import org.everit.persistence.liquibase.ext.osgi.StreamingIncludeHandler;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetricsListener;
 import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.everit.persistence.liquibase.ext.osgi.util.CapabilityAttributes;
+import org.everit.persistence.liquibase.ext.osgi.util.ChangeLogFastPath;
+import org.everit.persistence.liquibase.ext.osgi.util.ChangeLogNodeParser;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludeCycleException;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePlan;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePrefetcher;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePrescanner;
 import org.everit.persistence.liquibase.ext.osgi.util.LiquibaseOSGiUtil;
 import org.osgi.framework.Bundle;
 
@@ -28,6 +42,7 @@ import liquibase.exception.LiquibaseException;
 import liquibase.osgi.OSGiResourceAccessor;
 import liquibase.parser.ChangeLogParser;
 import liquibase.parser.ChangeLogParserFactory;
+import liquibase.parser.core.ParsedNode;
 import liquibase.resource.ResourceAccessor;
 import liquibase.servicelocator.PrioritizedService;
 
@@ -37,6 +52,68 @@ import liquibase.servicelocator.PrioritizedService;
  */
 public class EOSGiChangelogParser implements ChangeLogParser {
 
+  /**
+   * The changelogs that are being parsed on the current thread, from the outermost to the
+   * innermost include.
+   */
+  private static final ThreadLocal<LinkedList<BundleResource>> INCLUDE_STACK =
+      new ThreadLocal<LinkedList<BundleResource>>() {
+        @Override
+        protected LinkedList<BundleResource> initialValue() {
+          return new LinkedList<BundleResource>();
+        }
+      };
+
+  private static void checkIncludeCycle(final LinkedList<BundleResource> includeStack,
+      final BundleResource bundleResource) {
+    boolean inCycle = false;
+    StringBuilder sb = null;
+    for (BundleResource includingResource : includeStack) {
+      inCycle = inCycle || isSameResource(includingResource, bundleResource);
+      if (inCycle) {
+        if (sb == null) {
+          sb = new StringBuilder("Cyclic ")
+              .append(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG)
+              .append(" includes between changelogs: ");
+        }
+        sb.append(includingResource.bundle).append(':').append(includingResource.resourceName)
+            .append(" -> ");
+      }
+    }
+    if (sb != null) {
+      sb.append(bundleResource.bundle).append(':').append(bundleResource.resourceName);
+      throw new IncludeCycleException(sb.toString());
+    }
+  }
+
+  private static boolean isSameResource(final BundleResource bundleResource1,
+      final BundleResource bundleResource2) {
+    return (bundleResource1.bundle.getBundleId() == bundleResource2.bundle.getBundleId())
+        && bundleResource1.resourceName.equals(bundleResource2.resourceName);
+  }
+
+  private DatabaseChangeLog createEmptyChangeLog(final BundleResource bundleResource,
+      final ChangeLogParameters changeLogParameters) {
+    DatabaseChangeLog emptyChangeLog = new DatabaseChangeLog(bundleResource.resourceName);
+    emptyChangeLog.setChangeLogParameters(changeLogParameters);
+    return emptyChangeLog;
+  }
+
+  private BundleResource findMatchingResource(final Bundle currentBundle,
+      final String schemaExpression, final EOSGiParserContext parserContext) {
+    if (parserContext != null) {
+      IncludePlan includePlan = parserContext.getIncludePlan();
+      if ((includePlan != null) && includePlan.isCurrent(currentBundle)) {
+        return includePlan.findMatchingResource(currentBundle, schemaExpression);
+      }
+      IncludePrescanner includePrescanner = parserContext.getIncludePrescanner();
+      if (includePrescanner != null) {
+        return includePrescanner.findMatchingResource(currentBundle, schemaExpression);
+      }
+    }
+    return LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(currentBundle, schemaExpression);
+  }
+
   @Override
   public int getPriority() {
     return PrioritizedService.PRIORITY_DEFAULT;
@@ -57,25 +134,114 @@ public class EOSGiChangelogParser implements ChangeLogParser {
     }
     OSGiResourceAccessor osgiResourceAccessor = (OSGiResourceAccessor) resourceAccessor;
     Bundle currentBundle = osgiResourceAccessor.getBundle();
+    EOSGiParserContext parserContext = null;
+    if (osgiResourceAccessor instanceof EOSGiResourceAccessor) {
+      parserContext = ((EOSGiResourceAccessor) osgiResourceAccessor).getParserContext();
+    }
 
-    BundleResource bundleResource =
-        LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(currentBundle, schemaExpression);
+    final BundleResource bundleResource =
+        findMatchingResource(currentBundle, schemaExpression, parserContext);
 
     if (bundleResource == null) {
       throw new ChangeLogParseException("Could not find resource starting from bundle '"
           + currentBundle + "' with schema expression '" + schemaExpression + "'");
     }
 
+    if (parserContext != null) {
+      ChangeLogFastPath fastPath = parserContext.getFastPath();
+      if ((fastPath != null) && fastPath.isUnchanged(bundleResource)) {
+        return createEmptyChangeLog(bundleResource, changeLogParameters);
+      }
+
+      StreamingIncludeHandler streamingIncludeHandler =
+          parserContext.getStreamingIncludeHandler();
+      if ((streamingIncludeHandler != null)
+          && CapabilityAttributes.isStreaming(bundleResource.attributes)) {
+        DatabaseChangeLog placeholderChangeLog =
+            createEmptyChangeLog(bundleResource, changeLogParameters);
+        placeholderChangeLog
+            .addChangeSet(new StreamingIncludeChangeSet(bundleResource, placeholderChangeLog));
+        return placeholderChangeLog;
+      }
+    }
+
     OSGiResourceAccessor newOSGiResourceAccessor = osgiResourceAccessor;
     if (!currentBundle.equals(bundleResource.bundle)) {
-      newOSGiResourceAccessor =
-          new EOSGiResourceAccessor(bundleResource.bundle, bundleResource.attributes);
+      newOSGiResourceAccessor = new EOSGiResourceAccessor(bundleResource.bundle,
+          bundleResource.attributes, parserContext);
+    }
+
+    ResolutionMetricsListener metricsListener = ResolutionMetrics.getListener();
+    long startNanos = (metricsListener != null) ? System.nanoTime() : 0;
+
+    // Includes that are not known up front are checked for cycles when they are parsed. The
+    // check comes before taking a prefetched tree, so a cyclic include fails instead of waiting.
+    LinkedList<BundleResource> includeStack = INCLUDE_STACK.get();
+    checkIncludeCycle(includeStack, bundleResource);
+    includeStack.addLast(bundleResource);
+    DatabaseChangeLog databaseChangeLog;
+    try {
+      databaseChangeLog = parseBundleResource(bundleResource, changeLogParameters,
+          newOSGiResourceAccessor, parserContext);
+    } finally {
+      includeStack.removeLast();
+    }
+
+    if (metricsListener != null) {
+      metricsListener.changeLogParsed(bundleResource, System.nanoTime() - startNanos);
     }
+    return databaseChangeLog;
+  }
 
+  /**
+   * Parses an included changelog. XML changelogs are read into a node tree that is taken from the
+   * prefetcher or obtained via the cache and the snapshot store of the parser context, if the
+   * context has any of them, then the tree is prescanned and loaded with the changelog parameters
+   * on the current thread.
+   */
+  private DatabaseChangeLog parseBundleResource(final BundleResource bundleResource,
+      final ChangeLogParameters changeLogParameters, final ResourceAccessor resourceAccessor,
+      final EOSGiParserContext parserContext) throws ChangeLogParseException {
+
+    boolean nodeParsing = false;
+    IncludePrescanner includePrescanner = null;
+    IncludePrefetcher includePrefetcher = null;
+    if (parserContext != null) {
+      includePrefetcher = parserContext.getIncludePrefetcher();
+      IncludePlan includePlan = parserContext.getIncludePlan();
+      if ((includePlan == null) || !includePlan.isCurrent(bundleResource.bundle)) {
+        // The includes of the bundles in the plan are resolved by the plan
+        includePrescanner = parserContext.getIncludePrescanner();
+      }
+      nodeParsing = (includePrescanner != null) || (includePrefetcher != null)
+          || (parserContext.getParsedChangeLogCache() != null)
+          || (parserContext.getChangeLogSnapshotStore() != null);
+    }
+
+    if (includePrefetcher != null) {
+      includePrefetcher.prefetchIncludes(bundleResource.bundle, parserContext);
+    }
+    ParsedNode parsedNode = null;
+    if (nodeParsing && ChangeLogNodeParser.supports(bundleResource)) {
+      if (includePrefetcher != null) {
+        parsedNode = includePrefetcher.take(bundleResource);
+      }
+      if (parsedNode == null) {
+        parsedNode = ChangeLogNodeParser.getOrParseNode(bundleResource, resourceAccessor,
+            parserContext);
+      }
+    }
+    if (includePrescanner != null) {
+      includePrescanner.prescan(bundleResource, parsedNode, changeLogParameters);
+    }
+    if (parsedNode != null) {
+      return ChangeLogNodeParser.load(bundleResource, parsedNode, changeLogParameters,
+          resourceAccessor);
+    }
     try {
       return ChangeLogParserFactory.getInstance()
-          .getParser(bundleResource.resourceName, newOSGiResourceAccessor)
-          .parse(bundleResource.resourceName, changeLogParameters, newOSGiResourceAccessor);
+          .getParser(bundleResource.resourceName, resourceAccessor)
+          .parse(bundleResource.resourceName, changeLogParameters, resourceAccessor);
     } catch (LiquibaseException e) {
       throw new ChangeLogParseException(e);
     }
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.osgi.framework.Filter;
+
+/**
+ * Matches the attributes of a capability against a compiled schema expression. The equality,
+ * presence and AND operations of the filter are compiled into direct lookups in the attribute map.
+ * If the filter contains any other operation, the OSGi {@link Filter} of the schema expression is
+ * used. The OSGi filter is used as well if an attribute that the matcher compares is not a
+ * String, a collection or an array of Strings, as the filter converts the compared value to the
+ * type of the attribute in that case.
+ */
+final class AttributeMatcher {
+
+  /**
+   * A compiled filter operation.
+   */
+  private abstract static class Node {
+
+    abstract int evaluate(Map<String, ?> attributes);
+  }
+
+  /**
+   * The <code>(&amp;...)</code> operation.
+   */
+  private static final class AndNode extends Node {
+
+    private final Node[] operands;
+
+    AndNode(final List<Node> operands) {
+      this.operands = operands.toArray(new Node[operands.size()]);
+    }
+
+    @Override
+    int evaluate(final Map<String, ?> attributes) {
+      int result = MATCH;
+      for (Node operand : operands) {
+        int operandResult = operand.evaluate(attributes);
+        if (operandResult == NO_MATCH) {
+          return NO_MATCH;
+        }
+        if (operandResult == UNKNOWN) {
+          result = UNKNOWN;
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * The <code>(attr=value)</code> operation.
+   */
+  private static final class EqualsNode extends Node {
+
+    private final String attributeName;
+
+    private final String value;
+
+    EqualsNode(final String attributeName, final String value) {
+      this.attributeName = attributeName;
+      this.value = value;
+    }
+
+    @Override
+    int evaluate(final Map<String, ?> attributes) {
+      Object attributeValue = attributes.get(attributeName);
+      if (attributeValue == null) {
+        return NO_MATCH;
+      }
+      if (attributeValue instanceof String) {
+        return value.equals(attributeValue) ? MATCH : NO_MATCH;
+      }
+      if (attributeValue instanceof Collection) {
+        return evaluateElements(((Collection<?>) attributeValue).toArray());
+      }
+      if (attributeValue instanceof String[]) {
+        return evaluateElements((String[]) attributeValue);
+      }
+      return UNKNOWN;
+    }
+
+    private int evaluateElements(final Object[] elements) {
+      int result = NO_MATCH;
+      for (Object element : elements) {
+        if (!(element instanceof String)) {
+          result = UNKNOWN;
+        } else if (value.equals(element)) {
+          return MATCH;
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Parser of the simple filters that returns <code>null</code> if the filter contains an
+   * operation that is not compiled.
+   */
+  private static final class FilterParser {
+
+    private int pos;
+
+    private final String source;
+
+    FilterParser(final String source) {
+      this.source = source;
+    }
+
+    private boolean consume(final char c) {
+      skipWhitespaces();
+      if ((pos < source.length()) && (source.charAt(pos) == c)) {
+        pos++;
+        return true;
+      }
+      return false;
+    }
+
+    Node parse() {
+      Node result = parseFilter();
+      skipWhitespaces();
+      return (pos == source.length()) ? result : null;
+    }
+
+    private Node parseAnd() {
+      List<Node> operands = new ArrayList<Node>();
+      skipWhitespaces();
+      while ((pos < source.length()) && (source.charAt(pos) == '(')) {
+        Node operand = parseFilter();
+        if (operand == null) {
+          return null;
+        }
+        operands.add(operand);
+        skipWhitespaces();
+      }
+      if (operands.isEmpty() || !consume(')')) {
+        return null;
+      }
+      return new AndNode(operands);
+    }
+
+    private Node parseFilter() {
+      if (!consume('(')) {
+        return null;
+      }
+      skipWhitespaces();
+      if (pos >= source.length()) {
+        return null;
+      }
+      if (source.charAt(pos) == '&') {
+        pos++;
+        return parseAnd();
+      }
+      return parseItem();
+    }
+
+    private Node parseItem() {
+      int attributeStart = pos;
+      while ((pos < source.length()) && ("=<>~()".indexOf(source.charAt(pos)) < 0)) {
+        pos++;
+      }
+      if ((pos >= source.length()) || (source.charAt(pos) != '=')) {
+        // Not supported operation, e.g. (|...), (!...), (attr>=value) or (attr~=value)
+        return null;
+      }
+      String attributeName = source.substring(attributeStart, pos).trim();
+      pos++;
+
+      StringBuilder value = new StringBuilder();
+      boolean wildcard = false;
+      while ((pos < source.length()) && (source.charAt(pos) != ')')) {
+        char c = source.charAt(pos++);
+        if (c == '\\') {
+          if (pos >= source.length()) {
+            return null;
+          }
+          value.append(source.charAt(pos++));
+        } else if (c == '(') {
+          return null;
+        } else {
+          wildcard = wildcard || (c == '*');
+          value.append(c);
+        }
+      }
+      if (attributeName.isEmpty() || !consume(')')) {
+        return null;
+      }
+      if (wildcard) {
+        // Substring matching is left to the OSGi filter
+        return (value.length() == 1) ? new PresentNode(attributeName) : null;
+      }
+      return new EqualsNode(attributeName, value.toString());
+    }
+
+    private void skipWhitespaces() {
+      while ((pos < source.length()) && Character.isWhitespace(source.charAt(pos))) {
+        pos++;
+      }
+    }
+  }
+
+  /**
+   * The <code>(attr=*)</code> operation.
+   */
+  private static final class PresentNode extends Node {
+
+    private final String attributeName;
+
+    PresentNode(final String attributeName) {
+      this.attributeName = attributeName;
+    }
+
+    @Override
+    int evaluate(final Map<String, ?> attributes) {
+      return (attributes.get(attributeName) != null) ? MATCH : NO_MATCH;
+    }
+  }
+
+  private static final int MATCH = 1;
+
+  private static final int NO_MATCH = 0;
+
+  private static final String SPECIAL_FILTER_CHARS = "*()\\";
+
+  private static final int UNKNOWN = -1;
+
+  /**
+   * Compiles the matcher of a schema expression.
+   *
+   * @param schemaName
+   *          The schema name of the expression.
+   * @param additionalFilter
+   *          The value of the filter directive of the expression or <code>null</code>.
+   * @param filter
+   *          The OSGi filter of the whole expression that is used for the not compiled cases.
+   * @return The matcher.
+   */
+  static AttributeMatcher compile(final String schemaName, final String additionalFilter,
+      final Filter filter) {
+    if (!isLiteral(schemaName)) {
+      return new AttributeMatcher(null, filter);
+    }
+
+    Node schemaNameNode =
+        new EqualsNode(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG, schemaName);
+    if (additionalFilter == null) {
+      return new AttributeMatcher(schemaNameNode, filter);
+    }
+    Node additionalNode = new FilterParser(additionalFilter).parse();
+    if (additionalNode == null) {
+      return new AttributeMatcher(null, filter);
+    }
+    List<Node> operands = new ArrayList<Node>(2);
+    operands.add(schemaNameNode);
+    operands.add(additionalNode);
+    return new AttributeMatcher(new AndNode(operands), filter);
+  }
+
+  /**
+   * Checks whether a value of a filter item matches only the same string, i.e. it does not
+   * contain wildcards or escaped characters.
+   *
+   * @param value
+   *          The value of the filter item.
+   * @return <code>true</code> if the value is a plain literal.
+   */
+  static boolean isLiteral(final String value) {
+    for (int i = 0, n = value.length(); i < n; i++) {
+      if (SPECIAL_FILTER_CHARS.indexOf(value.charAt(i)) >= 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private final Filter filter;
+
+  private final Node node;
+
+  private AttributeMatcher(final Node node, final Filter filter) {
+    this.node = node;
+    this.filter = filter;
+  }
+
+  /**
+   * Checks whether the matcher uses direct lookups for every attribute map or it always falls back
+   * to the OSGi filter.
+   *
+   * @return <code>true</code> if the filter of the schema expression could be compiled.
+   */
+  boolean isCompiled() {
+    return node != null;
+  }
+
+  /**
+   * Checks whether the attributes of a capability match the schema expression.
+   *
+   * @param attributes
+   *          The attributes of the capability.
+   * @return <code>true</code> if the attributes match.
+   */
+  boolean matches(final Map<String, ?> attributes) {
+    if (node == null) {
+      return filter.matches(attributes);
+    }
+    int result = node.evaluate(attributes);
+    if (result == UNKNOWN) {
+      return filter.matches(attributes);
+    }
+    return result == MATCH;
+  }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Reads the entries of bundles that are installed from a local JAR file via one open
+ * {@link ZipFile} per bundle wiring instead of opening a new URL connection of the OSGi framework
+ * for every read.
+ *
+ * <p>
+ * The location of a bundle does not identify the content of its current revision: the bundle may
+ * have been updated from a stream, or the file may have been changed on the disk. So an entry is
+ * served from the file only after the content that the framework returned for the resource URL
+ * had the same size and CRC as the entry of the file. The first read of every entry goes through
+ * the framework and verifies the entry on the fly, the following reads of the same wiring use the
+ * file. The file is opened again if its size or modification time changes, and the verification
+ * starts over.
+ *
+ * <p>
+ * The provider listens to the bundle events of the framework and closes the file of a bundle when
+ * the bundle is unresolved (e.g. during a refresh), updated or uninstalled. The listener is
+ * registered on the system bundle as soon as a bundle or the host of this fragment has a bundle
+ * context, or explicitly with {@link #register(BundleContext)}. Without the listener the files
+ * are closed when the next read finds a new wiring of the bundle.
+ */
+public final class BundleFileStreamProvider implements SynchronousBundleListener {
+
+  /**
+   * The opened file of a bundle wiring.
+   */
+  private static final class BundleFile {
+
+    final BundleWiring bundleWiring;
+
+    final File file;
+
+    final long lastModified;
+
+    final long length;
+
+    final Set<String> verifiedEntries =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    final ZipFile zipFile;
+
+    BundleFile(final BundleWiring bundleWiring, final File file, final ZipFile zipFile) {
+      this.bundleWiring = bundleWiring;
+      this.file = file;
+      this.zipFile = zipFile;
+      this.length = (file != null) ? file.length() : 0;
+      this.lastModified = (file != null) ? file.lastModified() : 0;
+    }
+
+    void close() {
+      if (zipFile != null) {
+        try {
+          zipFile.close();
+        } catch (IOException e) {
+          // Nothing to do, the file is not used anymore
+        }
+      }
+    }
+
+    boolean isCurrent(final BundleWiring currentBundleWiring) {
+      return (bundleWiring == currentBundleWiring)
+          && ((file == null) || ((file.length() == length)
+              && (file.lastModified() == lastModified)));
+    }
+  }
+
+  /**
+   * Stream of a resource URL that marks the entry of the bundle file as verified if the whole
+   * content is read and it has the same size and CRC as the entry.
+   */
+  private static final class VerifyingInputStream extends FilterInputStream {
+
+    private final BundleFile bundleFile;
+
+    private long bytesRead;
+
+    private final CRC32 crc = new CRC32();
+
+    private boolean endReached;
+
+    private final String entryName;
+
+    private boolean skipped;
+
+    private final ZipEntry zipEntry;
+
+    VerifyingInputStream(final InputStream in, final BundleFile bundleFile,
+        final String entryName, final ZipEntry zipEntry) {
+      super(in);
+      this.bundleFile = bundleFile;
+      this.entryName = entryName;
+      this.zipEntry = zipEntry;
+    }
+
+    @Override
+    public void close() throws IOException {
+      super.close();
+      if (endReached && !skipped && (bytesRead == zipEntry.getSize())
+          && (crc.getValue() == zipEntry.getCrc())) {
+        bundleFile.verifiedEntries.add(entryName);
+      }
+    }
+
+    @Override
+    public void mark(final int readlimit) {
+      // Not supported, a reset would break the checksum
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if (result >= 0) {
+        crc.update(result);
+        bytesRead++;
+      } else {
+        endReached = true;
+      }
+      return result;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      int result = super.read(b, off, len);
+      if (result > 0) {
+        crc.update(b, off, result);
+        bytesRead += result;
+      } else if (result < 0) {
+        endReached = true;
+      }
+      return result;
+    }
+
+    @Override
+    public void reset() throws IOException {
+      throw new IOException("Mark and reset are not supported");
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      skipped = true;
+      return super.skip(n);
+    }
+  }
+
+  private static final int EVICTING_EVENT_TYPES =
+      BundleEvent.UNRESOLVED | BundleEvent.UPDATED | BundleEvent.UNINSTALLED;
+
+  private static final String PROTOCOL_FILE = "file:";
+
+  private static final String PROTOCOL_REFERENCE = "reference:";
+
+  private static final long SYSTEM_BUNDLE_ID = 0L;
+
+  private static String getEntryName(final String path) {
+    if ((path == null) || path.contains("..")) {
+      return null;
+    }
+    String entryName = path;
+    while (entryName.startsWith("/")) {
+      entryName = entryName.substring(1);
+    }
+    return entryName.isEmpty() ? null : entryName;
+  }
+
+  /**
+   * Opens the stream of a resource URL without the caches of the {@link URLConnection}, the same
+   * way as the {@code ClassLoaderResourceAccessor} of Liquibase. Cached JAR connections keep the
+   * JAR file open and may return the content of a previous revision of the bundle.
+   *
+   * @param resourceURL
+   *          The URL of the resource.
+   * @return The stream of the resource.
+   * @throws IOException
+   *           if the resource could not be opened.
+   */
+  public static InputStream openUncachedStream(final URL resourceURL) throws IOException {
+    URLConnection connection = resourceURL.openConnection();
+    connection.setUseCaches(false);
+    return connection.getInputStream();
+  }
+
+  private static File resolveLocalFile(final String location) {
+    if (location == null) {
+      return null;
+    }
+    String fileLocation = location;
+    if (fileLocation.startsWith(PROTOCOL_REFERENCE)) {
+      fileLocation = fileLocation.substring(PROTOCOL_REFERENCE.length());
+    }
+    if (!fileLocation.startsWith(PROTOCOL_FILE)) {
+      return null;
+    }
+    File file;
+    try {
+      file = new File(new URI(fileLocation));
+    } catch (URISyntaxException | IllegalArgumentException e) {
+      // The path may contain characters that are not escaped
+      file = new File(fileLocation.substring(PROTOCOL_FILE.length()));
+    }
+    // Exploded directories are not served as their content can change at any time
+    return file.isFile() ? file : null;
+  }
+
+  private final ConcurrentMap<Long, BundleFile> bundleFiles =
+      new ConcurrentHashMap<Long, BundleFile>();
+
+  private volatile BundleContext listenerContext;
+
+  @Override
+  public void bundleChanged(final BundleEvent event) {
+    if ((event.getType() & EVICTING_EVENT_TYPES) != 0) {
+      evict(event.getBundle());
+    }
+  }
+
+  /**
+   * Closes all opened bundle files.
+   */
+  public void close() {
+    for (Long bundleId : bundleFiles.keySet()) {
+      BundleFile bundleFile = bundleFiles.remove(bundleId);
+      if (bundleFile != null) {
+        bundleFile.close();
+      }
+    }
+  }
+
+  /**
+   * Closes the opened file of a bundle.
+   *
+   * @param bundle
+   *          The bundle.
+   */
+  public void evict(final Bundle bundle) {
+    BundleFile bundleFile = bundleFiles.remove(bundle.getBundleId());
+    if (bundleFile != null) {
+      bundleFile.close();
+    }
+  }
+
+  private BundleFile getBundleFile(final Bundle bundle, final BundleWiring bundleWiring) {
+    Long bundleId = bundle.getBundleId();
+    BundleFile bundleFile = bundleFiles.get(bundleId);
+    if ((bundleFile != null) && bundleFile.isCurrent(bundleWiring)) {
+      return bundleFile;
+    }
+
+    registerIfNecessary(bundle);
+    BundleFile newBundleFile = openBundleFile(bundle, bundleWiring);
+    boolean replaced = (bundleFile == null)
+        ? (bundleFiles.putIfAbsent(bundleId, newBundleFile) == null)
+        : bundleFiles.replace(bundleId, bundleFile, newBundleFile);
+    if (replaced) {
+      if (bundleFile != null) {
+        bundleFile.close();
+      }
+      return newBundleFile;
+    }
+
+    // Another thread opened the file in the meantime
+    newBundleFile.close();
+    return null;
+  }
+
+  /**
+   * The number of entries that are currently read from the bundle files directly.
+   *
+   * @return The number of verified entries of all open bundle files.
+   */
+  public int getVerifiedEntryCount() {
+    int result = 0;
+    for (BundleFile bundleFile : bundleFiles.values()) {
+      result += bundleFile.verifiedEntries.size();
+    }
+    return result;
+  }
+
+  private boolean isListening() {
+    BundleContext currentListenerContext = listenerContext;
+    if (currentListenerContext == null) {
+      return false;
+    }
+    try {
+      currentListenerContext.getBundle();
+      return true;
+    } catch (IllegalStateException e) {
+      // The framework of the listener was stopped
+      return false;
+    }
+  }
+
+  private BundleFile openBundleFile(final Bundle bundle, final BundleWiring bundleWiring) {
+    File file = resolveLocalFile(bundle.getLocation());
+    if (file == null) {
+      return new BundleFile(bundleWiring, null, null);
+    }
+    try {
+      return new BundleFile(bundleWiring, file, new ZipFile(file));
+    } catch (IOException e) {
+      return new BundleFile(bundleWiring, null, null);
+    }
+  }
+
+  /**
+   * Opens the stream of a resource that the classloader of a bundle found. The entry of the
+   * bundle file is used if it was verified against the resource URL before, otherwise the URL is
+   * opened and the entry is verified while the stream is read.
+   *
+   * @param bundle
+   *          The bundle.
+   * @param path
+   *          The path of the resource.
+   * @param resourceURL
+   *          The only URL that the classloader of the bundle returned for the path.
+   * @return The stream of the resource.
+   * @throws IOException
+   *           if the resource could not be opened.
+   */
+  public InputStream openStream(final Bundle bundle, final String path, final URL resourceURL)
+      throws IOException {
+    String entryName = getEntryName(path);
+    BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
+    BundleFile bundleFile = ((entryName != null) && (bundleWiring != null))
+        ? getBundleFile(bundle, bundleWiring) : null;
+    if ((bundleFile == null) || (bundleFile.zipFile == null)) {
+      return openUncachedStream(resourceURL);
+    }
+
+    ZipEntry zipEntry = bundleFile.zipFile.getEntry(entryName);
+    if ((zipEntry == null) || zipEntry.isDirectory() || (zipEntry.getSize() < 0)
+        || (zipEntry.getCrc() < 0)) {
+      return openUncachedStream(resourceURL);
+    }
+    if (bundleFile.verifiedEntries.contains(entryName)) {
+      return bundleFile.zipFile.getInputStream(zipEntry);
+    }
+    return new VerifyingInputStream(openUncachedStream(resourceURL), bundleFile, entryName,
+        zipEntry);
+  }
+
+  /**
+   * Registers the provider as a listener of the bundle events of a framework. Normally the
+   * provider registers itself when it opens the file of the first bundle that has a bundle
+   * context.
+   *
+   * @param bundleContext
+   *          Any valid bundle context of the framework.
+   */
+  public void register(final BundleContext bundleContext) {
+    BundleContext systemBundleContext =
+        bundleContext.getBundle(SYSTEM_BUNDLE_ID).getBundleContext();
+    synchronized (this) {
+      if (isListening()) {
+        return;
+      }
+      systemBundleContext.addBundleListener(this);
+      listenerContext = systemBundleContext;
+    }
+  }
+
+  private void registerIfNecessary(final Bundle bundle) {
+    if (isListening()) {
+      return;
+    }
+    BundleContext bundleContext = bundle.getBundleContext();
+    if (bundleContext == null) {
+      // The bundle is not started, try the host of this fragment
+      Bundle hostBundle = FrameworkUtil.getBundle(BundleFileStreamProvider.class);
+      bundleContext = (hostBundle != null) ? hostBundle.getBundleContext() : null;
+    }
+    if (bundleContext == null) {
+      return;
+    }
+    try {
+      register(bundleContext);
+    } catch (IllegalStateException | SecurityException e) {
+      // The files are still checked against the current wiring of the bundles
+    }
+  }
+}
@@ -40,7 +40,8 @@ public class BundleResource {
    * @param resourceName
    *          the name of the resource.
    * @param attributes
-   *          The attributes of the bundle capability.
+   *          The attributes of the bundle capability. The map is copied unless it is the map of a
+   *          {@link CapabilityAttributes} snapshot.
    */
   public BundleResource(final Bundle bundle, final String resourceName,
       final Map<String, Object> attributes) {
@@ -48,6 +49,8 @@ public class BundleResource {
     this.resourceName = resourceName;
     if (attributes == null) {
       this.attributes = Collections.emptyMap();
+    } else if (CapabilityAttributes.isSnapshot(attributes)) {
+      this.attributes = attributes;
     } else {
       this.attributes = Collections.unmodifiableMap(new HashMap<String, Object>(attributes));
     }
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Index of the required {@value LiquibaseEOSGiConstants#CAPABILITY_NS_LIQUIBASE_CHANGELOG} wires
+ * of bundles, grouped by the schema name attribute of the capability on the provider side. An
+ * entry of a bundle is rebuilt as soon as the current {@link BundleWiring} of the bundle is not
+ * the one that the entry was built from.
+ *
+ * <p>
+ * The index listens to the bundle events of the framework and drops the entry of a bundle when
+ * the bundle is unresolved (e.g. during a refresh), updated or uninstalled, so the wirings of
+ * such bundles are not kept in memory. The listener is registered on the system bundle as soon as
+ * an indexed bundle or the host of this fragment has a bundle context, or explicitly with
+ * {@link #register(BundleContext)}.
+ */
+public final class BundleWiringIndex implements SynchronousBundleListener {
+
+  /**
+   * The indexed wires of one bundle wiring.
+   */
+  private static final class Entry {
+
+    final BundleWiring bundleWiring;
+
+    final List<BundleWire> wires;
+
+    final Map<String, List<BundleWire>> wiresBySchemaName;
+
+    Entry(final BundleWiring bundleWiring, final List<BundleWire> wires) {
+      this.bundleWiring = bundleWiring;
+      this.wires = wires;
+      this.wiresBySchemaName = indexWires(wires);
+    }
+  }
+
+  private static final int EVICTING_EVENT_TYPES =
+      BundleEvent.UNRESOLVED | BundleEvent.UPDATED | BundleEvent.UNINSTALLED;
+
+  private static final long SYSTEM_BUNDLE_ID = 0L;
+
+  private static void addWire(final Map<String, List<BundleWire>> wiresBySchemaName,
+      final String schemaName, final BundleWire wire) {
+    List<BundleWire> wires = wiresBySchemaName.get(schemaName);
+    if (wires == null) {
+      wires = new ArrayList<BundleWire>(1);
+      wiresBySchemaName.put(schemaName, wires);
+    }
+    wires.add(wire);
+  }
+
+  private static Map<String, List<BundleWire>> indexWires(final List<BundleWire> wires) {
+    if (wires.isEmpty()) {
+      return Collections.emptyMap();
+    }
+
+    Map<String, List<BundleWire>> wiresBySchemaName = new HashMap<String, List<BundleWire>>();
+    for (BundleWire wire : wires) {
+      for (String schemaName : CapabilityAttributes.of(wire.getCapability()).schemaNames) {
+        addWire(wiresBySchemaName, schemaName, wire);
+      }
+    }
+    return wiresBySchemaName;
+  }
+
+  private final ConcurrentMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+
+  private volatile BundleContext listenerContext;
+
+  @Override
+  public void bundleChanged(final BundleEvent event) {
+    if ((event.getType() & EVICTING_EVENT_TYPES) != 0) {
+      evict(event.getBundle());
+    }
+  }
+
+  /**
+   * Drops all entries of the index.
+   */
+  public void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Drops the entry of a bundle from the index.
+   *
+   * @param bundle
+   *          The bundle.
+   */
+  public void evict(final Bundle bundle) {
+    entries.remove(bundle.getBundleId());
+  }
+
+  private Entry getEntry(final Bundle bundle) {
+    Long bundleId = bundle.getBundleId();
+    BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
+    if (bundleWiring == null) {
+      entries.remove(bundleId);
+      return null;
+    }
+
+    Entry entry = entries.get(bundleId);
+    if ((entry == null) || (entry.bundleWiring != bundleWiring)) {
+      registerIfNecessary(bundle);
+      List<BundleWire> wires = bundleWiring
+          .getRequiredWires(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG);
+      entry = new Entry(bundleWiring, (wires != null) ? wires
+          : Collections.<BundleWire> emptyList());
+      entries.put(bundleId, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Returns the indexed required wires of the current wiring of a bundle that can match a schema
+   * name.
+   *
+   * @param bundle
+   *          The bundle that is the requirer side of the wires.
+   * @param schemaName
+   *          The literal schema name that the capabilities must have or <code>null</code> to get
+   *          every wire, e.g. if the schema name of an expression contains wildcards.
+   * @return The wires in the order of the wiring. The list is empty if the bundle has no wiring
+   *         or it does not have any matching
+   *         {@value LiquibaseEOSGiConstants#CAPABILITY_NS_LIQUIBASE_CHANGELOG} wires.
+   */
+  List<BundleWire> getWires(final Bundle bundle, final String schemaName) {
+    Entry entry = getEntry(bundle);
+    if (entry == null) {
+      return Collections.emptyList();
+    }
+    if (schemaName == null) {
+      return entry.wires;
+    }
+    List<BundleWire> wires = entry.wiresBySchemaName.get(schemaName);
+    return (wires != null) ? wires : Collections.<BundleWire> emptyList();
+  }
+
+  private boolean isListening() {
+    BundleContext currentListenerContext = listenerContext;
+    if (currentListenerContext == null) {
+      return false;
+    }
+    try {
+      currentListenerContext.getBundle();
+      return true;
+    } catch (IllegalStateException e) {
+      // The framework of the listener was stopped
+      return false;
+    }
+  }
+
+  /**
+   * Registers the index as a listener of the bundle events of a framework. Normally the index
+   * registers itself when it indexes the first bundle that has a bundle context.
+   *
+   * @param bundleContext
+   *          Any valid bundle context of the framework.
+   */
+  public void register(final BundleContext bundleContext) {
+    BundleContext systemBundleContext =
+        bundleContext.getBundle(SYSTEM_BUNDLE_ID).getBundleContext();
+    synchronized (this) {
+      if (isListening()) {
+        return;
+      }
+      systemBundleContext.addBundleListener(this);
+      listenerContext = systemBundleContext;
+    }
+  }
+
+  private void registerIfNecessary(final Bundle bundle) {
+    if (isListening()) {
+      return;
+    }
+    BundleContext bundleContext = bundle.getBundleContext();
+    if (bundleContext == null) {
+      // The bundle is not started, try the host of this fragment
+      Bundle hostBundle = FrameworkUtil.getBundle(BundleWiringIndex.class);
+      bundleContext = (hostBundle != null) ? hostBundle.getBundleContext() : null;
+    }
+    if (bundleContext == null) {
+      return;
+    }
+    try {
+      register(bundleContext);
+    } catch (IllegalStateException | SecurityException e) {
+      // The entries are still checked against the current wiring of the bundles
+    }
+  }
+
+  /**
+   * The number of bundles that are currently indexed.
+   *
+   * @return The size of the index.
+   */
+  public int size() {
+    return entries.size();
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.osgi.framework.wiring.BundleCapability;
+
+/**
+ * Immutable snapshot of the attributes of a
+ * {@value LiquibaseEOSGiConstants#CAPABILITY_NS_LIQUIBASE_CHANGELOG} capability. One snapshot is
+ * created for every {@link BundleCapability} instance and it is shared by all lookups, so the
+ * attribute map is copied and the well known attributes are extracted only once.
+ *
+ * <p>
+ * {@link BundleResource} and
+ * {@link org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor} use the attribute map of
+ * a snapshot without copying it.
+ */
+public final class CapabilityAttributes {
+
+  /**
+   * Read-only attribute map that can be recognized as the map of a snapshot.
+   */
+  private static final class SnapshotMap extends AbstractMap<String, Object> {
+
+    private final Map<String, Object> delegate;
+
+    SnapshotMap(final Map<String, Object> attributes) {
+      this.delegate = Collections.unmodifiableMap(new HashMap<String, Object>(attributes));
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+      return delegate.containsKey(key);
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+      return delegate.entrySet();
+    }
+
+    @Override
+    public Object get(final Object key) {
+      return delegate.get(key);
+    }
+
+    @Override
+    public int size() {
+      return delegate.size();
+    }
+  }
+
+  private static final List<Map<BundleCapability, CapabilityAttributes>> STRIPES =
+      createStripes();
+
+  /**
+   * The number of independently locked parts of the snapshot cache. It must be a power of two.
+   */
+  private static final int STRIPE_COUNT = 32;
+
+  private static List<Map<BundleCapability, CapabilityAttributes>> createStripes() {
+    List<Map<BundleCapability, CapabilityAttributes>> stripes =
+        new ArrayList<Map<BundleCapability, CapabilityAttributes>>(STRIPE_COUNT);
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      stripes.add(new WeakHashMap<BundleCapability, CapabilityAttributes>());
+    }
+    return Collections.unmodifiableList(stripes);
+  }
+
+  /**
+   * Checks whether an attribute map is the map of a snapshot and so it is immutable and can be
+   * shared.
+   *
+   * @param attributes
+   *          The attribute map.
+   * @return <code>true</code> if the map is the {@link #attributes} of a snapshot.
+   */
+  public static boolean isSnapshot(final Map<String, Object> attributes) {
+    return attributes instanceof SnapshotMap;
+  }
+
+  /**
+   * Checks whether the {@value LiquibaseEOSGiConstants#CAPABILITY_ATTR_STREAMING} attribute is
+   * <code>true</code> in an attribute map. It gives the same result as {@link #streaming} for
+   * the attribute maps of snapshots.
+   *
+   * @param attributes
+   *          The attribute map.
+   * @return Whether the changelog should be applied in streaming mode.
+   */
+  public static boolean isStreaming(final Map<String, Object> attributes) {
+    Object streamingAttr = attributes.get(LiquibaseEOSGiConstants.CAPABILITY_ATTR_STREAMING);
+    return (streamingAttr != null) && Boolean.parseBoolean(String.valueOf(streamingAttr));
+  }
+
+  /**
+   * Returns the snapshot of the attributes of a capability. The snapshot is created at the first
+   * call and it is kept as long as the capability is referenced. The snapshots are stored in
+   * stripes that are locked separately, so concurrent lookups of different capabilities rarely
+   * wait for each other.
+   *
+   * @param capability
+   *          The capability.
+   * @return The snapshot of the attributes.
+   */
+  public static CapabilityAttributes of(final BundleCapability capability) {
+    int hash = capability.hashCode();
+    hash ^= hash >>> 16;
+    Map<BundleCapability, CapabilityAttributes> stripe = STRIPES.get(hash & (STRIPE_COUNT - 1));
+    synchronized (stripe) {
+      CapabilityAttributes snapshot = stripe.get(capability);
+      if (snapshot == null) {
+        snapshot = new CapabilityAttributes(capability.getAttributes());
+        stripe.put(capability, snapshot);
+      }
+      return snapshot;
+    }
+  }
+
+  /**
+   * The immutable attributes of the capability.
+   */
+  public final Map<String, Object> attributes;
+
+  /**
+   * The value of the {@value LiquibaseEOSGiConstants#CAPABILITY_ATTR_RESOURCE} attribute or
+   * <code>null</code> if the capability does not have such an attribute.
+   */
+  public final String resourceName;
+
+  /**
+   * The values of the {@value LiquibaseEOSGiConstants#CAPABILITY_NS_LIQUIBASE_CHANGELOG}
+   * attribute. The list has more than one element if the attribute is a list.
+   */
+  public final List<String> schemaNames;
+
+  /**
+   * Whether the {@value LiquibaseEOSGiConstants#CAPABILITY_ATTR_STREAMING} attribute is
+   * <code>true</code>.
+   */
+  public final boolean streaming;
+
+  private CapabilityAttributes(final Map<String, Object> attributes) {
+    this.attributes = new SnapshotMap(attributes);
+
+    Object resourceAttr = attributes.get(LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE);
+    this.resourceName = (resourceAttr != null) ? String.valueOf(resourceAttr) : null;
+
+    Object schemaNameAttr =
+        attributes.get(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG);
+    if (schemaNameAttr instanceof Collection) {
+      List<String> names = new ArrayList<String>(((Collection<?>) schemaNameAttr).size());
+      for (Object schemaName : (Collection<?>) schemaNameAttr) {
+        names.add(String.valueOf(schemaName));
+      }
+      this.schemaNames = Collections.unmodifiableList(names);
+    } else if (schemaNameAttr != null) {
+      this.schemaNames = Collections.singletonList(String.valueOf(schemaNameAttr));
+    } else {
+      this.schemaNames = Collections.emptyList();
+    }
+
+    this.streaming = isStreaming(attributes);
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.Map;
+
+/**
+ * Storage of the digests of the changelogs that were successfully applied on a database.
+ *
+ * @see ChangeLogFastPath
+ */
+public interface ChangeLogDigestStore {
+
+  /**
+   * Returns a stored value.
+   *
+   * @param key
+   *          The key of the value.
+   * @return The value or <code>null</code> if there is no value stored with the key.
+   */
+  String get(String key);
+
+  /**
+   * Stores several values at once.
+   *
+   * @param entries
+   *          The keys and values to store.
+   */
+  void putAll(Map<String, String> entries);
+}
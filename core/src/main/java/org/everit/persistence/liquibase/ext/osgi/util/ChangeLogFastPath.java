@@ -0,0 +1,592 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.osgi.framework.Bundle;
+
+import liquibase.Contexts;
+import liquibase.LabelExpression;
+import liquibase.changelog.RanChangeSet;
+import liquibase.database.Database;
+import liquibase.database.DatabaseConnection;
+import liquibase.exception.ChangeLogParseException;
+import liquibase.exception.DatabaseException;
+import liquibase.parser.core.ParsedNode;
+import liquibase.parser.core.ParsedNodeException;
+
+/**
+ * Decides whether the changelog subtree of a {@link BundleResource} has to be parsed and applied
+ * on a database or it can be skipped. A subtree can be skipped if the digest of its content is
+ * the same as it was after the last successful update on the same database and the applied
+ * changesets of the subtree did not change since then.
+ *
+ * <p>
+ * The digest of a subtree covers the entries of the bundle under the directory of the changelog,
+ * except the manifest, the signature files and the classes, and the digests of the subtrees of
+ * the changelogs that are wired to the bundle according to the {@link IncludePlan}. If the bundle
+ * has a {@link ChangeLogIndex}, the digest of the directory is taken from the index instead of
+ * reading the entries. The applied changesets of a subtree are the rows of the changelog table
+ * that belong to a changelog under the directory of any changelog of the subtree, so updating
+ * other schemas on the same database does not invalidate the subtree. The records are separated
+ * by the contexts and labels of the update, too.
+ *
+ * <p>
+ * A subtree is only recorded, and so it is never skipped, if all of its changelogs are
+ * self-contained XML changelogs: they do not have <code>runAlways</code> or
+ * <code>runOnChange</code> changesets and they do not reference files outside of their
+ * directory, e.g. via relative includes, <code>sqlFile</code>, <code>createProcedure</code> or
+ * <code>loadData</code>, as the digest would not cover such files. Changelogs that filter
+ * changesets or includes by contexts or labels, or that have preconditions which do not halt the
+ * update on failure, are not self-contained either: the same content and the same applied
+ * changesets do not mean that every changeset that should run has been applied.
+ */
+public class ChangeLogFastPath {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final String CLASS_EXTENSION = ".class";
+
+  /**
+   * The attributes of the changesets and includes that select them by the contexts or the labels
+   * of the update.
+   */
+  private static final String[] CONTEXT_ATTRIBUTES = { "context", "contexts", "labels" };
+
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+
+  private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+  private static final String MANIFEST_PATH = "META-INF/MANIFEST.MF";
+
+  private static final String META_INF_DIRECTORY = "META-INF/";
+
+  private static final String PRECONDITION_HALT = "HALT";
+
+  private static final String[] SIGNATURE_EXTENSIONS = { ".SF", ".RSA", ".DSA", ".EC" };
+
+  private static final String SIGNATURE_PREFIX = "META-INF/SIG-";
+
+  private static final Comparator<URL> URL_PATH_COMPARATOR = new Comparator<URL>() {
+    @Override
+    public int compare(final URL o1, final URL o2) {
+      return o1.getPath().compareTo(o2.getPath());
+    }
+  };
+
+  private static String computeFingerprint(final List<RanChangeSet> ranChangeSets,
+      final Set<String> directories) {
+    List<String> entries = new ArrayList<String>();
+    for (RanChangeSet ranChangeSet : ranChangeSets) {
+      if (isInDirectories(normalizePath(ranChangeSet.getChangeLog()), directories)) {
+        entries.add(ranChangeSet.getChangeLog() + "::" + ranChangeSet.getId() + "::"
+            + ranChangeSet.getAuthor() + "::" + ranChangeSet.getLastCheckSum());
+      }
+    }
+    Collections.sort(entries);
+
+    MessageDigest messageDigest = createMessageDigest();
+    for (String entry : entries) {
+      messageDigest.update(entry.getBytes(StandardCharsets.UTF_8));
+      messageDigest.update((byte) '\n');
+    }
+    return entries.size() + ":" + toHex(messageDigest.digest());
+  }
+
+  static MessageDigest createMessageDigest() {
+    try {
+      return MessageDigest.getInstance(DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void digestContent(final BundleResource bundleResource,
+      final MessageDigest messageDigest) throws IOException {
+    Bundle bundle = bundleResource.bundle;
+    messageDigest.update(bundleResource.resourceName.getBytes(StandardCharsets.UTF_8));
+
+    ChangeLogIndex index = ChangeLogIndex.of(bundle);
+    String indexedDigest = (index != null) ? index.getDigest(bundleResource.resourceName) : null;
+    if (indexedDigest != null) {
+      // The index was generated from the same entries, no need to walk the directory
+      messageDigest.update(indexedDigest.getBytes(StandardCharsets.UTF_8));
+      return;
+    }
+
+    String resourceName = bundleResource.resourceName;
+    int lastSlashIndex = resourceName.lastIndexOf('/');
+    String directory = (lastSlashIndex > 0) ? resourceName.substring(0, lastSlashIndex) : "/";
+
+    List<URL> entryURLs = new ArrayList<URL>();
+    Enumeration<URL> entries = bundle.findEntries(directory, "*", true);
+    if (entries != null) {
+      while (entries.hasMoreElements()) {
+        URL entryURL = entries.nextElement();
+        if (isDigested(entryURL.getPath())) {
+          entryURLs.add(entryURL);
+        }
+      }
+    }
+    if (entryURLs.isEmpty()) {
+      URL resourceURL = bundle.getResource(resourceName);
+      if (resourceURL != null) {
+        entryURLs.add(resourceURL);
+      }
+    }
+    Collections.sort(entryURLs, URL_PATH_COMPARATOR);
+
+    byte[] buffer = new byte[BUFFER_SIZE];
+    for (URL entryURL : entryURLs) {
+      messageDigest.update(entryURL.getPath().getBytes(StandardCharsets.UTF_8));
+      try (InputStream inputStream = entryURL.openStream()) {
+        int r = inputStream.read(buffer);
+        while (r >= 0) {
+          messageDigest.update(buffer, 0, r);
+          r = inputStream.read(buffer);
+        }
+      }
+    }
+  }
+
+  private static String getAttribute(final ParsedNode node, final String name) {
+    try {
+      Object value = node.getChildValue(null, name);
+      return (value != null) ? String.valueOf(value) : null;
+    } catch (ParsedNodeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * The directory of a changelog without leading and trailing slashes. It is an empty string if
+   * the changelog is in the root of the bundle.
+   */
+  private static String getDirectory(final String path) {
+    String normalizedPath = normalizePath(path);
+    int lastSlashIndex = normalizedPath.lastIndexOf('/');
+    return (lastSlashIndex > 0) ? normalizedPath.substring(0, lastSlashIndex) : "";
+  }
+
+  private static boolean hasContextFilter(final ParsedNode node) {
+    for (String attributeName : CONTEXT_ATTRIBUTES) {
+      String value = getAttribute(node, attributeName);
+      if ((value != null) && !value.trim().isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether an entry is digested. The manifest, the signature files and the classes are
+   * left out as they change with every build without changing the changelogs. The bnd plugin
+   * that generates the {@link ChangeLogIndex} applies the same rule.
+   */
+  private static boolean isDigested(final String entryPath) {
+    String path = entryPath.startsWith("/") ? entryPath.substring(1) : entryPath;
+    if (path.endsWith("/") || LiquibaseEOSGiConstants.CHANGELOG_INDEX_PATH.equals(path)
+        || MANIFEST_PATH.equals(path) || path.endsWith(CLASS_EXTENSION)) {
+      return false;
+    }
+    if (path.startsWith(META_INF_DIRECTORY)
+        && (path.indexOf('/', META_INF_DIRECTORY.length()) < 0)) {
+      if (path.startsWith(SIGNATURE_PREFIX)) {
+        return false;
+      }
+      for (String signatureExtension : SIGNATURE_EXTENSIONS) {
+        if (path.endsWith(signatureExtension)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static boolean isHaltingPrecondition(final ParsedNode node) {
+    String onFail = getAttribute(node, "onFail");
+    String onError = getAttribute(node, "onError");
+    return ((onFail == null) || PRECONDITION_HALT.equalsIgnoreCase(onFail.trim()))
+        && ((onError == null) || PRECONDITION_HALT.equalsIgnoreCase(onError.trim()));
+  }
+
+  private static boolean isInDirectories(final String path, final Set<String> directories) {
+    for (String directory : directories) {
+      if (isInDirectory(path, directory)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isInDirectory(final String path, final String directory) {
+    return directory.isEmpty() || path.startsWith(directory + '/');
+  }
+
+  private static String joinSorted(final Collection<String> values) {
+    List<String> sortedValues = new ArrayList<String>(values);
+    Collections.sort(sortedValues);
+    StringBuilder sb = new StringBuilder();
+    for (String value : sortedValues) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(value);
+    }
+    return sb.toString();
+  }
+
+  private static String normalizePath(final String path) {
+    String normalizedPath = (path != null) ? path.replace('\\', '/') : "";
+    while (normalizedPath.startsWith("/")) {
+      normalizedPath = normalizedPath.substring(1);
+    }
+    return normalizedPath;
+  }
+
+  /**
+   * Resolves a file reference of a changelog to a path within the bundle.
+   *
+   * @return The path without leading slash or <code>null</code> if the path cannot be resolved
+   *         without parsing, e.g. it contains property expressions or it points outside of the
+   *         root of the bundle.
+   */
+  private static String resolveFile(final String changeLogPath, final String file,
+      final boolean relativeToChangeLogFile) {
+    if ((file == null) || file.contains("${")) {
+      return null;
+    }
+    String path = normalizePath(file);
+    if (relativeToChangeLogFile) {
+      String directory = getDirectory(changeLogPath);
+      path = directory.isEmpty() ? path : (directory + '/' + path);
+    }
+    LinkedList<String> segments = new LinkedList<String>();
+    for (String segment : path.split("/")) {
+      if ("..".equals(segment)) {
+        if (segments.isEmpty()) {
+          return null;
+        }
+        segments.removeLast();
+      } else if (!segment.isEmpty() && !".".equals(segment)) {
+        segments.add(segment);
+      }
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String segment : segments) {
+      if (sb.length() > 0) {
+        sb.append('/');
+      }
+      sb.append(segment);
+    }
+    return sb.toString();
+  }
+
+  static String toHex(final byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX_CHARS[(bytes[i] >> 4) & 0xF];
+      chars[(i * 2) + 1] = HEX_CHARS[bytes[i] & 0xF];
+    }
+    return new String(chars);
+  }
+
+  private final String contextsKey;
+
+  private final String databaseKey;
+
+  private final ConcurrentMap<BundleResource, String> digests =
+      new ConcurrentHashMap<BundleResource, String>();
+
+  private final ChangeLogDigestStore digestStore;
+
+  private final IncludePlan includePlan;
+
+  private final List<RanChangeSet> ranChangeSets;
+
+  private final ConcurrentMap<BundleResource, Boolean> selfContainedResources =
+      new ConcurrentHashMap<BundleResource, Boolean>();
+
+  /**
+   * Constructor.
+   *
+   * @param digestStore
+   *          The store of the digests of the previous successful updates.
+   * @param includePlan
+   *          The plan that is used to find the changelogs that are wired to the bundles or
+   *          <code>null</code> if only the content of the changelogs themselves should be
+   *          checked.
+   * @param database
+   *          The database that the changelogs are applied on. The applied changesets of the
+   *          database are queried during the construction. The records of the digest store are
+   *          separated by the URL, the user and the default and Liquibase schemas of the
+   *          database.
+   * @param contexts
+   *          The contexts of the update. The records of the digest store are separated by the
+   *          contexts.
+   * @param labels
+   *          The label expression of the update. The records of the digest store are separated by
+   *          the labels.
+   * @throws DatabaseException
+   *           if the applied changesets could not be queried.
+   */
+  public ChangeLogFastPath(final ChangeLogDigestStore digestStore,
+      final IncludePlan includePlan, final Database database, final Contexts contexts,
+      final LabelExpression labels) throws DatabaseException {
+    this.digestStore = digestStore;
+    this.includePlan = includePlan;
+    this.databaseKey = getDatabaseKey(database);
+    this.contextsKey = joinSorted(contexts.getContexts()) + '|' + joinSorted(labels.getLabels());
+    this.ranChangeSets = database.getRanChangeSetList();
+  }
+
+  private boolean checkChangeLog(final Bundle bundle, final String directory,
+      final String changeLogPath, final Set<String> checkedPaths) {
+    if (!checkedPaths.add(changeLogPath)) {
+      return true;
+    }
+    BundleResource changeLog = new BundleResource(bundle, '/' + changeLogPath,
+        Collections.<String, Object> emptyMap());
+    if (!ChangeLogNodeParser.supports(changeLog)) {
+      return false;
+    }
+    ParsedNode parsedNode;
+    try {
+      parsedNode = ChangeLogNodeParser.parseToNode(changeLog, new EOSGiResourceAccessor(bundle));
+    } catch (ChangeLogParseException | RuntimeException e) {
+      return false;
+    }
+    return (parsedNode != null)
+        && checkNode(parsedNode, bundle, directory, changeLogPath, checkedPaths);
+  }
+
+  private boolean checkFileReference(final ParsedNode node, final String attributeName,
+      final Bundle bundle, final String directory, final String changeLogPath) {
+    String path = resolveFile(changeLogPath, getAttribute(node, attributeName),
+        Boolean.parseBoolean(getAttribute(node, "relativeToChangelogFile")));
+    return (path != null) && isInDirectory(path, directory) && (bundle.getEntry(path) != null);
+  }
+
+  private boolean checkNode(final ParsedNode node, final Bundle bundle, final String directory,
+      final String changeLogPath, final Set<String> checkedPaths) {
+    String name = node.getName();
+    if (hasContextFilter(node)) {
+      return false;
+    }
+    if ("preConditions".equals(name)) {
+      if (!isHaltingPrecondition(node)) {
+        return false;
+      }
+    } else if ("changeSet".equals(name)) {
+      if (Boolean.parseBoolean(getAttribute(node, "runAlways"))
+          || Boolean.parseBoolean(getAttribute(node, "runOnChange"))) {
+        return false;
+      }
+    } else if ("include".equals(name)) {
+      String file = getAttribute(node, "file");
+      if ((file != null) && file.endsWith(LiquibaseEOSGiConstants.INCLUDE_OSGI_EXTENSION)) {
+        // The included subtree is checked on its own
+        return true;
+      }
+      if (!checkFileReference(node, "file", bundle, directory, changeLogPath)) {
+        return false;
+      }
+      String includedPath = resolveFile(changeLogPath, file,
+          Boolean.parseBoolean(getAttribute(node, "relativeToChangelogFile")));
+      return checkChangeLog(bundle, directory, includedPath, checkedPaths);
+    } else if ("includeAll".equals(name)) {
+      return false;
+    } else if ("sqlFile".equals(name) || "createProcedure".equals(name)) {
+      if ((getAttribute(node, "path") != null)
+          && !checkFileReference(node, "path", bundle, directory, changeLogPath)) {
+        return false;
+      }
+    } else if ("loadData".equals(name) || "loadUpdateData".equals(name)) {
+      if (!checkFileReference(node, "file", bundle, directory, changeLogPath)) {
+        return false;
+      }
+    }
+    for (ParsedNode child : node.getChildren()) {
+      if (!checkNode(child, bundle, directory, changeLogPath, checkedPaths)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void collectSubtree(final BundleResource bundleResource,
+      final Set<BundleResource> result) {
+    if (!result.add(bundleResource) || (includePlan == null)) {
+      return;
+    }
+    for (BundleResource wiredResource : includePlan.getWiredResources(bundleResource.bundle)) {
+      collectSubtree(wiredResource, result);
+    }
+  }
+
+  /**
+   * Returns the digest of the changelog subtree of a bundle resource.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog.
+   * @return The digest.
+   * @throws IOException
+   *           if the content of a changelog could not be read.
+   */
+  public String getDigest(final BundleResource bundleResource) throws IOException {
+    String digest = digests.get(bundleResource);
+    if (digest != null) {
+      return digest;
+    }
+
+    MessageDigest messageDigest = createMessageDigest();
+    digestContent(bundleResource, messageDigest);
+    if (includePlan != null) {
+      Bundle bundle = bundleResource.bundle;
+      for (BundleResource wiredResource : includePlan.getWiredResources(bundle)) {
+        if (wiredResource.bundle.getBundleId() == bundle.getBundleId()) {
+          // The wired resources of the same bundle are part of this subtree anyway
+          if (wiredResource != bundleResource) {
+            digestContent(wiredResource, messageDigest);
+          }
+        } else {
+          messageDigest.update(getDigest(wiredResource).getBytes(StandardCharsets.UTF_8));
+        }
+      }
+    }
+    digest = toHex(messageDigest.digest());
+    digests.putIfAbsent(bundleResource, digest);
+    return digest;
+  }
+
+  private static String getDatabaseKey(final Database database) {
+    DatabaseConnection connection = database.getConnection();
+    return connection.getURL() + '|' + connection.getConnectionUserName() + '|'
+        + database.getDefaultSchemaName() + '|' + database.getLiquibaseSchemaName();
+  }
+
+  private Set<String> getDirectories(final Set<BundleResource> subtree) {
+    Set<String> directories = new HashSet<String>();
+    for (BundleResource subtreeResource : subtree) {
+      directories.add(getDirectory(subtreeResource.resourceName));
+    }
+    return directories;
+  }
+
+  private String getKey(final BundleResource bundleResource) {
+    Bundle bundle = bundleResource.bundle;
+    return databaseKey + '|' + contextsKey + '|' + bundle.getSymbolicName() + ';'
+        + bundle.getVersion() + ';' + bundleResource.resourceName;
+  }
+
+  /**
+   * Checks whether the changelog subtree of a bundle resource is unchanged since the last
+   * successful update and so it can be skipped.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog.
+   * @return <code>true</code> if the subtree can be skipped.
+   */
+  public boolean isUnchanged(final BundleResource bundleResource) {
+    String storedValue = digestStore.get(getKey(bundleResource));
+    if (storedValue == null) {
+      return false;
+    }
+    Set<BundleResource> subtree = new LinkedHashSet<BundleResource>();
+    collectSubtree(bundleResource, subtree);
+    try {
+      return storedValue.equals(getDigest(bundleResource) + '@'
+          + computeFingerprint(ranChangeSets, getDirectories(subtree)));
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Checks whether all changelogs of a subtree can be covered by the digest of the subtree.
+   */
+  private boolean isSelfContained(final Set<BundleResource> subtree) {
+    for (BundleResource subtreeResource : subtree) {
+      Boolean selfContained = selfContainedResources.get(subtreeResource);
+      if (selfContained == null) {
+        String changeLogPath = normalizePath(subtreeResource.resourceName);
+        selfContained = checkChangeLog(subtreeResource.bundle, getDirectory(changeLogPath),
+            changeLogPath, new HashSet<String>());
+        selfContainedResources.put(subtreeResource, selfContained);
+      }
+      if (!selfContained) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records the digests of the changelog subtree of a bundle resource after it was successfully
+   * applied on the database. The subtrees that are not self-contained are not recorded.
+   *
+   * @param bundleResource
+   *          The resource that points to the root changelog of the update.
+   * @param database
+   *          The database that the changelog was applied on.
+   * @throws DatabaseException
+   *           if the applied changesets could not be queried.
+   */
+  public void recordUpdate(final BundleResource bundleResource, final Database database)
+      throws DatabaseException {
+    List<RanChangeSet> newRanChangeSets = database.getRanChangeSetList();
+    Set<BundleResource> subtree = new LinkedHashSet<BundleResource>();
+    collectSubtree(bundleResource, subtree);
+
+    Map<String, String> entries = new HashMap<String, String>();
+    try {
+      for (BundleResource subtreeResource : subtree) {
+        Set<BundleResource> resourceSubtree = new LinkedHashSet<BundleResource>();
+        collectSubtree(subtreeResource, resourceSubtree);
+        if (isSelfContained(resourceSubtree)) {
+          entries.put(getKey(subtreeResource), getDigest(subtreeResource) + '@'
+              + computeFingerprint(newRanChangeSets, getDirectories(resourceSubtree)));
+        }
+      }
+    } catch (IOException e) {
+      // Nothing is recorded, so the subtree will be applied again next time
+      return;
+    }
+    digestStore.putAll(entries);
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * The index of the {@value LiquibaseEOSGiConstants#CAPABILITY_NS_LIQUIBASE_CHANGELOG}
+ * capabilities of a bundle that is generated at build time into the
+ * {@value LiquibaseEOSGiConstants#CHANGELOG_INDEX_PATH} entry of the bundle, e.g. by the
+ * <code>org.everit.persistence.liquibase.ext.osgi.bnd.ChangeLogIndexPlugin</code> bnd plugin.
+ * The index holds the content digest and the ".osgi" include expressions of every changelog, so
+ * the directory of a changelog does not have to be walked to compute its digest and the includes
+ * can be resolved before the changelog is parsed.
+ *
+ * <p>
+ * The index is a properties file with the following keys:
+ * <ul>
+ * <li><code>version</code>: The version of the format, currently <code>1</code>.</li>
+ * <li><code>changelog.count</code>: The number of the changelogs.</li>
+ * <li><code>changelog.&lt;i&gt;.resource</code>: The value of the
+ * {@value LiquibaseEOSGiConstants#CAPABILITY_ATTR_RESOURCE} attribute of the capability.</li>
+ * <li><code>changelog.&lt;i&gt;.digest</code>: The hex SHA-256 digest of the entries under the
+ * directory of the changelog, except the manifest, the index, the signature files in
+ * <code>META-INF</code> and the classes. The path of every entry with a leading slash is digested
+ * before its content, in the order of the paths.</li>
+ * <li><code>changelog.&lt;i&gt;.include.count</code>: The number of the distinct ".osgi" include
+ * expressions of the changelog and the changelogs that it includes from the same bundle.</li>
+ * <li><code>changelog.&lt;i&gt;.include.&lt;j&gt;</code>: An include expression without the
+ * ".osgi" extension.</li>
+ * </ul>
+ */
+public final class ChangeLogIndex {
+
+  /**
+   * The indexed data of one changelog.
+   */
+  private static final class Entry {
+
+    final String digest;
+
+    final List<String> includeExpressions;
+
+    Entry(final String digest, final List<String> includeExpressions) {
+      this.digest = digest;
+      this.includeExpressions = includeExpressions;
+    }
+  }
+
+  /**
+   * The current version of the index format.
+   */
+  public static final int FORMAT_VERSION = 1;
+
+  private static final Map<BundleRevision, ChangeLogIndex> INDEXES =
+      new WeakHashMap<BundleRevision, ChangeLogIndex>();
+
+  private static final ChangeLogIndex NO_INDEX =
+      new ChangeLogIndex(Collections.<String, Entry> emptyMap());
+
+  /**
+   * Returns the index of a bundle. The index is read at the first call for every revision of the
+   * bundle.
+   *
+   * @param bundle
+   *          The bundle.
+   * @return The index or <code>null</code> if the bundle does not have an index or the index
+   *         cannot be read or it has an unknown format.
+   */
+  public static ChangeLogIndex of(final Bundle bundle) {
+    BundleRevision bundleRevision = bundle.adapt(BundleRevision.class);
+    if (bundleRevision == null) {
+      return read(bundle);
+    }
+    ChangeLogIndex index;
+    synchronized (INDEXES) {
+      index = INDEXES.get(bundleRevision);
+    }
+    if (index == null) {
+      index = read(bundle);
+      if (index == null) {
+        index = NO_INDEX;
+      }
+      synchronized (INDEXES) {
+        INDEXES.put(bundleRevision, index);
+      }
+    }
+    return (index != NO_INDEX) ? index : null;
+  }
+
+  private static ChangeLogIndex read(final Bundle bundle) {
+    URL indexURL = bundle.getEntry(LiquibaseEOSGiConstants.CHANGELOG_INDEX_PATH);
+    if (indexURL == null) {
+      return null;
+    }
+    Properties properties = new Properties();
+    try (InputStream inputStream = indexURL.openStream()) {
+      properties.load(inputStream);
+    } catch (IOException e) {
+      return null;
+    }
+    if (!String.valueOf(FORMAT_VERSION).equals(properties.getProperty("version"))) {
+      return null;
+    }
+
+    try {
+      int changeLogCount = Integer.parseInt(properties.getProperty("changelog.count", "0"));
+      Map<String, Entry> entries = new HashMap<String, Entry>(changeLogCount * 2);
+      for (int i = 0; i < changeLogCount; i++) {
+        String prefix = "changelog." + i + '.';
+        String resourceName = properties.getProperty(prefix + "resource");
+        if (resourceName == null) {
+          return null;
+        }
+        int includeCount =
+            Integer.parseInt(properties.getProperty(prefix + "include.count", "0"));
+        Set<String> includeExpressions = new LinkedHashSet<String>(includeCount * 2);
+        for (int j = 0; j < includeCount; j++) {
+          String includeExpression = properties.getProperty(prefix + "include." + j);
+          if (includeExpression != null) {
+            includeExpressions.add(includeExpression);
+          }
+        }
+        entries.put(resourceName, new Entry(properties.getProperty(prefix + "digest"),
+            Collections.unmodifiableList(new ArrayList<String>(includeExpressions))));
+      }
+      return new ChangeLogIndex(entries);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private final Map<String, Entry> entries;
+
+  private ChangeLogIndex(final Map<String, Entry> entries) {
+    this.entries = entries;
+  }
+
+  /**
+   * Checks whether a changelog is listed in the index.
+   *
+   * @param resourceName
+   *          The name of the changelog resource as it is specified in the capability.
+   * @return <code>true</code> if the changelog is indexed.
+   */
+  public boolean contains(final String resourceName) {
+    return entries.containsKey(resourceName);
+  }
+
+  /**
+   * The ".osgi" include expressions of all indexed changelogs.
+   *
+   * @return The distinct include expressions without the ".osgi" extension.
+   */
+  public Set<String> getAllIncludeExpressions() {
+    Set<String> result = new LinkedHashSet<String>();
+    for (Entry entry : entries.values()) {
+      result.addAll(entry.includeExpressions);
+    }
+    return result;
+  }
+
+  /**
+   * The digest of the content of the directory of a changelog.
+   *
+   * @param resourceName
+   *          The name of the changelog resource as it is specified in the capability.
+   * @return The digest or <code>null</code> if the changelog is not indexed or it does not have a
+   *         digest.
+   */
+  public String getDigest(final String resourceName) {
+    Entry entry = entries.get(resourceName);
+    return (entry != null) ? entry.digest : null;
+  }
+
+  /**
+   * The ".osgi" include expressions of the XML changelogs under the directory of a changelog.
+   *
+   * @param resourceName
+   *          The name of the changelog resource as it is specified in the capability.
+   * @return The include expressions without the ".osgi" extension or <code>null</code> if the
+   *         changelog is not indexed.
+   */
+  public List<String> getIncludeExpressions(final String resourceName) {
+    Entry entry = entries.get(resourceName);
+    return (entry != null) ? entry.includeExpressions : null;
+  }
+}
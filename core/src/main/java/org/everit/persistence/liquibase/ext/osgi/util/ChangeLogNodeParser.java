@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.concurrent.Callable;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiParserContext;
+
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.exception.ChangeLogParseException;
+import liquibase.parser.core.ParsedNode;
+import liquibase.parser.core.ParsedNodeException;
+import liquibase.parser.core.xml.XMLChangeLogSAXParser;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Parses XML changelogs in two steps, like {@link XMLChangeLogSAXParser} does. The first step reads
+ * the XML into a {@link ParsedNode} tree. The tree does not depend on the changelog parameters or
+ * on the database, as the property expressions are expanded by {@link DatabaseChangeLog} when the
+ * tree is loaded in the second step. Loading modifies the tree, so a tree that is kept for later
+ * use is always loaded via a copy.
+ */
+public final class ChangeLogNodeParser {
+
+  /**
+   * XML parser that exposes the parsed node tree of a changelog.
+   */
+  private static final class NodeXMLParser extends XMLChangeLogSAXParser {
+
+    ParsedNode parseXMLToNode(final String physicalChangeLogLocation,
+        final ResourceAccessor resourceAccessor) throws ChangeLogParseException {
+      return parseToNode(physicalChangeLogLocation, new ChangeLogParameters(), resourceAccessor);
+    }
+  }
+
+  private static final String XML_EXTENSION = ".xml";
+
+  /**
+   * Creates a deep copy of a node tree.
+   *
+   * @param parsedNode
+   *          The root node of the tree.
+   * @return The copy of the tree.
+   */
+  public static ParsedNode copy(final ParsedNode parsedNode) {
+    ParsedNode copy = new ParsedNode(parsedNode.getNamespace(), parsedNode.getName());
+    try {
+      copy.setValue(parsedNode.getValue());
+      for (ParsedNode child : parsedNode.getChildren()) {
+        copy.addChild(copy(child));
+      }
+    } catch (ParsedNodeException e) {
+      throw new IllegalStateException("Could not copy parsed node " + parsedNode.getName(), e);
+    }
+    return copy;
+  }
+
+  /**
+   * Returns the node tree of a changelog via the {@link ParsedChangeLogCache} and the
+   * {@link ChangeLogSnapshotStore} of a parser context, if the context has them. Every node tree
+   * of an included changelog is obtained via this method, so the caches are filled and used in
+   * the same way whether the tree is parsed by the parser or by an {@link IncludePrefetcher}.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog. It must be an XML changelog, see
+   *          {@link #supports(BundleResource)}.
+   * @param resourceAccessor
+   *          The resource accessor that reads the changelog.
+   * @param parserContext
+   *          The parser context or <code>null</code>.
+   * @return The root node of the tree. It may be shared, so it must be loaded with
+   *         {@link #load(BundleResource, ParsedNode, ChangeLogParameters, ResourceAccessor)}.
+   * @throws ChangeLogParseException
+   *           if the changelog could not be parsed.
+   */
+  public static ParsedNode getOrParseNode(final BundleResource bundleResource,
+      final ResourceAccessor resourceAccessor, final EOSGiParserContext parserContext)
+      throws ChangeLogParseException {
+    ParsedChangeLogCache parsedChangeLogCache = null;
+    ChangeLogSnapshotStore changeLogSnapshotStore = null;
+    if (parserContext != null) {
+      parsedChangeLogCache = parserContext.getParsedChangeLogCache();
+      changeLogSnapshotStore = parserContext.getChangeLogSnapshotStore();
+    }
+    if (parsedChangeLogCache == null) {
+      return loadOrParseNode(bundleResource, resourceAccessor, changeLogSnapshotStore);
+    }
+    final ChangeLogSnapshotStore snapshotStore = changeLogSnapshotStore;
+    return parsedChangeLogCache.getOrParseNode(bundleResource, new Callable<ParsedNode>() {
+      @Override
+      public ParsedNode call() throws ChangeLogParseException {
+        return loadOrParseNode(bundleResource, resourceAccessor, snapshotStore);
+      }
+    });
+  }
+
+  /**
+   * Creates a new {@link DatabaseChangeLog} from a copy of a node tree. The property expressions
+   * are expanded with the provided parameters and the included changelogs are parsed.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog.
+   * @param parsedNode
+   *          The root node of the tree. It is not modified.
+   * @param changeLogParameters
+   *          The parameters of the changelog.
+   * @param resourceAccessor
+   *          The resource accessor that resolves the includes of the changelog.
+   * @return The changelog.
+   * @throws ChangeLogParseException
+   *           if the changelog could not be loaded.
+   */
+  public static DatabaseChangeLog load(final BundleResource bundleResource,
+      final ParsedNode parsedNode, final ChangeLogParameters changeLogParameters,
+      final ResourceAccessor resourceAccessor) throws ChangeLogParseException {
+    DatabaseChangeLog changeLog = new DatabaseChangeLog(bundleResource.resourceName);
+    changeLog.setChangeLogParameters(changeLogParameters);
+    try {
+      changeLog.load(copy(parsedNode), resourceAccessor);
+    } catch (Exception e) {
+      throw new ChangeLogParseException(e);
+    }
+    return changeLog;
+  }
+
+  private static ParsedNode loadOrParseNode(final BundleResource bundleResource,
+      final ResourceAccessor resourceAccessor, final ChangeLogSnapshotStore changeLogSnapshotStore)
+      throws ChangeLogParseException {
+    if (changeLogSnapshotStore != null) {
+      return changeLogSnapshotStore.loadOrParseNode(bundleResource, resourceAccessor);
+    }
+    return parseToNode(bundleResource, resourceAccessor);
+  }
+
+  /**
+   * Reads the XML of a changelog into a node tree without expanding property expressions and
+   * without parsing the included changelogs.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog.
+   * @param resourceAccessor
+   *          The resource accessor that reads the changelog.
+   * @return The root node of the tree.
+   * @throws ChangeLogParseException
+   *           if the changelog could not be parsed.
+   */
+  public static ParsedNode parseToNode(final BundleResource bundleResource,
+      final ResourceAccessor resourceAccessor) throws ChangeLogParseException {
+    return new NodeXMLParser().parseXMLToNode(bundleResource.resourceName, resourceAccessor);
+  }
+
+  /**
+   * Checks whether a changelog can be parsed into a node tree by this class.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog.
+   * @return <code>true</code> if the changelog is an XML file.
+   */
+  public static boolean supports(final BundleResource bundleResource) {
+    return bundleResource.resourceName.endsWith(XML_EXTENSION);
+  }
+
+  private ChangeLogNodeParser() {
+  }
+}
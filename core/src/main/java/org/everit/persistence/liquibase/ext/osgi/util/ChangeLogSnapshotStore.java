@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetricsListener;
+import org.osgi.framework.Bundle;
+
+import liquibase.exception.ChangeLogParseException;
+import liquibase.parser.core.ParsedNode;
+import liquibase.parser.core.ParsedNodeException;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Stores the parsed node trees of XML changelogs in compact binary files, so the changelogs do not
+ * have to be parsed again after a restart of the JVM. Every snapshot holds the symbolic name,
+ * version and last modification time of the bundle, the name and the attributes of the resource,
+ * the digest of the changelog file and the parsed nodes. A snapshot is used only if the bundle,
+ * the resource and the digest are the same as they were when the snapshot was written, so
+ * updating or redeploying the bundle invalidates it. The bundle is checked first, so the changelog
+ * file is read to compute its digest only if the snapshot still belongs to the same bundle. The
+ * node tree depends only on the changelog file itself: the ".osgi" and the relative includes of a
+ * changelog are kept as include nodes, so they are resolved again and their changelogs are loaded
+ * from their own snapshots.
+ *
+ * <p>
+ * The snapshots are written before the node trees are loaded by {@link ChangeLogNodeParser}, so
+ * they contain the property expressions unexpanded. The expressions are expanded with the current
+ * changelog parameters every time a tree is loaded, so the store can be used even if the
+ * parameters differ between the starts. Changelogs that are not XML files are not stored.
+ */
+public class ChangeLogSnapshotStore {
+
+  /**
+   * Reads a snapshot file.
+   */
+  private static final class SnapshotReader {
+
+    private final DataInputStream in;
+
+    private final List<String> stringTable = new ArrayList<String>();
+
+    SnapshotReader(final DataInputStream in) {
+      this.in = in;
+    }
+
+    ParsedNode readNode() throws IOException, ParsedNodeException {
+      ParsedNode node = new ParsedNode(readString(), readString());
+      node.setValue(readValue());
+      int childCount = readVarInt(in);
+      for (int i = 0; i < childCount; i++) {
+        node.addChild(readNode());
+      }
+      return node;
+    }
+
+    String readString() throws IOException {
+      int reference = readVarInt(in);
+      if (reference == STRING_NULL) {
+        return null;
+      }
+      if (reference == STRING_NEW) {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        stringTable.add(value);
+        return value;
+      }
+      int index = reference - STRING_TABLE_OFFSET;
+      if (index >= stringTable.size()) {
+        throw new IOException("Invalid string reference: " + reference);
+      }
+      return stringTable.get(index);
+    }
+
+    Object readValue() throws IOException {
+      byte tag = in.readByte();
+      switch (tag) {
+        case TAG_NULL:
+          return null;
+        case TAG_STRING:
+          return readString();
+        case TAG_TRUE:
+          return Boolean.TRUE;
+        case TAG_FALSE:
+          return Boolean.FALSE;
+        case TAG_INTEGER:
+          return in.readInt();
+        case TAG_LONG:
+          return in.readLong();
+        case TAG_BIG_INTEGER:
+          return new BigInteger(readString());
+        case TAG_BIG_DECIMAL:
+          return new BigDecimal(readString());
+        default:
+          throw new IOException("Unknown value tag: " + tag);
+      }
+    }
+  }
+
+  /**
+   * Writes a snapshot file.
+   */
+  private static final class SnapshotWriter {
+
+    private final DataOutputStream out;
+
+    private final Map<String, Integer> stringTable = new HashMap<String, Integer>();
+
+    SnapshotWriter(final DataOutputStream out) {
+      this.out = out;
+    }
+
+    void writeNode(final ParsedNode node) throws IOException {
+      writeString(node.getNamespace());
+      writeString(node.getName());
+      writeValue(node.getValue());
+      List<ParsedNode> children = node.getChildren();
+      writeVarInt(out, children.size());
+      for (ParsedNode child : children) {
+        writeNode(child);
+      }
+    }
+
+    void writeString(final String value) throws IOException {
+      if (value == null) {
+        writeVarInt(out, STRING_NULL);
+        return;
+      }
+      Integer index = stringTable.get(value);
+      if (index != null) {
+        writeVarInt(out, index + STRING_TABLE_OFFSET);
+        return;
+      }
+      stringTable.put(value, stringTable.size());
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(out, STRING_NEW);
+      writeVarInt(out, bytes.length);
+      out.write(bytes);
+    }
+
+    void writeValue(final Object value) throws IOException {
+      if (value == null) {
+        out.writeByte(TAG_NULL);
+      } else if (value instanceof String) {
+        out.writeByte(TAG_STRING);
+        writeString((String) value);
+      } else if (value instanceof Boolean) {
+        out.writeByte(((Boolean) value) ? TAG_TRUE : TAG_FALSE);
+      } else if (value instanceof Integer) {
+        out.writeByte(TAG_INTEGER);
+        out.writeInt((Integer) value);
+      } else if (value instanceof Long) {
+        out.writeByte(TAG_LONG);
+        out.writeLong((Long) value);
+      } else if (value instanceof BigInteger) {
+        out.writeByte(TAG_BIG_INTEGER);
+        writeString(value.toString());
+      } else if (value instanceof BigDecimal) {
+        out.writeByte(TAG_BIG_DECIMAL);
+        writeString(value.toString());
+      } else {
+        throw new IOException("Value type cannot be stored in a snapshot: " + value.getClass());
+      }
+    }
+  }
+
+  /**
+   * The name of the directory in the data area of a bundle that holds the snapshots.
+   */
+  public static final String DATA_DIRECTORY = "liquibase-osgi-snapshots";
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final int FORMAT_VERSION = 2;
+
+  private static final int MAGIC = 0x4c4f534e;
+
+  private static final String SNAPSHOT_EXTENSION = ".snapshot";
+
+  private static final int STRING_NEW = 1;
+
+  private static final int STRING_NULL = 0;
+
+  private static final int STRING_TABLE_OFFSET = 2;
+
+  private static final byte TAG_BIG_DECIMAL = 8;
+
+  private static final byte TAG_BIG_INTEGER = 7;
+
+  private static final byte TAG_FALSE = 3;
+
+  private static final byte TAG_INTEGER = 4;
+
+  private static final byte TAG_LONG = 5;
+
+  private static final byte TAG_NULL = 0;
+
+  private static final byte TAG_STRING = 1;
+
+  private static final byte TAG_TRUE = 2;
+
+  /**
+   * Creates a store that keeps the snapshots in the data area of a bundle.
+   *
+   * @param bundle
+   *          The bundle, normally the one that runs the updates.
+   * @return The store or <code>null</code> if the bundle does not have a data area.
+   */
+  public static ChangeLogSnapshotStore forBundle(final Bundle bundle) {
+    File directory = bundle.getDataFile(DATA_DIRECTORY);
+    return (directory != null) ? new ChangeLogSnapshotStore(directory) : null;
+  }
+
+  private static String computeResourceDigest(final BundleResource bundleResource,
+      final ResourceAccessor resourceAccessor) throws IOException {
+    MessageDigest messageDigest = ChangeLogFastPath.createMessageDigest();
+    Set<InputStream> streams =
+        resourceAccessor.getResourcesAsStream(bundleResource.resourceName);
+    if (streams == null) {
+      throw new IOException("Changelog not found: " + bundleResource.resourceName);
+    }
+    byte[] buffer = new byte[BUFFER_SIZE];
+    for (InputStream stream : streams) {
+      try (InputStream in = stream) {
+        int read = in.read(buffer);
+        while (read >= 0) {
+          messageDigest.update(buffer, 0, read);
+          read = in.read(buffer);
+        }
+      }
+    }
+    return ChangeLogFastPath.toHex(messageDigest.digest());
+  }
+
+  private static String sanitize(final String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0, n = value.length(); i < n; i++) {
+      char c = value.charAt(i);
+      if (((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9'))
+          || (c == '.') || (c == '-')) {
+        sb.append(c);
+      } else {
+        sb.append('_');
+      }
+    }
+    return sb.toString();
+  }
+
+  private static int readVarInt(final DataInputStream in) throws IOException {
+    int result = 0;
+    int shift = 0;
+    int b;
+    do {
+      if (shift > 28) {
+        throw new IOException("Malformed variable length integer");
+      }
+      b = in.readUnsignedByte();
+      result |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return result;
+  }
+
+  private static void writeVarInt(final DataOutputStream out, final int value)
+      throws IOException {
+    int remaining = value;
+    while ((remaining & ~0x7F) != 0) {
+      out.writeByte((remaining & 0x7F) | 0x80);
+      remaining >>>= 7;
+    }
+    out.writeByte(remaining);
+  }
+
+  private final File directory;
+
+  /**
+   * Constructor.
+   *
+   * @param directory
+   *          The directory of the snapshot files. It is created when the first snapshot is
+   *          written.
+   */
+  public ChangeLogSnapshotStore(final File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Deletes all snapshots of the store.
+   */
+  public void clear() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.getName().endsWith(SNAPSHOT_EXTENSION)) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * The file that holds the snapshot of a changelog.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog.
+   * @return The snapshot file. It does not necessarily exist.
+   */
+  public File getFile(final BundleResource bundleResource) {
+    Bundle bundle = bundleResource.bundle;
+    MessageDigest messageDigest = ChangeLogFastPath.createMessageDigest();
+    messageDigest.update((bundle.getSymbolicName() + '\n' + bundle.getVersion() + '\n'
+        + bundleResource.resourceName).getBytes(StandardCharsets.UTF_8));
+    // The sanitized name is for readability only, the file is identified by the hash
+    return new File(directory, sanitize(bundle.getSymbolicName()) + '_'
+        + ChangeLogFastPath.toHex(messageDigest.digest()) + SNAPSHOT_EXTENSION);
+  }
+
+  /**
+   * Loads the node tree of a changelog from its snapshot. If there is no valid snapshot, the
+   * changelog is parsed into a node tree and a new snapshot is written.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog.
+   * @param resourceAccessor
+   *          The resource accessor that reads the changelog.
+   * @return The root node of the tree or <code>null</code> if the changelog cannot be stored in a
+   *         snapshot and it should be parsed as usual.
+   * @throws ChangeLogParseException
+   *           if the changelog could not be parsed.
+   */
+  public ParsedNode loadOrParseNode(final BundleResource bundleResource,
+      final ResourceAccessor resourceAccessor) throws ChangeLogParseException {
+
+    if (!ChangeLogNodeParser.supports(bundleResource)) {
+      return null;
+    }
+    File file = getFile(bundleResource);
+    ParsedNode parsedNode = readSnapshot(file, bundleResource, resourceAccessor);
+
+    ResolutionMetricsListener metricsListener = ResolutionMetrics.getListener();
+    if (metricsListener != null) {
+      metricsListener.cacheAccessed(ResolutionMetrics.CACHE_CHANGELOG_SNAPSHOT,
+          parsedNode != null);
+    }
+
+    if (parsedNode == null) {
+      String contentDigest;
+      try {
+        contentDigest = computeResourceDigest(bundleResource, resourceAccessor);
+      } catch (IOException e) {
+        return null;
+      }
+      parsedNode = ChangeLogNodeParser.parseToNode(bundleResource, resourceAccessor);
+      if (parsedNode == null) {
+        return null;
+      }
+      writeSnapshot(file, bundleResource, contentDigest, parsedNode);
+    }
+    return parsedNode;
+  }
+
+  private ParsedNode readSnapshot(final File file, final BundleResource bundleResource,
+      final ResourceAccessor resourceAccessor) {
+    Bundle bundle = bundleResource.bundle;
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+
+      if ((in.readInt() != MAGIC) || (in.readByte() != FORMAT_VERSION)) {
+        return null;
+      }
+      SnapshotReader reader = new SnapshotReader(in);
+      if (!bundle.getSymbolicName().equals(reader.readString())
+          || !bundle.getVersion().toString().equals(reader.readString())
+          || (bundle.getLastModified() != in.readLong())
+          || !bundleResource.resourceName.equals(reader.readString())) {
+        return null;
+      }
+      // The changelog file is read only if the snapshot belongs to the current bundle
+      if (!computeResourceDigest(bundleResource, resourceAccessor).equals(reader.readString())) {
+        return null;
+      }
+      int attributeCount = readVarInt(in);
+      for (int i = 0; i < attributeCount; i++) {
+        // The attributes are stored for diagnostics only
+        reader.readString();
+        reader.readValue();
+      }
+      return reader.readNode();
+    } catch (IOException | ParsedNodeException | RuntimeException e) {
+      // A missing or unreadable snapshot is replaced by a new one
+      return null;
+    }
+  }
+
+  private void writeSnapshot(final File file, final BundleResource bundleResource,
+      final String contentDigest, final ParsedNode parsedNode) {
+    Bundle bundle = bundleResource.bundle;
+    File tmpFile = null;
+    try {
+      Files.createDirectories(directory.toPath());
+      tmpFile = File.createTempFile(file.getName(), ".tmp", directory);
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tmpFile.toPath())))) {
+
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        SnapshotWriter writer = new SnapshotWriter(out);
+        writer.writeString(bundle.getSymbolicName());
+        writer.writeString(bundle.getVersion().toString());
+        out.writeLong(bundle.getLastModified());
+        writer.writeString(bundleResource.resourceName);
+        writer.writeString(contentDigest);
+        writeVarInt(out, bundleResource.attributes.size());
+        for (Map.Entry<String, Object> attribute : bundleResource.attributes.entrySet()) {
+          writer.writeString(attribute.getKey());
+          Object value = attribute.getValue();
+          writer.writeValue((value instanceof String) ? value : String.valueOf(value));
+        }
+        writer.writeNode(parsedNode);
+      }
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      tmpFile = null;
+    } catch (IOException e) {
+      // The changelog is parsed again next time
+    } finally {
+      if (tmpFile != null) {
+        tmpFile.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import org.osgi.framework.Filter;
+
+/**
+ * The result of compiling a schema expression. Either holds the schema name, the OSGi filter and
+ * the {@link AttributeMatcher} or the message of the syntax error that occured during the
+ * compilation.
+ */
+final class CompiledSchemaExpression {
+
+  /**
+   * Creates a compiled schema expression that holds a syntax error.
+   *
+   * @param errorMessage
+   *          The message of the syntax error.
+   * @return The compiled expression.
+   */
+  static CompiledSchemaExpression error(final String errorMessage) {
+    return new CompiledSchemaExpression(null, null, null, errorMessage);
+  }
+
+  private final String errorMessage;
+
+  private final Filter filter;
+
+  private final String literalSchemaName;
+
+  private final AttributeMatcher matcher;
+
+  private final String schemaName;
+
+  CompiledSchemaExpression(final String schemaName, final Filter filter,
+      final AttributeMatcher matcher) {
+    this(schemaName, filter, matcher, null);
+  }
+
+  private CompiledSchemaExpression(final String schemaName, final Filter filter,
+      final AttributeMatcher matcher, final String errorMessage) {
+    this.schemaName = schemaName;
+    this.literalSchemaName =
+        ((schemaName != null) && AttributeMatcher.isLiteral(schemaName)) ? schemaName : null;
+    this.filter = filter;
+    this.matcher = matcher;
+    this.errorMessage = errorMessage;
+  }
+
+  /**
+   * Returns the OSGi filter of the schema expression.
+   *
+   * @return The filter.
+   * @throws SchemaExpressionSyntaxException
+   *           if the schema expression could not be compiled.
+   */
+  Filter getFilter() {
+    checkError();
+    return filter;
+  }
+
+  /**
+   * Returns the schema name of the expression if it matches only the capabilities with exactly the
+   * same name, so the capabilities can be looked up by their name.
+   *
+   * @return The schema name or <code>null</code> if it contains wildcards or escaped characters
+   *         and so every capability has to be checked.
+   * @throws SchemaExpressionSyntaxException
+   *           if the schema expression could not be compiled.
+   */
+  String getLiteralSchemaName() {
+    checkError();
+    return literalSchemaName;
+  }
+
+  /**
+   * Returns the matcher of the schema expression that should be used instead of the filter to
+   * check the attributes of capabilities.
+   *
+   * @return The matcher.
+   * @throws SchemaExpressionSyntaxException
+   *           if the schema expression could not be compiled.
+   */
+  AttributeMatcher getMatcher() {
+    checkError();
+    return matcher;
+  }
+
+  /**
+   * Returns the schema name of the expression (the part before the first semicolon).
+   *
+   * @return The schema name.
+   * @throws SchemaExpressionSyntaxException
+   *           if the schema expression could not be compiled.
+   */
+  String getSchemaName() {
+    checkError();
+    return schemaName;
+  }
+
+  private void checkError() {
+    if (errorMessage != null) {
+      throw new SchemaExpressionSyntaxException(errorMessage);
+    }
+  }
+}
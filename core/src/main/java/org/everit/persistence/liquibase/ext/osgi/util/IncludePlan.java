@@ -0,0 +1,540 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetricsListener;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * The include graph of the {@value LiquibaseEOSGiConstants#CAPABILITY_NS_LIQUIBASE_CHANGELOG}
+ * wires that are reachable from a set of root bundles. The plan is resolved in one pass before the
+ * changelogs are parsed, so the ".osgi" includes can be resolved by the parser without further
+ * wiring lookups (see
+ * {@link org.everit.persistence.liquibase.ext.osgi.EOSGiParserContext#setIncludePlan(IncludePlan)}
+ * ).
+ *
+ * <p>
+ * The wires between bundles may form cycles, as a bundle can provide a changelog that is included
+ * by another bundle and include a different changelog of that bundle. Include cycles are therefore
+ * detected on the graph of the changelogs, i.e. the (bundle, resource) pairs, where the edges are
+ * the ".osgi" includes of the changelogs. The includes of a changelog are known up front if its
+ * bundle has a {@link ChangeLogIndex}, otherwise the cycles are detected by the parser when it
+ * reaches them.
+ *
+ * <p>
+ * The plan is immutable, so it can be used from several threads and it can be reused between
+ * runs as long as {@link #isCurrent()} returns <code>true</code>.
+ *
+ * <p>
+ * If a bundle of the plan has a {@link ChangeLogIndex}, the include expressions that are listed
+ * in the index are resolved when the plan is created, so the parser gets them without evaluating
+ * any filter.
+ */
+public final class IncludePlan {
+
+  /**
+   * The wires of one bundle in the plan.
+   */
+  private static final class Node {
+
+    final Bundle bundle;
+
+    final BundleWiring bundleWiring;
+
+    int level;
+
+    final Map<String, BundleResource> plannedIncludes = new HashMap<String, BundleResource>();
+
+    final Set<Long> providerBundleIds = new LinkedHashSet<Long>();
+
+    final List<BundleResource> wiredResources = new ArrayList<BundleResource>();
+
+    final Map<String, List<BundleResource>> wiredResourcesBySchemaName =
+        new HashMap<String, List<BundleResource>>();
+
+    Node(final Bundle bundle, final BundleWiring bundleWiring) {
+      this.bundle = bundle;
+      this.bundleWiring = bundleWiring;
+    }
+
+    void addWiredResource(final BundleResource bundleResource,
+        final CapabilityAttributes capabilityAttributes) {
+      wiredResources.add(bundleResource);
+      for (String schemaName : capabilityAttributes.schemaNames) {
+        addWiredResource(schemaName, bundleResource);
+      }
+    }
+
+    private void addWiredResource(final String schemaName, final BundleResource bundleResource) {
+      List<BundleResource> resources = wiredResourcesBySchemaName.get(schemaName);
+      if (resources == null) {
+        resources = new ArrayList<BundleResource>(1);
+        wiredResourcesBySchemaName.put(schemaName, resources);
+      }
+      resources.add(bundleResource);
+    }
+  }
+
+  /**
+   * A changelog in the include graph of the plan.
+   */
+  private static final class ResourceNode {
+
+    final BundleResource bundleResource;
+
+    /**
+     * The changelogs that the changelog includes or <code>null</code> if its includes are not
+     * known before it is parsed.
+     */
+    List<ResourceNode> includes;
+
+    ResourceNode(final BundleResource bundleResource) {
+      this.bundleResource = bundleResource;
+    }
+  }
+
+  private static final int STATE_IN_PROGRESS = 1;
+
+  private static final int STATE_VISITED = 2;
+
+  private static StringBuilder appendResource(final StringBuilder sb,
+      final ResourceNode resourceNode) {
+    BundleResource bundleResource = resourceNode.bundleResource;
+    return sb.append(bundleResource.bundle).append(':').append(bundleResource.resourceName);
+  }
+
+  /**
+   * Resolves the include plan of the provided root bundles by walking their
+   * {@value LiquibaseEOSGiConstants#CAPABILITY_NS_LIQUIBASE_CHANGELOG} wires transitively.
+   *
+   * @param rootBundles
+   *          The bundles that hold the root changelogs.
+   * @return The resolved plan.
+   * @throws IncludeCycleException
+   *           if the indexed includes of the changelogs form a cycle.
+   * @throws IllegalArgumentException
+   *           if one of the root bundles is not resolved.
+   */
+  public static IncludePlan create(final Collection<Bundle> rootBundles) {
+    Map<Long, Node> nodes = new LinkedHashMap<Long, Node>();
+    Map<BundleCapability, BundleResource> resourceByCapability =
+        new IdentityHashMap<BundleCapability, BundleResource>();
+    LinkedList<Bundle> queue = new LinkedList<Bundle>();
+
+    for (Bundle rootBundle : rootBundles) {
+      if (!nodes.containsKey(rootBundle.getBundleId())) {
+        BundleWiring bundleWiring = rootBundle.adapt(BundleWiring.class);
+        if (bundleWiring == null) {
+          throw new IllegalArgumentException("Bundle is not resolved: " + rootBundle);
+        }
+        nodes.put(rootBundle.getBundleId(), new Node(rootBundle, bundleWiring));
+        queue.add(rootBundle);
+      }
+    }
+
+    while (!queue.isEmpty()) {
+      Node node = nodes.get(queue.removeFirst().getBundleId());
+      List<BundleWire> wires = node.bundleWiring
+          .getRequiredWires(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG);
+      if (wires == null) {
+        continue;
+      }
+      for (BundleWire wire : wires) {
+        BundleCapability capability = wire.getCapability();
+        CapabilityAttributes capabilityAttributes = CapabilityAttributes.of(capability);
+        if (capabilityAttributes.resourceName == null) {
+          continue;
+        }
+        BundleResource bundleResource = resourceByCapability.get(capability);
+        if (bundleResource == null) {
+          bundleResource = new BundleResource(capability.getRevision().getBundle(),
+              capabilityAttributes.resourceName, capabilityAttributes.attributes);
+          resourceByCapability.put(capability, bundleResource);
+        }
+        node.addWiredResource(bundleResource, capabilityAttributes);
+
+        Bundle providerBundle = bundleResource.bundle;
+        long providerBundleId = providerBundle.getBundleId();
+        if (providerBundleId != node.bundle.getBundleId()) {
+          node.providerBundleIds.add(providerBundleId);
+        }
+        if (!nodes.containsKey(providerBundleId)) {
+          nodes.put(providerBundleId, new Node(providerBundle, wire.getProviderWiring()));
+          queue.add(providerBundle);
+        }
+      }
+    }
+
+    List<Node> orderedNodes = new ArrayList<Node>(nodes.size());
+    Map<Long, Integer> visitStates = new HashMap<Long, Integer>();
+    for (Node node : nodes.values()) {
+      visit(node, nodes, visitStates, orderedNodes);
+    }
+    return new IncludePlan(nodes, orderedNodes);
+  }
+
+  private static String createCycleMessage(final LinkedList<ResourceNode> path,
+      final ResourceNode resourceNode) {
+    StringBuilder sb = new StringBuilder("Cyclic ")
+        .append(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG)
+        .append(" includes between changelogs: ");
+    boolean inCycle = false;
+    for (ResourceNode pathNode : path) {
+      inCycle = inCycle || (pathNode == resourceNode);
+      if (inCycle) {
+        appendResource(sb, pathNode).append(" -> ");
+      }
+    }
+    return appendResource(sb, resourceNode).toString();
+  }
+
+  private static String getResourceKey(final Bundle bundle, final String resourceName) {
+    return String.valueOf(bundle.getBundleId()) + ':' + resourceName;
+  }
+
+  /**
+   * Checks whether the includes of every changelog in a cycle are known up front. If a changelog
+   * of the cycle is linked to all changelogs of its wires instead, the cycle is not necessarily
+   * real.
+   */
+  private static boolean isKnownCycle(final LinkedList<ResourceNode> path,
+      final ResourceNode resourceNode) {
+    Iterator<ResourceNode> iterator = path.descendingIterator();
+    while (iterator.hasNext()) {
+      ResourceNode pathNode = iterator.next();
+      if (pathNode.includes == null) {
+        return false;
+      }
+      if (pathNode == resourceNode) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void visit(final Node node, final Map<Long, Node> nodes,
+      final Map<Long, Integer> visitStates, final List<Node> orderedNodes) {
+
+    Long bundleId = node.bundle.getBundleId();
+    if (visitStates.containsKey(bundleId)) {
+      // Cyclic wires between bundles are allowed, the cycles of the includes are checked on the
+      // changelogs
+      return;
+    }
+
+    visitStates.put(bundleId, STATE_IN_PROGRESS);
+    int level = 0;
+    for (Long providerBundleId : node.providerBundleIds) {
+      Node providerNode = nodes.get(providerBundleId);
+      visit(providerNode, nodes, visitStates, orderedNodes);
+      if (visitStates.get(providerBundleId) == STATE_VISITED) {
+        level = Math.max(level, providerNode.level + 1);
+      }
+    }
+    node.level = level;
+    visitStates.put(bundleId, STATE_VISITED);
+    orderedNodes.add(node);
+  }
+
+  private final List<Bundle> bundles;
+
+  private final List<List<Bundle>> levels;
+
+  private final Map<Long, Node> nodes;
+
+  private final List<BundleResource> resources;
+
+  private IncludePlan(final Map<Long, Node> nodes, final List<Node> orderedNodes) {
+    this.nodes = nodes;
+
+    List<Bundle> orderedBundles = new ArrayList<Bundle>(orderedNodes.size());
+    List<List<Bundle>> bundleLevels = new ArrayList<List<Bundle>>();
+    for (Node node : orderedNodes) {
+      orderedBundles.add(node.bundle);
+      while (bundleLevels.size() <= node.level) {
+        bundleLevels.add(new ArrayList<Bundle>());
+      }
+      bundleLevels.get(node.level).add(node.bundle);
+    }
+    for (int i = 0, n = bundleLevels.size(); i < n; i++) {
+      bundleLevels.set(i, Collections.unmodifiableList(bundleLevels.get(i)));
+    }
+
+    this.bundles = Collections.unmodifiableList(orderedBundles);
+    this.levels = Collections.unmodifiableList(bundleLevels);
+
+    for (Node node : orderedNodes) {
+      planIndexedIncludes(node);
+    }
+    this.resources = resolveIncludeGraph();
+  }
+
+  /**
+   * Checks whether the wires of a bundle are resolved by this plan.
+   *
+   * @param bundle
+   *          The bundle.
+   * @return <code>true</code> if the bundle is part of the plan.
+   */
+  public boolean contains(final Bundle bundle) {
+    return nodes.containsKey(bundle.getBundleId());
+  }
+
+  /**
+   * Finds the first {@link BundleResource} that is wired to the provided bundle and matches the
+   * schema expression. This is the same as
+   * {@link LiquibaseOSGiUtil#findMatchingWireBySchemaExpression(Bundle, String)} but it uses the
+   * wires that were resolved when the plan was created.
+   *
+   * @param currentBundle
+   *          The bundle that is the consumer in the wire.
+   * @param schemaExpression
+   *          The schema expression that is used to find the matching capability.
+   * @return The {@link BundleResource} or <code>null</code> if no such resource is available.
+   * @throws IllegalArgumentException
+   *           if the bundle is not part of the plan.
+   */
+  public BundleResource findMatchingResource(final Bundle currentBundle,
+      final String schemaExpression) {
+    Node node = nodes.get(currentBundle.getBundleId());
+    if (node == null) {
+      throw new IllegalArgumentException("Bundle is not part of the include plan: "
+          + currentBundle);
+    }
+    ResolutionMetricsListener metricsListener = ResolutionMetrics.getListener();
+    long startNanos = (metricsListener != null) ? System.nanoTime() : 0;
+
+    BundleResource result = node.plannedIncludes.get(schemaExpression);
+    int candidatesScanned = 0;
+    if ((result == null) && (node.wiredResources.size() > 0)) {
+      CompiledSchemaExpression compiledSchemaExpression =
+          LiquibaseOSGiUtil.getSchemaExpressionCache().get(schemaExpression);
+      AttributeMatcher matcher = compiledSchemaExpression.getMatcher();
+      String literalSchemaName = compiledSchemaExpression.getLiteralSchemaName();
+      List<BundleResource> candidates = (literalSchemaName != null)
+          ? node.wiredResourcesBySchemaName.get(literalSchemaName)
+          : node.wiredResources;
+      if (candidates != null) {
+        Iterator<BundleResource> iterator = candidates.iterator();
+        while ((result == null) && iterator.hasNext()) {
+          BundleResource candidate = iterator.next();
+          candidatesScanned++;
+          if (matcher.matches(candidate.attributes)) {
+            result = candidate;
+          }
+        }
+      }
+    }
+
+    if (metricsListener != null) {
+      metricsListener.wireResolved(schemaExpression, candidatesScanned, candidatesScanned,
+          result != null, System.nanoTime() - startNanos);
+    }
+    return result;
+  }
+
+  /**
+   * The bundles of the plan in topological order: every bundle comes after the bundles that it is
+   * wired to, unless the wires of the bundles form a cycle.
+   *
+   * @return The ordered bundles.
+   */
+  public List<Bundle> getBundles() {
+    return bundles;
+  }
+
+  /**
+   * The bundles of the plan grouped into levels. Apart from the wires that close a cycle, the
+   * bundles of a level are only wired to bundles of the previous levels, so the changelogs of the
+   * bundles within one level can be resolved in parallel.
+   *
+   * @return The levels of the bundles, starting with the bundles that are not wired to any other
+   *         bundle.
+   */
+  public List<List<Bundle>> getLevels() {
+    return levels;
+  }
+
+  /**
+   * All {@link BundleResource}s that are wired to any bundle of the plan. Every resource comes
+   * after the resources that it includes. If the includes of a resource are not known up front,
+   * it comes after the resources that are wired to its bundle, unless they form a cycle.
+   *
+   * @return The ordered resources.
+   */
+  public List<BundleResource> getResources() {
+    return resources;
+  }
+
+  /**
+   * The {@link BundleResource}s that are wired to a bundle in the order of the wires.
+   *
+   * @param bundle
+   *          The bundle that is the consumer in the wires.
+   * @return The wired resources or an empty list if the bundle is not part of the plan.
+   */
+  public List<BundleResource> getWiredResources(final Bundle bundle) {
+    Node node = nodes.get(bundle.getBundleId());
+    if (node == null) {
+      return Collections.emptyList();
+    }
+    return Collections.unmodifiableList(node.wiredResources);
+  }
+
+  /**
+   * Checks whether the plan is still valid, that is, all bundles of the plan still have the same
+   * wiring as when the plan was created.
+   *
+   * @return <code>true</code> if the plan can be reused.
+   */
+  public boolean isCurrent() {
+    for (Node node : nodes.values()) {
+      if (node.bundle.adapt(BundleWiring.class) != node.bundleWiring) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether the wires of a bundle can still be resolved by this plan, that is, the bundle
+   * is part of the plan and it still has the same wiring as when the plan was created.
+   *
+   * @param bundle
+   *          The bundle.
+   * @return <code>true</code> if the plan can be used to resolve the includes of the bundle.
+   */
+  public boolean isCurrent(final Bundle bundle) {
+    Node node = nodes.get(bundle.getBundleId());
+    return (node != null) && (bundle.adapt(BundleWiring.class) == node.bundleWiring);
+  }
+
+  private void planIndexedIncludes(final Node node) {
+    ChangeLogIndex index = ChangeLogIndex.of(node.bundle);
+    if ((index == null) || node.wiredResources.isEmpty()) {
+      return;
+    }
+    for (String schemaExpression : index.getAllIncludeExpressions()) {
+      try {
+        BundleResource bundleResource = findMatchingResource(node.bundle, schemaExpression);
+        if (bundleResource != null) {
+          node.plannedIncludes.put(schemaExpression, bundleResource);
+        }
+      } catch (SchemaExpressionSyntaxException e) {
+        // The invalid expression is reported when the parser reaches it
+      }
+    }
+  }
+
+  private List<BundleResource> resolveIncludeGraph() {
+    Map<String, ResourceNode> resourceNodes = new LinkedHashMap<String, ResourceNode>();
+    for (Node node : nodes.values()) {
+      for (BundleResource bundleResource : node.wiredResources) {
+        String key = getResourceKey(bundleResource.bundle, bundleResource.resourceName);
+        if (!resourceNodes.containsKey(key)) {
+          resourceNodes.put(key, new ResourceNode(bundleResource));
+        }
+      }
+    }
+    for (ResourceNode resourceNode : resourceNodes.values()) {
+      resourceNode.includes = resolveIncludes(resourceNode.bundleResource, resourceNodes);
+    }
+
+    List<BundleResource> orderedResources = new ArrayList<BundleResource>(resourceNodes.size());
+    Map<ResourceNode, Integer> visitStates = new IdentityHashMap<ResourceNode, Integer>();
+    LinkedList<ResourceNode> path = new LinkedList<ResourceNode>();
+    for (ResourceNode resourceNode : resourceNodes.values()) {
+      visitResource(resourceNode, resourceNodes, visitStates, path, orderedResources);
+    }
+    return Collections.unmodifiableList(orderedResources);
+  }
+
+  private List<ResourceNode> resolveIncludes(final BundleResource bundleResource,
+      final Map<String, ResourceNode> resourceNodes) {
+    ChangeLogIndex index = ChangeLogIndex.of(bundleResource.bundle);
+    List<String> includeExpressions =
+        (index != null) ? index.getIncludeExpressions(bundleResource.resourceName) : null;
+    if (includeExpressions == null) {
+      return null;
+    }
+    List<ResourceNode> includes = new ArrayList<ResourceNode>(includeExpressions.size());
+    for (String includeExpression : includeExpressions) {
+      BundleResource includedResource;
+      try {
+        includedResource = findMatchingResource(bundleResource.bundle, includeExpression);
+      } catch (SchemaExpressionSyntaxException e) {
+        // E.g. an expression with properties that are expanded during parsing
+        return null;
+      }
+      if (includedResource == null) {
+        return null;
+      }
+      includes.add(resourceNodes.get(
+          getResourceKey(includedResource.bundle, includedResource.resourceName)));
+    }
+    return includes;
+  }
+
+  private void visitResource(final ResourceNode resourceNode,
+      final Map<String, ResourceNode> resourceNodes, final Map<ResourceNode, Integer> visitStates,
+      final LinkedList<ResourceNode> path, final List<BundleResource> orderedResources) {
+
+    Integer visitState = visitStates.get(resourceNode);
+    if (visitState != null) {
+      if ((visitState == STATE_IN_PROGRESS) && isKnownCycle(path, resourceNode)) {
+        throw new IncludeCycleException(createCycleMessage(path, resourceNode));
+      }
+      return;
+    }
+
+    visitStates.put(resourceNode, STATE_IN_PROGRESS);
+    path.addLast(resourceNode);
+    List<ResourceNode> includes = resourceNode.includes;
+    if (includes == null) {
+      // Every changelog that is wired to the bundle might be included
+      includes = new ArrayList<ResourceNode>();
+      for (BundleResource wiredResource : nodes.get(resourceNode.bundleResource.bundle
+          .getBundleId()).wiredResources) {
+        includes.add(resourceNodes.get(
+            getResourceKey(wiredResource.bundle, wiredResource.resourceName)));
+      }
+    }
+    for (ResourceNode include : includes) {
+      visitResource(include, resourceNodes, visitStates, path, orderedResources);
+    }
+    path.removeLast();
+    visitStates.put(resourceNode, STATE_VISITED);
+    orderedResources.add(resourceNode.bundleResource);
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiParserContext;
+import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.exception.ChangeLogParseException;
+import liquibase.parser.core.ParsedNode;
+
+/**
+ * Parses the XML changelogs that are wired to a bundle in the background before the parser
+ * reaches their ".osgi" includes. When the changelog of a bundle is about to be parsed, the
+ * {@value LiquibaseEOSGiConstants#CAPABILITY_NS_LIQUIBASE_CHANGELOG} wires of the bundle are
+ * resolved and the reading of their changelogs into node trees is submitted to an executor. When
+ * the parser reaches an include, it takes the prefetched node tree. If the prefetch has not been
+ * started by the executor yet, the parser runs it on its own thread, so the parser never waits for
+ * a queued task.
+ *
+ * <p>
+ * Only the node trees are prefetched, they are obtained the same way as the parser does it, via
+ * {@link ChangeLogNodeParser#getOrParseNode(BundleResource, liquibase.resource.ResourceAccessor,
+ * EOSGiParserContext)}, so the parsed changelog cache and the snapshot store of the parser context
+ * are used and filled. The node trees do not depend on the {@link ChangeLogParameters}: the
+ * properties are expanded and the includes are resolved when the parser loads the tree on its own
+ * thread, in the order of the changelog tree. Therefore the background tasks never touch the
+ * parameters of the update and they never wait for each other. Changelogs that are skipped by the
+ * fast path, streaming changelogs and changelogs that are not XML files are not prefetched. A
+ * failed prefetch is not reported, the changelog is parsed again by the parser and the failure is
+ * reported then.
+ *
+ * <p>
+ * The executor is owned by the caller, the prefetcher does not shut it down. {@link #clear()}
+ * should be called after an update to drop the prefetched node trees that were not taken, the
+ * {@code StreamingChangeLogUpdater} does it at the end of every update.
+ */
+public final class IncludePrefetcher {
+
+  /**
+   * The identifier of a prefetched changelog. The {@link BundleRevision} is part of the key, so
+   * the node tree of a previous revision of an updated bundle is never taken.
+   */
+  private static final class Key {
+
+    final long bundleId;
+
+    final BundleRevision bundleRevision;
+
+    final String resourceName;
+
+    Key(final BundleResource bundleResource) {
+      Bundle bundle = bundleResource.bundle;
+      this.bundleId = bundle.getBundleId();
+      this.bundleRevision = bundle.adapt(BundleRevision.class);
+      this.resourceName = bundleResource.resourceName;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return (bundleId == other.bundleId) && (bundleRevision == other.bundleRevision)
+          && resourceName.equals(other.resourceName);
+    }
+
+    @Override
+    public int hashCode() {
+      final int prime = 31;
+      int result = 1;
+      result = (prime * result) + (int) (bundleId ^ (bundleId >>> 32));
+      result = (prime * result) + System.identityHashCode(bundleRevision);
+      result = (prime * result) + resourceName.hashCode();
+      return result;
+    }
+  }
+
+  private static List<BundleResource> resolveWiredResources(final Bundle bundle,
+      final EOSGiParserContext parserContext) {
+    IncludePlan includePlan = parserContext.getIncludePlan();
+    if ((includePlan != null) && includePlan.isCurrent(bundle)) {
+      return includePlan.getWiredResources(bundle);
+    }
+    BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
+    if (bundleWiring == null) {
+      return Collections.emptyList();
+    }
+    List<BundleWire> wires =
+        bundleWiring.getRequiredWires(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG);
+    if ((wires == null) || wires.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<BundleResource> result = new ArrayList<BundleResource>(wires.size());
+    for (BundleWire wire : wires) {
+      BundleCapability capability = wire.getCapability();
+      CapabilityAttributes capabilityAttributes = CapabilityAttributes.of(capability);
+      if (capabilityAttributes.resourceName != null) {
+        result.add(new BundleResource(capability.getRevision().getBundle(),
+            capabilityAttributes.resourceName, capabilityAttributes.attributes));
+      }
+    }
+    return result;
+  }
+
+  private final Executor executor;
+
+  private final int maxPendingPrefetches;
+
+  private final AtomicInteger pendingPrefetches = new AtomicInteger();
+
+  private final ConcurrentMap<Key, FutureTask<ParsedNode>> prefetchedNodes =
+      new ConcurrentHashMap<Key, FutureTask<ParsedNode>>();
+
+  /**
+   * Constructor.
+   *
+   * @param executor
+   *          The executor that parses the changelogs in the background. It is not shut down by
+   *          the prefetcher.
+   * @param maxPendingPrefetches
+   *          The maximum number of prefetches that are submitted but not finished. Further
+   *          prefetches are dropped until some of them finish.
+   */
+  public IncludePrefetcher(final Executor executor, final int maxPendingPrefetches) {
+    if (maxPendingPrefetches <= 0) {
+      throw new IllegalArgumentException(
+          "Maximum number of pending prefetches must be positive: " + maxPendingPrefetches);
+    }
+    this.executor = executor;
+    this.maxPendingPrefetches = maxPendingPrefetches;
+  }
+
+  /**
+   * Drops the prefetched node trees that were not taken.
+   */
+  public void clear() {
+    for (FutureTask<ParsedNode> task : prefetchedNodes.values()) {
+      task.cancel(false);
+    }
+    prefetchedNodes.clear();
+  }
+
+  /**
+   * The number of prefetches that are submitted but not finished.
+   *
+   * @return The number of pending prefetches.
+   */
+  public int getPendingPrefetchCount() {
+    return pendingPrefetches.get();
+  }
+
+  private ParsedNode parse(final BundleResource bundleResource,
+      final EOSGiParserContext parserContext) throws ChangeLogParseException {
+    prefetchIncludes(bundleResource.bundle, parserContext);
+    return ChangeLogNodeParser.getOrParseNode(bundleResource, new EOSGiResourceAccessor(
+        bundleResource.bundle, bundleResource.attributes, parserContext), parserContext);
+  }
+
+  /**
+   * Starts parsing the changelogs that are wired to a bundle in the background.
+   *
+   * @param bundle
+   *          The bundle whose changelog is about to be parsed.
+   * @param parserContext
+   *          The parser context of the changelog tree.
+   */
+  public void prefetchIncludes(final Bundle bundle, final EOSGiParserContext parserContext) {
+    ChangeLogFastPath fastPath = parserContext.getFastPath();
+    boolean streamingHandled = parserContext.getStreamingIncludeHandler() != null;
+    for (final BundleResource wiredResource : resolveWiredResources(bundle, parserContext)) {
+      if (!ChangeLogNodeParser.supports(wiredResource)
+          || (streamingHandled && CapabilityAttributes.isStreaming(wiredResource.attributes))
+          || ((fastPath != null) && fastPath.isUnchanged(wiredResource))) {
+        continue;
+      }
+      Key key = new Key(wiredResource);
+      if (prefetchedNodes.containsKey(key)) {
+        continue;
+      }
+      if (pendingPrefetches.incrementAndGet() > maxPendingPrefetches) {
+        // The changelog is parsed when the parser reaches it
+        pendingPrefetches.decrementAndGet();
+        return;
+      }
+      FutureTask<ParsedNode> task = new FutureTask<ParsedNode>(new Callable<ParsedNode>() {
+
+        @Override
+        public ParsedNode call() throws ChangeLogParseException {
+          return parse(wiredResource, parserContext);
+        }
+      }) {
+
+        @Override
+        protected void done() {
+          // Called once when the task finished or it was cancelled
+          pendingPrefetches.decrementAndGet();
+        }
+      };
+      if (prefetchedNodes.putIfAbsent(key, task) != null) {
+        task.cancel(false);
+        continue;
+      }
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        // The executor is busy or shut down, the changelog is parsed when the parser reaches it
+        prefetchedNodes.remove(key, task);
+        task.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Takes the prefetched node tree of a bundle resource. If the parsing of the changelog has not
+   * been started yet, it is parsed on the calling thread. If it is being parsed, the call waits
+   * for the result. The background tasks never wait for each other or for the parser, so the wait
+   * always ends.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog.
+   * @return The node tree of the changelog that must be loaded with
+   *         {@link ChangeLogNodeParser#load(BundleResource, ParsedNode, ChangeLogParameters,
+   *         liquibase.resource.ResourceAccessor)} or <code>null</code> if the changelog was not
+   *         prefetched or the prefetch failed.
+   * @throws ChangeLogParseException
+   *           if the thread was interrupted while waiting for the prefetch.
+   */
+  public ParsedNode take(final BundleResource bundleResource) throws ChangeLogParseException {
+    FutureTask<ParsedNode> task = prefetchedNodes.remove(new Key(bundleResource));
+    if (task == null) {
+      return null;
+    }
+    task.run();
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ChangeLogParseException(e);
+    } catch (CancellationException | ExecutionException e) {
+      // Parsed again by the caller to report the failure
+      return null;
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.osgi.framework.Bundle;
+
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.parser.core.ParsedNode;
+import liquibase.parser.core.ParsedNodeException;
+
+/**
+ * Resolves the ".osgi" includes of a changelog in one batch before the included changelogs are
+ * parsed. The include expressions are collected from the node tree that the changelog is parsed
+ * into, so the changelog is read only once, and the property expressions in them are expanded
+ * with the parameters of the changelog. The expressions are resolved with
+ * {@link LiquibaseOSGiUtil#findMatchingWiresBySchemaExpressions(Bundle, java.util.Collection)} and
+ * the results are memoized, so the includes are served from memory when the changelog is loaded.
+ *
+ * <p>
+ * If the bundle of the changelog has a {@link ChangeLogIndex}, the include expressions are taken
+ * from the index, so also the includes of the changelogs that it includes from the same
+ * bundle are resolved and changelogs that are not parsed into a node tree are covered, too.
+ * The memoized results are valid as long as the wiring of the bundles does not change, so a
+ * prescanner should be used for one changelog tree or update only.
+ */
+public final class IncludePrescanner {
+
+  private static final String ATTR_FILE = "file";
+
+  private static final String ELEMENT_INCLUDE = "include";
+
+  private static void collectIncludeExpressions(final ParsedNode parsedNode,
+      final ChangeLogParameters changeLogParameters, final Collection<String> result) {
+    for (ParsedNode child : parsedNode.getChildren(null, ELEMENT_INCLUDE)) {
+      String file;
+      try {
+        file = child.getChildValue(null, ATTR_FILE, String.class);
+      } catch (ParsedNodeException e) {
+        // The parser reports the problem when it loads the include
+        continue;
+      }
+      if (file != null) {
+        file = expand(file, changeLogParameters);
+        // Properties that the changelog defines itself are only known after loading it
+        if (file.endsWith(LiquibaseEOSGiConstants.INCLUDE_OSGI_EXTENSION) && !file.contains("${")) {
+          result.add(file.substring(0,
+              file.length() - LiquibaseEOSGiConstants.INCLUDE_OSGI_EXTENSION.length()));
+        }
+      }
+    }
+  }
+
+  private static String expand(final String value, final ChangeLogParameters changeLogParameters) {
+    if ((changeLogParameters == null) || !value.contains("${")) {
+      return value;
+    }
+    return changeLogParameters.expandExpressions(value, null);
+  }
+
+  private final ConcurrentMap<Long, ConcurrentMap<String, BundleResource>> resolvedIncludes =
+      new ConcurrentHashMap<Long, ConcurrentMap<String, BundleResource>>();
+
+  /**
+   * Drops all memoized results.
+   */
+  public void clear() {
+    resolvedIncludes.clear();
+  }
+
+  /**
+   * Finds the {@link BundleResource} that is wired to the provided bundle and matches the schema
+   * expression. Memoized results are returned if available, otherwise the wires of the bundle are
+   * analysed.
+   *
+   * @param currentBundle
+   *          The bundle that is the consumer in the wire.
+   * @param schemaExpression
+   *          The schema expression that is used to find the matching capability.
+   * @return The {@link BundleResource} or <code>null</code> if no such resource is available.
+   */
+  public BundleResource findMatchingResource(final Bundle currentBundle,
+      final String schemaExpression) {
+    Map<String, BundleResource> resolvedBundleIncludes =
+        resolvedIncludes.get(currentBundle.getBundleId());
+    if (resolvedBundleIncludes != null) {
+      BundleResource bundleResource = resolvedBundleIncludes.get(schemaExpression);
+      if (bundleResource != null) {
+        return bundleResource;
+      }
+    }
+    BundleResource bundleResource =
+        LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(currentBundle, schemaExpression);
+    if (bundleResource != null) {
+      getResolvedBundleIncludes(currentBundle).put(schemaExpression, bundleResource);
+    }
+    return bundleResource;
+  }
+
+  private ConcurrentMap<String, BundleResource> getResolvedBundleIncludes(final Bundle bundle) {
+    Long bundleId = bundle.getBundleId();
+    ConcurrentMap<String, BundleResource> result = resolvedIncludes.get(bundleId);
+    if (result == null) {
+      ConcurrentMap<String, BundleResource> newResult =
+          new ConcurrentHashMap<String, BundleResource>();
+      result = resolvedIncludes.putIfAbsent(bundleId, newResult);
+      if (result == null) {
+        result = newResult;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Resolves the ".osgi" includes of a changelog in one pass via the wires of the bundle of the
+   * changelog. The include expressions are taken from the {@link ChangeLogIndex} of the bundle
+   * if available, otherwise from the node tree of the changelog. If neither is available, the
+   * includes are resolved one by one when the changelog is loaded.
+   *
+   * @param changeLog
+   *          The resource that points to the changelog.
+   * @param parsedNode
+   *          The node tree of the changelog before it is loaded or <code>null</code> if the
+   *          changelog is not parsed into a node tree.
+   * @param changeLogParameters
+   *          The parameters that the property expressions of the include paths are expanded
+   *          with.
+   */
+  public void prescan(final BundleResource changeLog, final ParsedNode parsedNode,
+      final ChangeLogParameters changeLogParameters) {
+    ChangeLogIndex index = ChangeLogIndex.of(changeLog.bundle);
+    List<String> indexedExpressions =
+        (index != null) ? index.getIncludeExpressions(changeLog.resourceName) : null;
+    Set<String> schemaExpressions = new LinkedHashSet<String>();
+    if (indexedExpressions != null) {
+      for (String indexedExpression : indexedExpressions) {
+        String schemaExpression = expand(indexedExpression, changeLogParameters);
+        if (!schemaExpression.contains("${")) {
+          schemaExpressions.add(schemaExpression);
+        }
+      }
+    } else if (parsedNode != null) {
+      collectIncludeExpressions(parsedNode, changeLogParameters, schemaExpressions);
+    }
+    if (!schemaExpressions.isEmpty()) {
+      resolve(changeLog, schemaExpressions);
+    }
+  }
+
+  private void resolve(final BundleResource changeLog,
+      final Collection<String> schemaExpressions) {
+    Map<String, BundleResource> resolvedBundleIncludes =
+        getResolvedBundleIncludes(changeLog.bundle);
+    List<String> unresolvedExpressions = new ArrayList<String>(schemaExpressions.size());
+    for (String schemaExpression : schemaExpressions) {
+      if (!resolvedBundleIncludes.containsKey(schemaExpression)) {
+        unresolvedExpressions.add(schemaExpression);
+      }
+    }
+    if (unresolvedExpressions.isEmpty()) {
+      return;
+    }
+
+    Map<String, BundleResource> batchResult;
+    try {
+      batchResult = LiquibaseOSGiUtil.findMatchingWiresBySchemaExpressions(changeLog.bundle,
+          unresolvedExpressions);
+    } catch (SchemaExpressionSyntaxException e) {
+      // The invalid expression is reported when the parser reaches it
+      return;
+    }
+    for (Map.Entry<String, BundleResource> entry : batchResult.entrySet()) {
+      if (entry.getValue() != null) {
+        resolvedBundleIncludes.put(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+}
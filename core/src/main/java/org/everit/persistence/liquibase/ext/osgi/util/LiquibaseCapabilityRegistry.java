@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetricsListener;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.util.tracker.BundleTracker;
+import org.osgi.util.tracker.BundleTrackerCustomizer;
+
+/**
+ * Registry of the {@value LiquibaseEOSGiConstants#CAPABILITY_NS_LIQUIBASE_CHANGELOG} capabilities
+ * of the resolved bundles in the OSGi container. The registry is maintained incrementally by a
+ * {@link BundleTracker}, so queries do not have to walk all bundles and their capabilities. The
+ * {@link BundleResource}s are grouped by schema name and by bundle state, so a query with a literal
+ * schema name only filters the matching buckets. Schema names with wildcards or escaped characters
+ * are checked against every bucket.
+ *
+ * <p>
+ * The registry must be opened before use and closed when it is not needed anymore.
+ */
+public class LiquibaseCapabilityRegistry {
+
+  /**
+   * The registered resources of a tracked bundle.
+   */
+  private static final class TrackedBundle {
+
+    final Bundle bundle;
+
+    final List<String> schemaNames = new ArrayList<String>();
+
+    final List<BundleResource> resources = new ArrayList<BundleResource>();
+
+    int state;
+
+    TrackedBundle(final Bundle bundle, final int state) {
+      this.bundle = bundle;
+      this.state = state;
+    }
+  }
+
+  /**
+   * Customizer that keeps the buckets of the registry up to date.
+   */
+  private class TrackerCustomizer implements BundleTrackerCustomizer<TrackedBundle> {
+
+    @Override
+    public TrackedBundle addingBundle(final Bundle bundle, final BundleEvent event) {
+      TrackedBundle trackedBundle = extractResources(bundle);
+      if (trackedBundle != null) {
+        synchronized (lock) {
+          trackedBundles.put(bundle, trackedBundle);
+          addToBuckets(trackedBundle);
+        }
+      }
+      return trackedBundle;
+    }
+
+    @Override
+    public void modifiedBundle(final Bundle bundle, final BundleEvent event,
+        final TrackedBundle trackedBundle) {
+      // The capabilities are extracted again as the bundle might have a new wiring
+      TrackedBundle modifiedBundle = extractResources(bundle);
+      synchronized (lock) {
+        removeFromBuckets(trackedBundle);
+        trackedBundle.schemaNames.clear();
+        trackedBundle.resources.clear();
+        if (modifiedBundle != null) {
+          trackedBundle.state = modifiedBundle.state;
+          trackedBundle.schemaNames.addAll(modifiedBundle.schemaNames);
+          trackedBundle.resources.addAll(modifiedBundle.resources);
+        }
+        addToBuckets(trackedBundle);
+      }
+    }
+
+    @Override
+    public void removedBundle(final Bundle bundle, final BundleEvent event,
+        final TrackedBundle trackedBundle) {
+      synchronized (lock) {
+        trackedBundles.remove(bundle);
+        removeFromBuckets(trackedBundle);
+      }
+    }
+  }
+
+  /**
+   * The bundle states that are tracked by the registry. These are the states where the bundles
+   * have a wiring.
+   */
+  public static final int TRACKED_BUNDLE_STATES =
+      Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING;
+
+  private static final Comparator<Bundle> BUNDLE_COMPARATOR = new Comparator<Bundle>() {
+    @Override
+    public int compare(final Bundle o1, final Bundle o2) {
+      long bundleId1 = o1.getBundleId();
+      long bundleId2 = o2.getBundleId();
+      if (bundleId1 < bundleId2) {
+        return -1;
+      }
+      return (bundleId1 == bundleId2) ? 0 : 1;
+    }
+  };
+
+  private static final Comparator<BundleResource> BUNDLE_ID_COMPARATOR =
+      new Comparator<BundleResource>() {
+        @Override
+        public int compare(final BundleResource o1, final BundleResource o2) {
+          long bundleId1 = o1.bundle.getBundleId();
+          long bundleId2 = o2.bundle.getBundleId();
+          if (bundleId1 < bundleId2) {
+            return -1;
+          }
+          return (bundleId1 == bundleId2) ? 0 : 1;
+        }
+      };
+
+
+  private static TrackedBundle extractResources(final Bundle bundle) {
+    BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
+    if (bundleWiring == null) {
+      return null;
+    }
+    TrackedBundle trackedBundle = new TrackedBundle(bundle, bundle.getState());
+    List<BundleCapability> capabilities =
+        bundleWiring.getCapabilities(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG);
+    if (capabilities == null) {
+      return trackedBundle;
+    }
+    for (BundleCapability capability : capabilities) {
+      CapabilityAttributes capabilityAttributes = CapabilityAttributes.of(capability);
+      if (capabilityAttributes.resourceName != null) {
+        BundleResource bundleResource = new BundleResource(bundle,
+            capabilityAttributes.resourceName, capabilityAttributes.attributes);
+        for (String schemaName : capabilityAttributes.schemaNames) {
+          trackedBundle.schemaNames.add(schemaName);
+          trackedBundle.resources.add(bundleResource);
+        }
+      }
+    }
+    return trackedBundle;
+  }
+
+  /**
+   * Buckets of the resources by schema name and bundle state.
+   */
+  private final Map<String, Map<Integer, List<BundleResource>>> buckets =
+      new HashMap<String, Map<Integer, List<BundleResource>>>();
+
+  private final Object lock = new Object();
+
+  private final BundleTracker<TrackedBundle> tracker;
+
+  /**
+   * The tracked bundles that have a wiring, used to restore the declaration order of the
+   * capabilities within a bundle.
+   */
+  private final Map<Bundle, TrackedBundle> trackedBundles = new HashMap<Bundle, TrackedBundle>();
+
+  /**
+   * Constructor.
+   *
+   * @param bundleContext
+   *          The context of any active bundle in the OSGi environment that is used to track the
+   *          bundles.
+   */
+  public LiquibaseCapabilityRegistry(final BundleContext bundleContext) {
+    this.tracker = new BundleTracker<TrackedBundle>(bundleContext, TRACKED_BUNDLE_STATES,
+        new TrackerCustomizer());
+  }
+
+  /**
+   * Adds the matching resources to the result in the order of the bundle ids and within a bundle
+   * in the order of the capability declarations, like the direct query of the bundles does. The
+   * buckets of the schema names cannot be used for that as a bundle can provide capabilities in
+   * several buckets. Must be called while holding the lock.
+   */
+  private void addInDeclarationOrder(final Set<BundleResource> matchingResources,
+      final List<BundleResource> result) {
+    List<Bundle> matchingBundles = new ArrayList<Bundle>();
+    Set<Bundle> visitedBundles = new HashSet<Bundle>();
+    for (BundleResource bundleResource : matchingResources) {
+      if (visitedBundles.add(bundleResource.bundle)) {
+        matchingBundles.add(bundleResource.bundle);
+      }
+    }
+    Collections.sort(matchingBundles, BUNDLE_COMPARATOR);
+    for (Bundle bundle : matchingBundles) {
+      // A resource is listed once for every schema name of its capability
+      for (BundleResource bundleResource : trackedBundles.get(bundle).resources) {
+        if (matchingResources.remove(bundleResource)) {
+          result.add(bundleResource);
+        }
+      }
+    }
+  }
+
+  private void addToBuckets(final TrackedBundle trackedBundle) {
+    Integer state = trackedBundle.state;
+    for (int i = 0, n = trackedBundle.schemaNames.size(); i < n; i++) {
+      String schemaName = trackedBundle.schemaNames.get(i);
+      Map<Integer, List<BundleResource>> resourcesByState = buckets.get(schemaName);
+      if (resourcesByState == null) {
+        resourcesByState = new HashMap<Integer, List<BundleResource>>();
+        buckets.put(schemaName, resourcesByState);
+      }
+      List<BundleResource> resources = resourcesByState.get(state);
+      if (resources == null) {
+        resources = new ArrayList<BundleResource>();
+        resourcesByState.put(state, resources);
+      }
+      resources.add(trackedBundle.resources.get(i));
+    }
+  }
+
+  /**
+   * Stops tracking the bundles and drops the content of the registry.
+   */
+  public void close() {
+    tracker.close();
+    synchronized (lock) {
+      buckets.clear();
+      trackedBundles.clear();
+    }
+  }
+
+  private int filterResources(final Map<Integer, List<BundleResource>> resourcesByState,
+      final int necessaryBundleStates, final AttributeMatcher matcher,
+      final Collection<BundleResource> result) {
+    int filterEvaluations = 0;
+    for (Map.Entry<Integer, List<BundleResource>> entry : resourcesByState.entrySet()) {
+      if ((entry.getKey() & necessaryBundleStates) != 0) {
+        for (BundleResource bundleResource : entry.getValue()) {
+          filterEvaluations++;
+          if (matcher.matches(bundleResource.attributes)) {
+            result.add(bundleResource);
+          }
+        }
+      }
+    }
+    return filterEvaluations;
+  }
+
+  /**
+   * Find {@link BundleResource}s based on a schema expression in the registry. The result is the
+   * same as the result of
+   * {@link LiquibaseOSGiUtil#findBundlesBySchemaExpression(String, BundleContext, int)} for bundles
+   * that have one of the {@link #TRACKED_BUNDLE_STATES}.
+   *
+   * @param schemaExpression
+   *          The schema expression.
+   * @param necessaryBundleStates
+   *          Only those bundles will be analysed that have the of the necessary bundle states.
+   * @return The list of {@link BundleResource}s that point to liquibase changelog files, ordered by
+   *         the id of the bundles.
+   * @throws SchemaExpressionSyntaxException
+   *           if the provided schema expression is not valid.
+   */
+  public List<BundleResource> findBundlesBySchemaExpression(final String schemaExpression,
+      final int necessaryBundleStates) {
+    ResolutionMetricsListener metricsListener = ResolutionMetrics.getListener();
+    long startNanos = (metricsListener != null) ? System.nanoTime() : 0;
+    int filterEvaluations = 0;
+
+    CompiledSchemaExpression compiledSchemaExpression =
+        LiquibaseOSGiUtil.getSchemaExpressionCache().get(schemaExpression);
+    AttributeMatcher matcher = compiledSchemaExpression.getMatcher();
+
+    List<BundleResource> result = new ArrayList<BundleResource>();
+    String literalSchemaName = compiledSchemaExpression.getLiteralSchemaName();
+    synchronized (lock) {
+      if (literalSchemaName != null) {
+        Map<Integer, List<BundleResource>> resourcesByState = buckets.get(literalSchemaName);
+        if (resourcesByState != null) {
+          filterEvaluations += filterResources(resourcesByState, necessaryBundleStates, matcher,
+              result);
+        }
+      } else {
+        // A resource is in the bucket of every schema name of its capability
+        Set<BundleResource> matchingResources =
+            Collections.newSetFromMap(new IdentityHashMap<BundleResource, Boolean>());
+        for (Map<Integer, List<BundleResource>> resourcesByState : buckets.values()) {
+          filterEvaluations += filterResources(resourcesByState, necessaryBundleStates, matcher,
+              matchingResources);
+        }
+        addInDeclarationOrder(matchingResources, result);
+      }
+    }
+    Collections.sort(result, BUNDLE_ID_COMPARATOR);
+    if (metricsListener != null) {
+      metricsListener.bundlesQueried(schemaExpression, filterEvaluations, filterEvaluations,
+          result.size(), System.nanoTime() - startNanos);
+    }
+    return result;
+  }
+
+  /**
+   * Starts tracking the bundles of the OSGi container.
+   */
+  public void open() {
+    tracker.open();
+  }
+
+  private void removeFromBuckets(final TrackedBundle trackedBundle) {
+    Integer state = trackedBundle.state;
+    for (int i = 0, n = trackedBundle.schemaNames.size(); i < n; i++) {
+      String schemaName = trackedBundle.schemaNames.get(i);
+      Map<Integer, List<BundleResource>> resourcesByState = buckets.get(schemaName);
+      if (resourcesByState != null) {
+        List<BundleResource> resources = resourcesByState.get(state);
+        if (resources != null) {
+          resources.remove(trackedBundle.resources.get(i));
+          if (resources.isEmpty()) {
+            resourcesByState.remove(state);
+          }
+        }
+        if (resourcesByState.isEmpty()) {
+          buckets.remove(schemaName);
+        }
+      }
+    }
+  }
+}
@@ -16,7 +16,10 @@
 package org.everit.persistence.liquibase.ext.osgi.util;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -25,6 +28,8 @@ import org.apache.felix.utils.manifest.Clause;
 import org.apache.felix.utils.manifest.Directive;
 import org.apache.felix.utils.manifest.Parser;
 import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetricsListener;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -40,49 +45,75 @@ import org.osgi.framework.wiring.BundleWiring;
  */
 public final class LiquibaseOSGiUtil {
 
+  private static final BundleFileStreamProvider BUNDLE_FILE_STREAM_PROVIDER =
+      new BundleFileStreamProvider();
+
+  private static final BundleWiringIndex BUNDLE_WIRING_INDEX = new BundleWiringIndex();
+
+  private static final SchemaExpressionCache SCHEMA_EXPRESSION_CACHE =
+      new SchemaExpressionCache(Integer.getInteger(
+          LiquibaseEOSGiConstants.SYSPROP_SCHEMA_EXPRESSION_CACHE_SIZE,
+          LiquibaseEOSGiConstants.DEFAULT_SCHEMA_EXPRESSION_CACHE_SIZE));
+
   /**
-   * Creates an OSGi filter based on a schema expression.
+   * Compiles a schema expression without using the cache.
    *
    * @param schemaExpression
    *          A schema expression like <code>myschema;filter:=(xx=yy)</code>
-   * @return The OSGi filter instance that contains the merge of the schema name (before the first
-   *         semicolon) and the optional filter expression. With the example at the parameter:
-   *         <code>(&amp;(name=myschema)(xx=yy))</code>.
-   * @throws SchemaExpressionSyntaxException
-   *           if the provided schema expression is not valid.
+   * @return The compiled schema expression that holds the syntax error if the expression is not
+   *         valid.
    */
-  public static Filter createFilterForLiquibaseCapabilityAttributes(final String schemaExpression) {
+  static CompiledSchemaExpression compileSchemaExpression(final String schemaExpression) {
     Clause[] clauses = Parser.parseClauses(new String[] { schemaExpression });
     if (clauses.length != 1) {
-      throw new SchemaExpressionSyntaxException(
+      return CompiledSchemaExpression.error(
           "The number of Clauses in the Schema expression should be 1");
     }
     Clause clause = clauses[0];
     String schemaName = clause.getName();
     Attribute[] attributes = clause.getAttributes();
     if (attributes.length > 0) {
-      throw new SchemaExpressionSyntaxException(
+      return CompiledSchemaExpression.error(
           "No Attributes in the schema expresson are supported.");
     }
     Directive[] directives = clause.getDirectives();
     String filterString =
         "(" + LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG + "=" + schemaName + ")";
+    String additionalFilterString = null;
     if (directives.length == 1) {
       if (!Constants.FILTER_DIRECTIVE.equals(directives[0].getName())) {
-        throw new SchemaExpressionSyntaxException(
+        return CompiledSchemaExpression.error(
             "Only the 'filter' directive is supported in the schema expression");
       }
-      String additionalFilterString = directives[0].getValue();
+      additionalFilterString = directives[0].getValue();
       filterString = "(&" + filterString + additionalFilterString + ")";
 
     }
     try {
-      return FrameworkUtil.createFilter(filterString);
+      Filter filter = FrameworkUtil.createFilter(filterString);
+      return new CompiledSchemaExpression(schemaName, filter,
+          AttributeMatcher.compile(schemaName, additionalFilterString, filter));
     } catch (InvalidSyntaxException e) {
-      throw new SchemaExpressionSyntaxException("The filter contains an invalid filter string");
+      return CompiledSchemaExpression.error("The filter contains an invalid filter string");
     }
   }
 
+  /**
+   * Creates an OSGi filter based on a schema expression. The compiled filters are cached, see
+   * {@link #getSchemaExpressionCache()}.
+   *
+   * @param schemaExpression
+   *          A schema expression like <code>myschema;filter:=(xx=yy)</code>
+   * @return The OSGi filter instance that contains the merge of the schema name (before the first
+   *         semicolon) and the optional filter expression. With the example at the parameter:
+   *         <code>(&amp;(name=myschema)(xx=yy))</code>.
+   * @throws SchemaExpressionSyntaxException
+   *           if the provided schema expression is not valid.
+   */
+  public static Filter createFilterForLiquibaseCapabilityAttributes(final String schemaExpression) {
+    return SCHEMA_EXPRESSION_CACHE.get(schemaExpression).getFilter();
+  }
+
   /**
    * Find {@link BundleResource}s based on a schema expression in the OSGi container by analysing
    * all {@link BundleCapability}s that belong to any bundle that is in one of the expected states.
@@ -98,8 +129,12 @@ public final class LiquibaseOSGiUtil {
    */
   public static List<BundleResource> findBundlesBySchemaExpression(final String schemaExpression,
       final BundleContext bundleContext, final int necessaryBundleStates) {
-    Filter filter =
-        LiquibaseOSGiUtil.createFilterForLiquibaseCapabilityAttributes(schemaExpression);
+    ResolutionMetricsListener metricsListener = ResolutionMetrics.getListener();
+    long startNanos = (metricsListener != null) ? System.nanoTime() : 0;
+    int capabilitiesScanned = 0;
+    int filterEvaluations = 0;
+
+    AttributeMatcher matcher = SCHEMA_EXPRESSION_CACHE.get(schemaExpression).getMatcher();
 
     List<BundleResource> result = new ArrayList<BundleResource>();
     Bundle[] bundles = bundleContext.getBundles();
@@ -111,13 +146,13 @@ public final class LiquibaseOSGiUtil {
             bundleWiring
                 .getCapabilities(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG);
         for (BundleCapability capability : capabilities) {
-          Map<String, Object> attributes = capability.getAttributes();
-          Object schemaResourceAttr =
-              attributes.get(LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE);
-          if (schemaResourceAttr != null) {
-            if (filter.matches(attributes)) {
-              result
-                  .add(new BundleResource(bundle, String.valueOf(schemaResourceAttr), attributes));
+          capabilitiesScanned++;
+          CapabilityAttributes capabilityAttributes = CapabilityAttributes.of(capability);
+          if (capabilityAttributes.resourceName != null) {
+            filterEvaluations++;
+            if (matcher.matches(capabilityAttributes.attributes)) {
+              result.add(new BundleResource(bundle, capabilityAttributes.resourceName,
+                  capabilityAttributes.attributes));
             }
           } else {
             // TODO log
@@ -125,9 +160,39 @@ public final class LiquibaseOSGiUtil {
         }
       }
     }
+    if (metricsListener != null) {
+      metricsListener.bundlesQueried(schemaExpression, capabilitiesScanned, filterEvaluations,
+          result.size(), System.nanoTime() - startNanos);
+    }
     return result;
   }
 
+  /**
+   * Find {@link BundleResource}s based on a schema expression. If a registry is provided, it is
+   * used instead of analysing all bundles of the OSGi container.
+   *
+   * @param schemaExpression
+   *          The schema expression.
+   * @param bundleContext
+   *          The context of any active bundle in the OSGi environment to query the list of the
+   *          bundles if no registry is provided.
+   * @param necessaryBundleStates
+   *          Only those bundles will be analysed that have the of the necessary bundle states.
+   * @param registry
+   *          An opened capability registry or <code>null</code>.
+   * @return The list of {@link BundleResource}s that point to liquibase changelog files.
+   * @see LiquibaseCapabilityRegistry
+   */
+  public static List<BundleResource> findBundlesBySchemaExpression(final String schemaExpression,
+      final BundleContext bundleContext, final int necessaryBundleStates,
+      final LiquibaseCapabilityRegistry registry) {
+    if (registry != null) {
+      return registry.findBundlesBySchemaExpression(schemaExpression, necessaryBundleStates);
+    }
+    return LiquibaseOSGiUtil.findBundlesBySchemaExpression(schemaExpression, bundleContext,
+        necessaryBundleStates);
+  }
+
   /**
    * Finds the first BundleResource that is available based on the provided
    * <code>schemaExpression</code> and the wires of the provided <code>bundle</code>.
@@ -143,39 +208,182 @@ public final class LiquibaseOSGiUtil {
   public static BundleResource findMatchingWireBySchemaExpression(final Bundle currentBundle,
       final String schemaExpression) {
 
-    BundleWiring bundleWiring = currentBundle.adapt(BundleWiring.class);
-    List<BundleWire> wires =
-        bundleWiring.getRequiredWires(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG);
+    ResolutionMetricsListener metricsListener = ResolutionMetrics.getListener();
+    long startNanos = (metricsListener != null) ? System.nanoTime() : 0;
+
+    List<BundleWire> wires = BUNDLE_WIRING_INDEX.getWires(currentBundle, null);
 
-    if (wires.size() == 0) {
+    if (wires.isEmpty()) {
+      if (metricsListener != null) {
+        metricsListener.wireResolved(schemaExpression, 0, 0, false,
+            System.nanoTime() - startNanos);
+      }
       return null;
     }
 
-    Filter capabilityFilter =
-        LiquibaseOSGiUtil.createFilterForLiquibaseCapabilityAttributes(schemaExpression);
+    CompiledSchemaExpression compiledSchemaExpression =
+        SCHEMA_EXPRESSION_CACHE.get(schemaExpression);
+    AttributeMatcher capabilityMatcher = compiledSchemaExpression.getMatcher();
+
+    // Only the wires with the same schema name can match a literal schema name. Names with
+    // wildcards or escaped characters are checked against every wire.
+    String literalSchemaName = compiledSchemaExpression.getLiteralSchemaName();
+    if (literalSchemaName != null) {
+      wires = BUNDLE_WIRING_INDEX.getWires(currentBundle, literalSchemaName);
+    }
 
+    int wiresScanned = 0;
     Iterator<BundleWire> iterator = wires.iterator();
     BundleResource bundleResource = null;
     // Iterate through the wires to find the one that matches the schema expression
     while ((bundleResource == null) && iterator.hasNext()) {
       BundleWire wire = iterator.next();
+      wiresScanned++;
       BundleCapability capability = wire.getCapability();
-      Map<String, Object> capabilityAttributes = capability.getAttributes();
-      if (capabilityFilter.matches(capabilityAttributes)) {
-        Object schemaResourceAttr =
-            capabilityAttributes.get(LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE);
-        if (schemaResourceAttr != null) {
+      CapabilityAttributes capabilityAttributes = CapabilityAttributes.of(capability);
+      if (capabilityMatcher.matches(capabilityAttributes.attributes)) {
+        if (capabilityAttributes.resourceName != null) {
           bundleResource = new BundleResource(capability.getRevision().getBundle(),
-              String.valueOf(schemaResourceAttr), capabilityAttributes);
+              capabilityAttributes.resourceName, capabilityAttributes.attributes);
         } else {
           // TODO Write WARNING
         }
       }
     }
 
+    if (metricsListener != null) {
+      metricsListener.wireResolved(schemaExpression, wiresScanned, wiresScanned,
+          bundleResource != null, System.nanoTime() - startNanos);
+    }
     return bundleResource;
   }
 
+  /**
+   * Resolves several schema expressions via the wires of the provided <code>bundle</code> in one
+   * pass. The wires of the bundle are looked up once and every wire is checked against the filters
+   * of all schema expressions that have the same schema name. For each schema expression the
+   * result is the same as the result of
+   * {@link #findMatchingWireBySchemaExpression(Bundle, String)}.
+   *
+   * @param currentBundle
+   *          The bundle that is the consumer in the wires that have the matching Bundle
+   *          capabilities on the other side.
+   * @param schemaExpressions
+   *          The schema expressions that are used to find the matching capabilities.
+   * @return A map that has an entry for every provided schema expression in the iteration order of
+   *         the collection. The value of an entry is <code>null</code> if no matching
+   *         {@link BundleResource} is available for the schema expression.
+   * @throws SchemaExpressionSyntaxException
+   *           if the bundle has wires and any of the schema expressions is not valid.
+   */
+  public static Map<String, BundleResource> findMatchingWiresBySchemaExpressions(
+      final Bundle currentBundle, final Collection<String> schemaExpressions) {
+
+    ResolutionMetricsListener metricsListener = ResolutionMetrics.getListener();
+    long startNanos = (metricsListener != null) ? System.nanoTime() : 0;
+
+    Map<String, BundleResource> result = new LinkedHashMap<String, BundleResource>();
+    for (String schemaExpression : schemaExpressions) {
+      result.put(schemaExpression, null);
+    }
+    String[] expressions = result.keySet().toArray(new String[result.size()]);
+    // Every scanned wire is checked with the filter, so one counter serves both metrics
+    int[] wiresScanned = (metricsListener != null) ? new int[expressions.length] : null;
+
+    List<BundleWire> allWires = (expressions.length > 0)
+        ? BUNDLE_WIRING_INDEX.getWires(currentBundle, null)
+        : Collections.<BundleWire> emptyList();
+
+    if (!allWires.isEmpty()) {
+      // Group the expressions by literal schema name, only the wires with the same name can match
+      // them. The expressions with wildcards or escaped names are checked against every wire.
+      AttributeMatcher[] matchers = new AttributeMatcher[expressions.length];
+      Map<String, List<Integer>> expressionIndexesBySchemaName =
+          new LinkedHashMap<String, List<Integer>>();
+      for (int i = 0; i < expressions.length; i++) {
+        CompiledSchemaExpression compiledSchemaExpression =
+            SCHEMA_EXPRESSION_CACHE.get(expressions[i]);
+        matchers[i] = compiledSchemaExpression.getMatcher();
+        String schemaName = compiledSchemaExpression.getLiteralSchemaName();
+        List<Integer> expressionIndexes = expressionIndexesBySchemaName.get(schemaName);
+        if (expressionIndexes == null) {
+          expressionIndexes = new ArrayList<Integer>(1);
+          expressionIndexesBySchemaName.put(schemaName, expressionIndexes);
+        }
+        expressionIndexes.add(i);
+      }
+
+      for (Map.Entry<String, List<Integer>> entry : expressionIndexesBySchemaName.entrySet()) {
+        String schemaName = entry.getKey();
+        List<BundleWire> wires = (schemaName != null)
+            ? BUNDLE_WIRING_INDEX.getWires(currentBundle, schemaName)
+            : allWires;
+        List<Integer> pendingIndexes = new ArrayList<Integer>(entry.getValue());
+        Iterator<BundleWire> wireIterator = wires.iterator();
+        while (!pendingIndexes.isEmpty() && wireIterator.hasNext()) {
+          BundleWire wire = wireIterator.next();
+          BundleCapability capability = wire.getCapability();
+          CapabilityAttributes capabilityAttributes = CapabilityAttributes.of(capability);
+
+          Iterator<Integer> pendingIterator = pendingIndexes.iterator();
+          while (pendingIterator.hasNext()) {
+            int index = pendingIterator.next();
+            if (wiresScanned != null) {
+              wiresScanned[index]++;
+            }
+            if (matchers[index].matches(capabilityAttributes.attributes)
+                && (capabilityAttributes.resourceName != null)) {
+              result.put(expressions[index],
+                  new BundleResource(capability.getRevision().getBundle(),
+                      capabilityAttributes.resourceName, capabilityAttributes.attributes));
+              pendingIterator.remove();
+            }
+          }
+        }
+      }
+    }
+
+    if ((metricsListener != null) && (expressions.length > 0)) {
+      long durationNanos = (System.nanoTime() - startNanos) / expressions.length;
+      for (int i = 0; i < expressions.length; i++) {
+        metricsListener.wireResolved(expressions[i], wiresScanned[i], wiresScanned[i],
+            result.get(expressions[i]) != null, durationNanos);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The provider that is used by
+   * {@link org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor} to read the entries of
+   * bundles that are installed from a local JAR file.
+   *
+   * @return The bundle file stream provider.
+   */
+  public static BundleFileStreamProvider getBundleFileStreamProvider() {
+    return BUNDLE_FILE_STREAM_PROVIDER;
+  }
+
+  /**
+   * The index of the {@value LiquibaseEOSGiConstants#CAPABILITY_NS_LIQUIBASE_CHANGELOG} wires that
+   * is used by {@link #findMatchingWireBySchemaExpression(Bundle, String)}.
+   *
+   * @return The bundle wiring index.
+   */
+  public static BundleWiringIndex getBundleWiringIndex() {
+    return BUNDLE_WIRING_INDEX;
+  }
+
+  /**
+   * The cache that holds the compiled schema expressions. The size of the cache can be specified
+   * with the {@value LiquibaseEOSGiConstants#SYSPROP_SCHEMA_EXPRESSION_CACHE_SIZE} system property.
+   *
+   * @return The schema expression cache.
+   */
+  public static SchemaExpressionCache getSchemaExpressionCache() {
+    return SCHEMA_EXPRESSION_CACHE;
+  }
+
   private LiquibaseOSGiUtil() {
   }
 }
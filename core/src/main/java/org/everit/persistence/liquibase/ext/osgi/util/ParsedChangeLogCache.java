@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetricsListener;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.wiring.BundleRevision;
+
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.exception.ChangeLogParseException;
+import liquibase.parser.core.ParsedNode;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Cache of the XML changelogs that are parsed via ".osgi" includes. When several root changelogs
+ * include the same changelog, its XML is read only once. The cache holds the {@link ParsedNode}
+ * trees of the changelogs, that do not depend on the changelog parameters or on the database.
+ * Every caller gets its own {@link DatabaseChangeLog} instance that is loaded from a copy of the
+ * cached tree with the parameters of the caller, so the property expressions are expanded for
+ * each caller and the changelogs can be included and executed concurrently.
+ *
+ * <p>
+ * The entries are keyed by the {@link BundleRevision} of the bundle and the name of the resource,
+ * so an updated bundle is parsed again. The entries of the previous revisions of a bundle are
+ * dropped when the new revision is parsed for the first time. If the cache is registered as a
+ * bundle listener, the entries of a bundle are also dropped when the bundle is updated,
+ * unresolved or uninstalled.
+ */
+public class ParsedChangeLogCache implements SynchronousBundleListener {
+
+  /**
+   * The key of a cache entry.
+   */
+  private static final class Key {
+
+    final long bundleId;
+
+    final BundleRevision bundleRevision;
+
+    final String resourceName;
+
+    Key(final BundleResource bundleResource) {
+      Bundle bundle = bundleResource.bundle;
+      this.bundleId = bundle.getBundleId();
+      this.bundleRevision = bundle.adapt(BundleRevision.class);
+      this.resourceName = bundleResource.resourceName;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return (bundleId == other.bundleId) && (bundleRevision == other.bundleRevision)
+          && resourceName.equals(other.resourceName);
+    }
+
+    @Override
+    public int hashCode() {
+      final int prime = 31;
+      int result = 1;
+      result = (prime * result) + (int) (bundleId ^ (bundleId >>> 32));
+      result = (prime * result) + System.identityHashCode(bundleRevision);
+      result = (prime * result) + resourceName.hashCode();
+      return result;
+    }
+  }
+
+  private final ConcurrentMap<Key, FutureTask<ParsedNode>> entries =
+      new ConcurrentHashMap<Key, FutureTask<ParsedNode>>();
+
+  @Override
+  public void bundleChanged(final BundleEvent event) {
+    int type = event.getType();
+    if ((type == BundleEvent.UPDATED) || (type == BundleEvent.UNRESOLVED)
+        || (type == BundleEvent.UNINSTALLED)) {
+      invalidate(event.getBundle());
+    }
+  }
+
+  /**
+   * Drops all entries of the cache.
+   */
+  public void clear() {
+    entries.clear();
+  }
+
+  private void dropPreviousRevisions(final Key key) {
+    Iterator<Key> iterator = entries.keySet().iterator();
+    while (iterator.hasNext()) {
+      Key entryKey = iterator.next();
+      if ((entryKey.bundleId == key.bundleId) && (entryKey.bundleRevision != key.bundleRevision)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Loads a new changelog instance from the cached node tree of a bundle resource. If the node
+   * tree is not cached yet, it is parsed with the provided parser callback. If the same changelog
+   * is requested concurrently, it is parsed only once.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog. It must be an XML changelog, see
+   *          {@link ChangeLogNodeParser#supports(BundleResource)}.
+   * @param changeLogParameters
+   *          The parameters of the caller that are used to expand the property expressions of the
+   *          changelog.
+   * @param resourceAccessor
+   *          The resource accessor that resolves the includes of the changelog.
+   * @param parser
+   *          The callback that parses the node tree of the changelog if it is not cached yet.
+   * @return The changelog that is not shared with other callers.
+   * @throws ChangeLogParseException
+   *           if the changelog could not be parsed or loaded. Failures are not cached.
+   */
+  public DatabaseChangeLog getOrParse(final BundleResource bundleResource,
+      final ChangeLogParameters changeLogParameters, final ResourceAccessor resourceAccessor,
+      final Callable<ParsedNode> parser) throws ChangeLogParseException {
+    return ChangeLogNodeParser.load(bundleResource, getOrParseNode(bundleResource, parser),
+        changeLogParameters, resourceAccessor);
+  }
+
+  /**
+   * Returns the cached node tree of a bundle resource. If the node tree is not cached yet, it is
+   * parsed with the provided parser callback. If the same changelog is requested concurrently, it
+   * is parsed only once. The returned tree is shared, so it must be loaded with
+   * {@link ChangeLogNodeParser#load(BundleResource, ParsedNode, ChangeLogParameters,
+   * ResourceAccessor)} that works on a copy.
+   *
+   * @param bundleResource
+   *          The resource that points to the changelog. It must be an XML changelog, see
+   *          {@link ChangeLogNodeParser#supports(BundleResource)}.
+   * @param parser
+   *          The callback that parses the node tree of the changelog if it is not cached yet.
+   * @return The shared node tree of the changelog.
+   * @throws ChangeLogParseException
+   *           if the changelog could not be parsed. Failures are not cached.
+   */
+  public ParsedNode getOrParseNode(final BundleResource bundleResource,
+      final Callable<ParsedNode> parser) throws ChangeLogParseException {
+
+    Key key = new Key(bundleResource);
+    FutureTask<ParsedNode> entry = entries.get(key);
+    boolean hit = true;
+    if (entry == null) {
+      FutureTask<ParsedNode> newEntry = new FutureTask<ParsedNode>(parser);
+      entry = entries.putIfAbsent(key, newEntry);
+      if (entry == null) {
+        hit = false;
+        entry = newEntry;
+        dropPreviousRevisions(key);
+        newEntry.run();
+      }
+    }
+
+    ResolutionMetricsListener metricsListener = ResolutionMetrics.getListener();
+    if (metricsListener != null) {
+      metricsListener.cacheAccessed(ResolutionMetrics.CACHE_PARSED_CHANGELOG, hit);
+    }
+
+    try {
+      return entry.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ChangeLogParseException(e);
+    } catch (ExecutionException e) {
+      entries.remove(key, entry);
+      Throwable cause = e.getCause();
+      if (cause instanceof ChangeLogParseException) {
+        throw (ChangeLogParseException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new ChangeLogParseException(cause);
+    }
+  }
+
+  /**
+   * Drops all cached changelogs of a bundle.
+   *
+   * @param bundle
+   *          The bundle.
+   */
+  public void invalidate(final Bundle bundle) {
+    long bundleId = bundle.getBundleId();
+    Iterator<Key> iterator = entries.keySet().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().bundleId == bundleId) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * The number of cached changelogs.
+   *
+   * @return The size of the cache.
+   */
+  public int size() {
+    return entries.size();
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * {@link ChangeLogDigestStore} that keeps the digests in a properties file. The file is loaded
+ * lazily and it is rewritten every time new values are stored.
+ */
+public class PropertiesChangeLogDigestStore implements ChangeLogDigestStore {
+
+  private final File file;
+
+  private Properties properties;
+
+  /**
+   * Constructor.
+   *
+   * @param file
+   *          The properties file. It is created when the first value is stored.
+   */
+  public PropertiesChangeLogDigestStore(final File file) {
+    this.file = file;
+  }
+
+  @Override
+  public synchronized String get(final String key) {
+    return load().getProperty(key);
+  }
+
+  private Properties load() {
+    if (properties != null) {
+      return properties;
+    }
+    properties = new Properties();
+    if (file.exists()) {
+      try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+        properties.load(inputStream);
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not read changelog digests from " + file, e);
+      }
+    }
+    return properties;
+  }
+
+  @Override
+  public synchronized void putAll(final Map<String, String> entries) {
+    Properties loadedProperties = load();
+    loadedProperties.putAll(entries);
+
+    File parentFile = file.getAbsoluteFile().getParentFile();
+    try {
+      if (parentFile != null) {
+        Files.createDirectories(parentFile.toPath());
+      }
+      File tmpFile = new File(parentFile, file.getName() + ".tmp");
+      try (OutputStream outputStream = Files.newOutputStream(tmpFile.toPath())) {
+        loadedProperties.store(outputStream, null);
+      }
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not write changelog digests to " + file, e);
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetricsListener;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Cache of the resource lookups of one bundle wiring. Liquibase asks the resource accessor for
+ * the same paths several times during parsing, e.g. for relative includes, XSD files and the
+ * directories of <code>includeAll</code>. The cache holds the found resource URLs, the misses and
+ * the results of the directory listings, so every lookup reaches the bundle only once.
+ *
+ * <p>
+ * One cache is shared by all
+ * {@link org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor} instances of the same
+ * bundle wiring. The class loader lookups depend on the wires of the bundle and the listings on
+ * the attached fragments, so the cache is not bound to the bundle revision: when the bundle is
+ * updated or refreshed, the new wiring gets a new, empty cache and the cache of the old wiring is
+ * dropped together with the wiring.
+ */
+public final class ResourceLookupCache {
+
+  /**
+   * Lists resources of the bundle if the result is not cached.
+   */
+  public interface ResourceLister {
+
+    /**
+     * Lists the resources.
+     *
+     * @return The listed resources or <code>null</code>.
+     * @throws IOException
+     *           if the resources could not be listed.
+     */
+    Set<String> list() throws IOException;
+  }
+
+  private static final List<URL> MISS = Collections.emptyList();
+
+  private static final Set<String> NULL_LISTING =
+      Collections.unmodifiableSet(new HashSet<String>());
+
+  private static final List<Map<BundleWiring, ResourceLookupCache>> STRIPES = createStripes();
+
+  /**
+   * The number of independently locked parts of the cache registry. It must be a power of two.
+   */
+  private static final int STRIPE_COUNT = 32;
+
+  private static List<Map<BundleWiring, ResourceLookupCache>> createStripes() {
+    List<Map<BundleWiring, ResourceLookupCache>> stripes =
+        new ArrayList<Map<BundleWiring, ResourceLookupCache>>(STRIPE_COUNT);
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      stripes.add(new WeakHashMap<BundleWiring, ResourceLookupCache>());
+    }
+    return Collections.unmodifiableList(stripes);
+  }
+
+  /**
+   * Returns the cache of the current wiring of a bundle. The caches are stored in stripes that are
+   * locked separately, so concurrent lookups of different bundles rarely wait for each other.
+   *
+   * @param bundle
+   *          The bundle.
+   * @return The cache or <code>null</code> if the bundle does not have a wiring, e.g. it is not
+   *         resolved or it is uninstalled.
+   */
+  public static ResourceLookupCache of(final Bundle bundle) {
+    BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
+    if (bundleWiring == null) {
+      return null;
+    }
+    int hash = bundleWiring.hashCode();
+    hash ^= hash >>> 16;
+    Map<BundleWiring, ResourceLookupCache> stripe = STRIPES.get(hash & (STRIPE_COUNT - 1));
+    synchronized (stripe) {
+      ResourceLookupCache cache = stripe.get(bundleWiring);
+      if (cache == null) {
+        cache = new ResourceLookupCache(bundle);
+        stripe.put(bundleWiring, cache);
+      }
+      return cache;
+    }
+  }
+
+  private static void reportAccess(final boolean hit) {
+    ResolutionMetricsListener metricsListener = ResolutionMetrics.getListener();
+    if (metricsListener != null) {
+      metricsListener.cacheAccessed(ResolutionMetrics.CACHE_RESOURCE_LOOKUP, hit);
+    }
+  }
+
+  private final Bundle bundle;
+
+  private final ConcurrentMap<String, Set<String>> listings =
+      new ConcurrentHashMap<String, Set<String>>();
+
+  private final ConcurrentMap<String, List<URL>> resourceURLs =
+      new ConcurrentHashMap<String, List<URL>>();
+
+  private ResourceLookupCache(final Bundle bundle) {
+    this.bundle = bundle;
+  }
+
+  /**
+   * Drops all cached lookups.
+   */
+  public void clear() {
+    listings.clear();
+    resourceURLs.clear();
+  }
+
+  /**
+   * Returns the URLs of the resources that are found by {@link Bundle#getResources(String)}.
+   *
+   * @param path
+   *          The path of the resource.
+   * @return The URLs of the resources or an empty list if no resource is found.
+   * @throws IOException
+   *           if the resources could not be looked up.
+   */
+  public List<URL> getResources(final String path) throws IOException {
+    List<URL> result = resourceURLs.get(path);
+    reportAccess(result != null);
+    if (result != null) {
+      return result;
+    }
+
+    Enumeration<URL> resources = bundle.getResources(path);
+    if ((resources == null) || !resources.hasMoreElements()) {
+      result = MISS;
+    } else {
+      List<URL> urls = new ArrayList<URL>(1);
+      while (resources.hasMoreElements()) {
+        urls.add(resources.nextElement());
+      }
+      result = Collections.unmodifiableList(urls);
+    }
+    resourceURLs.putIfAbsent(path, result);
+    return result;
+  }
+
+  /**
+   * Returns the cached result of a directory listing or lists the directory with the provided
+   * lister and caches the result.
+   *
+   * @param key
+   *          The key that identifies the listing, built from all parameters of the listing.
+   * @param lister
+   *          The callback that lists the resources if the result is not cached.
+   * @return A new, modifiable set of the listed resources or <code>null</code> if the lister
+   *         returned <code>null</code>.
+   * @throws IOException
+   *           if the lister failed.
+   */
+  public Set<String> list(final String key, final ResourceLister lister) throws IOException {
+    Set<String> result = listings.get(key);
+    reportAccess(result != null);
+    if (result == null) {
+      Set<String> listed = lister.list();
+      result = (listed != null) ? Collections.unmodifiableSet(new HashSet<String>(listed))
+          : NULL_LISTING;
+      listings.putIfAbsent(key, result);
+    }
+    return (result != NULL_LISTING) ? new HashSet<String>(result) : null;
+  }
+}
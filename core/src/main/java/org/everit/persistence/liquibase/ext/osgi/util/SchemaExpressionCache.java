@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetricsListener;
+
+/**
+ * Bounded, thread-safe LRU cache of compiled schema expressions. Syntax errors are cached as well,
+ * so an invalid expression is not parsed again either.
+ */
+public final class SchemaExpressionCache {
+
+  /**
+   * The backing map in access order that drops the least recently used entry when the size limit
+   * is exceeded.
+   */
+  private static final class LRUMap extends LinkedHashMap<String, CompiledSchemaExpression> {
+
+    private static final long serialVersionUID = -1949627498374413523L;
+
+    private final int maxSize;
+
+    LRUMap(final int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, CompiledSchemaExpression> eldest) {
+      return size() > maxSize;
+    }
+  }
+
+  private final AtomicLong hitCount = new AtomicLong();
+
+  private final LRUMap map;
+
+  private final int maxSize;
+
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize
+   *          The maximum number of schema expressions that are held by the cache. Zero or a
+   *          negative value disables caching.
+   */
+  public SchemaExpressionCache(final int maxSize) {
+    this.maxSize = (maxSize < 0) ? 0 : maxSize;
+    this.map = new LRUMap(this.maxSize);
+  }
+
+  /**
+   * Drops all cached schema expressions. The hit and miss counters are not reset.
+   */
+  public void clear() {
+    synchronized (map) {
+      map.clear();
+    }
+  }
+
+  private CompiledSchemaExpression compile(final String schemaExpression,
+      final ResolutionMetricsListener metricsListener) {
+    if (metricsListener == null) {
+      return LiquibaseOSGiUtil.compileSchemaExpression(schemaExpression);
+    }
+    metricsListener.cacheAccessed(ResolutionMetrics.CACHE_SCHEMA_EXPRESSION, false);
+    long startNanos = System.nanoTime();
+    CompiledSchemaExpression compiled =
+        LiquibaseOSGiUtil.compileSchemaExpression(schemaExpression);
+    metricsListener.schemaExpressionCompiled(schemaExpression, System.nanoTime() - startNanos);
+    return compiled;
+  }
+
+  /**
+   * Returns the compiled form of the schema expression from the cache or compiles and caches it if
+   * it is not available.
+   *
+   * @param schemaExpression
+   *          The schema expression.
+   * @return The compiled schema expression.
+   */
+  CompiledSchemaExpression get(final String schemaExpression) {
+    ResolutionMetricsListener metricsListener = ResolutionMetrics.getListener();
+    if (maxSize == 0) {
+      missCount.incrementAndGet();
+      return compile(schemaExpression, metricsListener);
+    }
+
+    CompiledSchemaExpression compiled;
+    synchronized (map) {
+      compiled = map.get(schemaExpression);
+    }
+    if (compiled != null) {
+      hitCount.incrementAndGet();
+      if (metricsListener != null) {
+        metricsListener.cacheAccessed(ResolutionMetrics.CACHE_SCHEMA_EXPRESSION, true);
+      }
+      return compiled;
+    }
+
+    missCount.incrementAndGet();
+    compiled = compile(schemaExpression, metricsListener);
+    synchronized (map) {
+      map.put(schemaExpression, compiled);
+    }
+    return compiled;
+  }
+
+  /**
+   * The number of lookups that were served from the cache.
+   *
+   * @return The hit count.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * The maximum number of schema expressions that can be held by the cache.
+   *
+   * @return The maximum size of the cache.
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * The number of lookups where the schema expression had to be compiled.
+   *
+   * @return The miss count.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * The number of schema expressions that are currently cached.
+   *
+   * @return The size of the cache.
+   */
+  public int size() {
+    synchronized (map) {
+      return map.size();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+/**
+ * Test for {@link EOSGiResourceAccessor}.
+ */
+public class EOSGiResourceAccessorTest {
+
+  private static final String PATH = "META-INF/liquibase/data.csv";
+
+  private static String read(final EOSGiResourceAccessor resourceAccessor) throws IOException {
+    Set<InputStream> inputStreams = resourceAccessor.getResourcesAsStream(PATH);
+    Assert.assertEquals(1, inputStreams.size());
+    try (InputStream inputStream = inputStreams.iterator().next()) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int n = inputStream.read(buffer);
+      while (n >= 0) {
+        out.write(buffer, 0, n);
+        n = inputStream.read(buffer);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private EmbeddedFramework framework;
+
+  @After
+  public void after() {
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+  }
+
+  @Test
+  public void testContentOfUpdatedRevisionIsRead() throws Exception {
+    Bundle bundle = framework.bundle("data").entry(PATH, "first").install();
+    framework.resolve(bundle);
+    Assert.assertEquals("first", read(new EOSGiResourceAccessor(bundle)));
+
+    bundle.update(new ByteArrayInputStream(framework.bundle("data").entry(PATH, "second")
+        .build()));
+    framework.resolve(bundle);
+    Assert.assertEquals("second", read(new EOSGiResourceAccessor(bundle)));
+  }
+
+  @Test
+  public void testResourceOfBundleRequiredTwiceIsOpenedOnce() throws Exception {
+    Bundle provider = framework.bundle("provider").header("Export-Package", "META-INF.liquibase")
+        .entry(PATH, "provider").install();
+    Bundle reexporter = framework.bundle("reexporter")
+        .header("Require-Bundle", "provider;visibility:=reexport").install();
+    Bundle consumer = framework.bundle("consumer")
+        .header("Require-Bundle", "provider,reexporter").install();
+    framework.resolve(provider, reexporter, consumer);
+    Assert.assertEquals("provider", read(new EOSGiResourceAccessor(consumer)));
+  }
+
+  @Test
+  public void testResourceOfFragmentIsFound() throws Exception {
+    Bundle host = framework.bundle("host").install();
+    Bundle fragment = framework.bundle("fragment").header("Fragment-Host", "host")
+        .entry(PATH, "fragment").install();
+    framework.resolve(host, fragment);
+    Assert.assertEquals("fragment", read(new EOSGiResourceAccessor(host)));
+  }
+}
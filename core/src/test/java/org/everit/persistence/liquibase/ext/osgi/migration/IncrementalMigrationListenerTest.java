@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+/**
+ * Test for the root registry of {@link IncrementalMigrationListener}.
+ */
+public class IncrementalMigrationListenerTest {
+
+  private static final String RESOURCE_NAME = "/META-INF/liquibase/incremental.xml";
+
+  private Bundle bundle;
+
+  private EmbeddedFramework framework;
+
+  private IncrementalMigrationListener listener;
+
+  private final List<MigrationRequest> submittedRequests = new ArrayList<MigrationRequest>();
+
+  @After
+  public void after() {
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+    bundle = framework.bundle("incremental")
+        .entry(RESOURCE_NAME.substring(1), EmbeddedFramework.changeLog(""))
+        .install();
+    framework.resolve(bundle);
+    listener = new IncrementalMigrationListener(new MigrationService() {
+      @Override
+      public Future<SchemaUpdateResult> submit(final MigrationRequest request,
+          final MigrationListener migrationListener) {
+        // The migrations never finish, only the registry of the roots is tested
+        submittedRequests.add(request);
+        return new FutureTask<SchemaUpdateResult>(new Runnable() {
+          @Override
+          public void run() {
+          }
+        }, null);
+      }
+    }, null);
+  }
+
+  private MigrationRequest request(final String dataSourceName) {
+    return new MigrationRequest(
+        new BundleResource(bundle, RESOURCE_NAME, Collections.<String, Object> emptyMap()),
+        new JdbcDataSource(), dataSourceName, null);
+  }
+
+  @Test
+  public void testRootIsRegisteredPerDataSource() {
+    MigrationRequest first = request("first");
+    MigrationRequest second = request("second");
+    listener.addRoot(first);
+    listener.addRoot(second);
+
+    Assert.assertEquals(Arrays.asList(first, second), submittedRequests);
+    Assert.assertEquals(Arrays.asList(first, second), listener.getAffectedRoots(bundle));
+
+    listener.removeRoot(first);
+    Assert.assertEquals(Collections.singletonList(second), listener.getAffectedRoots(bundle));
+
+    listener.removeRoot(second.bundleResource);
+    Assert.assertEquals(Collections.emptyList(), listener.getAffectedRoots(bundle));
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+/**
+ * Test for the failure isolation of {@link MultiSchemaUpdater}.
+ */
+public class MultiSchemaUpdaterTest {
+
+  private static final AtomicInteger DATABASE_COUNTER = new AtomicInteger();
+
+  private static final Executor SAME_THREAD_EXECUTOR = new Executor() {
+    @Override
+    public void execute(final Runnable command) {
+      command.run();
+    }
+  };
+
+  private static final long WAIT_TIMEOUT_MILLIS = 10000;
+
+  private static String changeLog(final String tableName) {
+    return EmbeddedFramework.changeLog("<changeSet id=\"1\" author=\"test\">"
+        + "<createTable tableName=\"" + tableName + "\">"
+        + "<column name=\"id\" type=\"int\"/></createTable></changeSet>");
+  }
+
+  private BundleResource first;
+
+  private EmbeddedFramework framework;
+
+  private String jdbcUrl;
+
+  private BundleResource second;
+
+  @After
+  public void after() {
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+    first = install("first");
+    second = install("second");
+    jdbcUrl = "jdbc:h2:mem:multischema" + DATABASE_COUNTER.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+  }
+
+  private SchemaConnectionFactory connectionFactory(final BundleResource failingResource,
+      final Error error) {
+    return new SchemaConnectionFactory() {
+      @Override
+      public Connection getConnection(final BundleResource bundleResource) throws SQLException {
+        if (bundleResource == failingResource) {
+          throw error;
+        }
+        return DriverManager.getConnection(jdbcUrl);
+      }
+    };
+  }
+
+  private BundleResource install(final String name) {
+    String resourceName = "/META-INF/liquibase/" + name + ".xml";
+    Bundle bundle = framework.bundle(name).entry(resourceName.substring(1), changeLog(name))
+        .install();
+    framework.resolve(bundle);
+    return new BundleResource(bundle, resourceName, Collections.<String, Object> emptyMap());
+  }
+
+  private MultiSchemaUpdater newUpdater(final Executor executor) {
+    MultiSchemaUpdater updater = new MultiSchemaUpdater(executor, null);
+    updater.setUpdateCoordinator(null);
+    return updater;
+  }
+
+  @Test
+  public void testConnectionIsClosedWhileWaitingForOverlappingUpdate() throws Exception {
+    String databaseKey;
+    try (Connection connection = DriverManager.getConnection(jdbcUrl)) {
+      DatabaseMetaData metaData = connection.getMetaData();
+      databaseKey = metaData.getURL() + '|' + metaData.getUserName();
+    }
+    UpdateCoordinator coordinator = new UpdateCoordinator();
+    UpdateCoordinator.Claim claim = coordinator.claim(first,
+        Collections.<BundleResource> emptySet(), databaseKey, "other");
+
+    final AtomicInteger openedConnections = new AtomicInteger();
+    final AtomicInteger openConnections = new AtomicInteger();
+    final SchemaConnectionFactory connectionFactory = new SchemaConnectionFactory() {
+      @Override
+      public Connection getConnection(final BundleResource bundleResource) throws SQLException {
+        final Connection connection = DriverManager.getConnection(jdbcUrl);
+        openedConnections.incrementAndGet();
+        openConnections.incrementAndGet();
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { Connection.class }, new InvocationHandler() {
+              @Override
+              public Object invoke(final Object proxy, final Method method, final Object[] args)
+                  throws Throwable {
+                if ("close".equals(method.getName())) {
+                  openConnections.decrementAndGet();
+                }
+                try {
+                  return method.invoke(connection, args);
+                } catch (InvocationTargetException e) {
+                  throw e.getCause();
+                }
+              }
+            });
+      }
+    };
+    final MultiSchemaUpdater updater = new MultiSchemaUpdater(SAME_THREAD_EXECUTOR, null);
+    updater.setUpdateCoordinator(coordinator);
+    final AtomicReference<List<SchemaUpdateResult>> results =
+        new AtomicReference<List<SchemaUpdateResult>>();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        results.set(updater.update(Collections.singletonList(first), connectionFactory, null));
+      }
+    });
+    thread.start();
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_TIMEOUT_MILLIS);
+    while ((openedConnections.get() == 0) || (openConnections.get() != 0)) {
+      Assert.assertTrue("Connection is held while waiting", System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+    Assert.assertTrue(thread.isAlive());
+    Assert.assertNull(results.get());
+
+    claim.release(null);
+    thread.join(WAIT_TIMEOUT_MILLIS);
+
+    SchemaUpdateResult result = results.get().get(0);
+    Assert.assertTrue(String.valueOf(result.failure), result.isSuccessful());
+    Assert.assertEquals(2, openedConnections.get());
+    Assert.assertEquals(0, openConnections.get());
+  }
+
+  @Test
+  public void testErrorOfOneSchemaIsRecorded() {
+    Error error = new AssertionError("simulated");
+    List<SchemaUpdateResult> results = newUpdater(SAME_THREAD_EXECUTOR)
+        .update(Arrays.asList(first, second), connectionFactory(first, error), null);
+
+    Assert.assertSame(error, results.get(0).failure);
+    Assert.assertTrue(String.valueOf(results.get(1).failure), results.get(1).isSuccessful());
+  }
+
+  @Test
+  public void testRejectedSchemaIsRecorded() {
+    final AtomicInteger submissions = new AtomicInteger();
+    Executor executor = new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        if (submissions.incrementAndGet() == 1) {
+          throw new RejectedExecutionException("simulated");
+        }
+        command.run();
+      }
+    };
+
+    List<SchemaUpdateResult> results = newUpdater(executor)
+        .update(Arrays.asList(first, second), connectionFactory(null, null), null);
+
+    Assert.assertTrue(results.get(0).failure instanceof RejectedExecutionException);
+    Assert.assertTrue(String.valueOf(results.get(1).failure), results.get(1).isSuccessful());
+  }
+}
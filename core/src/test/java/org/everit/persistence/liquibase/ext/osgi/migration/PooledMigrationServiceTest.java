@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Test for the failure isolation and the readiness services of {@link PooledMigrationService}.
+ */
+public class PooledMigrationServiceTest {
+
+  private static final AtomicInteger DATABASE_COUNTER = new AtomicInteger();
+
+  private static final String RESOURCE_NAME = "/META-INF/liquibase/pooled.xml";
+
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private static JdbcDataSource dataSource() {
+    JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL(
+        "jdbc:h2:mem:pooled" + DATABASE_COUNTER.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+    return dataSource;
+  }
+
+  private BundleResource bundleResource;
+
+  private EmbeddedFramework framework;
+
+  private PooledMigrationService migrationService;
+
+  @After
+  public void after() {
+    migrationService.shutdown();
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+    Bundle bundle = framework.bundle("pooled")
+        .entry(RESOURCE_NAME.substring(1), EmbeddedFramework.changeLog(
+            "<changeSet id=\"1\" author=\"test\"><createTable tableName=\"pooled\">"
+                + "<column name=\"id\" type=\"int\"/></createTable></changeSet>"))
+        .install();
+    framework.resolve(bundle);
+    bundleResource =
+        new BundleResource(bundle, RESOURCE_NAME, Collections.<String, Object> emptyMap());
+    migrationService = new PooledMigrationService(framework.getBundleContext(), 2, null);
+  }
+
+  private String findState(final String dataSourceName) throws InvalidSyntaxException {
+    BundleContext bundleContext = framework.getBundleContext();
+    Collection<ServiceReference<SchemaReadiness>> references = bundleContext.getServiceReferences(
+        SchemaReadiness.class,
+        "(" + SchemaReadiness.SERVICE_PROP_SCHEMA_DATA_SOURCE + "=" + dataSourceName + ")");
+    Assert.assertEquals(1, references.size());
+    return (String) references.iterator().next()
+        .getProperty(SchemaReadiness.SERVICE_PROP_SCHEMA_STATE);
+  }
+
+  @Test
+  public void testFailingListenerDoesNotFailTheMigration() throws Exception {
+    Future<SchemaUpdateResult> future = migrationService.submit(
+        new MigrationRequest(bundleResource, dataSource(), null), new MigrationListener() {
+          @Override
+          public void migrationFinished(final MigrationRequest request,
+              final SchemaUpdateResult result) {
+            throw new IllegalStateException("simulated");
+          }
+        });
+
+    SchemaUpdateResult result = future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    Assert.assertTrue(String.valueOf(result.failure), result.isSuccessful());
+  }
+
+  @Test
+  public void testReadinessIsRegisteredPerDataSource() throws Exception {
+    Future<SchemaUpdateResult> first = migrationService
+        .submit(new MigrationRequest(bundleResource, dataSource(), "first", null), null);
+    Future<SchemaUpdateResult> second = migrationService
+        .submit(new MigrationRequest(bundleResource, dataSource(), "second", null), null);
+
+    Assert.assertTrue(first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).isSuccessful());
+    Assert.assertTrue(second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).isSuccessful());
+    Assert.assertEquals(SchemaReadiness.STATE_READY, findState("first"));
+    Assert.assertEquals(SchemaReadiness.STATE_READY, findState("second"));
+  }
+}
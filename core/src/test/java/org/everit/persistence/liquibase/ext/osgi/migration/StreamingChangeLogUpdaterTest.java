@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.persistence.liquibase.ext.osgi.parser.EOSGiChangelogParser;
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.parser.ChangeLogParserFactory;
+
+/**
+ * Test for {@link StreamingChangeLogUpdater}.
+ */
+public class StreamingChangeLogUpdaterTest {
+
+  private static final AtomicInteger DATABASE_COUNTER = new AtomicInteger();
+
+  private static final String STREAMING_RESOURCE = "/META-INF/liquibase/streaming.xml";
+
+  private Connection connection;
+
+  private EmbeddedFramework framework;
+
+  @After
+  public void after() throws SQLException {
+    connection.close();
+    framework.close();
+  }
+
+  @Before
+  public void before() throws SQLException {
+    ChangeLogParserFactory.getInstance().register(new EOSGiChangelogParser());
+    framework = EmbeddedFramework.start();
+    connection = DriverManager.getConnection("jdbc:h2:mem:streaming"
+        + DATABASE_COUNTER.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+
+    Bundle streamingBundle = framework.bundle("streaming")
+        .provideChangeLog("streaming", STREAMING_RESOURCE, "streaming=true")
+        .entry(STREAMING_RESOURCE.substring(1), EmbeddedFramework.changeLog(
+            "<changeSet id=\"1\" author=\"test\"><insert tableName=\"items\">"
+                + "<column name=\"id\" valueNumeric=\"1\"/></insert></changeSet>"
+                + "<changeSet id=\"2\" author=\"test\"><insert tableName=\"items\">"
+                + "<column name=\"id\" valueNumeric=\"2\"/></insert></changeSet>"))
+        .install();
+    framework.resolve(streamingBundle);
+  }
+
+  private BundleResource installRoot(final String includeAttributes) {
+    String resourceName = "/META-INF/liquibase/root.xml";
+    Bundle bundle = framework.bundle("root").requireChangeLog("(liquibase.changelog=streaming)")
+        .entry(resourceName.substring(1), EmbeddedFramework.changeLog(
+            "<changeSet id=\"1\" author=\"test\"><createTable tableName=\"items\">"
+                + "<column name=\"id\" type=\"int\"/></createTable></changeSet>"
+                + "<include file=\"streaming.osgi\"" + includeAttributes + "/>"
+                + "<changeSet id=\"2\" author=\"test\">"
+                + "<renameTable oldTableName=\"items\" newTableName=\"renamed_items\"/>"
+                + "</changeSet>"))
+        .install();
+    framework.resolve(bundle);
+    return new BundleResource(bundle, resourceName, Collections.<String, Object> emptyMap());
+  }
+
+  private int queryInt(final String sql) throws SQLException {
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery(sql)) {
+      Assert.assertTrue(resultSet.next());
+      return resultSet.getInt(1);
+    }
+  }
+
+  private void update(final BundleResource bundleResource, final String contexts)
+      throws Exception {
+    Database database = DatabaseFactory.getInstance()
+        .findCorrectDatabaseImplementation(new JdbcConnection(connection));
+    new StreamingChangeLogUpdater(null).update(bundleResource, database, contexts);
+  }
+
+  @Test
+  public void testContextOfIncludeIsApplied() throws Exception {
+    update(installRoot(" context=\"test\""), "production");
+
+    Assert.assertEquals(0, queryInt("SELECT COUNT(*) FROM renamed_items"));
+    Assert.assertEquals(2, queryInt("SELECT COUNT(*) FROM DATABASECHANGELOG"));
+  }
+
+  @Test
+  public void testStreamingIncludeIsAppliedInPlace() throws Exception {
+    update(installRoot(""), null);
+
+    Assert.assertEquals(2, queryInt("SELECT COUNT(*) FROM renamed_items"));
+    Assert.assertEquals(4, queryInt("SELECT COUNT(*) FROM DATABASECHANGELOG"));
+    Assert.assertEquals(1,
+        queryInt("SELECT COUNT(DISTINCT DEPLOYMENT_ID) FROM DATABASECHANGELOG"));
+    Assert.assertEquals(0,
+        queryInt("SELECT COUNT(*) FROM DATABASECHANGELOGLOCK WHERE LOCKED = TRUE"));
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.util.Collections;
+
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+/**
+ * Test for the claims of {@link UpdateCoordinator}.
+ */
+public class UpdateCoordinatorTest {
+
+  private static final String DATABASE = "jdbc:h2:mem:a|sa";
+
+  private static final String OTHER_DATABASE = "jdbc:h2:mem:b|sa";
+
+  private BundleResource first;
+
+  private EmbeddedFramework framework;
+
+  private BundleResource second;
+
+  private BundleResource shared;
+
+  @After
+  public void after() {
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+    Bundle bundle = framework.bundle("a").install();
+    first = new BundleResource(bundle, "/first.xml", null);
+    second = new BundleResource(bundle, "/second.xml", null);
+    shared = new BundleResource(bundle, "/shared.xml", null);
+  }
+
+  @Test
+  public void testDisjointTreesAndDatabasesDoNotConflict() {
+    UpdateCoordinator coordinator = new UpdateCoordinator();
+    Assert.assertTrue(coordinator
+        .claim(first, Collections.singleton(shared), DATABASE, null).isAcquired());
+
+    Assert.assertTrue(coordinator
+        .claim(second, Collections.<BundleResource> emptySet(), DATABASE, null).isAcquired());
+    Assert.assertTrue(coordinator
+        .claim(second, Collections.singleton(shared), OTHER_DATABASE, null).isAcquired());
+    Assert.assertEquals(3, coordinator.getInFlightCount());
+  }
+
+  @Test
+  public void testOverlappingTreeWaitsAndClaimsAgain() throws InterruptedException {
+    UpdateCoordinator coordinator = new UpdateCoordinator();
+    UpdateCoordinator.Claim firstClaim =
+        coordinator.claim(first, Collections.singleton(shared), DATABASE, null);
+
+    UpdateCoordinator.Claim secondClaim =
+        coordinator.claim(second, Collections.singleton(shared), DATABASE, null);
+    Assert.assertFalse(secondClaim.isAcquired());
+
+    firstClaim.release(new SchemaUpdateResult(first, 0, null));
+    Assert.assertNull(secondClaim.await());
+    Assert.assertTrue(coordinator
+        .claim(second, Collections.singleton(shared), DATABASE, null).isAcquired());
+  }
+
+  @Test
+  public void testSameUpdateSharesItsResult() throws InterruptedException {
+    UpdateCoordinator coordinator = new UpdateCoordinator();
+    UpdateCoordinator.Claim firstClaim =
+        coordinator.claim(first, Collections.singleton(shared), DATABASE, "test");
+    UpdateCoordinator.Claim sameClaim =
+        coordinator.claim(first, Collections.singleton(shared), DATABASE, "test");
+    Assert.assertFalse(sameClaim.isAcquired());
+
+    SchemaUpdateResult result = new SchemaUpdateResult(first, 0, null);
+    firstClaim.release(result);
+
+    Assert.assertSame(result, sameClaim.await());
+    Assert.assertEquals(0, coordinator.getInFlightCount());
+  }
+}
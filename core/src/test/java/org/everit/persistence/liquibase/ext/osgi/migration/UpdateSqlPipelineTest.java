@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.migration;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.liquibase.ext.osgi.parser.EOSGiChangelogParser;
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.h2.Driver;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import liquibase.Liquibase;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.parser.ChangeLogParserFactory;
+
+/**
+ * Test for {@link UpdateSqlPipeline}. Two roots include the same changelog, so the workers share
+ * its parsed node tree.
+ */
+public class UpdateSqlPipelineTest {
+
+  private static final AtomicInteger DATABASE_COUNTER = new AtomicInteger();
+
+  private static final String SHARED_RESOURCE = "/META-INF/liquibase/shared.xml";
+
+  private static DriverSchemaConnectionFactory connectionFactory() {
+    return new DriverSchemaConnectionFactory(new Driver(), "jdbc:h2:mem:pipeline"
+        + DATABASE_COUNTER.incrementAndGet() + "_"
+        + DriverSchemaConnectionFactory.SCHEMA_PLACEHOLDER, null);
+  }
+
+  /**
+   * Drops the parts of the output that depend on the time of the generation or on the database.
+   */
+  private static String normalize(final String sql) {
+    return sql.replaceAll("(?m)^-- (Ran at|Against): .*$", "")
+        .replaceAll("LOCKGRANTED = '[^']*'", "LOCKGRANTED = ?")
+        .replaceAll("'[0-9]{10}'\\)", "?)");
+  }
+
+  private EmbeddedFramework framework;
+
+  private List<BundleResource> roots;
+
+  @After
+  public void after() {
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    ChangeLogParserFactory.getInstance().register(new EOSGiChangelogParser());
+    framework = EmbeddedFramework.start();
+    Bundle sharedBundle = framework.bundle("shared").provideChangeLog("shared", SHARED_RESOURCE)
+        .entry(SHARED_RESOURCE.substring(1), EmbeddedFramework.changeLog(
+            "<changeSet id=\"1\" author=\"test\"><createTable tableName=\"shared\">"
+                + "<column name=\"id\" type=\"int\"/></createTable></changeSet>"))
+        .install();
+    roots = new ArrayList<BundleResource>();
+    List<Bundle> bundles = new ArrayList<Bundle>();
+    bundles.add(sharedBundle);
+    for (String name : Arrays.asList("first", "second")) {
+      String resourceName = "/META-INF/liquibase/" + name + ".xml";
+      Bundle bundle = framework.bundle(name).requireChangeLog("(liquibase.changelog=shared)")
+          .entry(resourceName.substring(1), EmbeddedFramework.changeLog("<include file=\"shared"
+              + LiquibaseEOSGiConstants.INCLUDE_OSGI_EXTENSION + "\"/>"
+              + "<changeSet id=\"1\" author=\"test\"><createTable tableName=\"" + name + "\">"
+              + "<column name=\"id\" type=\"int\"/></createTable></changeSet>"))
+          .install();
+      bundles.add(bundle);
+      roots.add(new BundleResource(bundle, resourceName, Collections.<String, Object> emptyMap()));
+    }
+    framework.resolve(bundles.toArray(new Bundle[bundles.size()]));
+  }
+
+  private String generateSequentially(final BundleResource bundleResource) throws Exception {
+    StringWriter writer = new StringWriter();
+    try (Connection connection = connectionFactory().getConnection(bundleResource)) {
+      Database database = DatabaseFactory.getInstance()
+          .findCorrectDatabaseImplementation(new JdbcConnection(connection));
+      new Liquibase(bundleResource.resourceName, new EOSGiResourceAccessor(bundleResource.bundle),
+          database).update((String) null, writer);
+    }
+    return writer.toString();
+  }
+
+  private SqlWriterFactory writerFactory(final Map<BundleResource, StringWriter> writers) {
+    return new SqlWriterFactory() {
+      @Override
+      public Writer openWriter(final BundleResource bundleResource) throws IOException {
+        StringWriter writer = new StringWriter();
+        writers.put(bundleResource, writer);
+        return writer;
+      }
+    };
+  }
+
+  @Test
+  public void testParallelOutputEqualsSequentialOutput() throws Exception {
+    Map<BundleResource, StringWriter> writers =
+        new ConcurrentHashMap<BundleResource, StringWriter>();
+    ExecutorService executorService = Executors.newFixedThreadPool(2);
+    List<SchemaUpdateResult> results;
+    try {
+      results = new UpdateSqlPipeline(executorService, null).generate(roots,
+          connectionFactory(), writerFactory(writers), null);
+    } finally {
+      executorService.shutdown();
+    }
+
+    for (int i = 0; i < roots.size(); i++) {
+      BundleResource root = roots.get(i);
+      Assert.assertTrue(String.valueOf(results.get(i).failure), results.get(i).isSuccessful());
+      String sql = writers.get(root).toString();
+      Assert.assertTrue(sql, sql.contains("CREATE TABLE PUBLIC.shared"));
+      Assert.assertEquals(normalize(generateSequentially(root)), normalize(sql));
+    }
+  }
+
+  @Test
+  public void testRejectedChangeLogIsRecorded() {
+    final AtomicInteger submissions = new AtomicInteger();
+    Executor executor = new Executor() {
+      @Override
+      public void execute(final Runnable command) {
+        if (submissions.incrementAndGet() == 1) {
+          throw new RejectedExecutionException("simulated");
+        }
+        command.run();
+      }
+    };
+    Map<BundleResource, StringWriter> writers =
+        new ConcurrentHashMap<BundleResource, StringWriter>();
+
+    List<SchemaUpdateResult> results = new UpdateSqlPipeline(executor, null).generate(roots,
+        connectionFactory(), writerFactory(writers), null);
+
+    Assert.assertTrue(results.get(0).failure instanceof RejectedExecutionException);
+    Assert.assertFalse(writers.containsKey(roots.get(0)));
+    Assert.assertTrue(String.valueOf(results.get(1).failure), results.get(1).isSuccessful());
+    Assert.assertTrue(writers.get(roots.get(1)).toString().contains("CREATE TABLE PUBLIC.second"));
+  }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.testing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Embedded OSGi framework for the tests that installs generated bundles. The bundles only contain
+ * a manifest and resources, so the capabilities, wires and entries of real bundles can be used
+ * without building bundle JARs.
+ */
+public final class EmbeddedFramework implements Closeable {
+
+  /**
+   * Builder of a generated bundle.
+   */
+  public final class BundleBuilder {
+
+    private final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+
+    private final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+    private final List<String> providedCapabilities = new ArrayList<String>();
+
+    private final List<String> requiredCapabilities = new ArrayList<String>();
+
+    private final String symbolicName;
+
+    BundleBuilder(final String symbolicName) {
+      this.symbolicName = symbolicName;
+    }
+
+    /**
+     * Builds the JAR of the bundle.
+     *
+     * @return The content of the bundle JAR.
+     */
+    public byte[] build() {
+      Manifest manifest = new Manifest();
+      Attributes mainAttributes = manifest.getMainAttributes();
+      mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+      mainAttributes.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+      mainAttributes.putValue(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+      mainAttributes.putValue(Constants.BUNDLE_VERSION, "1.0.0");
+      if (!providedCapabilities.isEmpty()) {
+        mainAttributes.putValue(Constants.PROVIDE_CAPABILITY, join(providedCapabilities));
+      }
+      if (!requiredCapabilities.isEmpty()) {
+        mainAttributes.putValue(Constants.REQUIRE_CAPABILITY, join(requiredCapabilities));
+      }
+      for (Map.Entry<String, String> header : headers.entrySet()) {
+        mainAttributes.putValue(header.getKey(), header.getValue());
+      }
+
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      try (JarOutputStream jarOut = new JarOutputStream(bout, manifest)) {
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+          jarOut.putNextEntry(new JarEntry(entry.getKey()));
+          jarOut.write(entry.getValue());
+          jarOut.closeEntry();
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      return bout.toByteArray();
+    }
+
+    /**
+     * Adds a file to the bundle.
+     *
+     * @param path
+     *          The path of the entry without a leading slash.
+     * @param content
+     *          The content of the entry.
+     * @return This builder.
+     */
+    public BundleBuilder entry(final String path, final String content) {
+      entries.put(path, content.getBytes(StandardCharsets.UTF_8));
+      return this;
+    }
+
+    /**
+     * Adds a header to the manifest of the bundle.
+     *
+     * @param name
+     *          The name of the header.
+     * @param value
+     *          The value of the header.
+     * @return This builder.
+     */
+    public BundleBuilder header(final String name, final String value) {
+      headers.put(name, value);
+      return this;
+    }
+
+    /**
+     * Installs the bundle.
+     *
+     * @return The installed bundle.
+     */
+    public Bundle install() {
+      try {
+        return framework.getBundleContext().installBundle(
+            "test:" + symbolicName + ":" + LOCATION_COUNTER.incrementAndGet(),
+            new ByteArrayInputStream(build()));
+      } catch (BundleException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * Adds a <code>liquibase.changelog</code> capability to the bundle.
+     *
+     * @param schemaName
+     *          The value of the <code>liquibase.changelog</code> attribute.
+     * @param resourceName
+     *          The value of the <code>resource</code> attribute.
+     * @param additionalAttributes
+     *          Further attributes in manifest syntax, e.g. <code>version:Version=1.0</code>.
+     * @return This builder.
+     */
+    public BundleBuilder provideChangeLog(final String schemaName, final String resourceName,
+        final String... additionalAttributes) {
+      StringBuilder sb = new StringBuilder(CHANGELOG_NS).append(';').append(CHANGELOG_NS)
+          .append("=\"").append(schemaName).append("\";resource=\"").append(resourceName)
+          .append('"');
+      for (String additionalAttribute : additionalAttributes) {
+        sb.append(';').append(additionalAttribute);
+      }
+      providedCapabilities.add(sb.toString());
+      return this;
+    }
+
+    /**
+     * Adds a <code>liquibase.changelog</code> requirement to the bundle.
+     *
+     * @param filter
+     *          The filter of the requirement.
+     * @return This builder.
+     */
+    public BundleBuilder requireChangeLog(final String filter) {
+      requiredCapabilities.add(CHANGELOG_NS + ";filter:=\"" + filter + "\"");
+      return this;
+    }
+  }
+
+  private static final String CHANGELOG_NS = "liquibase.changelog";
+
+  private static final AtomicInteger LOCATION_COUNTER = new AtomicInteger();
+
+  private static final long TIMEOUT_SECONDS = 30;
+
+  /**
+   * Creates the XML of a changelog.
+   *
+   * @param content
+   *          The elements of the changelog.
+   * @return The XML of the changelog.
+   */
+  public static String changeLog(final String content) {
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<databaseChangeLog xmlns=\"http://www.liquibase.org/xml/ns/dbchangelog\"\n"
+        + "  xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n"
+        + "  xsi:schemaLocation=\"http://www.liquibase.org/xml/ns/dbchangelog "
+        + "http://www.liquibase.org/xml/ns/dbchangelog/dbchangelog-3.5.xsd\">\n"
+        + content + "\n</databaseChangeLog>\n";
+  }
+
+  private static void deleteRecursively(final Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return;
+    }
+    Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+
+      @Override
+      public FileVisitResult postVisitDirectory(final Path dir, final IOException exc)
+          throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs)
+          throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private static String join(final List<String> clauses) {
+    StringBuilder sb = new StringBuilder();
+    for (String clause : clauses) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(clause);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Starts a new framework with an empty storage.
+   *
+   * @return The started framework.
+   */
+  public static EmbeddedFramework start() {
+    Iterator<FrameworkFactory> factories =
+        ServiceLoader.load(FrameworkFactory.class).iterator();
+    if (!factories.hasNext()) {
+      throw new IllegalStateException("No OSGi framework on the test classpath");
+    }
+    try {
+      File storage = Files.createTempDirectory("liquibase-osgi-test").toFile();
+      Map<String, String> configuration = new HashMap<String, String>();
+      configuration.put(Constants.FRAMEWORK_STORAGE, storage.getAbsolutePath());
+      configuration.put(Constants.FRAMEWORK_STORAGE_CLEAN,
+          Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+      Framework framework = factories.next().newFramework(configuration);
+      framework.start();
+      return new EmbeddedFramework(framework, storage);
+    } catch (IOException | BundleException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private final Framework framework;
+
+  private final File storage;
+
+  private EmbeddedFramework(final Framework framework, final File storage) {
+    this.framework = framework;
+    this.storage = storage;
+  }
+
+  /**
+   * Creates a builder of a generated bundle.
+   *
+   * @param symbolicName
+   *          The symbolic name of the bundle.
+   * @return The builder.
+   */
+  public BundleBuilder bundle(final String symbolicName) {
+    return new BundleBuilder(symbolicName);
+  }
+
+  @Override
+  public void close() {
+    try {
+      framework.stop();
+      framework.waitForStop(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+      deleteRecursively(storage.toPath());
+    } catch (BundleException | IOException e) {
+      throw new IllegalStateException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * The context of the system bundle.
+   *
+   * @return The bundle context.
+   */
+  public BundleContext getBundleContext() {
+    return framework.getBundleContext();
+  }
+
+  /**
+   * Refreshes bundles and waits until the refresh is finished.
+   *
+   * @param bundles
+   *          The bundles to refresh.
+   */
+  public void refresh(final Bundle... bundles) {
+    final CountDownLatch latch = new CountDownLatch(1);
+    framework.adapt(FrameworkWiring.class).refreshBundles(Arrays.asList(bundles),
+        new FrameworkListener() {
+
+          @Override
+          public void frameworkEvent(final FrameworkEvent event) {
+            latch.countDown();
+          }
+        });
+    try {
+      if (!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Refresh timed out");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Resolves bundles.
+   *
+   * @param bundles
+   *          The bundles to resolve.
+   */
+  public void resolve(final Bundle... bundles) {
+    if (!framework.adapt(FrameworkWiring.class).resolveBundles(Arrays.asList(bundles))) {
+      throw new IllegalStateException("Could not resolve " + Arrays.toString(bundles));
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+
+/**
+ * Test for the verification of the entries that {@link BundleFileStreamProvider} reads from the
+ * local files of the bundles.
+ */
+public class BundleFileStreamProviderTest {
+
+  private static final String PATH = "META-INF/liquibase/data.csv";
+
+  private EmbeddedFramework framework;
+
+  private final BundleFileStreamProvider provider = new BundleFileStreamProvider();
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @After
+  public void after() {
+    provider.close();
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+  }
+
+  private byte[] build(final String content) {
+    return framework.bundle("data").entry(PATH, content).build();
+  }
+
+  private Bundle installFromFile(final File file, final String content) throws Exception {
+    Files.write(file.toPath(), build(content));
+    Bundle bundle = framework.getBundleContext().installBundle(file.toURI().toString());
+    framework.resolve(bundle);
+    return bundle;
+  }
+
+  private String read(final Bundle bundle) throws IOException {
+    try (InputStream inputStream =
+        provider.openStream(bundle, PATH, bundle.getResource(PATH))) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int n = inputStream.read(buffer);
+      while (n >= 0) {
+        out.write(buffer, 0, n);
+        n = inputStream.read(buffer);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Test
+  public void testChangedFileIsVerifiedAgain() throws Exception {
+    File file = temporaryFolder.newFile("data.jar");
+    Bundle bundle = installFromFile(file, "first");
+    read(bundle);
+    Assert.assertEquals(1, provider.getVerifiedEntryCount());
+
+    // The bundle is not updated, so the framework still serves the installed content
+    Files.write(file.toPath(), build("changed on the disk"));
+    Assert.assertTrue(file.setLastModified(file.lastModified() + 1000));
+
+    Assert.assertEquals("first", read(bundle));
+    Assert.assertEquals("first", read(bundle));
+    Assert.assertEquals(0, provider.getVerifiedEntryCount());
+  }
+
+  @Test
+  public void testPartiallyReadEntryIsNotVerified() throws Exception {
+    Bundle bundle = installFromFile(temporaryFolder.newFile("data.jar"), "first");
+    try (InputStream inputStream = provider.openStream(bundle, PATH, bundle.getResource(PATH))) {
+      Assert.assertEquals('f', inputStream.read());
+    }
+    Assert.assertEquals(0, provider.getVerifiedEntryCount());
+  }
+
+  @Test
+  public void testUpdatedRevisionIsNotReadFromTheLocation() throws Exception {
+    Bundle bundle = installFromFile(temporaryFolder.newFile("data.jar"), "first");
+    read(bundle);
+
+    bundle.update(new ByteArrayInputStream(build("second")));
+    framework.resolve(bundle);
+
+    Assert.assertEquals("second", read(bundle));
+    Assert.assertEquals("second", read(bundle));
+    Assert.assertEquals(0, provider.getVerifiedEntryCount());
+  }
+
+  @Test
+  public void testVerifiedEntryIsReadFromTheFile() throws Exception {
+    Bundle bundle = installFromFile(temporaryFolder.newFile("data.jar"), "first");
+    Assert.assertEquals(0, provider.getVerifiedEntryCount());
+
+    Assert.assertEquals("first", read(bundle));
+    Assert.assertEquals(1, provider.getVerifiedEntryCount());
+    Assert.assertEquals("first", read(bundle));
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Test for the snapshot cache of {@link CapabilityAttributes}.
+ */
+public class CapabilityAttributesTest {
+
+  private static final int CAPABILITY_COUNT = 64;
+
+  private static final int THREAD_COUNT = 8;
+
+  private List<BundleCapability> capabilities;
+
+  private EmbeddedFramework framework;
+
+  @After
+  public void after() {
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+    EmbeddedFramework.BundleBuilder bundleBuilder = framework.bundle("a");
+    for (int i = 0; i < CAPABILITY_COUNT; i++) {
+      bundleBuilder.provideChangeLog("schema" + i, "/META-INF/liquibase/" + i + ".xml");
+    }
+    Bundle bundle = bundleBuilder.install();
+    framework.resolve(bundle);
+    capabilities = bundle.adapt(BundleRevision.class)
+        .getDeclaredCapabilities(LiquibaseEOSGiConstants.CAPABILITY_NS_LIQUIBASE_CHANGELOG);
+    Assert.assertEquals(CAPABILITY_COUNT, capabilities.size());
+  }
+
+  @Test
+  public void testConcurrentLookupsShareOneSnapshotPerCapability() throws Exception {
+    ExecutorService executorService = Executors.newFixedThreadPool(THREAD_COUNT);
+    List<Future<List<CapabilityAttributes>>> futures =
+        new ArrayList<Future<List<CapabilityAttributes>>>();
+    try {
+      for (int i = 0; i < THREAD_COUNT; i++) {
+        futures.add(executorService.submit(new Callable<List<CapabilityAttributes>>() {
+          @Override
+          public List<CapabilityAttributes> call() {
+            List<CapabilityAttributes> result = new ArrayList<CapabilityAttributes>();
+            for (BundleCapability capability : capabilities) {
+              result.add(CapabilityAttributes.of(capability));
+            }
+            return result;
+          }
+        }));
+      }
+
+      List<CapabilityAttributes> expected = futures.get(0).get();
+      for (Future<List<CapabilityAttributes>> future : futures) {
+        List<CapabilityAttributes> snapshots = future.get();
+        for (int i = 0; i < CAPABILITY_COUNT; i++) {
+          Assert.assertSame(expected.get(i), snapshots.get(i));
+        }
+      }
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  @Test
+  public void testSnapshotHoldsTheAttributesOfItsCapability() {
+    for (int i = 0; i < CAPABILITY_COUNT; i++) {
+      CapabilityAttributes snapshot = CapabilityAttributes.of(capabilities.get(i));
+      Assert.assertEquals("/META-INF/liquibase/" + i + ".xml", snapshot.resourceName);
+      Assert.assertEquals("schema" + i, snapshot.schemaNames.get(0));
+      Assert.assertTrue(CapabilityAttributes.isSnapshot(snapshot.attributes));
+    }
+  }
+}
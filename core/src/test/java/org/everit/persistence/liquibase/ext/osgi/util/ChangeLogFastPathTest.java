@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.persistence.liquibase.ext.osgi.migration.MultiSchemaUpdater;
+import org.everit.persistence.liquibase.ext.osgi.migration.SchemaConnectionFactory;
+import org.everit.persistence.liquibase.ext.osgi.migration.SchemaUpdateResult;
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+/**
+ * Test for {@link ChangeLogFastPath}.
+ */
+public class ChangeLogFastPathTest {
+
+  private static final AtomicInteger DATABASE_COUNTER = new AtomicInteger();
+
+  private static final Executor SAME_THREAD_EXECUTOR = new Executor() {
+    @Override
+    public void execute(final Runnable command) {
+      command.run();
+    }
+  };
+
+  private static String createTable(final String tableName, final String changeSetAttributes) {
+    return EmbeddedFramework.changeLog("<changeSet id=\"1\" author=\"test\""
+        + changeSetAttributes + "><createTable tableName=\"" + tableName + "\">"
+        + "<column name=\"id\" type=\"int\"/></createTable></changeSet>");
+  }
+
+  private final Map<String, String> digests = new ConcurrentHashMap<String, String>();
+
+  private final ChangeLogDigestStore digestStore = new ChangeLogDigestStore() {
+
+    @Override
+    public String get(final String key) {
+      return digests.get(key);
+    }
+
+    @Override
+    public void putAll(final Map<String, String> entries) {
+      digests.putAll(entries);
+    }
+  };
+
+  private EmbeddedFramework framework;
+
+  private String jdbcUrl;
+
+  @After
+  public void after() {
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+    jdbcUrl = "jdbc:h2:mem:fastpath" + DATABASE_COUNTER.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+  }
+
+  private SchemaConnectionFactory connectionFactory(final String user) {
+    return new SchemaConnectionFactory() {
+      @Override
+      public Connection getConnection(final BundleResource bundleResource) throws SQLException {
+        return DriverManager.getConnection(jdbcUrl, user, "");
+      }
+    };
+  }
+
+  private BundleResource install(final String name, final String... pathsAndContents) {
+    EmbeddedFramework.BundleBuilder builder = framework.bundle(name);
+    for (int i = 0; i < pathsAndContents.length; i += 2) {
+      builder.entry(pathsAndContents[i], pathsAndContents[i + 1]);
+    }
+    Bundle bundle = builder.install();
+    framework.resolve(bundle);
+    return new BundleResource(bundle, '/' + pathsAndContents[0],
+        Collections.<String, Object> emptyMap());
+  }
+
+  private int countAppliedChangeSets() throws SQLException {
+    try (Connection connection = DriverManager.getConnection(jdbcUrl, "sa", "");
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM DATABASECHANGELOG")) {
+      resultSet.next();
+      return resultSet.getInt(1);
+    }
+  }
+
+  private boolean update(final BundleResource bundleResource, final String user) {
+    return update(bundleResource, user, null);
+  }
+
+  private boolean update(final BundleResource bundleResource, final String user,
+      final String contexts) {
+    MultiSchemaUpdater updater = new MultiSchemaUpdater(SAME_THREAD_EXECUTOR, null);
+    updater.setUpdateCoordinator(null);
+    updater.setDigestStore(digestStore);
+    List<SchemaUpdateResult> results = updater.update(Collections.singletonList(bundleResource),
+        connectionFactory(user), contexts);
+    SchemaUpdateResult result = results.get(0);
+    Assert.assertTrue(String.valueOf(result.failure), result.isSuccessful());
+    return result.skipped;
+  }
+
+  @Test
+  public void testChangeSetRunOnChangeIsNotSkipped() {
+    BundleResource bundleResource = install("runonchange", "META-INF/liquibase/changelog.xml",
+        createTable("runonchange", " runOnChange=\"true\""));
+
+    Assert.assertFalse(update(bundleResource, "sa"));
+    Assert.assertFalse(update(bundleResource, "sa"));
+    Assert.assertTrue(digests.isEmpty());
+  }
+
+  @Test
+  public void testChangeSetWithContextIsNotSkipped() throws SQLException {
+    BundleResource bundleResource = install("context", "META-INF/liquibase/changelog.xml",
+        EmbeddedFramework.changeLog("<changeSet id=\"1\" author=\"test\" context=\"a\">"
+            + "<createTable tableName=\"contexta\"><column name=\"id\" type=\"int\"/>"
+            + "</createTable></changeSet>"
+            + "<changeSet id=\"2\" author=\"test\" context=\"b\">"
+            + "<createTable tableName=\"contextb\"><column name=\"id\" type=\"int\"/>"
+            + "</createTable></changeSet>"));
+
+    Assert.assertFalse(update(bundleResource, "sa", "a"));
+    Assert.assertEquals(1, countAppliedChangeSets());
+    Assert.assertFalse(update(bundleResource, "sa", "b"));
+    Assert.assertEquals(2, countAppliedChangeSets());
+    Assert.assertTrue(digests.isEmpty());
+  }
+
+  @Test
+  public void testContextsArePartOfTheKey() {
+    BundleResource bundleResource = install("contextkey", "META-INF/liquibase/changelog.xml",
+        createTable("contextkey", ""));
+
+    Assert.assertFalse(update(bundleResource, "sa", "a"));
+    Assert.assertTrue(update(bundleResource, "sa", "a"));
+    Assert.assertFalse(update(bundleResource, "sa", "b"));
+    Assert.assertTrue(update(bundleResource, "sa", "b"));
+  }
+
+  @Test
+  public void testFileOutsideOfDirectoryIsNotSkipped() {
+    BundleResource bundleResource = install("external", "META-INF/liquibase/changelog.xml",
+        EmbeddedFramework.changeLog("<changeSet id=\"1\" author=\"test\">"
+            + "<sqlFile path=\"META-INF/shared/create.sql\"/>"
+            + "</changeSet>"),
+        "META-INF/shared/create.sql", "CREATE TABLE external (id INT)");
+
+    Assert.assertFalse(update(bundleResource, "sa"));
+    Assert.assertFalse(update(bundleResource, "sa"));
+    Assert.assertTrue(digests.isEmpty());
+  }
+
+  @Test
+  public void testNonHaltingPreconditionIsNotSkipped() {
+    BundleResource bundleResource = install("precondition", "META-INF/liquibase/changelog.xml",
+        EmbeddedFramework.changeLog("<changeSet id=\"1\" author=\"test\">"
+            + "<preConditions onFail=\"CONTINUE\"><tableExists tableName=\"missing\"/>"
+            + "</preConditions><createTable tableName=\"precondition\">"
+            + "<column name=\"id\" type=\"int\"/></createTable></changeSet>"));
+
+    Assert.assertFalse(update(bundleResource, "sa"));
+    Assert.assertFalse(update(bundleResource, "sa"));
+    Assert.assertTrue(digests.isEmpty());
+  }
+
+  @Test
+  public void testSelfContainedChangeLogIsSkipped() {
+    BundleResource bundleResource = install("selfcontained", "META-INF/liquibase/changelog.xml",
+        EmbeddedFramework.changeLog("<changeSet id=\"1\" author=\"test\">"
+            + "<sqlFile path=\"create.sql\" relativeToChangelogFile=\"true\"/>"
+            + "</changeSet>"),
+        "META-INF/liquibase/create.sql", "CREATE TABLE selfcontained (id INT)");
+
+    Assert.assertFalse(update(bundleResource, "sa"));
+    Assert.assertTrue(update(bundleResource, "sa"));
+  }
+
+  @Test
+  public void testUpdateOfOtherSchemaDoesNotInvalidate() {
+    BundleResource first = install("first", "META-INF/liquibase/first/changelog.xml",
+        createTable("first", ""));
+    BundleResource second = install("second", "META-INF/liquibase/second/changelog.xml",
+        createTable("second", ""));
+
+    Assert.assertFalse(update(first, "sa"));
+    Assert.assertFalse(update(second, "sa"));
+    Assert.assertTrue(update(first, "sa"));
+  }
+
+  @Test
+  public void testUserIsPartOfTheKey() throws SQLException {
+    try (Connection connection = DriverManager.getConnection(jdbcUrl, "sa", "");
+        Statement statement = connection.createStatement()) {
+      statement.execute("CREATE USER other PASSWORD '' ADMIN");
+    }
+    BundleResource bundleResource = install("user", "META-INF/liquibase/changelog.xml",
+        createTable("usertable", ""));
+
+    Assert.assertFalse(update(bundleResource, "sa"));
+    Assert.assertFalse(update(bundleResource, "other"));
+    Assert.assertTrue(update(bundleResource, "other"));
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Collections;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
+import org.everit.persistence.liquibase.ext.osgi.metrics.InMemoryResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.osgi.framework.Bundle;
+
+import liquibase.change.core.CreateTableChange;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.parser.core.ParsedNode;
+
+/**
+ * Test for the validation and the file naming of {@link ChangeLogSnapshotStore}.
+ */
+public class ChangeLogSnapshotStoreTest {
+
+  private static final String RESOURCE_NAME = "/META-INF/liquibase/changelog.xml";
+
+  private static String changeLog(final String author) {
+    return EmbeddedFramework.changeLog("<changeSet id=\"1\" author=\"" + author + "\">"
+        + "<createTable tableName=\"${table.name}\">"
+        + "<column name=\"id\" type=\"int\"/></createTable></changeSet>");
+  }
+
+  private static DatabaseChangeLog load(final BundleResource bundleResource,
+      final ParsedNode parsedNode, final String tableName) throws Exception {
+    ChangeLogParameters changeLogParameters = new ChangeLogParameters();
+    changeLogParameters.set("table.name", tableName);
+    return ChangeLogNodeParser.load(bundleResource, parsedNode, changeLogParameters,
+        new EOSGiResourceAccessor(bundleResource.bundle));
+  }
+
+  private Bundle bundle;
+
+  private BundleResource bundleResource;
+
+  private EmbeddedFramework framework;
+
+  private final InMemoryResolutionMetrics metrics = new InMemoryResolutionMetrics();
+
+  @Rule
+  public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @After
+  public void after() {
+    ResolutionMetrics.setListener(null);
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+    bundle = framework.bundle("snapshot")
+        .entry(RESOURCE_NAME.substring(1), changeLog("first")).install();
+    framework.resolve(bundle);
+    bundleResource =
+        new BundleResource(bundle, RESOURCE_NAME, Collections.<String, Object> emptyMap());
+    ResolutionMetrics.setListener(metrics);
+  }
+
+  private long getCount(final boolean hit) {
+    Long count = (hit ? metrics.getCacheHitCounts() : metrics.getCacheMissCounts())
+        .get(ResolutionMetrics.CACHE_CHANGELOG_SNAPSHOT);
+    return (count != null) ? count : 0;
+  }
+
+  private ParsedNode loadOrParseNode(final File directory) throws Exception {
+    return new ChangeLogSnapshotStore(directory).loadOrParseNode(bundleResource,
+        new EOSGiResourceAccessor(bundle));
+  }
+
+  @Test
+  public void testFileNamesOfSanitizedNamesDoNotCollide() throws Exception {
+    ChangeLogSnapshotStore store = new ChangeLogSnapshotStore(temporaryFolder.getRoot());
+    File first = store.getFile(new BundleResource(bundle, "/META-INF/a/b.xml",
+        Collections.<String, Object> emptyMap()));
+    File second = store.getFile(new BundleResource(bundle, "/META-INF/a_b.xml",
+        Collections.<String, Object> emptyMap()));
+
+    Assert.assertNotEquals(first, second);
+    Assert.assertEquals(first, store.getFile(new BundleResource(bundle, "/META-INF/a/b.xml",
+        Collections.<String, Object> emptyMap())));
+  }
+
+  @Test
+  public void testSnapshotKeepsPropertyExpressions() throws Exception {
+    File directory = temporaryFolder.getRoot();
+    loadOrParseNode(directory);
+    ParsedNode parsedNode = loadOrParseNode(directory);
+    Assert.assertEquals(1, getCount(true));
+
+    Assert.assertEquals("tenant1_table", ((CreateTableChange) load(bundleResource, parsedNode,
+        "tenant1_table").getChangeSets().get(0).getChanges().get(0)).getTableName());
+    Assert.assertEquals("tenant2_table", ((CreateTableChange) load(bundleResource, parsedNode,
+        "tenant2_table").getChangeSets().get(0).getChanges().get(0)).getTableName());
+  }
+
+  @Test
+  public void testUpdatedBundleInvalidatesSnapshot() throws Exception {
+    File directory = temporaryFolder.getRoot();
+    loadOrParseNode(directory);
+    Assert.assertEquals(1, getCount(false));
+
+    bundle.update(new ByteArrayInputStream(framework.bundle("snapshot")
+        .entry(RESOURCE_NAME.substring(1), changeLog("second")).build()));
+    framework.resolve(bundle);
+
+    ParsedNode parsedNode = loadOrParseNode(directory);
+    Assert.assertEquals(2, getCount(false));
+    Assert.assertEquals(0, getCount(true));
+    Assert.assertEquals("second",
+        load(bundleResource, parsedNode, "table").getChangeSets().get(0).getAuthor());
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.liquibase.ext.osgi.parser.EOSGiChangelogParser;
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.exception.LiquibaseException;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Test for the include cycle detection of {@link IncludePlan} and the parser.
+ *
+ * <p>
+ * Bundle A provides the X and Z schemas and includes Y from bundle B, while B provides Y and
+ * includes Z from A. The wires of the bundles form a cycle, but the changelogs do only if Z
+ * includes Y.
+ */
+public class IncludePlanTest {
+
+  private static final String X = "/META-INF/liquibase/x.xml";
+
+  private static final String Y = "/META-INF/liquibase/y.xml";
+
+  private static final String Z = "/META-INF/liquibase/z.xml";
+
+  private static String include(final String schemaExpression) {
+    return EmbeddedFramework.changeLog("<include file=\"" + schemaExpression
+        + LiquibaseEOSGiConstants.INCLUDE_OSGI_EXTENSION + "\"/>");
+  }
+
+  private static String index(final String... resourcesAndIncludes) {
+    StringBuilder sb = new StringBuilder("version=1\n");
+    sb.append("changelog.count=").append(resourcesAndIncludes.length / 2).append('\n');
+    for (int i = 0; i < resourcesAndIncludes.length; i += 2) {
+      String prefix = "changelog." + (i / 2) + '.';
+      sb.append(prefix).append("resource=").append(resourcesAndIncludes[i]).append('\n');
+      String include = resourcesAndIncludes[i + 1];
+      if (include == null) {
+        sb.append(prefix).append("include.count=0\n");
+      } else {
+        sb.append(prefix).append("include.count=1\n");
+        sb.append(prefix).append("include.0=").append(include).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  private Bundle bundleA;
+
+  private Bundle bundleB;
+
+  private EmbeddedFramework framework;
+
+  @After
+  public void after() {
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+  }
+
+  private void install(final String zChangeLog, final String indexOfA, final String indexOfB) {
+    EmbeddedFramework.BundleBuilder builderOfA = framework.bundle("a")
+        .provideChangeLog("X", X).provideChangeLog("Z", Z)
+        .requireChangeLog("(liquibase.changelog=Y)")
+        .entry(X.substring(1), include("Y")).entry(Z.substring(1), zChangeLog);
+    EmbeddedFramework.BundleBuilder builderOfB = framework.bundle("b")
+        .provideChangeLog("Y", Y).requireChangeLog("(liquibase.changelog=Z)")
+        .entry(Y.substring(1), include("Z"));
+    if (indexOfA != null) {
+      builderOfA.entry(LiquibaseEOSGiConstants.CHANGELOG_INDEX_PATH, indexOfA);
+      builderOfB.entry(LiquibaseEOSGiConstants.CHANGELOG_INDEX_PATH, indexOfB);
+    }
+    bundleA = builderOfA.install();
+    bundleB = builderOfB.install();
+    framework.resolve(bundleA, bundleB);
+  }
+
+  @Test
+  public void testCyclicChangeLogsAreDetectedByTheParser() {
+    install(include("Y"), null, null);
+    ChangeLogParserFactory.getInstance().register(new EOSGiChangelogParser());
+    ResourceAccessor resourceAccessor = new EOSGiResourceAccessor(bundleA);
+
+    try {
+      ChangeLogParserFactory.getInstance().getParser(X, resourceAccessor)
+          .parse(X, new ChangeLogParameters(), resourceAccessor);
+      Assert.fail("Include cycle expected");
+    } catch (LiquibaseException | RuntimeException e) {
+      Throwable cause = e;
+      while ((cause != null) && !(cause instanceof IncludeCycleException)) {
+        cause = cause.getCause();
+      }
+      Assert.assertNotNull("Include cycle expected: " + e, cause);
+    }
+  }
+
+  @Test
+  public void testCyclicIndexedChangeLogsAreRejected() {
+    install(include("Y"), index(X, "Y", Z, "Y"), index(Y, "Z"));
+
+    try {
+      IncludePlan.create(Collections.singleton(bundleA));
+      Assert.fail("Include cycle expected");
+    } catch (IncludeCycleException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains(Z));
+    }
+  }
+
+  @Test
+  public void testCyclicWiresAreAllowed() {
+    install(EmbeddedFramework.changeLog(""), null, null);
+
+    IncludePlan includePlan = IncludePlan.create(Collections.singleton(bundleA));
+
+    Assert.assertEquals(2, includePlan.getBundles().size());
+    Assert.assertEquals(2, includePlan.getResources().size());
+    Assert.assertTrue(includePlan.isCurrent(bundleA));
+  }
+
+  @Test
+  public void testIndexedIncludesOrderTheResources() {
+    install(EmbeddedFramework.changeLog(""), index(X, "Y", Z, null), index(Y, "Z"));
+
+    List<BundleResource> resources =
+        IncludePlan.create(Collections.singleton(bundleA)).getResources();
+
+    Assert.assertEquals(2, resources.size());
+    Assert.assertEquals(Z, resources.get(0).resourceName);
+    Assert.assertEquals(Y, resources.get(1).resourceName);
+  }
+
+  @Test
+  public void testPlanIsNotCurrentAfterRefresh() {
+    install(EmbeddedFramework.changeLog(""), null, null);
+    IncludePlan includePlan = IncludePlan.create(Collections.singleton(bundleA));
+
+    framework.refresh(bundleB);
+    framework.resolve(bundleA, bundleB);
+
+    Assert.assertFalse(includePlan.isCurrent(bundleB));
+    Assert.assertFalse(includePlan.isCurrent());
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiParserContext;
+import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.liquibase.ext.osgi.metrics.InMemoryResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.parser.EOSGiChangelogParser;
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import liquibase.change.core.CreateTableChange;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.exception.LiquibaseException;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Test for {@link IncludePrefetcher}.
+ */
+public class IncludePrefetcherTest {
+
+  private static final String CHILD = "/META-INF/liquibase/child.xml";
+
+  private static final Executor SAME_THREAD_EXECUTOR = new Executor() {
+    @Override
+    public void execute(final Runnable command) {
+      command.run();
+    }
+  };
+
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  private static final String X = "/META-INF/liquibase/x.xml";
+
+  private static final String Y = "/META-INF/liquibase/y.xml";
+
+  private static String createTableChangeLog(final String tableName) {
+    return EmbeddedFramework.changeLog("<changeSet id=\"1\" author=\"test\">"
+        + "<createTable tableName=\"" + tableName + "\"><column name=\"id\" type=\"int\"/>"
+        + "</createTable></changeSet>");
+  }
+
+  private static String include(final String schemaName) {
+    return "<include file=\"" + schemaName + LiquibaseEOSGiConstants.INCLUDE_OSGI_EXTENSION
+        + "\"/>";
+  }
+
+  private ExecutorService executorService;
+
+  private EmbeddedFramework framework;
+
+  @After
+  public void after() {
+    executorService.shutdownNow();
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    ChangeLogParserFactory.getInstance().register(new EOSGiChangelogParser());
+    framework = EmbeddedFramework.start();
+    executorService = Executors.newFixedThreadPool(2);
+  }
+
+  private DatabaseChangeLog parse(final Bundle bundle, final String resourceName,
+      final EOSGiParserContext parserContext) throws LiquibaseException {
+    ResourceAccessor resourceAccessor = new EOSGiResourceAccessor(bundle,
+        Collections.<String, Object> emptyMap(), parserContext);
+    return ChangeLogParserFactory.getInstance().getParser(resourceName, resourceAccessor)
+        .parse(resourceName, new ChangeLogParameters(), resourceAccessor);
+  }
+
+  @Test(timeout = TIMEOUT_MILLIS)
+  public void testCyclicIncludesFailInsteadOfWaiting() {
+    Bundle bundleX = framework.bundle("x").provideChangeLog("X", X)
+        .requireChangeLog("(liquibase.changelog=Y)")
+        .entry(X.substring(1), EmbeddedFramework.changeLog(include("Y"))).install();
+    Bundle bundleY = framework.bundle("y").provideChangeLog("Y", Y)
+        .requireChangeLog("(liquibase.changelog=X)")
+        .entry(Y.substring(1), EmbeddedFramework.changeLog(include("X"))).install();
+    framework.resolve(bundleX, bundleY);
+    EOSGiParserContext parserContext = new EOSGiParserContext();
+    parserContext.setIncludePrefetcher(new IncludePrefetcher(executorService, 16));
+
+    try {
+      parse(bundleX, X, parserContext);
+      Assert.fail("Include cycle expected");
+    } catch (LiquibaseException | RuntimeException e) {
+      Throwable cause = e;
+      while ((cause != null) && !(cause instanceof IncludeCycleException)) {
+        cause = cause.getCause();
+      }
+      Assert.assertNotNull("Include cycle expected: " + e, cause);
+    }
+  }
+
+  @Test
+  public void testPrefetchOfPreviousRevisionIsNotTaken() throws Exception {
+    Bundle child = framework.bundle("child").provideChangeLog("child", CHILD)
+        .entry(CHILD.substring(1), createTableChangeLog("first")).install();
+    Bundle root = framework.bundle("root").requireChangeLog("(liquibase.changelog=child)")
+        .entry("META-INF/liquibase/root.xml", EmbeddedFramework.changeLog(include("child")))
+        .install();
+    framework.resolve(child, root);
+
+    IncludePrefetcher includePrefetcher = new IncludePrefetcher(SAME_THREAD_EXECUTOR, 16);
+    EOSGiParserContext parserContext = new EOSGiParserContext();
+    parserContext.setIncludePrefetcher(includePrefetcher);
+    includePrefetcher.prefetchIncludes(root, parserContext);
+
+    child.update(new ByteArrayInputStream(framework.bundle("child")
+        .provideChangeLog("child", CHILD)
+        .entry(CHILD.substring(1), createTableChangeLog("second")).build()));
+    framework.refresh(child);
+    framework.resolve(child, root);
+
+    DatabaseChangeLog changeLog = parse(root, "/META-INF/liquibase/root.xml", parserContext);
+    CreateTableChange change =
+        (CreateTableChange) changeLog.getChangeSets().get(0).getChanges().get(0);
+    Assert.assertEquals("second", change.getTableName());
+  }
+
+  @Test
+  public void testPrefetchedChangeLogIsCachedAndLoadedWithTheParametersOfTheParser()
+      throws LiquibaseException {
+    Bundle child = framework.bundle("child").provideChangeLog("child", CHILD)
+        .entry(CHILD.substring(1), EmbeddedFramework.changeLog(
+            "<changeSet id=\"1\" author=\"test\"><createTable tableName=\"${table.name}\">"
+                + "<column name=\"id\" type=\"int\"/></createTable></changeSet>"))
+        .install();
+    Bundle root = framework.bundle("root").requireChangeLog("(liquibase.changelog=child)")
+        .entry("META-INF/liquibase/root.xml", EmbeddedFramework.changeLog(
+            "<property name=\"table.name\" value=\"defined_by_root\"/>" + include("child")))
+        .install();
+    framework.resolve(child, root);
+
+    ParsedChangeLogCache parsedChangeLogCache = new ParsedChangeLogCache();
+    IncludePrefetcher includePrefetcher = new IncludePrefetcher(SAME_THREAD_EXECUTOR, 16);
+    EOSGiParserContext parserContext = new EOSGiParserContext();
+    parserContext.setParsedChangeLogCache(parsedChangeLogCache);
+    parserContext.setIncludePrefetcher(includePrefetcher);
+
+    includePrefetcher.prefetchIncludes(root, parserContext);
+    Assert.assertEquals(1, parsedChangeLogCache.size());
+    Assert.assertEquals(0, includePrefetcher.getPendingPrefetchCount());
+
+    InMemoryResolutionMetrics metrics = new InMemoryResolutionMetrics();
+    ResolutionMetrics.setListener(metrics);
+    DatabaseChangeLog changeLog;
+    try {
+      changeLog = parse(root, "/META-INF/liquibase/root.xml", parserContext);
+    } finally {
+      ResolutionMetrics.setListener(null);
+    }
+
+    CreateTableChange change =
+        (CreateTableChange) changeLog.getChangeSets().get(0).getChanges().get(0);
+    Assert.assertEquals("defined_by_root", change.getTableName());
+    Assert.assertEquals(1, metrics.getChangeLogParseCount());
+    Assert.assertEquals(1, parsedChangeLogCache.size());
+  }
+}
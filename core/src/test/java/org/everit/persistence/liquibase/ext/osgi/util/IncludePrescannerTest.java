@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.exception.ChangeLogParseException;
+import liquibase.parser.core.ParsedNode;
+
+/**
+ * Test for the include resolution of {@link IncludePrescanner}. The prescanned results are
+ * checked after the wiring of the consumer bundle is dropped, so only memoized results are found.
+ */
+public class IncludePrescannerTest {
+
+  private static final String X = "/META-INF/liquibase/x.xml";
+
+  private static final String Y = "/META-INF/liquibase/y.xml";
+
+  private Bundle bundleA;
+
+  private Bundle bundleB;
+
+  private EmbeddedFramework framework;
+
+  @After
+  public void after() {
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+    bundleA = framework.bundle("a").provideChangeLog("X", X)
+        .requireChangeLog("(liquibase.changelog=Y)")
+        .entry(X.substring(1), EmbeddedFramework.changeLog("<include file=\"${schema}"
+            + LiquibaseEOSGiConstants.INCLUDE_OSGI_EXTENSION + "\"/>"))
+        .install();
+    bundleB = framework.bundle("b").provideChangeLog("Y", Y)
+        .entry(Y.substring(1), EmbeddedFramework.changeLog(""))
+        .install();
+    framework.resolve(bundleA, bundleB);
+  }
+
+  private IncludePrescanner prescan(final ChangeLogParameters changeLogParameters)
+      throws ChangeLogParseException {
+    BundleResource changeLog = new BundleResource(bundleA, X, null);
+    ParsedNode parsedNode =
+        ChangeLogNodeParser.parseToNode(changeLog, new EOSGiResourceAccessor(bundleA));
+    IncludePrescanner includePrescanner = new IncludePrescanner();
+    includePrescanner.prescan(changeLog, parsedNode, changeLogParameters);
+    framework.refresh(bundleB);
+    return includePrescanner;
+  }
+
+  @Test
+  public void testPropertyExpressionInIncludeIsExpanded() throws ChangeLogParseException {
+    ChangeLogParameters changeLogParameters = new ChangeLogParameters();
+    changeLogParameters.set("schema", "Y");
+
+    IncludePrescanner includePrescanner = prescan(changeLogParameters);
+
+    BundleResource bundleResource = includePrescanner.findMatchingResource(bundleA, "Y");
+    Assert.assertNotNull(bundleResource);
+    Assert.assertEquals(Y, bundleResource.resourceName);
+  }
+
+  @Test
+  public void testUnknownPropertyIsLeftToTheParser() throws ChangeLogParseException {
+    IncludePrescanner includePrescanner = prescan(new ChangeLogParameters());
+
+    Assert.assertNull(includePrescanner.findMatchingResource(bundleA, "Y"));
+    Assert.assertNull(includePrescanner.findMatchingResource(bundleA, "${schema}"));
+  }
+}
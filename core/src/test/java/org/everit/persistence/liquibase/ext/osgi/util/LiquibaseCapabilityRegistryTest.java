@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.List;
+
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework.BundleBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+
+/**
+ * Test for {@link LiquibaseCapabilityRegistry}.
+ */
+public class LiquibaseCapabilityRegistryTest {
+
+  private static final int CAPABILITY_COUNT = 16;
+
+  private EmbeddedFramework framework;
+
+  private LiquibaseCapabilityRegistry registry;
+
+  @After
+  public void after() {
+    registry.close();
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+    registry = new LiquibaseCapabilityRegistry(framework.getBundleContext());
+    registry.open();
+  }
+
+  @Test
+  public void testCapabilitiesOfABundleKeepTheirDeclarationOrder() {
+    BundleBuilder builder = framework.bundle("provider");
+    for (int i = CAPABILITY_COUNT - 1; i >= 0; i--) {
+      builder.provideChangeLog("schema" + i, "/META-INF/liquibase/schema" + i + ".xml");
+    }
+    Bundle provider = builder.install();
+    framework.resolve(provider);
+
+    List<BundleResource> result =
+        registry.findBundlesBySchemaExpression("schema*", Bundle.RESOLVED);
+    List<BundleResource> expected = LiquibaseOSGiUtil.findBundlesBySchemaExpression("schema*",
+        framework.getBundleContext(), Bundle.RESOLVED);
+
+    Assert.assertEquals(CAPABILITY_COUNT, result.size());
+    for (int i = 0; i < CAPABILITY_COUNT; i++) {
+      Assert.assertEquals("/META-INF/liquibase/schema" + (CAPABILITY_COUNT - 1 - i) + ".xml",
+          result.get(i).resourceName);
+      Assert.assertEquals(expected.get(i).resourceName, result.get(i).resourceName);
+    }
+  }
+
+  @Test
+  public void testEscapedSchemaName() {
+    Bundle provider = framework.bundle("provider")
+        .provideChangeLog("my(schema)", "/META-INF/liquibase/my.xml").install();
+    framework.resolve(provider);
+
+    List<BundleResource> result =
+        registry.findBundlesBySchemaExpression("my\\(schema\\)", Bundle.RESOLVED);
+
+    Assert.assertEquals(1, result.size());
+    Assert.assertEquals(provider, result.get(0).bundle);
+  }
+
+  @Test
+  public void testModifiedBundleIsMovedToItsNewState() throws BundleException {
+    Bundle provider = framework.bundle("provider")
+        .provideChangeLog("schema", "/META-INF/liquibase/schema.xml").install();
+    framework.resolve(provider);
+    Assert.assertTrue(registry.findBundlesBySchemaExpression("schema", Bundle.ACTIVE).isEmpty());
+
+    provider.start();
+
+    List<BundleResource> result = registry.findBundlesBySchemaExpression("schema", Bundle.ACTIVE);
+    Assert.assertEquals(1, result.size());
+    Assert.assertEquals("/META-INF/liquibase/schema.xml", result.get(0).resourceName);
+    Assert.assertTrue(
+        registry.findBundlesBySchemaExpression("schema", Bundle.RESOLVED).isEmpty());
+  }
+
+  @Test
+  public void testWildcardSchemaName() {
+    Bundle first = framework.bundle("first")
+        .provideChangeLog("schemaA", "/META-INF/liquibase/a.xml").install();
+    Bundle second = framework.bundle("second")
+        .provideChangeLog("schemaB", "/META-INF/liquibase/b.xml")
+        .provideChangeLog("other", "/META-INF/liquibase/other.xml").install();
+    framework.resolve(first, second);
+
+    List<BundleResource> result =
+        registry.findBundlesBySchemaExpression("schema*", Bundle.RESOLVED);
+
+    Assert.assertEquals(2, result.size());
+    Assert.assertEquals("/META-INF/liquibase/a.xml", result.get(0).resourceName);
+    Assert.assertEquals("/META-INF/liquibase/b.xml", result.get(1).resourceName);
+    Assert.assertEquals(3, registry.findBundlesBySchemaExpression("*", Bundle.RESOLVED).size());
+  }
+}
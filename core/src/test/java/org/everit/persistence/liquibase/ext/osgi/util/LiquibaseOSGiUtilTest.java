@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+/**
+ * Test for the wire based lookups of {@link LiquibaseOSGiUtil} and the {@link BundleWiringIndex}.
+ */
+public class LiquibaseOSGiUtilTest {
+
+  private EmbeddedFramework framework;
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+  }
+
+  @After
+  public void after() {
+    framework.close();
+  }
+
+  @Test
+  public void testEscapedSchemaNameIsResolved() {
+    Bundle provider = framework.bundle("provider")
+        .provideChangeLog("my(schema)", "/META-INF/liquibase/my.xml").install();
+    Bundle consumer = framework.bundle("consumer")
+        .requireChangeLog("(liquibase.changelog=my*)").install();
+    framework.resolve(provider, consumer);
+
+    BundleResource bundleResource =
+        LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(consumer, "my\\(schema\\)");
+
+    Assert.assertNotNull(bundleResource);
+    Assert.assertEquals(provider, bundleResource.bundle);
+  }
+
+  @Test
+  public void testIndexEntryIsEvictedWhenBundleIsRefreshedOrUninstalled() {
+    Bundle provider = framework.bundle("provider")
+        .provideChangeLog("schema", "/META-INF/liquibase/schema.xml").install();
+    Bundle first = framework.bundle("first").requireChangeLog("(liquibase.changelog=schema)")
+        .install();
+    Bundle second = framework.bundle("second").requireChangeLog("(liquibase.changelog=schema)")
+        .install();
+    framework.resolve(provider, first, second);
+
+    BundleWiringIndex index = LiquibaseOSGiUtil.getBundleWiringIndex();
+    index.register(framework.getBundleContext());
+    index.clear();
+    Assert.assertNotNull(LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(first, "schema"));
+    Assert.assertNotNull(LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(second, "schema"));
+    Assert.assertEquals(2, index.size());
+
+    framework.refresh(first);
+    Assert.assertEquals(1, index.size());
+
+    try {
+      second.uninstall();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+    Assert.assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testSameSchemaNameWithDifferentAttributes() {
+    Bundle oldProvider = framework.bundle("old")
+        .provideChangeLog("shared", "/META-INF/liquibase/old.xml", "version:Version=1.0")
+        .install();
+    Bundle newProvider = framework.bundle("new")
+        .provideChangeLog("shared", "/META-INF/liquibase/new.xml", "version:Version=2.0")
+        .install();
+    Bundle consumer = framework.bundle("consumer")
+        .requireChangeLog("(&(liquibase.changelog=shared)(version=1.0))")
+        .requireChangeLog("(&(liquibase.changelog=shared)(version=2.0))").install();
+    framework.resolve(oldProvider, newProvider, consumer);
+
+    BundleResource bundleResource = LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(
+        consumer, "shared;filter:=(version>=2.0)");
+
+    Assert.assertNotNull(bundleResource);
+    Assert.assertEquals(newProvider, bundleResource.bundle);
+    Assert.assertEquals("/META-INF/liquibase/new.xml", bundleResource.resourceName);
+  }
+
+  @Test
+  public void testWildcardSchemaNameIsResolved() {
+    Bundle provider = framework.bundle("provider")
+        .provideChangeLog("schemaA", "/META-INF/liquibase/a.xml")
+        .provideChangeLog("other", "/META-INF/liquibase/other.xml").install();
+    Bundle consumer = framework.bundle("consumer")
+        .requireChangeLog("(liquibase.changelog=schema*)")
+        .requireChangeLog("(liquibase.changelog=other)").install();
+    framework.resolve(provider, consumer);
+
+    BundleResource bundleResource =
+        LiquibaseOSGiUtil.findMatchingWireBySchemaExpression(consumer, "schema*");
+    Assert.assertNotNull(bundleResource);
+    Assert.assertEquals("/META-INF/liquibase/a.xml", bundleResource.resourceName);
+
+    Map<String, BundleResource> bundleResources = LiquibaseOSGiUtil
+        .findMatchingWiresBySchemaExpressions(consumer, Arrays.asList("sch*", "other", "none*"));
+    Assert.assertEquals("/META-INF/liquibase/a.xml",
+        bundleResources.get("sch*").resourceName);
+    Assert.assertEquals("/META-INF/liquibase/other.xml",
+        bundleResources.get("other").resourceName);
+    Assert.assertNull(bundleResources.get("none*"));
+  }
+}
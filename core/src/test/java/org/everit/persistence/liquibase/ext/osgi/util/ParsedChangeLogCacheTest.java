@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+import liquibase.change.core.CreateTableChange;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.parser.core.ParsedNode;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Test for {@link ParsedChangeLogCache}.
+ */
+public class ParsedChangeLogCacheTest {
+
+  private static final String RESOURCE_NAME = "/META-INF/liquibase/changelog.xml";
+
+  private static String changeLog(final String author) {
+    return EmbeddedFramework.changeLog("<changeSet id=\"1\" author=\"" + author + "\">"
+        + "<createTable tableName=\"${table.name}\">"
+        + "<column name=\"id\" type=\"int\"/></createTable></changeSet>");
+  }
+
+  private static ChangeLogParameters createParameters(final String tableName) {
+    ChangeLogParameters changeLogParameters = new ChangeLogParameters();
+    changeLogParameters.set("table.name", tableName);
+    return changeLogParameters;
+  }
+
+  private static String getTableName(final DatabaseChangeLog changeLog) {
+    ChangeSet changeSet = changeLog.getChangeSets().get(0);
+    return ((CreateTableChange) changeSet.getChanges().get(0)).getTableName();
+  }
+
+  private Bundle bundle;
+
+  private BundleResource bundleResource;
+
+  private final ParsedChangeLogCache cache = new ParsedChangeLogCache();
+
+  private EmbeddedFramework framework;
+
+  private final AtomicInteger parseCount = new AtomicInteger();
+
+  private ResourceAccessor resourceAccessor;
+
+  @After
+  public void after() {
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+    bundle = framework.bundle("provider")
+        .entry(RESOURCE_NAME.substring(1), changeLog("first")).install();
+    framework.resolve(bundle);
+    bundleResource =
+        new BundleResource(bundle, RESOURCE_NAME, Collections.<String, Object> emptyMap());
+    resourceAccessor = new EOSGiResourceAccessor(bundle);
+  }
+
+  private Callable<ParsedNode> parser() {
+    return new Callable<ParsedNode>() {
+      @Override
+      public ParsedNode call() throws Exception {
+        parseCount.incrementAndGet();
+        return ChangeLogNodeParser.parseToNode(bundleResource, resourceAccessor);
+      }
+    };
+  }
+
+  @Test
+  public void testCallersWithDifferentParametersGetTheirOwnChangeLogs() throws Exception {
+    DatabaseChangeLog first = cache.getOrParse(bundleResource, createParameters("tenant1_table"),
+        resourceAccessor, parser());
+    DatabaseChangeLog second = cache.getOrParse(bundleResource,
+        createParameters("tenant2_table"), resourceAccessor, parser());
+
+    Assert.assertEquals(1, parseCount.get());
+    Assert.assertEquals(1, cache.size());
+    Assert.assertEquals("tenant1_table", getTableName(first));
+    Assert.assertEquals("tenant2_table", getTableName(second));
+    Assert.assertNotSame(first.getChangeSets().get(0), second.getChangeSets().get(0));
+  }
+
+  @Test
+  public void testUpdatedBundleIsParsedAgain() throws Exception {
+    DatabaseChangeLog first = cache.getOrParse(bundleResource, createParameters("table"),
+        resourceAccessor, parser());
+    Assert.assertEquals("first", first.getChangeSets().get(0).getAuthor());
+
+    bundle.update(new ByteArrayInputStream(framework.bundle("provider")
+        .entry(RESOURCE_NAME.substring(1), changeLog("second")).build()));
+    framework.resolve(bundle);
+
+    DatabaseChangeLog second = cache.getOrParse(bundleResource, createParameters("table"),
+        resourceAccessor, parser());
+    Assert.assertEquals("second", second.getChangeSets().get(0).getAuthor());
+    Assert.assertEquals(2, parseCount.get());
+    Assert.assertEquals(1, cache.size());
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import org.everit.persistence.liquibase.ext.osgi.testing.EmbeddedFramework;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+/**
+ * Test for the binding of {@link ResourceLookupCache} to the bundle wiring.
+ */
+public class ResourceLookupCacheTest {
+
+  private static final String RESOURCE_PATH = "shared/resource.txt";
+
+  private EmbeddedFramework framework;
+
+  @After
+  public void after() {
+    framework.close();
+  }
+
+  @Before
+  public void before() {
+    framework = EmbeddedFramework.start();
+  }
+
+  @Test
+  public void testRefreshDropsCachedLookups() throws Exception {
+    Bundle consumer = framework.bundle("consumer")
+        .header("Import-Package", "shared;resolution:=optional").install();
+    framework.resolve(consumer);
+    ResourceLookupCache cache = ResourceLookupCache.of(consumer);
+    Assert.assertSame(cache, ResourceLookupCache.of(consumer));
+    Assert.assertTrue(cache.getResources(RESOURCE_PATH).isEmpty());
+
+    Bundle provider = framework.bundle("provider").header("Export-Package", "shared")
+        .entry(RESOURCE_PATH, "resource").install();
+    framework.refresh(consumer);
+    framework.resolve(consumer, provider);
+
+    ResourceLookupCache refreshedCache = ResourceLookupCache.of(consumer);
+    Assert.assertNotSame(cache, refreshedCache);
+    Assert.assertEquals(1, refreshedCache.getResources(RESOURCE_PATH).size());
+  }
+
+  @Test
+  public void testUnresolvedBundleHasNoCache() {
+    Bundle bundle = framework.bundle("unresolved").install();
+    Assert.assertNull(ResourceLookupCache.of(bundle));
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test for {@link SchemaExpressionCache}.
+ */
+public class SchemaExpressionCacheTest {
+
+  @Test
+  public void testDisabledCacheCompilesEveryTime() {
+    SchemaExpressionCache cache = new SchemaExpressionCache(0);
+
+    CompiledSchemaExpression first = cache.get("schema");
+    CompiledSchemaExpression second = cache.get("schema");
+
+    Assert.assertNotSame(first, second);
+    Assert.assertEquals(0, cache.size());
+    Assert.assertEquals(0, cache.getHitCount());
+    Assert.assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedExpressionIsEvicted() {
+    SchemaExpressionCache cache = new SchemaExpressionCache(2);
+    CompiledSchemaExpression first = cache.get("first");
+    cache.get("second");
+    cache.get("first");
+    cache.get("third");
+
+    Assert.assertEquals(2, cache.size());
+    Assert.assertEquals(3, cache.getMissCount());
+    Assert.assertSame(first, cache.get("first"));
+
+    cache.get("second");
+    Assert.assertEquals(4, cache.getMissCount());
+  }
+
+  @Test
+  public void testRepeatedLookupIsServedFromCache() {
+    SchemaExpressionCache cache = new SchemaExpressionCache(10);
+
+    CompiledSchemaExpression first = cache.get("schema;filter:=(version>=1.0)");
+    CompiledSchemaExpression second = cache.get("schema;filter:=(version>=1.0)");
+
+    Assert.assertSame(first, second);
+    Assert.assertEquals("schema", second.getSchemaName());
+    Assert.assertEquals(1, cache.getHitCount());
+    Assert.assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void testSyntaxErrorIsCached() {
+    SchemaExpressionCache cache = new SchemaExpressionCache(10);
+
+    CompiledSchemaExpression first = cache.get("schema;filter:=(invalid");
+    CompiledSchemaExpression second = cache.get("schema;filter:=(invalid");
+
+    Assert.assertSame(first, second);
+    try {
+      second.getFilter();
+      Assert.fail("Syntax error expected");
+    } catch (SchemaExpressionSyntaxException e) {
+      Assert.assertNotNull(e.getMessage());
+    }
+  }
+
+  @Test
+  public void testUnsupportedDirectiveIsSyntaxError() {
+    SchemaExpressionCache cache = new SchemaExpressionCache(10);
+
+    try {
+      cache.get("schema;resolution:=optional").getMatcher();
+      Assert.fail("Syntax error expected");
+    } catch (SchemaExpressionSyntaxException e) {
+      Assert.assertTrue(e.getMessage().contains("filter"));
+    }
+  }
+}
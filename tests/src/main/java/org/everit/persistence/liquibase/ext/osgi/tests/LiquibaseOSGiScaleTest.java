@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.tests;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.everit.osgi.ecm.annotation.Activate;
+import org.everit.osgi.ecm.annotation.Component;
+import org.everit.osgi.ecm.annotation.ConfigurationPolicy;
+import org.everit.osgi.ecm.annotation.Service;
+import org.everit.osgi.ecm.annotation.attribute.StringAttribute;
+import org.everit.osgi.ecm.annotation.attribute.StringAttributes;
+import org.everit.osgi.ecm.extender.ECMExtenderConstants;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+
+import aQute.bnd.annotation.headers.ProvideCapability;
+
+/**
+ * Applies generated changelog trees of growing size and writes the measurements to a JSON report,
+ * so nonlinear behavior of the extension can be spotted. The sizes of the trees can be set with
+ * system properties: {@value #PROP_BUNDLE_COUNTS} (comma separated list),
+ * {@value #PROP_FAN_OUT}, {@value #PROP_DEPTH}, {@value #PROP_CHANGESETS_PER_BUNDLE} and the
+ * report file with {@value #PROP_REPORT_FILE}. Every tree is applied once in each
+ * {@link ScaleHarness.ScaleMode} listed in {@value #PROP_MODES}, so the opt-in features are
+ * measured against the baseline.
+ */
+@Component(configurationPolicy = ConfigurationPolicy.IGNORE)
+@ProvideCapability(ns = ECMExtenderConstants.CAPABILITY_NS_COMPONENT,
+    value = ECMExtenderConstants.CAPABILITY_ATTR_CLASS + "=${@class}")
+@StringAttributes({
+    @StringAttribute(attributeId = "eosgi.testId", defaultValue = "LiquibaseOSGiScale"),
+    @StringAttribute(attributeId = "eosgi.testEngine", defaultValue = "junit4") })
+@Service
+public class LiquibaseOSGiScaleTest {
+
+  /**
+   * The comma separated list of the bundle counts of the generated trees.
+   */
+  public static final String PROP_BUNDLE_COUNTS = "liquibase.scale.bundleCounts";
+
+  /**
+   * The number of changesets in the changelog of every generated bundle.
+   */
+  public static final String PROP_CHANGESETS_PER_BUNDLE = "liquibase.scale.changeSetsPerBundle";
+
+  /**
+   * The maximum number of include levels under the root of a generated tree. If it is not set,
+   * the smallest depth that holds the bundle count is used, so the depth grows with the tree.
+   */
+  public static final String PROP_DEPTH = "liquibase.scale.depth";
+
+  /**
+   * The maximum number of changelogs that a generated bundle includes.
+   */
+  public static final String PROP_FAN_OUT = "liquibase.scale.fanOut";
+
+  /**
+   * The comma separated list of the {@link ScaleHarness.ScaleMode}s that every tree is applied
+   * in. By default all modes are run.
+   */
+  public static final String PROP_MODES = "liquibase.scale.modes";
+
+  /**
+   * The file that the JSON report is written to.
+   */
+  public static final String PROP_REPORT_FILE = "liquibase.scale.reportFile";
+
+  private static final String DEFAULT_BUNDLE_COUNTS = "10,100";
+
+  private static final int DEFAULT_CHANGESETS_PER_BUNDLE = 2;
+
+  private static final int DEFAULT_FAN_OUT = 4;
+
+  private static final String DEFAULT_REPORT_FILE = "liquibase-scale-report.json";
+
+  private static List<Integer> parseBundleCounts(final String value) {
+    List<Integer> result = new ArrayList<Integer>();
+    for (String bundleCount : value.split(",")) {
+      String trimmed = bundleCount.trim();
+      if (!trimmed.isEmpty()) {
+        result.add(Integer.parseInt(trimmed));
+      }
+    }
+    return result;
+  }
+
+  private static List<ScaleHarness.ScaleMode> parseModes(final String value) {
+    if (value == null) {
+      return Arrays.asList(ScaleHarness.ScaleMode.values());
+    }
+    List<ScaleHarness.ScaleMode> result = new ArrayList<ScaleHarness.ScaleMode>();
+    for (String mode : value.split(",")) {
+      String trimmed = mode.trim();
+      if (!trimmed.isEmpty()) {
+        result.add(ScaleHarness.ScaleMode.valueOf(trimmed.toUpperCase(Locale.ENGLISH)));
+      }
+    }
+    return result;
+  }
+
+  private BundleContext bundleContext;
+
+  @Activate
+  public void activate(final BundleContext bundleContext) {
+    this.bundleContext = bundleContext;
+  }
+
+  @Test
+  public void testUpdateOfGeneratedChangeLogTrees() {
+    int fanOut = Integer.getInteger(PROP_FAN_OUT, DEFAULT_FAN_OUT);
+    Integer depth = Integer.getInteger(PROP_DEPTH);
+    int changeSetsPerBundle =
+        Integer.getInteger(PROP_CHANGESETS_PER_BUNDLE, DEFAULT_CHANGESETS_PER_BUNDLE);
+    List<Integer> bundleCounts =
+        parseBundleCounts(System.getProperty(PROP_BUNDLE_COUNTS, DEFAULT_BUNDLE_COUNTS));
+    List<ScaleHarness.ScaleMode> modes = parseModes(System.getProperty(PROP_MODES));
+
+    ScaleHarness harness = new ScaleHarness(bundleContext);
+    List<ScaleHarness.ScaleResult> results = new ArrayList<ScaleHarness.ScaleResult>();
+    try {
+      for (Integer bundleCount : bundleCounts) {
+        int treeDepth = (depth != null) ? depth
+            : SyntheticChangeLogBundles.getMinimumDepth(bundleCount, fanOut);
+        for (ScaleHarness.ScaleMode mode : modes) {
+          ScaleHarness.ScaleResult result =
+              harness.run(mode, bundleCount, fanOut, treeDepth, changeSetsPerBundle);
+          results.add(result);
+
+          String message = mode + " with " + bundleCount + " bundles";
+          Assert.assertEquals(message, (long) bundleCount * changeSetsPerBundle,
+              result.appliedChangeSets);
+          // Every included changelog is parsed exactly once
+          Assert.assertEquals(message, bundleCount - 1, result.changeLogParseCount);
+        }
+      }
+    } finally {
+      ScaleHarness.writeReport(
+          new File(System.getProperty(PROP_REPORT_FILE, DEFAULT_REPORT_FILE)), results);
+    }
+  }
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiParserContext;
+import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
+import org.everit.persistence.liquibase.ext.osgi.metrics.InMemoryResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetrics;
+import org.everit.persistence.liquibase.ext.osgi.metrics.ResolutionMetricsListener;
+import org.everit.persistence.liquibase.ext.osgi.migration.MultiSchemaUpdater;
+import org.everit.persistence.liquibase.ext.osgi.migration.SchemaConnectionFactory;
+import org.everit.persistence.liquibase.ext.osgi.migration.SchemaUpdateResult;
+import org.everit.persistence.liquibase.ext.osgi.migration.UpdateCoordinator;
+import org.everit.persistence.liquibase.ext.osgi.tests.SyntheticChangeLogBundles.SyntheticBundle;
+import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
+import org.everit.persistence.liquibase.ext.osgi.util.ChangeLogSnapshotStore;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePlan;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePrefetcher;
+import org.everit.persistence.liquibase.ext.osgi.util.IncludePrescanner;
+import org.everit.persistence.liquibase.ext.osgi.util.ParsedChangeLogCache;
+import org.h2.jdbcx.JdbcDataSource;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import liquibase.Contexts;
+import liquibase.Liquibase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.LiquibaseException;
+
+/**
+ * Installs a generated changelog tree into the running framework, applies it on an in-memory H2
+ * database and measures the time, the heap usage and the resolution counts of the update.
+ */
+final class ScaleHarness {
+
+  /**
+   * The opt-in features of the extension that are enabled during a run.
+   */
+  enum ScaleMode {
+
+    /**
+     * No parser context, every include is resolved and parsed when the parser reaches it.
+     */
+    BASELINE,
+
+    /**
+     * The includes are resolved via an {@link IncludePlan} of the root bundle.
+     */
+    PLAN,
+
+    /**
+     * The node trees of the changelogs are cached and the includes are prescanned.
+     */
+    CACHES,
+
+    /**
+     * The included changelogs are prefetched on a background executor.
+     */
+    PREFETCH,
+
+    /**
+     * The node trees are loaded from the snapshots that a warm-up update wrote.
+     */
+    SNAPSHOTS,
+
+    /**
+     * The update runs via {@link MultiSchemaUpdater} and the shared {@link UpdateCoordinator}.
+     */
+    COORDINATOR
+  }
+
+  /**
+   * The measurements of one run.
+   */
+  static final class ScaleResult {
+
+    final long appliedChangeSets;
+
+    final int bundleCount;
+
+    final long bundleQueryCount;
+
+    final long bytesRead;
+
+    final long capabilitiesScanned;
+
+    final long changeLogParseCount;
+
+    final int changeSetsPerBundle;
+
+    final int depth;
+
+    final int fanOut;
+
+    final long filterEvaluations;
+
+    final long heapBaselineBytes;
+
+    final long heapPeakBytes;
+
+    final long installNanos;
+
+    final ScaleMode mode;
+
+    final long resolveNanos;
+
+    final long resourceReadCount;
+
+    final long updateNanos;
+
+    final long wireLookupCount;
+
+    final long wireLookupMissCount;
+
+    final long wiresScanned;
+
+    ScaleResult(final ScaleMode mode, final int bundleCount, final int fanOut, final int depth,
+        final int changeSetsPerBundle, final long installNanos, final long resolveNanos,
+        final long updateNanos, final long heapBaselineBytes, final long heapPeakBytes,
+        final long appliedChangeSets, final InMemoryResolutionMetrics metrics) {
+      this.mode = mode;
+      this.bundleCount = bundleCount;
+      this.fanOut = fanOut;
+      this.depth = depth;
+      this.changeSetsPerBundle = changeSetsPerBundle;
+      this.installNanos = installNanos;
+      this.resolveNanos = resolveNanos;
+      this.updateNanos = updateNanos;
+      this.heapBaselineBytes = heapBaselineBytes;
+      this.heapPeakBytes = heapPeakBytes;
+      this.appliedChangeSets = appliedChangeSets;
+      this.bundleQueryCount = metrics.getBundleQueryCount();
+      this.bytesRead = metrics.getBytesRead();
+      this.capabilitiesScanned = metrics.getCapabilitiesScanned();
+      this.changeLogParseCount = metrics.getChangeLogParseCount();
+      this.filterEvaluations = metrics.getFilterEvaluations();
+      this.resourceReadCount = metrics.getResourceReadCount();
+      this.wireLookupCount = metrics.getWireLookupCount();
+      this.wireLookupMissCount = metrics.getWireLookupMissCount();
+      this.wiresScanned = metrics.getWiresScanned();
+    }
+
+    void toJson(final StringBuilder sb) {
+      sb.append("    {\n");
+      sb.append("      \"mode\": \"").append(mode).append("\",\n");
+      appendField(sb, "bundleCount", bundleCount);
+      appendField(sb, "fanOut", fanOut);
+      appendField(sb, "depth", depth);
+      appendField(sb, "changeSetsPerBundle", changeSetsPerBundle);
+      appendField(sb, "appliedChangeSets", appliedChangeSets);
+      appendField(sb, "installNanos", installNanos);
+      appendField(sb, "resolveNanos", resolveNanos);
+      appendField(sb, "updateNanos", updateNanos);
+      appendField(sb, "updateNanosPerBundle", updateNanos / bundleCount);
+      appendField(sb, "heapBaselineBytes", heapBaselineBytes);
+      appendField(sb, "heapPeakBytes", heapPeakBytes);
+      appendField(sb, "changeLogParseCount", changeLogParseCount);
+      appendField(sb, "wireLookupCount", wireLookupCount);
+      appendField(sb, "wireLookupMissCount", wireLookupMissCount);
+      appendField(sb, "wiresScanned", wiresScanned);
+      appendField(sb, "bundleQueryCount", bundleQueryCount);
+      appendField(sb, "capabilitiesScanned", capabilitiesScanned);
+      appendField(sb, "filterEvaluations", filterEvaluations);
+      appendField(sb, "resourceReadCount", resourceReadCount);
+      sb.append("      \"bytesRead\": ").append(bytesRead).append('\n');
+      sb.append("    }");
+    }
+  }
+
+  private static final int MAX_PENDING_PREFETCHES = 64;
+
+  private static final int PREFETCH_THREADS = 2;
+
+  private static final long REFRESH_TIMEOUT_SECONDS = 60;
+
+  private static final AtomicInteger RUN_COUNTER = new AtomicInteger();
+
+  private static final Executor SAME_THREAD_EXECUTOR = new Executor() {
+    @Override
+    public void execute(final Runnable command) {
+      command.run();
+    }
+  };
+
+  private static void appendField(final StringBuilder sb, final String name, final long value) {
+    sb.append("      \"").append(name).append("\": ").append(value).append(",\n");
+  }
+
+  private static EOSGiParserContext createParserContext(final ScaleMode mode,
+      final Bundle rootBundle, final Executor prefetchExecutor, final File snapshotDirectory) {
+    EOSGiParserContext parserContext = new EOSGiParserContext();
+    switch (mode) {
+      case PLAN:
+        parserContext.setIncludePlan(IncludePlan.create(Collections.singleton(rootBundle)));
+        break;
+      case CACHES:
+        parserContext.setParsedChangeLogCache(new ParsedChangeLogCache());
+        parserContext.setIncludePrescanner(new IncludePrescanner());
+        break;
+      case PREFETCH:
+        parserContext
+            .setIncludePrefetcher(new IncludePrefetcher(prefetchExecutor, MAX_PENDING_PREFETCHES));
+        break;
+      case SNAPSHOTS:
+        parserContext.setChangeLogSnapshotStore(new ChangeLogSnapshotStore(snapshotDirectory));
+        break;
+      default:
+        return null;
+    }
+    return parserContext;
+  }
+
+  private static void deleteRecursively(final File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static long getHeapPeakBytes(final List<MemoryPoolMXBean> heapPools) {
+    long result = 0;
+    for (MemoryPoolMXBean heapPool : heapPools) {
+      result += heapPool.getPeakUsage().getUsed();
+    }
+    return result;
+  }
+
+  private static List<MemoryPoolMXBean> resetHeapPools() {
+    List<MemoryPoolMXBean> result = new ArrayList<MemoryPoolMXBean>();
+    for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (memoryPool.isValid() && (memoryPool.getType() == MemoryType.HEAP)) {
+        memoryPool.resetPeakUsage();
+        result.add(memoryPool);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes the results as a JSON document.
+   *
+   * @param file
+   *          The report file.
+   * @param results
+   *          The results of the runs.
+   */
+  static void writeReport(final File file, final List<ScaleResult> results) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\n  \"results\": [\n");
+    for (int i = 0, n = results.size(); i < n; i++) {
+      results.get(i).toJson(sb);
+      sb.append((i < (n - 1)) ? ",\n" : "\n");
+    }
+    sb.append("  ]\n}\n");
+
+    File parentFile = file.getAbsoluteFile().getParentFile();
+    try {
+      if (parentFile != null) {
+        Files.createDirectories(parentFile.toPath());
+      }
+      try (Writer writer = new OutputStreamWriter(Files.newOutputStream(file.toPath()),
+          StandardCharsets.UTF_8)) {
+        writer.write(sb.toString());
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Could not write scale report to " + file, e);
+    }
+  }
+
+  private final BundleContext bundleContext;
+
+  ScaleHarness(final BundleContext bundleContext) {
+    this.bundleContext = bundleContext;
+  }
+
+  private long countAppliedChangeSets(final Connection connection) throws SQLException {
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("select count(*) from DATABASECHANGELOG")) {
+      resultSet.next();
+      return resultSet.getLong(1);
+    }
+  }
+
+  /**
+   * Generates a changelog tree, installs it, applies it on a new in-memory database and
+   * uninstalls it.
+   *
+   * @param mode
+   *          The opt-in features that are enabled during the update.
+   * @param bundleCount
+   *          The number of bundles including the root.
+   * @param fanOut
+   *          The maximum number of changelogs that a bundle includes.
+   * @param depth
+   *          The maximum number of include levels under the root. It must be large enough for the
+   *          bundle count, see {@link SyntheticChangeLogBundles#getMinimumDepth(int, int)}.
+   * @param changeSetsPerBundle
+   *          The number of changesets in the changelog of every bundle.
+   * @return The measurements of the run.
+   */
+  ScaleResult run(final ScaleMode mode, final int bundleCount, final int fanOut,
+      final int depth, final int changeSetsPerBundle) {
+
+    List<SyntheticBundle> syntheticBundles =
+        SyntheticChangeLogBundles.generate(bundleCount, fanOut, depth, changeSetsPerBundle);
+    int runId = RUN_COUNTER.incrementAndGet();
+    String locationPrefix = "scale:" + runId + ":";
+    List<Bundle> installedBundles = new ArrayList<Bundle>(bundleCount);
+    FrameworkWiring frameworkWiring =
+        bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION).adapt(FrameworkWiring.class);
+
+    ResolutionMetricsListener previousListener = ResolutionMetrics.getListener();
+    ExecutorService prefetchExecutor = null;
+    File snapshotDirectory = null;
+    try {
+      long startNanos = System.nanoTime();
+      for (SyntheticBundle syntheticBundle : syntheticBundles) {
+        installedBundles.add(bundleContext.installBundle(
+            locationPrefix + syntheticBundle.symbolicName,
+            new ByteArrayInputStream(syntheticBundle.content)));
+      }
+      long installNanos = System.nanoTime() - startNanos;
+
+      startNanos = System.nanoTime();
+      if (!frameworkWiring.resolveBundles(installedBundles)) {
+        throw new IllegalStateException("Could not resolve the synthetic bundles");
+      }
+      long resolveNanos = System.nanoTime() - startNanos;
+
+      if (mode == ScaleMode.PREFETCH) {
+        prefetchExecutor = Executors.newFixedThreadPool(PREFETCH_THREADS);
+      }
+      if (mode == ScaleMode.SNAPSHOTS) {
+        snapshotDirectory = Files.createTempDirectory("liquibase-scale-snapshots").toFile();
+      }
+      BundleResource rootResource = new BundleResource(installedBundles.get(0),
+          SyntheticChangeLogBundles.getResourceName(0), Collections.<String, Object> emptyMap());
+      EOSGiParserContext parserContext = createParserContext(mode, rootResource.bundle,
+          prefetchExecutor, snapshotDirectory);
+      if (mode == ScaleMode.SNAPSHOTS) {
+        // Writes the snapshots, the measured update loads them
+        update(mode, rootResource, parserContext, "jdbc:h2:mem:scalewarmup" + runId);
+      }
+
+      InMemoryResolutionMetrics metrics = new InMemoryResolutionMetrics();
+      ResolutionMetrics.setListener(metrics);
+
+      System.gc();
+      long heapBaselineBytes =
+          ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+      List<MemoryPoolMXBean> heapPools = resetHeapPools();
+
+      String jdbcUrl = "jdbc:h2:mem:scale" + runId;
+      startNanos = System.nanoTime();
+      long appliedChangeSets = update(mode, rootResource, parserContext, jdbcUrl);
+      long updateNanos = System.nanoTime() - startNanos;
+
+      long heapPeakBytes = getHeapPeakBytes(heapPools);
+      ResolutionMetrics.setListener(previousListener);
+
+      return new ScaleResult(mode, bundleCount, fanOut, depth, changeSetsPerBundle,
+          installNanos, resolveNanos, updateNanos, heapBaselineBytes, heapPeakBytes,
+          appliedChangeSets, metrics);
+    } catch (BundleException | IOException | LiquibaseException | SQLException e) {
+      throw new RuntimeException(e);
+    } finally {
+      ResolutionMetrics.setListener(previousListener);
+      if (prefetchExecutor != null) {
+        prefetchExecutor.shutdownNow();
+      }
+      if (snapshotDirectory != null) {
+        deleteRecursively(snapshotDirectory);
+      }
+      uninstallAll(installedBundles, frameworkWiring);
+    }
+  }
+
+  /**
+   * Applies the root changelog on a new in-memory database and drops the database.
+   *
+   * @return The number of the applied changesets.
+   */
+  private long update(final ScaleMode mode, final BundleResource rootResource,
+      final EOSGiParserContext parserContext, final String jdbcUrl)
+      throws LiquibaseException, SQLException {
+
+    final JdbcDataSource h2DataSource = new JdbcDataSource();
+    h2DataSource.setURL(jdbcUrl + ";DB_CLOSE_DELAY=-1");
+    try (Connection connection = h2DataSource.getConnection()) {
+      try {
+        if (mode == ScaleMode.COORDINATOR) {
+          SchemaUpdateResult result = new MultiSchemaUpdater(SAME_THREAD_EXECUTOR, parserContext)
+              .update(Collections.singletonList(rootResource), new SchemaConnectionFactory() {
+                @Override
+                public Connection getConnection(final BundleResource bundleResource)
+                    throws SQLException {
+                  return h2DataSource.getConnection();
+                }
+              }, null).get(0);
+          if (!result.isSuccessful()) {
+            throw new IllegalStateException("Update failed", result.failure);
+          }
+        } else {
+          Liquibase liquibase = new Liquibase(rootResource.resourceName,
+              new EOSGiResourceAccessor(rootResource.bundle, rootResource.attributes,
+                  parserContext),
+              new JdbcConnection(connection));
+          liquibase.update((Contexts) null);
+        }
+        return countAppliedChangeSets(connection);
+      } finally {
+        try (Statement statement = connection.createStatement()) {
+          statement.execute("SHUTDOWN");
+        }
+      }
+    }
+  }
+
+  private void uninstallAll(final List<Bundle> bundles, final FrameworkWiring frameworkWiring) {
+    RuntimeException uninstallException = null;
+    for (Bundle bundle : bundles) {
+      try {
+        bundle.uninstall();
+      } catch (BundleException | RuntimeException e) {
+        if (uninstallException == null) {
+          uninstallException = new RuntimeException("Could not uninstall synthetic bundles");
+        }
+        uninstallException.addSuppressed(e);
+      }
+    }
+    final CountDownLatch refreshLatch = new CountDownLatch(1);
+    frameworkWiring.refreshBundles(bundles, new FrameworkListener() {
+      @Override
+      public void frameworkEvent(final FrameworkEvent event) {
+        refreshLatch.countDown();
+      }
+    });
+    try {
+      // The refresh is asynchronous, the next run should not measure it
+      if (!refreshLatch.await(REFRESH_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        throw new IllegalStateException("Refresh of the synthetic bundles timed out");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+    if (uninstallException != null) {
+      throw uninstallException;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.liquibase.ext.osgi.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Generates bundles that provide and require <code>liquibase.changelog</code> capabilities and
+ * include the changelogs of each other via ".osgi" includes. The bundles form a tree: the first
+ * bundle is the root and every bundle includes the changelogs of at most <code>fanOut</code>
+ * bundles of the next level, until <code>depth</code> levels are filled. The tree must be large
+ * enough for all bundles, see {@link #getMinimumDepth(int, int)}.
+ */
+final class SyntheticChangeLogBundles {
+
+  /**
+   * A generated bundle.
+   */
+  static final class SyntheticBundle {
+
+    /**
+     * The content of the bundle JAR.
+     */
+    final byte[] content;
+
+    /**
+     * The indexes of the bundles whose changelogs are included by this bundle.
+     */
+    final List<Integer> includes;
+
+    /**
+     * The index of the bundle, zero for the root.
+     */
+    final int index;
+
+    /**
+     * The name of the changelog resource in the bundle.
+     */
+    final String resourceName;
+
+    /**
+     * The symbolic name of the bundle.
+     */
+    final String symbolicName;
+
+    SyntheticBundle(final int index, final List<Integer> includes,
+        final int changeSetsPerBundle) {
+      this.index = index;
+      this.includes = Collections.unmodifiableList(includes);
+      this.resourceName = getResourceName(index);
+      this.symbolicName = SYMBOLIC_NAME_PREFIX + index;
+      this.content = createJar(this, changeSetsPerBundle);
+    }
+  }
+
+  private static final String CAPABILITY_NS = "liquibase.changelog";
+
+  private static final String SCHEMA_NAME_PREFIX = "scale.changelog.";
+
+  private static final String SYMBOLIC_NAME_PREFIX =
+      "org.everit.persistence.liquibase.ext.osgi.tests.scale.";
+
+  private static long computeCapacity(final int fanOut, final int depth) {
+    long capacity = 1;
+    long levelSize = 1;
+    for (int level = 1; (level <= depth) && (capacity < Integer.MAX_VALUE); level++) {
+      levelSize *= fanOut;
+      capacity += levelSize;
+    }
+    return capacity;
+  }
+
+  private static String createChangeLog(final SyntheticBundle bundle,
+      final int changeSetsPerBundle) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+        .append("<databaseChangeLog objectQuotingStrategy=\"QUOTE_ALL_OBJECTS\"")
+        .append(" logicalFilePath=\"").append(SCHEMA_NAME_PREFIX).append(bundle.index)
+        .append("\"\n  xmlns=\"http://www.liquibase.org/xml/ns/dbchangelog\"")
+        .append(" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n")
+        .append("  xsi:schemaLocation=\"http://www.liquibase.org/xml/ns/dbchangelog")
+        .append(" http://www.liquibase.org/xml/ns/dbchangelog/dbchangelog-3.0.xsd\">\n\n");
+
+    for (Integer include : bundle.includes) {
+      sb.append("  <include file=\"").append(SCHEMA_NAME_PREFIX).append(include)
+          .append(".osgi\" />\n");
+    }
+    for (int i = 0; i < changeSetsPerBundle; i++) {
+      String tableName = "scale_" + bundle.index + "_" + i;
+      sb.append("\n  <changeSet id=\"").append(i).append("\" author=\"everit\">\n")
+          .append("    <createTable tableName=\"").append(tableName).append("\">\n")
+          .append("      <column name=\"").append(tableName).append("_id\" type=\"bigint\">\n")
+          .append("        <constraints primaryKeyName=\"pk_").append(tableName)
+          .append("\" primaryKey=\"true\" nullable=\"false\" />\n")
+          .append("      </column>\n")
+          .append("    </createTable>\n")
+          .append("  </changeSet>\n");
+    }
+    sb.append("\n</databaseChangeLog>\n");
+    return sb.toString();
+  }
+
+  private static byte[] createJar(final SyntheticBundle bundle, final int changeSetsPerBundle) {
+    Manifest manifest = new Manifest();
+    Attributes mainAttributes = manifest.getMainAttributes();
+    mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    mainAttributes.putValue("Bundle-ManifestVersion", "2");
+    mainAttributes.putValue("Bundle-SymbolicName", bundle.symbolicName);
+    mainAttributes.putValue("Bundle-Version", "1.0.0");
+    if (bundle.index > 0) {
+      mainAttributes.putValue("Provide-Capability",
+          CAPABILITY_NS + ";" + CAPABILITY_NS + "=" + SCHEMA_NAME_PREFIX + bundle.index
+              + ";resource=\"/" + bundle.resourceName + "\"");
+    }
+    if (!bundle.includes.isEmpty()) {
+      StringBuilder requirements = new StringBuilder();
+      for (Integer include : bundle.includes) {
+        if (requirements.length() > 0) {
+          requirements.append(',');
+        }
+        requirements.append(CAPABILITY_NS).append(";filter:=\"(").append(CAPABILITY_NS)
+            .append('=').append(SCHEMA_NAME_PREFIX).append(include).append(")\"");
+      }
+      mainAttributes.putValue("Require-Capability", requirements.toString());
+    }
+
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try (JarOutputStream jarOut = new JarOutputStream(bout, manifest)) {
+      jarOut.putNextEntry(new JarEntry(bundle.resourceName));
+      jarOut.write(createChangeLog(bundle, changeSetsPerBundle).getBytes(StandardCharsets.UTF_8));
+      jarOut.closeEntry();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return bout.toByteArray();
+  }
+
+  /**
+   * Generates the bundles of a changelog tree.
+   *
+   * @param bundleCount
+   *          The number of bundles including the root.
+   * @param fanOut
+   *          The maximum number of changelogs that a bundle includes.
+   * @param depth
+   *          The maximum number of include levels under the root.
+   * @param changeSetsPerBundle
+   *          The number of changesets in the changelog of every bundle.
+   * @return The bundles, the root is the first one.
+   * @throws IllegalArgumentException
+   *           if the bundles do not fit into a tree of the provided fan-out and depth.
+   */
+  static List<SyntheticBundle> generate(final int bundleCount, final int fanOut,
+      final int depth, final int changeSetsPerBundle) {
+    if ((bundleCount < 1) || (fanOut < 1) || (depth < 1)) {
+      throw new IllegalArgumentException("Bundle count, fan-out and depth must be positive");
+    }
+    if (computeCapacity(fanOut, depth) < bundleCount) {
+      throw new IllegalArgumentException("A tree with fan-out " + fanOut + " and depth " + depth
+          + " cannot hold " + bundleCount + " bundles, the depth must be at least "
+          + getMinimumDepth(bundleCount, fanOut));
+    }
+    List<List<Integer>> includes = new ArrayList<List<Integer>>(bundleCount);
+    int[] levels = new int[bundleCount];
+    includes.add(new ArrayList<Integer>());
+    LinkedList<Integer> openParents = new LinkedList<Integer>();
+    openParents.add(0);
+    for (int i = 1; i < bundleCount; i++) {
+      while (!openParents.isEmpty() && (includes.get(openParents.peek()).size() >= fanOut)) {
+        openParents.poll();
+      }
+      int parent = openParents.peek();
+      includes.get(parent).add(i);
+      includes.add(new ArrayList<Integer>());
+      levels[i] = levels[parent] + 1;
+      if (levels[i] < depth) {
+        openParents.add(i);
+      }
+    }
+
+    List<SyntheticBundle> result = new ArrayList<SyntheticBundle>(bundleCount);
+    for (int i = 0; i < bundleCount; i++) {
+      result.add(new SyntheticBundle(i, includes.get(i), changeSetsPerBundle));
+    }
+    return result;
+  }
+
+  /**
+   * Computes the smallest depth of a tree that can hold the provided number of bundles.
+   *
+   * @param bundleCount
+   *          The number of bundles including the root.
+   * @param fanOut
+   *          The maximum number of changelogs that a bundle includes.
+   * @return The minimum depth, at least one.
+   */
+  static int getMinimumDepth(final int bundleCount, final int fanOut) {
+    if (fanOut < 1) {
+      throw new IllegalArgumentException("Fan-out must be positive");
+    }
+    int depth = 1;
+    while (computeCapacity(fanOut, depth) < bundleCount) {
+      depth++;
+    }
+    return depth;
+  }
+
+  static String getResourceName(final int index) {
+    return "META-INF/liquibase/scale_" + index + ".xml";
+  }
+
+  private SyntheticChangeLogBundles() {
+  }
+}